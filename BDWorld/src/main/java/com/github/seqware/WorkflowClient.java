@@ -1,5 +1,6 @@
 package com.github.seqware;
 
+import com.github.seqware.telemetry.JobTelemetry;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -17,6 +18,7 @@ public class WorkflowClient extends AbstractWorkflowDataModel {
   String picardSort = this.getWorkflowBaseDir()+"/bin/picard-tools-1.92/SortSam.jar";
   String picardFixmate = this.getWorkflowBaseDir()+"/bin/picard-tools-1.92/FixMateInformation.jar";
   String samtools = this.getWorkflowBaseDir()+"/bin/samtools-0.1.19/samtools";
+  String classes = this.getWorkflowBaseDir()+"/classes";
   String picardReorder = this.getWorkflowBaseDir()+"/bin/picard-tools-1.92/ReorderSam.jar";
   String gatk = this.getWorkflowBaseDir()+"/bin/GenomeAnalysisTK.jar";
   String tmpDir = "tmpDir";
@@ -92,7 +94,7 @@ public class WorkflowClient extends AbstractWorkflowDataModel {
       String outputFilepath = this.getFiles().get("output_vcf_file").getProvisionedPath();
 
       // quality filter
-      Job id1 = samtoolsFilterReads(samtools, samtoolsMem, samtoolsFlag, inputFilepath, filteredReads);
+      Job id1 = filterReads(java, samtoolsMem, samtoolsFlag, threads, inputFilepath, filteredReads);
       // sort the file in readname order to fixmate
       Job id2 = picardSort(java, picardSortMem, picardSort, filteredReads, sortedReads);
       id2.addParent(id1);
@@ -106,6 +108,12 @@ public class WorkflowClient extends AbstractWorkflowDataModel {
       Job id5 = gatkUnifiedGenotyper(java, gatkUnifiedGenotyperMem, gatk, fasta, dbsnpVcf, threads, reorderedReads, outputFilepath);
       id5.addParent(id4);
 
+      // sample each job's CPU, memory and I/O and summarise the run in a last job
+      if (hasPropertyAndNotNull("job_telemetry") && "true".equals(getProperty("job_telemetry"))) {
+        int interval = hasPropertyAndNotNull("telemetry_interval_seconds") ? Integer.parseInt(getProperty("telemetry_interval_seconds")) : 5;
+        new JobTelemetry(this.getWorkflow(), this.getWorkflowBaseDir() + "/scripts", interval).instrument();
+      }
+
     } catch (Exception ex) {
       Logger.getLogger(WorkflowClient.class.getName()).log(Level.SEVERE, null, ex);
     }
@@ -159,11 +167,12 @@ public class WorkflowClient extends AbstractWorkflowDataModel {
     return job01;
   }
 
-  private Job samtoolsFilterReads(String samtools, int samtoolsMem, String samtoolsFlag, String inputFile, String outputFile) {
+  private Job filterReads(String java, int filterMem, String samtoolsFlag, int threads, String inputFile, String outputFile) {
+    // same as samtools view -b -F, but inflating and compressing on all the threads
     Job job00 = this.getWorkflow().createBashJob("SamtoolsFilterUnmappedMultihitReads");
-    job00.getCommand().addArgument(samtools).addArgument("view -b -F").addArgument(samtoolsFlag);
-    job00.getCommand().addArgument(inputFile).addArgument(" > " + outputFile);
-    job00.setMaxMemory(samtoolsMem + "000");
+    job00.getCommand().addArgument(java + " -Xmx" + filterMem + "g -cp " + classes + " com.github.seqware.filter.FlagFilter");
+    job00.getCommand().addArgument(inputFile).addArgument(outputFile).addArgument(samtoolsFlag).addArgument("" + threads);
+    job00.setMaxMemory(filterMem + "000");
     return job00;
   }
 
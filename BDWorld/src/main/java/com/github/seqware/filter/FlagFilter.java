@@ -0,0 +1,66 @@
+package com.github.seqware.filter;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamRecord;
+import com.github.seqware.bam.BamWriter;
+import com.github.seqware.bam.BgzfInputStream;
+import com.github.seqware.bam.RecordFilter;
+import com.github.seqware.bam.RecordFilters;
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/**
+ * Drops the reads that have any of the given flags set, as "samtools view -b -F flags" does, in a single pass that inflates the input and compresses
+ * the output on a shared pool of threads.
+ */
+public class FlagFilter {
+
+  private static final Logger logger = Logger.getLogger(FlagFilter.class.getName());
+
+  private static final String USAGE = "java " + FlagFilter.class.getName() + " <input bam> <output bam> <flags to exclude> [threads]";
+
+  public static void main(String[] args) {
+    if (args.length < 3 || args.length > 4) {
+      logger.log(Level.SEVERE, USAGE);
+      System.exit(2);
+    }
+    try {
+      File input = new File(args[0]);
+      File output = new File(args[1]);
+      RecordFilter filter = RecordFilters.excludeAny(Integer.decode(args[2]));
+      int threads = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+      ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+      BgzfInputStream in = BgzfInputStream.openSequential(input, pool, 4 * threads);
+      try {
+        BamHeader header = BamHeader.read(in);
+        BamWriter out = new BamWriter(output, header, Deflater.DEFAULT_COMPRESSION, pool, 4 * threads);
+        BamRecord record = new BamRecord();
+        long count = 0;
+        while (record.read(in)) {
+          count++;
+          if (filter.accept(record)) {
+            out.write(record);
+          }
+        }
+        out.close();
+        logger.log(Level.INFO, "Kept {0} of {1} reads of {2}", new Object[]{out.getRecordCount(), count, input});
+      } finally {
+        in.close();
+        if (pool != null) {
+          pool.shutdown();
+        }
+      }
+    } catch (NumberFormatException e) {
+      logger.log(Level.SEVERE, e.getMessage() + "\n" + USAGE);
+      System.exit(2);
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Filtering failed", e);
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,153 @@
+use strict;
+use Getopt::Long;
+use JSON::PP;
+use Time::HiRes qw(time sleep);
+use Sys::Hostname;
+
+# PURPOSE:
+# samples the CPU time, resident memory and I/O of a job's processes from
+# /proc while the job runs, and writes them as one JSON record when it is
+# sent SIGUSR1 or the job's shell is gone.  It is started in the background
+# by the job's own shell, which it watches together with all its descendants
+# except this script; the shell runs its command in a subshell and then
+# signals it and waits for the record to be written.
+#
+# The CPU seconds and I/O bytes are cumulative: the counters of the live
+# processes and, through the kernel's accounting of reaped children, of the
+# ones that already finished.  The resident memory is the sum over the live
+# processes at each sample, and its peak is kept.
+
+my $job;
+my $parents = "";
+my $output;
+my $pid;
+my $interval = 5;
+my $memory_m = -1;
+my $threads = -1;
+
+GetOptions (
+  "job=s" => \$job,
+  "parents=s" => \$parents,
+  "output=s" => \$output,
+  "pid=i" => \$pid,
+  "interval=f" => \$interval,
+  "memory-m=i" => \$memory_m,
+  "threads=i" => \$threads,
+);
+
+if (!defined($job) || !defined($output) || !defined($pid)) {
+  die "USAGE: perl job_telemetry.pl --job <name> --output <json> --pid <job shell pid> [--parents <name,...>] [--interval <seconds>]"
+    . " [--memory-m <MB>] [--threads <n>]\n";
+}
+
+my $ticks = `getconf CLK_TCK 2>/dev/null`;
+chomp $ticks;
+$ticks = 100 unless $ticks =~ /^\d+$/ && $ticks > 0;
+my $page_kb = 4;
+
+my $start = time();
+my $samples = 0;
+my ($cpu, $peak_rss, $rchar, $wchar, $read_bytes, $write_bytes) = (0, 0, 0, 0, 0, 0);
+my $done = 0;
+$SIG{USR1} = sub { $done = 1; };
+$SIG{TERM} = sub { $done = 1; };
+
+sub read_file {
+  my ($file) = @_;
+  open(my $in, "<", $file) or return undef;
+  local $/;
+  my $content = <$in>;
+  close $in;
+  return $content;
+}
+
+# the pid, parent pid, CPU ticks and resident pages of every process
+sub processes {
+  my %stat;
+  opendir(my $dir, "/proc") or return \%stat;
+  foreach my $p (readdir($dir)) {
+    next unless $p =~ /^\d+$/;
+    my $line = read_file("/proc/$p/stat");
+    next unless defined $line;
+    # the command name may hold spaces and parentheses, the fields follow its last ')'
+    $line =~ s/^.*\)\s+//s;
+    my @f = split(/\s+/, $line);
+    # fields 4, 14-17 and 24 of stat(5), shifted by the pid and the name
+    $stat{$p} = { ppid => $f[1], ticks => $f[11] + $f[12] + $f[13] + $f[14], rss => $f[21] };
+  }
+  closedir($dir);
+  return \%stat;
+}
+
+sub sample {
+  my $stat = processes();
+  my %children;
+  foreach my $p (keys %$stat) {
+    push @{$children{$stat->{$p}{ppid}}}, $p;
+  }
+  my @tree = ($pid);
+  my @todo = ($pid);
+  while (@todo) {
+    my $p = shift @todo;
+    foreach my $c (@{$children{$p} || []}) {
+      # this script and the commands it runs are not part of the job
+      next if $c == $$;
+      push @tree, $c;
+      push @todo, $c;
+    }
+  }
+  my ($t, $rss, %io) = (0, 0);
+  my $alive = 0;
+  foreach my $p (@tree) {
+    next unless exists $stat->{$p};
+    $alive++;
+    $t += $stat->{$p}{ticks};
+    $rss += $stat->{$p}{rss} * $page_kb * 1024;
+    my $content = read_file("/proc/$p/io");
+    next unless defined $content;
+    foreach my $field ("rchar", "wchar", "read_bytes", "write_bytes") {
+      $io{$field} += $1 if $content =~ /^$field:\s*(\d+)/m;
+    }
+  }
+  return 0 unless $alive;
+  # a finished child moves its counters into its parent only when it is reaped, so the sums may dip in between
+  $samples++;
+  $cpu = $t / $ticks if $t / $ticks > $cpu;
+  $peak_rss = $rss if $rss > $peak_rss;
+  $rchar = $io{rchar} if $io{rchar} > $rchar;
+  $wchar = $io{wchar} if $io{wchar} > $wchar;
+  $read_bytes = $io{read_bytes} if $io{read_bytes} > $read_bytes;
+  $write_bytes = $io{write_bytes} if $io{write_bytes} > $write_bytes;
+  return 1;
+}
+
+while (!$done) {
+  last unless sample();
+  # sleep is interrupted by the signal
+  sleep($interval) unless $done;
+}
+sample() if $done;
+my $end = time();
+
+my %record = (
+  job => $job,
+  parents => [grep { length($_) } split(/,/, $parents)],
+  host => hostname(),
+  start => sprintf("%.3f", $start) + 0,
+  end => sprintf("%.3f", $end) + 0,
+  seconds => sprintf("%.3f", $end - $start) + 0,
+  cpu_seconds => sprintf("%.2f", $cpu) + 0,
+  peak_rss_bytes => $peak_rss,
+  rchar => $rchar,
+  wchar => $wchar,
+  read_bytes => $read_bytes,
+  write_bytes => $write_bytes,
+  samples => $samples,
+  interval => $interval + 0,
+  memory_m => $memory_m,
+  threads => $threads,
+);
+open(my $out, ">", "$output.tmp") or die "Cannot write $output.tmp: $!\n";
+print $out JSON::PP->new->canonical->encode(\%record) . "\n";
+close $out;
+rename("$output.tmp", $output) or die "Cannot rename $output.tmp: $!\n";
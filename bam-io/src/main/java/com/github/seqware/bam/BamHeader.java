@@ -0,0 +1,110 @@
+package com.github.seqware.bam;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The header of a BAM file: the SAM header text and the binary reference dictionary.
+ */
+public class BamHeader {
+
+  private static final byte[] MAGIC = {'B', 'A', 'M', 1};
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private final String text;
+  private final String[] names;
+  private final int[] lengths;
+  private final Map<String, Integer> indexByName = new HashMap<String, Integer>();
+
+  public BamHeader(String text, String[] names, int[] lengths) {
+    this.text = text;
+    this.names = names;
+    this.lengths = lengths;
+    for (int i = 0; i < names.length; i++) {
+      indexByName.put(names[i], i);
+    }
+  }
+
+  public static BamHeader read(InputStream in) throws IOException {
+    byte[] magic = new byte[4];
+    if (!LittleEndian.readFully(in, magic, 0, 4) || magic[0] != 'B' || magic[1] != 'A' || magic[2] != 'M' || magic[3] != 1) {
+      throw new IOException("Not a BAM file");
+    }
+    byte[] textBytes = new byte[LittleEndian.readInt(in)];
+    LittleEndian.readFully(in, textBytes, 0, textBytes.length);
+    // the text may be NUL padded
+    int textLength = textBytes.length;
+    while (textLength > 0 && textBytes[textLength - 1] == 0) {
+      textLength--;
+    }
+    int count = LittleEndian.readInt(in);
+    String[] names = new String[count];
+    int[] lengths = new int[count];
+    for (int i = 0; i < count; i++) {
+      byte[] name = new byte[LittleEndian.readInt(in)];
+      LittleEndian.readFully(in, name, 0, name.length);
+      names[i] = new String(name, 0, name.length - 1, ASCII);
+      lengths[i] = LittleEndian.readInt(in);
+    }
+    return new BamHeader(new String(textBytes, 0, textLength, ASCII), names, lengths);
+  }
+
+  public void write(OutputStream out) throws IOException {
+    byte[] textBytes = text.getBytes(ASCII);
+    out.write(MAGIC);
+    LittleEndian.writeInt(out, textBytes.length);
+    out.write(textBytes);
+    LittleEndian.writeInt(out, names.length);
+    for (int i = 0; i < names.length; i++) {
+      byte[] name = names[i].getBytes(ASCII);
+      LittleEndian.writeInt(out, name.length + 1);
+      out.write(name);
+      out.write(0);
+      LittleEndian.writeInt(out, lengths[i]);
+    }
+  }
+
+  public String getText() {
+    return text;
+  }
+
+  public int getReferenceCount() {
+    return names.length;
+  }
+
+  public String getReferenceName(int refId) {
+    return names[refId];
+  }
+
+  public int getReferenceLength(int refId) {
+    return lengths[refId];
+  }
+
+  /**
+   * @return the index of the named reference, or -1 if the header does not contain it
+   */
+  public int getReferenceIndex(String name) {
+    Integer index = indexByName.get(name);
+    return index == null ? -1 : index;
+  }
+
+  /**
+   * @return the SO value of the @HD line, or "unknown" if there is none
+   */
+  public String getSortOrder() {
+    for (String line : text.split("\n")) {
+      if (line.startsWith("@HD")) {
+        for (String field : line.split("\t")) {
+          if (field.startsWith("SO:")) {
+            return field.substring(3).trim();
+          }
+        }
+      }
+    }
+    return "unknown";
+  }
+}
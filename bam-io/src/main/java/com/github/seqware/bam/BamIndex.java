@@ -0,0 +1,289 @@
+package com.github.seqware.bam;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A BAM index (.bai) held in primitive arrays, answering which virtual offset chunks can contain the reads overlapping a region.
+ */
+public class BamIndex {
+
+  /** The bin the index uses to record per reference metadata rather than reads. */
+  public static final int METADATA_BIN = 37450;
+
+  /** The largest number of bins a single region can touch. */
+  public static final int MAX_BINS = 37450;
+
+  static final int LINEAR_SHIFT = 14;
+
+  // per reference: bin ids in ascending order, the chunks of each bin as start/end pairs, and the linear index
+  private final int[][] bins;
+  private final long[][][] chunks;
+  private final long[][] linear;
+  private final long noCoordinateCount;
+
+  private final int[] binBuffer = new int[MAX_BINS];
+
+  private BamIndex(int[][] bins, long[][][] chunks, long[][] linear, long noCoordinateCount) {
+    this.bins = bins;
+    this.chunks = chunks;
+    this.linear = linear;
+    this.noCoordinateCount = noCoordinateCount;
+  }
+
+  public static BamIndex read(File bai) throws IOException {
+    byte[] b = new byte[(int) bai.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(bai));
+    try {
+      in.readFully(b);
+    } finally {
+      in.close();
+    }
+    return parse(b);
+  }
+
+  public static BamIndex parse(byte[] b) throws IOException {
+    if (b.length < 8 || b[0] != 'B' || b[1] != 'A' || b[2] != 'I' || b[3] != 1) {
+      throw new IOException("Not a BAM index");
+    }
+    int p = 4;
+    int refCount = LittleEndian.getInt(b, p);
+    p += 4;
+    int[][] bins = new int[refCount][];
+    long[][][] chunks = new long[refCount][][];
+    long[][] linear = new long[refCount][];
+    for (int ref = 0; ref < refCount; ref++) {
+      int binCount = LittleEndian.getInt(b, p);
+      p += 4;
+      long[] order = new long[binCount];
+      long[][] refChunks = new long[binCount][];
+      for (int i = 0; i < binCount; i++) {
+        int bin = LittleEndian.getInt(b, p);
+        int chunkCount = LittleEndian.getInt(b, p + 4);
+        p += 8;
+        long[] pairs = new long[2 * chunkCount];
+        for (int c = 0; c < pairs.length; c++) {
+          pairs[c] = LittleEndian.getLong(b, p);
+          p += 8;
+        }
+        refChunks[i] = pairs;
+        order[i] = (long) bin << 32 | i;
+      }
+      // bins are not necessarily stored in order
+      Arrays.sort(order);
+      bins[ref] = new int[binCount];
+      chunks[ref] = new long[binCount][];
+      for (int i = 0; i < binCount; i++) {
+        bins[ref][i] = (int) (order[i] >>> 32);
+        chunks[ref][i] = refChunks[(int) order[i]];
+      }
+      int intervalCount = LittleEndian.getInt(b, p);
+      p += 4;
+      linear[ref] = new long[intervalCount];
+      for (int i = 0; i < intervalCount; i++) {
+        linear[ref][i] = LittleEndian.getLong(b, p);
+        p += 8;
+      }
+    }
+    long noCoordinateCount = p + 8 <= b.length ? LittleEndian.getLong(b, p) : -1;
+    return new BamIndex(bins, chunks, linear, noCoordinateCount);
+  }
+
+  public int getReferenceCount() {
+    return bins.length;
+  }
+
+  /**
+   * The bins of a reference in ascending order, the metadata bin among them.
+   */
+  int[] getBins(int refId) {
+    return bins[refId];
+  }
+
+  /**
+   * The chunks of each bin of {@link #getBins(int)} as start/end pairs. The metadata bin holds the start and end of the reference's reads followed by the
+   * counts of its mapped and unmapped reads.
+   */
+  long[][] getChunks(int refId) {
+    return chunks[refId];
+  }
+
+  long[] getLinear(int refId) {
+    return linear[refId];
+  }
+
+  /**
+   * @return the number of unplaced reads at the end of the file, or -1 if the index does not record it
+   */
+  public long getNoCoordinateCount() {
+    return noCoordinateCount;
+  }
+
+  /**
+   * The virtual offset of the first read placed on a reference, taken from the metadata bin when the index has one.
+   *
+   * @return the offset, or -1 if no reads are placed on the reference
+   */
+  public long getReferenceStart(int refId) {
+    int meta = Arrays.binarySearch(bins[refId], METADATA_BIN);
+    if (meta >= 0) {
+      return chunks[refId][meta][0];
+    }
+    long start = Long.MAX_VALUE;
+    for (long[] pairs : chunks[refId]) {
+      for (int c = 0; c < pairs.length; c += 2) {
+        start = Math.min(start, pairs[c]);
+      }
+    }
+    return start == Long.MAX_VALUE ? -1 : start;
+  }
+
+  /**
+   * The virtual offset just past the last read placed on a reference.
+   *
+   * @return the offset, or -1 if no reads are placed on the reference
+   */
+  public long getReferenceEnd(int refId) {
+    int meta = Arrays.binarySearch(bins[refId], METADATA_BIN);
+    if (meta >= 0) {
+      return chunks[refId][meta][1];
+    }
+    long end = -1;
+    for (long[] pairs : chunks[refId]) {
+      for (int c = 1; c < pairs.length; c += 2) {
+        end = Math.max(end, pairs[c]);
+      }
+    }
+    return end;
+  }
+
+  /**
+   * The approximate number of compressed bytes the reads placed on a reference take up.
+   */
+  public long getReferenceBytes(int refId) {
+    long start = getReferenceStart(refId);
+    return start < 0 ? 0 : Bgzf.blockAddress(getReferenceEnd(refId)) - Bgzf.blockAddress(start) + 1;
+  }
+
+  /**
+   * The number of mapped reads placed on a reference, from the metadata bin.
+   *
+   * @return the count, or -1 if the index has no metadata bin for the reference
+   */
+  public long getMappedCount(int refId) {
+    int meta = Arrays.binarySearch(bins[refId], METADATA_BIN);
+    return meta < 0 ? (bins[refId].length == 0 ? 0 : -1) : chunks[refId][meta][2];
+  }
+
+  /**
+   * The number of unmapped reads placed on a reference, the mate's position given to them, from the metadata bin.
+   *
+   * @return the count, or -1 if the index has no metadata bin for the reference
+   */
+  public long getUnmappedCount(int refId) {
+    int meta = Arrays.binarySearch(bins[refId], METADATA_BIN);
+    return meta < 0 ? (bins[refId].length == 0 ? 0 : -1) : chunks[refId][meta][3];
+  }
+
+  /**
+   * The virtual offset just past the last placed read of the file, where the unplaced reads start in a coordinate sorted BAM.
+   *
+   * @return the offset, or -1 if the file has no placed reads
+   */
+  public long getUnplacedStart() {
+    long end = -1;
+    for (int refId = 0; refId < bins.length; refId++) {
+      end = Math.max(end, getReferenceEnd(refId));
+    }
+    return end;
+  }
+
+  /**
+   * Adds the chunks that may hold reads overlapping [beg, end) of a reference. The chunks are neither sorted nor merged.
+   *
+   * Chunks are cut at the linear index offset of the window holding beg, since no read before that offset reaches into the region.
+   */
+  public void addChunks(int refId, int beg, int end, ChunkList out) {
+    if (refId < 0 || refId >= bins.length) {
+      return;
+    }
+    long[] refLinear = linear[refId];
+    long minOffset = 0;
+    if (refLinear.length > 0) {
+      minOffset = refLinear[Math.min(beg >> LINEAR_SHIFT, refLinear.length - 1)];
+    }
+    int count = regionToBins(beg, end, binBuffer);
+    int[] refBins = bins[refId];
+    for (int i = 0; i < count; i++) {
+      int index = Arrays.binarySearch(refBins, binBuffer[i]);
+      if (index < 0) {
+        continue;
+      }
+      long[] pairs = chunks[refId][index];
+      for (int c = 0; c < pairs.length; c += 2) {
+        if (pairs[c + 1] > minOffset) {
+          out.add(Math.max(pairs[c], minOffset), pairs[c + 1]);
+        }
+      }
+    }
+  }
+
+  /**
+   * The smallest bin that contains [beg, end), as in the SAM specification.
+   */
+  public static int regionToBin(int beg, int end) {
+    --end;
+    if (beg >> 14 == end >> 14) {
+      return ((1 << 15) - 1) / 7 + (beg >> 14);
+    }
+    if (beg >> 17 == end >> 17) {
+      return ((1 << 12) - 1) / 7 + (beg >> 17);
+    }
+    if (beg >> 20 == end >> 20) {
+      return ((1 << 9) - 1) / 7 + (beg >> 20);
+    }
+    if (beg >> 23 == end >> 23) {
+      return ((1 << 6) - 1) / 7 + (beg >> 23);
+    }
+    if (beg >> 26 == end >> 26) {
+      return ((1 << 3) - 1) / 7 + (beg >> 26);
+    }
+    return 0;
+  }
+
+  /**
+   * Lists the bins overlapping [beg, end), as in the SAM specification.
+   *
+   * @return the number of bins written to list
+   */
+  public static int regionToBins(int beg, int end, int[] list) {
+    int i = 0;
+    if (beg >= end) {
+      return 0;
+    }
+    if (end >= 1 << 29) {
+      end = 1 << 29;
+    }
+    --end;
+    list[i++] = 0;
+    for (int k = 1 + (beg >> 26); k <= 1 + (end >> 26); ++k) {
+      list[i++] = k;
+    }
+    for (int k = 9 + (beg >> 23); k <= 9 + (end >> 23); ++k) {
+      list[i++] = k;
+    }
+    for (int k = 73 + (beg >> 20); k <= 73 + (end >> 20); ++k) {
+      list[i++] = k;
+    }
+    for (int k = 585 + (beg >> 17); k <= 585 + (end >> 17); ++k) {
+      list[i++] = k;
+    }
+    for (int k = 4681 + (beg >> 14); k <= 4681 + (end >> 14); ++k) {
+      list[i++] = k;
+    }
+    return i;
+  }
+}
@@ -0,0 +1,320 @@
+package com.github.seqware.bam;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Builds a BAM index (.bai) from the records of a coordinate sorted BAM as they go by, together with the virtual offsets they were read from.
+ *
+ * Anything that reads a whole BAM in order can feed it, so a file gets its index from a pass that is made anyway. Chunks are only cut when the bin
+ * changes from one record to the next and everything is kept in primitive arrays, so adding a record does not allocate. The index has the same content as
+ * the one samtools writes: bins with their chunks, chunks of a bin that meet within a block merged, the 16 kbp linear index, the per reference metadata
+ * bin and the count of unplaced reads.
+ *
+ * A BAM can also be indexed while it is written: given the {@link BgzfOutputStream} it goes to, the offsets passed in are taken as
+ * {@link BgzfOutputStream#getBlockPointer() block pointers} of that stream and resolved once a reference is finished, which flushes the block being
+ * filled at most once per reference.
+ */
+public class BamIndexBuilder {
+
+  // the reference of the records seen after the first unplaced one
+  private static final int UNPLACED = Integer.MAX_VALUE;
+
+  private final ByteArrayOutputStream[] references;
+  // the stream whose block pointers are added, or null for virtual offsets
+  private final BgzfOutputStream output;
+
+  // the reference of the last record, -1 before the first
+  private int refId = -1;
+  private int lastPos = -1;
+  private long noCoordinateCount = 0;
+
+  // chunks of the current reference in file order, one per run of records in the same bin
+  private int[] chunkBins = new int[1024];
+  private long[] chunkStarts = new long[1024];
+  private long[] chunkEnds = new long[1024];
+  private int chunkCount = 0;
+
+  private long[] linear = new long[1024];
+  private int linearCount = 0;
+
+  private int bin = -1;
+  private long refStart;
+  private long refEnd;
+  private long mapped;
+  private long unmapped;
+
+  public BamIndexBuilder(int referenceCount) {
+    this(referenceCount, null);
+  }
+
+  /**
+   * Indexes a BAM while it is written to output, with the records added together with block pointers of output.
+   */
+  public BamIndexBuilder(int referenceCount, BgzfOutputStream output) {
+    references = new ByteArrayOutputStream[referenceCount];
+    this.output = output;
+  }
+
+  /**
+   * Adds the next record of the file.
+   *
+   * @param start the virtual offset the record starts at
+   * @param end the virtual offset just past the record
+   * @throws IOException if the records are not coordinate sorted
+   */
+  public void add(BamRecord record, long start, long end) throws IOException {
+    int recordRefId = record.getReferenceIndex();
+    if (recordRefId < 0) {
+      finishReference();
+      refId = UNPLACED;
+      noCoordinateCount++;
+      return;
+    }
+    int pos = record.getPosition();
+    if (recordRefId != refId) {
+      if (recordRefId < refId || recordRefId >= references.length) {
+        throw new IOException("Cannot index an unsorted BAM, reference " + recordRefId + " follows " + refId);
+      }
+      finishReference();
+      refId = recordRefId;
+      lastPos = -1;
+      refStart = start;
+    } else if (pos < lastPos) {
+      throw new IOException("Cannot index an unsorted BAM, position " + pos + " follows " + lastPos + " on reference " + refId);
+    }
+    lastPos = pos;
+
+    int alignmentEnd = record.getAlignmentEnd();
+    int recordBin = BamIndex.regionToBin(pos, alignmentEnd);
+    if (recordBin != bin || chunkCount == 0) {
+      if (chunkCount == chunkBins.length) {
+        chunkBins = Arrays.copyOf(chunkBins, 2 * chunkCount);
+        chunkStarts = Arrays.copyOf(chunkStarts, 2 * chunkCount);
+        chunkEnds = Arrays.copyOf(chunkEnds, 2 * chunkCount);
+      }
+      chunkBins[chunkCount] = recordBin;
+      chunkStarts[chunkCount] = start;
+      chunkCount++;
+      bin = recordBin;
+    }
+    chunkEnds[chunkCount - 1] = end;
+
+    int first = pos >> BamIndex.LINEAR_SHIFT;
+    int last = (alignmentEnd - 1) >> BamIndex.LINEAR_SHIFT;
+    if (last >= linear.length) {
+      linear = Arrays.copyOf(linear, Math.max(last + 1, 2 * linear.length));
+    }
+    for (int w = first; w <= last; w++) {
+      if (w >= linearCount) {
+        // -1 marks windows no read has touched yet, they take the offset of the window before them
+        Arrays.fill(linear, linearCount, w, -1);
+        linear[w] = start;
+        linearCount = w + 1;
+      } else if (linear[w] < 0) {
+        linear[w] = start;
+      }
+    }
+
+    refEnd = end;
+    if ((record.getFlag() & BamRecord.FLAG_UNMAPPED) != 0) {
+      unmapped++;
+    } else {
+      mapped++;
+    }
+  }
+
+  /**
+   * Serializes the bins and the linear index of the current reference, if there is one.
+   */
+  private void finishReference() throws IOException {
+    if (refId < 0 || refId == UNPLACED) {
+      return;
+    }
+    if (output != null) {
+      resolvePointers();
+    }
+    // group the chunks by bin, keeping file order within a bin
+    long[] order = new long[chunkCount];
+    for (int i = 0; i < chunkCount; i++) {
+      order[i] = (long) chunkBins[i] << 40 | i;
+    }
+    Arrays.sort(order);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 20 * chunkCount + 8 * linearCount);
+    int binCount = 1;
+    for (int i = 1; i < chunkCount; i++) {
+      if (order[i] >>> 40 != order[i - 1] >>> 40) {
+        binCount++;
+      }
+    }
+    writeInt(out, binCount + 1);
+
+    byte[] pairs = new byte[16 * chunkCount];
+    int i = 0;
+    while (i < chunkCount) {
+      int current = (int) (order[i] >>> 40);
+      int p = 0;
+      long start = chunkStarts[(int) order[i]];
+      long end = chunkEnds[(int) order[i]];
+      for (i++; i < chunkCount && order[i] >>> 40 == current; i++) {
+        int c = (int) order[i];
+        if (Bgzf.blockAddress(chunkStarts[c]) == Bgzf.blockAddress(end)) {
+          end = chunkEnds[c];
+        } else {
+          LittleEndian.putLong(pairs, p, start);
+          LittleEndian.putLong(pairs, p + 8, end);
+          p += 16;
+          start = chunkStarts[c];
+          end = chunkEnds[c];
+        }
+      }
+      LittleEndian.putLong(pairs, p, start);
+      LittleEndian.putLong(pairs, p + 8, end);
+      p += 16;
+      writeInt(out, current);
+      writeInt(out, p / 16);
+      out.write(pairs, 0, p);
+    }
+
+    writeInt(out, BamIndex.METADATA_BIN);
+    writeInt(out, 2);
+    writeLong(out, refStart);
+    writeLong(out, refEnd);
+    writeLong(out, mapped);
+    writeLong(out, unmapped);
+
+    writeInt(out, linearCount);
+    for (int w = 0; w < linearCount; w++) {
+      if (linear[w] < 0) {
+        linear[w] = w == 0 ? 0 : linear[w - 1];
+      }
+      writeLong(out, linear[w]);
+    }
+    references[refId] = out;
+
+    chunkCount = 0;
+    linearCount = 0;
+    bin = -1;
+    mapped = 0;
+    unmapped = 0;
+  }
+
+  /**
+   * Turns the block pointers of the current reference into virtual offsets.
+   */
+  private void resolvePointers() throws IOException {
+    for (int i = 0; i < chunkCount; i++) {
+      chunkStarts[i] = output.resolve(chunkStarts[i]);
+      chunkEnds[i] = output.resolve(chunkEnds[i]);
+    }
+    for (int w = 0; w < linearCount; w++) {
+      if (linear[w] >= 0) {
+        linear[w] = output.resolve(linear[w]);
+      }
+    }
+    refStart = output.resolve(refStart);
+    refEnd = output.resolve(refEnd);
+  }
+
+  /**
+   * Counts unplaced reads that are in the file without having been added, such as a no-coordinate section copied over block by block.
+   */
+  public void addUnplaced(long count) {
+    noCoordinateCount += count;
+  }
+
+  /**
+   * Finishes the index and writes it next to its final name first, so an interrupted run never leaves a partial index behind.
+   *
+   * @param digests the digests to write sidecars of the index for, see {@link SidecarOutputStream}
+   */
+  public void write(File bai, String... digests) throws IOException {
+    finishReference();
+    refId = UNPLACED;
+    write(bai, references, noCoordinateCount, digests);
+  }
+
+  /**
+   * Writes the index of BAMs joined block by block from the indexes of the parts, without reading any records. Every virtual offset of a part moves
+   * by the number of bytes its blocks were moved by. The reads of each reference have to come from a single part.
+   *
+   * @param shifts how far the blocks of each part were moved, in bytes
+   * @param noCoordinateCount the number of unplaced reads of the joined BAM
+   * @param digests the digests to write sidecars of the index for
+   * @throws IOException if the reads of a reference come from more than one part
+   */
+  public static void writeConcatenation(BamIndex[] parts, long[] shifts, long noCoordinateCount, File bai, String... digests) throws IOException {
+    ByteArrayOutputStream[] references = new ByteArrayOutputStream[parts[0].getReferenceCount()];
+    for (int p = 0; p < parts.length; p++) {
+      BamIndex part = parts[p];
+      if (part.getReferenceCount() != references.length) {
+        throw new IOException("The indexes are for different references");
+      }
+      long shift = shifts[p] << 16;
+      for (int ref = 0; ref < references.length; ref++) {
+        int[] bins = part.getBins(ref);
+        if (bins.length == 0) {
+          continue;
+        }
+        if (references[ref] != null) {
+          throw new IOException("Reads of reference " + ref + " come from more than one part");
+        }
+        long[][] chunks = part.getChunks(ref);
+        long[] linear = part.getLinear(ref);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeInt(out, bins.length);
+        for (int b = 0; b < bins.length; b++) {
+          writeInt(out, bins[b]);
+          writeInt(out, chunks[b].length / 2);
+          for (int c = 0; c < chunks[b].length; c++) {
+            // the second pair of the metadata bin holds counts
+            boolean offset = bins[b] != BamIndex.METADATA_BIN || c < 2;
+            writeLong(out, offset ? chunks[b][c] + shift : chunks[b][c]);
+          }
+        }
+        writeInt(out, linear.length);
+        for (long l : linear) {
+          // 0 stands for the start of the file and stays there
+          writeLong(out, l == 0 ? 0 : l + shift);
+        }
+        references[ref] = out;
+      }
+    }
+    write(bai, references, noCoordinateCount, digests);
+  }
+
+  private static void write(File bai, ByteArrayOutputStream[] references, long noCoordinateCount, String... digests) throws IOException {
+    SidecarOutputStream file = new SidecarOutputStream(bai, digests);
+    OutputStream out = new BufferedOutputStream(file, 1 << 16);
+    try {
+      out.write(new byte[]{'B', 'A', 'I', 1});
+      writeInt(out, references.length);
+      for (ByteArrayOutputStream reference : references) {
+        if (reference == null) {
+          writeInt(out, 0);
+          writeInt(out, 0);
+        } else {
+          reference.writeTo(out);
+        }
+      }
+      writeLong(out, noCoordinateCount);
+      out.close();
+    } finally {
+      file.discard();
+    }
+  }
+
+  private static void writeInt(OutputStream out, int value) throws IOException {
+    LittleEndian.writeInt(out, value);
+  }
+
+  private static void writeLong(OutputStream out, long value) throws IOException {
+    LittleEndian.writeInt(out, (int) value);
+    LittleEndian.writeInt(out, (int) (value >>> 32));
+  }
+}
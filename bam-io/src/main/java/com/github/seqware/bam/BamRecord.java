@@ -0,0 +1,379 @@
+package com.github.seqware.bam;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A reusable view of one binary BAM alignment record.
+ *
+ * The record is kept exactly as it is stored in the file and fields are decoded on demand from their offsets, the read name and optional fields
+ * included, so one instance can be refilled for every record of a scan and written back out without any conversion. Nothing is allocated per record:
+ * read from a {@link BgzfInputStream}, a record that lies within one decompressed block is not even copied out of it.
+ */
+public class BamRecord {
+
+  public static final int FLAG_PAIRED = 0x1;
+  public static final int FLAG_PROPER_PAIR = 0x2;
+  public static final int FLAG_UNMAPPED = 0x4;
+  public static final int FLAG_MATE_UNMAPPED = 0x8;
+  public static final int FLAG_REVERSE = 0x10;
+  public static final int FLAG_MATE_REVERSE = 0x20;
+  public static final int FLAG_READ1 = 0x40;
+  public static final int FLAG_READ2 = 0x80;
+  public static final int FLAG_SECONDARY = 0x100;
+  public static final int FLAG_QC_FAIL = 0x200;
+  public static final int FLAG_DUPLICATE = 0x400;
+  public static final int FLAG_SUPPLEMENTARY = 0x800;
+
+  // offsets of the fixed length fields, counted from after block_size
+  private static final int REF_ID = 0;
+  private static final int POS = 4;
+  private static final int L_READ_NAME = 8;
+  private static final int MAPQ = 9;
+  private static final int BIN = 10;
+  private static final int N_CIGAR_OP = 12;
+  private static final int FLAG = 14;
+  private static final int L_SEQ = 16;
+  private static final int NEXT_REF_ID = 20;
+  private static final int NEXT_POS = 24;
+  private static final int TLEN = 28;
+  private static final int READ_NAME = 32;
+
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  private byte[] buffer = new byte[1024];
+  private byte[] data = buffer;
+  private int base = 0;
+  private int size = 0;
+
+  /**
+   * Reads the next record from a decompressed BAM stream. From a {@link BgzfInputStream} the record may be left in the stream's block buffer, so it is
+   * only valid until the next read from the stream.
+   *
+   * @return false at the end of the stream
+   */
+  public boolean read(InputStream in) throws IOException {
+    if (in instanceof BgzfInputStream && wrap((BgzfInputStream) in)) {
+      return true;
+    }
+    int b0 = in.read();
+    if (b0 < 0) {
+      return false;
+    }
+    int b1 = in.read();
+    int b2 = in.read();
+    int b3 = in.read();
+    if ((b1 | b2 | b3) < 0) {
+      throw new IOException("Truncated BAM record");
+    }
+    int blockSize = b0 | b1 << 8 | b2 << 16 | b3 << 24;
+    if (blockSize < READ_NAME) {
+      throw new IOException("Invalid BAM record size " + blockSize);
+    }
+    if (blockSize > buffer.length) {
+      buffer = new byte[Math.max(blockSize, 2 * buffer.length)];
+    }
+    if (!LittleEndian.readFully(in, buffer, 0, blockSize)) {
+      throw new IOException("Truncated BAM record");
+    }
+    data = buffer;
+    base = 0;
+    size = blockSize;
+    return true;
+  }
+
+  /**
+   * Points the record at bytes held elsewhere, such as a decompressed block, without copying them. The bytes must stay unchanged while the record is
+   * used.
+   *
+   * @param off the offset of the record, after its block_size field
+   * @param blockSize the block_size of the record
+   */
+  public void wrap(byte[] bytes, int off, int blockSize) {
+    data = bytes;
+    base = off;
+    size = blockSize;
+  }
+
+  /**
+   * Points the record at the next one of the stream if it lies entirely within the current block.
+   *
+   * @return false if the record has to be copied, or the stream is at its end
+   */
+  private boolean wrap(BgzfInputStream in) throws IOException {
+    if (!in.fillBlock()) {
+      return false;
+    }
+    byte[] block = in.getBlock();
+    int off = in.getBlockOffset();
+    int available = in.getBlockLength() - off;
+    if (available < 4) {
+      return false;
+    }
+    int blockSize = LittleEndian.getInt(block, off);
+    if (blockSize < READ_NAME || available < 4 + blockSize) {
+      return false;
+    }
+    wrap(block, off + 4, blockSize);
+    in.consume(4 + blockSize);
+    return true;
+  }
+
+  /**
+   * Writes the record, including its length prefix.
+   */
+  public void write(OutputStream out) throws IOException {
+    LittleEndian.writeInt(out, size);
+    out.write(data, base, size);
+  }
+
+  /**
+   * The array holding the record, which follows the block_size field from {@link #getOffset()} on.
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  public int getOffset() {
+    return base;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public int getReferenceIndex() {
+    return LittleEndian.getInt(data, base + REF_ID);
+  }
+
+  /**
+   * The 0-based leftmost position.
+   */
+  public int getPosition() {
+    return LittleEndian.getInt(data, base + POS);
+  }
+
+  public int getMappingQuality() {
+    return data[base + MAPQ] & 0xff;
+  }
+
+  /**
+   * The index bin stored with the record.
+   */
+  public int getBin() {
+    return LittleEndian.getUShort(data, base + BIN);
+  }
+
+  public int getFlag() {
+    return LittleEndian.getUShort(data, base + FLAG);
+  }
+
+  /**
+   * Changes the flag in place, in whatever array holds the record.
+   */
+  public void setFlag(int flag) {
+    LittleEndian.putShort(data, base + FLAG, flag);
+  }
+
+  public boolean hasFlags(int flags) {
+    return (getFlag() & flags) == flags;
+  }
+
+  public int getReadNameLength() {
+    return data[base + L_READ_NAME] & 0xff;
+  }
+
+  public int getCigarLength() {
+    return LittleEndian.getUShort(data, base + N_CIGAR_OP);
+  }
+
+  public int getSequenceLength() {
+    return LittleEndian.getInt(data, base + L_SEQ);
+  }
+
+  public int getMateReferenceIndex() {
+    return LittleEndian.getInt(data, base + NEXT_REF_ID);
+  }
+
+  public int getMatePosition() {
+    return LittleEndian.getInt(data, base + NEXT_POS);
+  }
+
+  public int getTemplateLength() {
+    return LittleEndian.getInt(data, base + TLEN);
+  }
+
+  /**
+   * The offset of the NUL terminated read name in {@link #getData()}.
+   */
+  public int getReadNameOffset() {
+    return base + READ_NAME;
+  }
+
+  /**
+   * The read name as a string, which allocates, so it is meant for messages rather than the per-record path.
+   */
+  public String getReadName() {
+    return new String(data, getReadNameOffset(), getReadNameLength() - 1, ASCII);
+  }
+
+  /**
+   * The offset of the base qualities in {@link #getData()}, one byte per base, all of them 0xff when the record has none.
+   */
+  public int getQualityOffset() {
+    return base + READ_NAME + getReadNameLength() + 4 * getCigarLength() + (getSequenceLength() + 1) / 2;
+  }
+
+  /**
+   * The offset of the first optional field in {@link #getData()}.
+   */
+  public int getAuxOffset() {
+    return getQualityOffset() + getSequenceLength();
+  }
+
+  /**
+   * Finds an optional field by its two character tag.
+   *
+   * @return the offset of the field's type byte in {@link #getData()}, the value follows it, or -1 if the record has no such field
+   */
+  public int findTag(char c1, char c2) {
+    int end = base + size;
+    int p = getAuxOffset();
+    while (p + 3 <= end) {
+      byte type = data[p + 2];
+      if (data[p] == c1 && data[p + 1] == c2) {
+        return p + 2;
+      }
+      p += 3;
+      switch (type) {
+        case 'A':
+        case 'c':
+        case 'C':
+          p += 1;
+          break;
+        case 's':
+        case 'S':
+          p += 2;
+          break;
+        case 'i':
+        case 'I':
+        case 'f':
+          p += 4;
+          break;
+        case 'Z':
+        case 'H':
+          while (p < end && data[p] != 0) {
+            p++;
+          }
+          p++;
+          break;
+        case 'B':
+          int elementSize = data[p] == 'c' || data[p] == 'C' ? 1 : data[p] == 's' || data[p] == 'S' ? 2 : 4;
+          p += 5 + elementSize * LittleEndian.getInt(data, p + 1);
+          break;
+        default:
+          throw new IllegalStateException("Unknown type '" + (char) type + "' in optional field");
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * The value of an integer optional field of any width.
+   *
+   * @param typeOffset the offset of the field's type byte, as returned by {@link #findTag(char, char)}
+   */
+  public long getTagInteger(int typeOffset) {
+    int p = typeOffset + 1;
+    switch (data[typeOffset]) {
+      case 'c':
+        return data[p];
+      case 'C':
+        return data[p] & 0xff;
+      case 's':
+        return (short) LittleEndian.getUShort(data, p);
+      case 'S':
+        return LittleEndian.getUShort(data, p);
+      case 'i':
+        return LittleEndian.getInt(data, p);
+      case 'I':
+        return LittleEndian.getInt(data, p) & 0xffffffffL;
+      default:
+        throw new IllegalStateException("Optional field of type '" + (char) data[typeOffset] + "' is not an integer");
+    }
+  }
+
+  /**
+   * The length of a NUL terminated string value starting at off.
+   */
+  public int getStringLength(int off) {
+    int end = off;
+    while (end < base + size && data[end] != 0) {
+      end++;
+    }
+    return end - off;
+  }
+
+  /**
+   * The 0-based exclusive end of the alignment on the reference. Records without reference consuming CIGAR operations, unmapped reads placed next to
+   * their mate among them, are treated as covering one base.
+   */
+  public int getAlignmentEnd() {
+    int pos = getPosition();
+    int end = pos;
+    if ((getFlag() & FLAG_UNMAPPED) == 0) {
+      int cigar = getReadNameOffset() + getReadNameLength();
+      int count = getCigarLength();
+      for (int i = 0; i < count; i++) {
+        int op = LittleEndian.getInt(data, cigar + 4 * i);
+        switch (op & 0xf) {
+          case 0: // M
+          case 2: // D
+          case 3: // N
+          case 7: // =
+          case 8: // X
+            end += op >>> 4;
+            break;
+          default:
+            break;
+        }
+      }
+    }
+    return end > pos ? end : pos + 1;
+  }
+
+  /**
+   * The 0-based position the alignment would start at if the soft and hard clipped bases at its start were aligned too.
+   */
+  public int getUnclippedStart() {
+    int cigar = getReadNameOffset() + getReadNameLength();
+    int count = getCigarLength();
+    int start = getPosition();
+    for (int i = 0; i < count; i++) {
+      int op = LittleEndian.getInt(data, cigar + 4 * i);
+      if ((op & 0xf) != 4 && (op & 0xf) != 5) {
+        break;
+      }
+      start -= op >>> 4;
+    }
+    return start;
+  }
+
+  /**
+   * The 0-based exclusive end the alignment would have if the soft and hard clipped bases at its end were aligned too.
+   */
+  public int getUnclippedEnd() {
+    int cigar = getReadNameOffset() + getReadNameLength();
+    int end = getAlignmentEnd();
+    for (int i = getCigarLength() - 1; i >= 0; i--) {
+      int op = LittleEndian.getInt(data, cigar + 4 * i);
+      if ((op & 0xf) != 4 && (op & 0xf) != 5) {
+        break;
+      }
+      end += op >>> 4;
+    }
+    return end;
+  }
+}
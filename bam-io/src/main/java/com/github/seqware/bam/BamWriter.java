@@ -0,0 +1,57 @@
+package com.github.seqware.bam;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Writes a BAM file from binary records, without decoding them.
+ */
+public class BamWriter {
+
+  private final BgzfOutputStream out;
+  private long recordCount = 0;
+
+  public BamWriter(BgzfOutputStream out, BamHeader header) throws IOException {
+    this.out = out;
+    header.write(out);
+    // like htslib, start the first record in a fresh block
+    out.flush();
+  }
+
+  public BamWriter(File file, BamHeader header, int level) throws IOException {
+    this(new BgzfOutputStream(file, level), header);
+  }
+
+  /**
+   * Writes through a {@link BgzfOutputStream} that compresses on the given pool, which may be null.
+   */
+  public BamWriter(File file, BamHeader header, int level, ExecutorService pool, int maxInFlight) throws IOException {
+    this(new BgzfOutputStream(file, level, pool, maxInFlight), header);
+  }
+
+  public void write(BamRecord record) throws IOException {
+    out.reserve(record.getSize() + 4);
+    record.write(out);
+    recordCount++;
+  }
+
+  /**
+   * Writes a record and adds it to an index built with {@link BamIndexBuilder#BamIndexBuilder(int, BgzfOutputStream)} on this writer's stream.
+   */
+  public void write(BamRecord record, BamIndexBuilder index) throws IOException {
+    out.reserve(record.getSize() + 4);
+    long start = out.getBlockPointer();
+    record.write(out);
+    recordCount++;
+    index.add(record, start, out.getBlockPointer());
+  }
+
+  public long getRecordCount() {
+    return recordCount;
+  }
+
+  public void close() throws IOException {
+    out.close();
+  }
+}
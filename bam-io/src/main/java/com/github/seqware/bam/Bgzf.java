@@ -0,0 +1,123 @@
+package com.github.seqware.bam;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Constants and block level helpers for the BGZF format described in the SAM specification.
+ *
+ * A BGZF file is a series of gzip members of at most 64 KB each, every one carrying its own compressed size in a "BC" extra field, followed by an empty EOF
+ * member. Positions inside a BGZF file are "virtual offsets": the compressed address of a block shifted left by 16 bits, or'ed with an offset into its
+ * uncompressed data.
+ */
+public final class Bgzf {
+
+  /** Largest size of a whole block, compressed or uncompressed. */
+  public static final int MAX_BLOCK_SIZE = 65536;
+
+  /** Uncompressed bytes put into one block, small enough that incompressible data still fits. */
+  public static final int MAX_INPUT_SIZE = 0xff00;
+
+  public static final int HEADER_LENGTH = 18;
+
+  public static final int FOOTER_LENGTH = 8;
+
+  /** The empty block that terminates every BGZF file. */
+  public static final byte[] EOF_BLOCK = {
+    0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+    0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+  };
+
+  private Bgzf() {
+  }
+
+  public static long virtualOffset(long blockAddress, int offsetInBlock) {
+    return blockAddress << 16 | offsetInBlock;
+  }
+
+  public static long blockAddress(long virtualOffset) {
+    return virtualOffset >>> 16;
+  }
+
+  public static int offsetInBlock(long virtualOffset) {
+    return (int) (virtualOffset & 0xffff);
+  }
+
+  /**
+   * @return true if the 18 bytes at off start with the gzip magic and deflate method of a block header
+   */
+  public static boolean isBlockHeader(byte[] b, int off) {
+    return b[off] == 0x1f && b[off + 1] == (byte) 0x8b && b[off + 2] == 8 && (b[off + 3] & 4) != 0;
+  }
+
+  /**
+   * Validates the 18 byte header at off and returns the total size of the block it starts.
+   */
+  public static int blockSize(byte[] b, int off) throws IOException {
+    if (!isBlockHeader(b, off)) {
+      throw new IOException("Not a BGZF block header");
+    }
+    int xlen = LittleEndian.getUShort(b, off + 10);
+    if (xlen != 6 || b[off + 12] != 'B' || b[off + 13] != 'C' || LittleEndian.getUShort(b, off + 14) != 2) {
+      throw new IOException("BGZF block without a BC extra field");
+    }
+    return LittleEndian.getUShort(b, off + 16) + 1;
+  }
+
+  /**
+   * The uncompressed size of a block, read from its footer.
+   */
+  public static int inflatedSize(byte[] block, int off, int blockSize) {
+    return LittleEndian.getInt(block, off + blockSize - 4);
+  }
+
+  /**
+   * Inflates the whole block at off into dst.
+   *
+   * @return the number of uncompressed bytes
+   */
+  public static int inflate(Inflater inflater, byte[] block, int off, int blockSize, byte[] dst) throws IOException {
+    int expected = inflatedSize(block, off, blockSize);
+    if (expected == 0) {
+      return 0;
+    }
+    inflater.reset();
+    inflater.setInput(block, off + HEADER_LENGTH, blockSize - HEADER_LENGTH - FOOTER_LENGTH);
+    try {
+      int n = inflater.inflate(dst, 0, expected);
+      if (n != expected) {
+        throw new IOException("Corrupt BGZF block, inflated " + n + " of " + expected + " bytes");
+      }
+      return n;
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt BGZF block: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Compresses len bytes of src into a complete block, header and footer included, at the start of dst.
+   *
+   * @return the size of the block written
+   */
+  public static int deflate(Deflater deflater, CRC32 crc, byte[] src, int off, int len, byte[] dst) throws IOException {
+    deflater.reset();
+    deflater.setInput(src, off, len);
+    deflater.finish();
+    int limit = MAX_BLOCK_SIZE - HEADER_LENGTH - FOOTER_LENGTH;
+    int compressed = deflater.deflate(dst, HEADER_LENGTH, limit);
+    if (!deflater.finished()) {
+      throw new IOException("BGZF block overflow compressing " + len + " bytes");
+    }
+    int blockSize = HEADER_LENGTH + compressed + FOOTER_LENGTH;
+    System.arraycopy(EOF_BLOCK, 0, dst, 0, HEADER_LENGTH);
+    LittleEndian.putShort(dst, 16, blockSize - 1);
+    crc.reset();
+    crc.update(src, off, len);
+    LittleEndian.putInt(dst, blockSize - 8, (int) crc.getValue());
+    LittleEndian.putInt(dst, blockSize - 4, len);
+    return blockSize;
+  }
+}
@@ -0,0 +1,196 @@
+package com.github.seqware.bam;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Reads the compressed bytes of a BGZF file while it is still being downloaded, handing out whole blocks only, so a {@link BgzfInputStream} on top of
+ * it can process the file as it grows.
+ *
+ * A block is handed out once its header and its footer are on disk. Downloads that write pieces out of order leave holes of zeros, so a header without
+ * the gzip magic or a footer with a zero uncompressed size is taken as not written yet. Pieces are larger than a block, so a block whose first and last
+ * bytes are written is whole.
+ *
+ * The download signals its end through two marker files: "complete", which may hold the MD5 of the downloaded file, and "failed". Once the complete
+ * marker is there, the rest of the file is handed out and the end is checked: the file must end exactly after a BGZF end-of-file block and, when the
+ * marker holds a checksum, the MD5 of every byte handed out must match it. If neither marker turns up and for longer than the idle timeout the file
+ * neither grows, nor is written to, nor gives out a block, reading fails. A download that preallocates its file or writes it out of order only shows
+ * progress through the modification time. The clock only starts once the file exists, so a download still waiting for its turn is waited for.
+ */
+public class BgzfBlockFollower extends InputStream {
+
+  private final File file;
+  private final File complete;
+  private final File failed;
+  private final long pollMillis;
+  private final long idleTimeoutMillis;
+
+  private RandomAccessFile in = null;
+  private final byte[] block = new byte[Bgzf.MAX_BLOCK_SIZE];
+  private int blockOffset = 0;
+  private int blockLength = 0;
+  private boolean lastBlockEmpty = false;
+  private boolean ended = false;
+
+  // compressed address of the next block
+  private long position = 0;
+
+  // the file and the blocks handed out when the download last made progress
+  private long lastLength = -1;
+  private long lastModified = -1;
+  private long lastPosition = -1;
+  private long lastProgress;
+
+  private final MessageDigest md5;
+
+  /**
+   * @param file the file being downloaded
+   * @param complete the marker written when the download succeeded, optionally holding the MD5 of the file
+   * @param failed the marker written when the download failed
+   * @param pollMillis how long to wait before looking at the file again
+   * @param idleTimeoutMillis how long the file may stay the same before giving up
+   */
+  public BgzfBlockFollower(File file, File complete, File failed, long pollMillis, long idleTimeoutMillis) {
+    this.file = file;
+    this.complete = complete;
+    this.failed = failed;
+    this.pollMillis = pollMillis;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    try {
+      md5 = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Waits until the next whole block is on disk and loads it.
+   *
+   * @return false once the download is complete and every block has been handed out
+   */
+  private boolean nextBlock() throws IOException {
+    while (!ended) {
+      // look at the markers before the file, so a complete download is seen whole
+      boolean done = complete.exists();
+      if (failed.exists()) {
+        throw new IOException("Download of " + file + " failed");
+      }
+      if (in == null && file.exists()) {
+        in = new RandomAccessFile(file, "r");
+      }
+      long available = in == null ? 0 : in.length();
+
+      if (available >= position + Bgzf.HEADER_LENGTH) {
+        in.seek(position);
+        in.readFully(block, 0, Bgzf.HEADER_LENGTH);
+        if (Bgzf.isBlockHeader(block, 0)) {
+          int size = Bgzf.blockSize(block, 0);
+          if (available >= position + size) {
+            in.readFully(block, Bgzf.HEADER_LENGTH, size - Bgzf.HEADER_LENGTH);
+            boolean empty = Bgzf.inflatedSize(block, 0, size) == 0;
+            // a zero size footer is either an empty block or a footer not written yet
+            if (!empty || done || available > position + size) {
+              md5.update(block, 0, size);
+              position += size;
+              blockOffset = 0;
+              blockLength = size;
+              lastBlockEmpty = empty;
+              return true;
+            }
+          } else if (done) {
+            throw new EOFException("Truncated BGZF block at " + position + " of " + file);
+          }
+        } else if (done) {
+          throw new IOException("No BGZF block at " + position + " of " + file);
+        }
+      } else if (done) {
+        if (available != position) {
+          throw new EOFException("Truncated BGZF block at " + position + " of " + file);
+        }
+        checkEnd();
+        ended = true;
+        return false;
+      }
+
+      waitForGrowth(available);
+    }
+    return false;
+  }
+
+  private void waitForGrowth(long available) throws IOException {
+    long now = System.currentTimeMillis();
+    long modified = file.lastModified();
+    if (in == null || available != lastLength || modified != lastModified || position != lastPosition) {
+      lastLength = available;
+      lastModified = modified;
+      lastPosition = position;
+      lastProgress = now;
+    } else if (now - lastProgress > idleTimeoutMillis) {
+      throw new IOException(file + " has not changed at " + available + " bytes for " + (idleTimeoutMillis / 60000) + " minutes");
+    }
+    try {
+      Thread.sleep(pollMillis);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting for " + file);
+    }
+  }
+
+  /**
+   * Checks the downloaded file against its end-of-file block and the checksum of the complete marker.
+   */
+  private void checkEnd() throws IOException {
+    if (!lastBlockEmpty) {
+      throw new EOFException(file + " ends without the BGZF end-of-file block");
+    }
+    BufferedReader reader = new BufferedReader(new FileReader(complete));
+    String expected;
+    try {
+      expected = reader.readLine();
+    } finally {
+      reader.close();
+    }
+    if (expected != null && expected.trim().length() > 0) {
+      String actual = SidecarOutputStream.toHex(md5.digest());
+      if (!actual.equalsIgnoreCase(expected.trim().split("\\s+")[0])) {
+        throw new IOException("MD5 " + actual + " of the blocks read from " + file + " does not match " + expected.trim());
+      }
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (blockOffset == blockLength && !nextBlock()) {
+      return -1;
+    }
+    return block[blockOffset++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (blockOffset == blockLength && !nextBlock()) {
+      return -1;
+    }
+    int n = Math.min(len, blockLength - blockOffset);
+    System.arraycopy(block, blockOffset, b, off, n);
+    blockOffset += n;
+    return n;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (in != null) {
+      in.close();
+    }
+  }
+}
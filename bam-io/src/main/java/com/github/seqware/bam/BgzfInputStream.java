@@ -0,0 +1,415 @@
+package com.github.seqware.bam;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a BGZF stream one block at a time while keeping track of the virtual offset of the next byte.
+ *
+ * Streams opened on a file can be repositioned with {@link #seek(long)}; streams wrapped around an arbitrary InputStream can only be read sequentially.
+ * Files are read through a read-ahead buffer, so the compressed data comes in with large sequential reads even when seeking between nearby chunks.
+ *
+ * Given a thread pool, up to maxInFlight blocks ahead of the one being read are read in and handed to the pool to inflate, and are taken back in file
+ * order, so the caller sees the same bytes as without a pool. The block buffers are reused, so memory stays flat. Several streams can share one pool.
+ * A block that cannot be read ahead only fails the stream once the caller gets to it, so the fetched ranges of a sparse file read fine with a pool.
+ */
+public class BgzfInputStream extends InputStream {
+
+  /**
+   * One compressed block together with the inflater and the buffer it is inflated into.
+   */
+  private static final class Block implements Callable<Block> {
+
+    final byte[] compressed = new byte[Bgzf.MAX_BLOCK_SIZE];
+    final byte[] data = new byte[Bgzf.MAX_BLOCK_SIZE];
+    final Inflater inflater = new Inflater(true);
+    long address;
+    int size;
+    int length;
+
+    @Override
+    public Block call() throws IOException {
+      length = Bgzf.inflate(inflater, compressed, 0, size, data);
+      return this;
+    }
+  }
+
+  private static final int READ_AHEAD = 4 * Bgzf.MAX_BLOCK_SIZE;
+
+  private final InputStream in;
+  private final RandomAccessFile file;
+
+  // read-ahead buffer of a file, holding the compressed bytes from aheadAddress on
+  private byte[] ahead = null;
+  private long aheadAddress = 0;
+  private int aheadOffset = 0;
+  private int aheadLength = 0;
+
+  private final ExecutorService pool;
+  private final int maxInFlight;
+  private final ArrayDeque<Future<Block>> inFlight = new ArrayDeque<Future<Block>>();
+  private final ArrayDeque<Block> free = new ArrayDeque<Block>();
+  private final Block[] blocks;
+
+  // the block being read
+  private Block current;
+  private int length = 0;
+  private int offset = 0;
+
+  // compressed addresses of the current and the following block
+  private long blockAddress = 0;
+  private long nextBlockAddress = 0;
+
+  // compressed address of the next block to read from the underlying stream, past the blocks in flight
+  private long readAddress = 0;
+  private boolean endOfFile = false;
+  // why reading ahead stopped early; only thrown once the caller needs a block past the ones in flight
+  private IOException readAheadFailure = null;
+
+  /**
+   * Reads sequentially from a stream positioned at the start of a block.
+   *
+   * @param in the compressed stream
+   * @param startAddress the compressed address of the first block in the stream, used for virtual offsets
+   */
+  public BgzfInputStream(InputStream in, long startAddress) {
+    this(in, null, startAddress, null, 0);
+  }
+
+  public BgzfInputStream(InputStream in) {
+    this(in, 0);
+  }
+
+  /**
+   * Reads sequentially from a stream positioned at the start of a block, inflating on a pool.
+   *
+   * @param pool inflates the blocks, or null to inflate them on the calling thread
+   * @param maxInFlight the most blocks read ahead and handed to the pool
+   */
+  public BgzfInputStream(InputStream in, long startAddress, ExecutorService pool, int maxInFlight) {
+    this(in, null, startAddress, pool, maxInFlight);
+  }
+
+  /**
+   * Opens a file for reading with support for {@link #seek(long)}.
+   */
+  public BgzfInputStream(File bam) throws IOException {
+    this(bam, null, 0);
+  }
+
+  /**
+   * Opens a file for reading with support for {@link #seek(long)}, inflating on a pool.
+   */
+  public BgzfInputStream(File bam, ExecutorService pool, int maxInFlight) throws IOException {
+    this(null, new RandomAccessFile(bam, "r"), 0, pool, maxInFlight);
+    ahead = new byte[Math.max(READ_AHEAD, (maxInFlight + 1) * Bgzf.MAX_BLOCK_SIZE)];
+  }
+
+  private BgzfInputStream(InputStream in, RandomAccessFile file, long startAddress, ExecutorService pool, int maxInFlight) {
+    this.in = in;
+    this.file = file;
+    this.pool = pool;
+    this.maxInFlight = pool == null ? 0 : Math.max(1, maxInFlight);
+    blocks = new Block[this.maxInFlight + 1];
+    for (int i = 0; i < blocks.length; i++) {
+      blocks[i] = new Block();
+      free.add(blocks[i]);
+    }
+    current = free.poll();
+    blockAddress = startAddress;
+    nextBlockAddress = startAddress;
+    readAddress = startAddress;
+  }
+
+  /**
+   * Opens a file for a single sequential pass with a large read buffer.
+   */
+  public static BgzfInputStream openSequential(File bam) throws IOException {
+    return new BgzfInputStream(new BufferedInputStream(new FileInputStream(bam), READ_AHEAD));
+  }
+
+  /**
+   * Opens a file for a single sequential pass, reading ahead in large chunks and inflating on a pool.
+   */
+  public static BgzfInputStream openSequential(File bam, ExecutorService pool, int maxInFlight) throws IOException {
+    int buffer = Math.max(READ_AHEAD, (maxInFlight + 1) * Bgzf.MAX_BLOCK_SIZE);
+    return new BgzfInputStream(new BufferedInputStream(new FileInputStream(bam), buffer), 0, pool, maxInFlight);
+  }
+
+  /**
+   * Moves on to the next non-empty block.
+   *
+   * @return false at the end of the stream
+   */
+  private boolean nextBlock() throws IOException {
+    while (true) {
+      offset = 0;
+      length = 0;
+      if (pool == null) {
+        if (!readBlock(current)) {
+          return false;
+        }
+        current.call();
+      } else {
+        free.add(current);
+        while (inFlight.size() < maxInFlight && readAheadFailure == null) {
+          Block block = free.poll();
+          try {
+            if (!readBlock(block)) {
+              free.add(block);
+              break;
+            }
+          } catch (IOException e) {
+            // the data past the range a caller reads may be missing, as in a partially fetched file
+            free.add(block);
+            readAheadFailure = e;
+            break;
+          }
+          inFlight.add(pool.submit(block));
+        }
+        if (inFlight.isEmpty() && readAheadFailure != null) {
+          throw readAheadFailure;
+        }
+        if (inFlight.isEmpty()) {
+          current = free.poll();
+          return false;
+        }
+        current = await(inFlight.poll());
+      }
+      blockAddress = current.address;
+      nextBlockAddress = current.address + current.size;
+      length = current.length;
+      // empty blocks, the EOF marker among them, are skipped over
+      if (length > 0) {
+        return true;
+      }
+    }
+  }
+
+  private static Block await(Future<Block> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while inflating");
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Reads the compressed block at readAddress.
+   *
+   * @return false at the end of the stream
+   */
+  private boolean readBlock(Block block) throws IOException {
+    if (endOfFile) {
+      return false;
+    }
+    if (!readCompressed(block.compressed, 0, Bgzf.HEADER_LENGTH)) {
+      endOfFile = true;
+      return false;
+    }
+    int size = Bgzf.blockSize(block.compressed, 0);
+    if (!readCompressed(block.compressed, Bgzf.HEADER_LENGTH, size - Bgzf.HEADER_LENGTH)) {
+      throw new EOFException("Truncated BGZF block at " + readAddress);
+    }
+    block.address = readAddress;
+    block.size = size;
+    readAddress += size;
+    return true;
+  }
+
+  private boolean readCompressed(byte[] b, int off, int len) throws IOException {
+    if (file == null) {
+      return LittleEndian.readFully(in, b, off, len);
+    }
+    int total = 0;
+    while (total < len) {
+      if (aheadOffset == aheadLength) {
+        aheadAddress += aheadLength;
+        aheadOffset = 0;
+        aheadLength = 0;
+        int n = file.read(ahead, 0, ahead.length);
+        if (n < 0) {
+          if (total == 0) {
+            return false;
+          }
+          throw new EOFException("Truncated BGZF file");
+        }
+        aheadLength = n;
+      }
+      int n = Math.min(len - total, aheadLength - aheadOffset);
+      System.arraycopy(ahead, aheadOffset, b, off + total, n);
+      aheadOffset += n;
+      total += n;
+    }
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (offset == length && !nextBlock()) {
+      return -1;
+    }
+    return current.data[offset++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (offset == length && !nextBlock()) {
+      return -1;
+    }
+    int n = Math.min(len, length - offset);
+    System.arraycopy(current.data, offset, b, off, n);
+    offset += n;
+    return n;
+  }
+
+  /**
+   * Makes sure the current block has bytes left to read, for readers that take them straight out of the block.
+   *
+   * @return false at the end of the stream
+   */
+  boolean fillBlock() throws IOException {
+    return offset < length || nextBlock();
+  }
+
+  byte[] getBlock() {
+    return current.data;
+  }
+
+  int getBlockOffset() {
+    return offset;
+  }
+
+  int getBlockLength() {
+    return length;
+  }
+
+  /**
+   * Moves past n bytes of the current block that were taken out of it directly.
+   */
+  void consume(int n) {
+    offset += n;
+  }
+
+  /**
+   * Fills b completely, failing if the stream ends before that.
+   */
+  public void readFully(byte[] b, int off, int len) throws IOException {
+    if (!LittleEndian.readFully(this, b, off, len)) {
+      throw new EOFException();
+    }
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = 0;
+    while (skipped < n) {
+      if (offset == length && !nextBlock()) {
+        break;
+      }
+      int step = (int) Math.min(n - skipped, length - offset);
+      offset += step;
+      skipped += step;
+    }
+    return skipped;
+  }
+
+  /**
+   * The virtual offset of the next byte to be read. At a block boundary this is the start of the following block, as htslib reports it.
+   */
+  public long getFilePointer() {
+    if (offset == length) {
+      return Bgzf.virtualOffset(nextBlockAddress, 0);
+    }
+    return Bgzf.virtualOffset(blockAddress, offset);
+  }
+
+  /**
+   * Positions the stream at a virtual offset. Only available on streams opened on a file.
+   */
+  public void seek(long virtualOffset) throws IOException {
+    if (file == null) {
+      throw new IOException("Stream is not seekable");
+    }
+    long address = Bgzf.blockAddress(virtualOffset);
+    int inBlock = Bgzf.offsetInBlock(virtualOffset);
+    if (address != blockAddress || length == 0) {
+      discardInFlight();
+      if (address >= aheadAddress && address < aheadAddress + aheadLength) {
+        aheadOffset = (int) (address - aheadAddress);
+      } else {
+        file.seek(address);
+        aheadAddress = address;
+        aheadOffset = 0;
+        aheadLength = 0;
+      }
+      readAddress = address;
+      nextBlockAddress = address;
+      endOfFile = false;
+      if (!nextBlock() && inBlock > 0) {
+        throw new EOFException("Seek past the end of the file");
+      }
+    }
+    if (inBlock > length) {
+      throw new IOException("Virtual offset " + virtualOffset + " points past the end of its block");
+    }
+    offset = inBlock;
+  }
+
+  /**
+   * Waits for the blocks read ahead and drops them.
+   */
+  private void discardInFlight() throws IOException {
+    while (!inFlight.isEmpty()) {
+      try {
+        inFlight.poll().get();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while inflating");
+      } catch (ExecutionException e) {
+        // a block that was read ahead but is never used may as well be broken
+      }
+    }
+    readAheadFailure = null;
+    free.clear();
+    for (Block block : blocks) {
+      if (block != current) {
+        free.add(block);
+      }
+    }
+    length = 0;
+    offset = 0;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      discardInFlight();
+    } finally {
+      for (Block block : blocks) {
+        block.inflater.end();
+      }
+      if (file != null) {
+        file.close();
+      } else {
+        in.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,319 @@
+package com.github.seqware.bam;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a stream into BGZF blocks and terminates it with the EOF block on close.
+ *
+ * Given a thread pool, full blocks are compressed on the pool while the caller goes on filling the next one, and are written out in the order they were
+ * filled. At most maxInFlight blocks are queued or compressing at any time, and their buffers are reused, so memory stays flat however fast the caller
+ * writes. Several streams can share one pool.
+ *
+ * Asking for the virtual offset of a record with a pool would wait for every block still compressing. A {@link #getBlockPointer() block pointer}
+ * counts blocks instead of bytes and is known at once; once the block it points into is written it is turned into the virtual offset with
+ * {@link #resolve(long)}, which is how an index is built while writing.
+ */
+public class BgzfOutputStream extends OutputStream {
+
+  /**
+   * One block's worth of input together with the compressor and the output buffer it is compressed with.
+   */
+  private static final class Block implements Callable<Block> {
+
+    final byte[] input = new byte[Bgzf.MAX_INPUT_SIZE];
+    final byte[] output = new byte[Bgzf.MAX_BLOCK_SIZE];
+    final Deflater deflater;
+    final CRC32 crc = new CRC32();
+    int length = 0;
+    int size = 0;
+
+    Block(int level) {
+      deflater = new Deflater(level, true);
+    }
+
+    @Override
+    public Block call() throws IOException {
+      size = Bgzf.deflate(deflater, crc, input, 0, length, output);
+      return this;
+    }
+  }
+
+  private final OutputStream out;
+  private final ExecutorService pool;
+  private final int maxInFlight;
+
+  private final ArrayDeque<Future<Block>> inFlight = new ArrayDeque<Future<Block>>();
+  private final ArrayDeque<Block> free = new ArrayDeque<Block>();
+  private final Block[] blocks;
+  private Block current;
+
+  // compressed bytes written so far, which is the address of the oldest block not yet written
+  private long blockAddress = 0;
+
+  // blocks handed on to be compressed and blocks written out
+  private long blocksStarted = 0;
+  private long blocksWritten = 0;
+  // address and uncompressed length of every block written from firstTracked on, kept once block pointers are in use
+  private long[] trackedAddresses = null;
+  private int[] trackedLengths = null;
+  private long firstTracked = 0;
+
+  public BgzfOutputStream(OutputStream out, int level) {
+    this(out, level, null, 0);
+  }
+
+  /**
+   * @param pool compresses the blocks, or null to compress them on the calling thread
+   * @param maxInFlight the most blocks handed to the pool and not yet written
+   */
+  public BgzfOutputStream(OutputStream out, int level, ExecutorService pool, int maxInFlight) {
+    this.out = out;
+    this.pool = pool;
+    this.maxInFlight = pool == null ? 0 : Math.max(1, maxInFlight);
+    blocks = new Block[this.maxInFlight + 1];
+    for (int i = 0; i < blocks.length; i++) {
+      blocks[i] = new Block(level);
+      free.add(blocks[i]);
+    }
+    current = free.poll();
+  }
+
+  public BgzfOutputStream(File file, int level) throws IOException {
+    this(file, level, null, 0);
+  }
+
+  public BgzfOutputStream(File file, int level, ExecutorService pool, int maxInFlight) throws IOException {
+    this(new BufferedOutputStream(new FileOutputStream(file), 4 * Bgzf.MAX_BLOCK_SIZE), level, pool, maxInFlight);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (current.length == Bgzf.MAX_INPUT_SIZE) {
+      flushBlock();
+    }
+    current.input[current.length++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (current.length == Bgzf.MAX_INPUT_SIZE) {
+        flushBlock();
+      }
+      int n = Math.min(len, Bgzf.MAX_INPUT_SIZE - current.length);
+      System.arraycopy(b, off, current.input, current.length, n);
+      current.length += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Closes the current block early if the next len bytes would not fit into it, so that a record is not split across blocks unless it is larger than a block.
+   */
+  public void reserve(int len) throws IOException {
+    if (current.length > 0 && current.length + len > Bgzf.MAX_INPUT_SIZE) {
+      flushBlock();
+    }
+  }
+
+  private void flushBlock() throws IOException {
+    if (current.length == 0) {
+      return;
+    }
+    blocksStarted++;
+    if (pool == null) {
+      writeBlock(current.call());
+      return;
+    }
+    if (inFlight.size() == maxInFlight) {
+      writeBlock(await(inFlight.poll()));
+    }
+    inFlight.add(pool.submit(current));
+    current = free.poll();
+  }
+
+  private static Block await(Future<Block> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while compressing");
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+    }
+  }
+
+  private void writeBlock(Block block) throws IOException {
+    track(block.length);
+    blocksWritten++;
+    out.write(block.output, 0, block.size);
+    blockAddress += block.size;
+    block.length = 0;
+    if (block != current) {
+      free.add(block);
+    }
+  }
+
+  /**
+   * Records where the next block to be written starts, if block pointers are in use.
+   */
+  private void track(int length) {
+    if (trackedAddresses != null) {
+      int i = (int) (blocksWritten - firstTracked);
+      if (i == trackedAddresses.length) {
+        trackedAddresses = Arrays.copyOf(trackedAddresses, 2 * i);
+        trackedLengths = Arrays.copyOf(trackedLengths, 2 * i);
+      }
+      trackedAddresses[i] = blockAddress;
+      trackedLengths[i] = length;
+    }
+  }
+
+  /**
+   * Writes out every block handed to the pool.
+   */
+  private void drain() throws IOException {
+    while (!inFlight.isEmpty()) {
+      writeBlock(await(inFlight.poll()));
+    }
+  }
+
+  /**
+   * The virtual offset of the next byte written. With a pool this waits for the blocks still compressing, since their size is not known before.
+   */
+  public long getFilePointer() throws IOException {
+    drain();
+    return Bgzf.virtualOffset(blockAddress, current.length);
+  }
+
+  /**
+   * A pointer to the next byte written made of the number of the block it goes into and its offset within the block, laid out like a virtual offset.
+   * Unlike {@link #getFilePointer()} this never waits. Every block written after the first call is tracked until the stream is discarded.
+   */
+  public long getBlockPointer() {
+    if (trackedAddresses == null) {
+      trackedAddresses = new long[1024];
+      trackedLengths = new int[1024];
+      firstTracked = blocksWritten;
+    }
+    return Bgzf.virtualOffset(blocksStarted, current.length);
+  }
+
+  /**
+   * Turns a block pointer into the virtual offset of the same byte. A pointer to the end of a block resolves to the start of the next one, as htslib
+   * reports it. A pointer into a block that has not been written yet has the buffered bytes flushed into a block of their own first.
+   */
+  public long resolve(long blockPointer) throws IOException {
+    long block = Bgzf.blockAddress(blockPointer);
+    int offset = Bgzf.offsetInBlock(blockPointer);
+    if (trackedAddresses == null || block < firstTracked || block > blocksStarted) {
+      throw new IllegalArgumentException("Block " + block + " is not tracked");
+    }
+    if (block > blocksWritten || block == blocksWritten && offset > 0) {
+      flush();
+    }
+    int i = (int) (block - firstTracked);
+    if (block == blocksWritten || offset == trackedLengths[i]) {
+      return Bgzf.virtualOffset(block + 1 < blocksWritten ? trackedAddresses[i + 1] : blockAddress, 0);
+    }
+    return Bgzf.virtualOffset(trackedAddresses[i], offset);
+  }
+
+  /**
+   * Appends the rest of another BGZF file from a virtual offset on without compressing it again. The rest of the block the offset points into goes
+   * through this stream and is compressed into a block of its own, the blocks after it are copied byte for byte, all but a final EOF block. The copied
+   * blocks count as a single block for block pointers.
+   *
+   * @return the address in this stream the copied blocks start at
+   */
+  public long copyFrom(File bgzf, long virtualOffset) throws IOException {
+    long address = Bgzf.blockAddress(virtualOffset);
+    RandomAccessFile file = new RandomAccessFile(bgzf, "r");
+    try {
+      if (Bgzf.offsetInBlock(virtualOffset) > 0) {
+        BgzfInputStream in = new BgzfInputStream(bgzf);
+        try {
+          in.seek(virtualOffset);
+          write(in.getBlock(), in.getBlockOffset(), in.getBlockLength() - in.getBlockOffset());
+        } finally {
+          in.close();
+        }
+        byte[] header = new byte[Bgzf.HEADER_LENGTH];
+        file.seek(address);
+        file.readFully(header);
+        address += Bgzf.blockSize(header, 0);
+      }
+      flush();
+
+      long end = file.length();
+      if (end - Bgzf.EOF_BLOCK.length >= address) {
+        byte[] tail = new byte[Bgzf.EOF_BLOCK.length];
+        file.seek(end - tail.length);
+        file.readFully(tail);
+        if (Arrays.equals(tail, Bgzf.EOF_BLOCK)) {
+          end -= tail.length;
+        }
+      }
+      long start = blockAddress;
+      if (end > address) {
+        track(0);
+        file.seek(address);
+        byte[] buffer = new byte[16 * Bgzf.MAX_BLOCK_SIZE];
+        for (long position = address; position < end; ) {
+          int n = file.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+          if (n < 0) {
+            throw new EOFException("Truncated BGZF file " + bgzf);
+          }
+          out.write(buffer, 0, n);
+          position += n;
+        }
+        blockAddress += end - address;
+        blocksStarted++;
+        blocksWritten++;
+      }
+      return start;
+    } finally {
+      file.close();
+    }
+  }
+
+  /**
+   * Compresses any buffered bytes into a block of their own and flushes the underlying stream.
+   */
+  @Override
+  public void flush() throws IOException {
+    flushBlock();
+    drain();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flushBlock();
+      drain();
+      out.write(Bgzf.EOF_BLOCK);
+      // after a failure some may still be in use on the pool, and are left to the garbage collector
+      for (Block block : blocks) {
+        block.deflater.end();
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
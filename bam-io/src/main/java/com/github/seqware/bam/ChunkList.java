@@ -0,0 +1,105 @@
+package com.github.seqware.bam;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of [start, end) virtual offset ranges, kept in primitive arrays, that can be collapsed into the sorted union of its ranges.
+ */
+public class ChunkList {
+
+  private long[] starts = new long[64];
+  private long[] ends = new long[64];
+  private int size = 0;
+
+  public void add(long start, long end) {
+    if (size == starts.length) {
+      starts = Arrays.copyOf(starts, 2 * size);
+      ends = Arrays.copyOf(ends, 2 * size);
+    }
+    starts[size] = start;
+    ends[size] = end;
+    size++;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public long getStart(int i) {
+    return starts[i];
+  }
+
+  public long getEnd(int i) {
+    return ends[i];
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Replaces the ranges with their union, sorted by start. Ranges that overlap or touch are joined.
+   *
+   * The union does not depend on which start belongs to which end, so both arrays are sorted on their own and swept together.
+   */
+  public void merge() {
+    if (size < 2) {
+      return;
+    }
+    Arrays.sort(starts, 0, size);
+    Arrays.sort(ends, 0, size);
+    int merged = 0;
+    int open = 0;
+    long start = 0;
+    int s = 0;
+    int e = 0;
+    while (e < size) {
+      if (s < size && starts[s] <= ends[e]) {
+        if (open++ == 0) {
+          start = starts[s];
+        }
+        s++;
+      } else {
+        if (--open == 0) {
+          starts[merged] = start;
+          ends[merged] = ends[e];
+          merged++;
+        }
+        e++;
+      }
+    }
+    size = merged;
+  }
+
+  /**
+   * Joins neighbouring ranges of a merged list that are at most maxGap compressed bytes apart, so they are read with one seek and a sequential read.
+   * The records in the gaps are read as well, so readers of coalesced ranges have to test every record they get.
+   */
+  public void coalesce(long maxGap) {
+    if (size < 2) {
+      return;
+    }
+    int coalesced = 0;
+    for (int i = 1; i < size; i++) {
+      if (Bgzf.blockAddress(starts[i]) - Bgzf.blockAddress(ends[coalesced]) <= maxGap) {
+        ends[coalesced] = Math.max(ends[coalesced], ends[i]);
+      } else {
+        coalesced++;
+        starts[coalesced] = starts[i];
+        ends[coalesced] = ends[i];
+      }
+    }
+    size = coalesced + 1;
+  }
+
+  /**
+   * The approximate number of compressed bytes the ranges cover.
+   */
+  public long getCompressedBytes() {
+    long bytes = 0;
+    for (int i = 0; i < size; i++) {
+      bytes += Bgzf.blockAddress(ends[i]) - Bgzf.blockAddress(starts[i]) + 1;
+    }
+    return bytes;
+  }
+}
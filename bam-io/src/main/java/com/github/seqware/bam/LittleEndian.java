@@ -0,0 +1,83 @@
+package com.github.seqware.bam;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Little-endian accessors for the integer fields of the BGZF and BAM formats.
+ */
+public final class LittleEndian {
+
+  private LittleEndian() {
+  }
+
+  public static int getInt(byte[] b, int off) {
+    return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24;
+  }
+
+  public static int getUShort(byte[] b, int off) {
+    return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8;
+  }
+
+  public static long getLong(byte[] b, int off) {
+    return (getInt(b, off) & 0xffffffffL) | ((long) getInt(b, off + 4)) << 32;
+  }
+
+  public static void putInt(byte[] b, int off, int value) {
+    b[off] = (byte) value;
+    b[off + 1] = (byte) (value >>> 8);
+    b[off + 2] = (byte) (value >>> 16);
+    b[off + 3] = (byte) (value >>> 24);
+  }
+
+  public static void putShort(byte[] b, int off, int value) {
+    b[off] = (byte) value;
+    b[off + 1] = (byte) (value >>> 8);
+  }
+
+  public static void putLong(byte[] b, int off, long value) {
+    putInt(b, off, (int) value);
+    putInt(b, off + 4, (int) (value >>> 32));
+  }
+
+  public static int readInt(InputStream in) throws IOException {
+    int b0 = in.read();
+    int b1 = in.read();
+    int b2 = in.read();
+    int b3 = in.read();
+    if ((b0 | b1 | b2 | b3) < 0) {
+      throw new EOFException();
+    }
+    return b0 | b1 << 8 | b2 << 16 | b3 << 24;
+  }
+
+  public static void writeInt(OutputStream out, int value) throws IOException {
+    out.write(value);
+    out.write(value >>> 8);
+    out.write(value >>> 16);
+    out.write(value >>> 24);
+  }
+
+  /**
+   * Reads exactly len bytes.
+   *
+   * @return false if the stream was already at its end, true otherwise
+   * @throws EOFException if the stream ends part way through
+   */
+  public static boolean readFully(InputStream in, byte[] b, int off, int len) throws IOException {
+    int total = 0;
+    while (total < len) {
+      int n = in.read(b, off + total, len - total);
+      if (n < 0) {
+        if (total == 0) {
+          return false;
+        }
+        throw new EOFException("Truncated input, expected " + len + " bytes but got " + total);
+      }
+      total += n;
+    }
+    return true;
+  }
+}
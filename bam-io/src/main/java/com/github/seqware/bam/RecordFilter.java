@@ -0,0 +1,9 @@
+package com.github.seqware.bam;
+
+/**
+ * A predicate over a {@link BamRecord}, deciding from the record's fields alone whether it is kept.
+ */
+public interface RecordFilter {
+
+  boolean accept(BamRecord record);
+}
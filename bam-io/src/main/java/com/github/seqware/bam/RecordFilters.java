@@ -0,0 +1,127 @@
+package com.github.seqware.bam;
+
+/**
+ * The read filters of the workflows' SAM processing scripts, as predicates over binary records.
+ */
+public final class RecordFilters {
+
+  // flag names in bit order, as sam_filter_by_flag.pl spells them
+  private static final String[] FLAG_NAMES = {
+    "PAIRED", "PROPER_PAIR", "UNMAP", "MUNMAP", "REVERSE", "MREVERSE", "READ1", "READ2", "SECONDARY", "QCFAIL", "DUP", "SUPPLEMENTARY"
+  };
+
+  private RecordFilters() {
+  }
+
+  /**
+   * Drops records whose reference and mate reference are both unset, as remove_both_ends_unmapped_reads.pl drops lines whose RNAME and RNEXT are both
+   * "*".
+   */
+  public static RecordFilter removeBothEndsUnmapped() {
+    return new RecordFilter() {
+      @Override
+      public boolean accept(BamRecord record) {
+        return record.getReferenceIndex() >= 0 || record.getMateReferenceIndex() >= 0;
+      }
+    };
+  }
+
+  /**
+   * Keeps records that have all the given flags set, as "sam_filter_by_flag.pl -r" and "samtools view -f".
+   */
+  public static RecordFilter requireAll(final int flags) {
+    return new RecordFilter() {
+      @Override
+      public boolean accept(BamRecord record) {
+        return (record.getFlag() & flags) == flags;
+      }
+    };
+  }
+
+  /**
+   * Keeps records that have any of the given flags set.
+   */
+  public static RecordFilter requireAny(final int flags) {
+    return new RecordFilter() {
+      @Override
+      public boolean accept(BamRecord record) {
+        return (record.getFlag() & flags) != 0;
+      }
+    };
+  }
+
+  /**
+   * Keeps records placed on a reference, which in a coordinate sorted BAM are all the records before the no-coordinate section.
+   */
+  public static RecordFilter placed() {
+    return new RecordFilter() {
+      @Override
+      public boolean accept(BamRecord record) {
+        return record.getReferenceIndex() >= 0;
+      }
+    };
+  }
+
+  /**
+   * Drops records that have all the given flags set, as "sam_filter_by_flag.pl -f". Without any flags nothing is dropped.
+   */
+  public static RecordFilter excludeAll(final int flags) {
+    return new RecordFilter() {
+      @Override
+      public boolean accept(BamRecord record) {
+        return flags == 0 || (record.getFlag() & flags) != flags;
+      }
+    };
+  }
+
+  /**
+   * Drops records that have any of the given flags set, as "samtools view -F".
+   */
+  public static RecordFilter excludeAny(final int flags) {
+    return new RecordFilter() {
+      @Override
+      public boolean accept(BamRecord record) {
+        return (record.getFlag() & flags) == 0;
+      }
+    };
+  }
+
+  /**
+   * Keeps records that every one of the filters keeps.
+   */
+  public static RecordFilter all(final RecordFilter... filters) {
+    return new RecordFilter() {
+      @Override
+      public boolean accept(BamRecord record) {
+        for (RecordFilter filter : filters) {
+          if (!filter.accept(record)) {
+            return false;
+          }
+        }
+        return true;
+      }
+    };
+  }
+
+  /**
+   * The bits of flags given by the names sam_filter_by_flag.pl accepts, such as UNMAP or MUNMAP.
+   *
+   * @throws IllegalArgumentException on an unknown name
+   */
+  public static int flagBits(String... names) {
+    int bits = 0;
+    for (String name : names) {
+      int bit = -1;
+      for (int i = 0; i < FLAG_NAMES.length; i++) {
+        if (FLAG_NAMES[i].equals(name)) {
+          bit = i;
+        }
+      }
+      if (bit < 0) {
+        throw new IllegalArgumentException("Invalid flag: '" + name + "'");
+      }
+      bits |= 1 << bit;
+    }
+    return bits;
+  }
+}
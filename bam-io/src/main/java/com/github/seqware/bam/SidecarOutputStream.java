@@ -0,0 +1,136 @@
+package com.github.seqware.bam;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Writes a file next to its final name, digesting the bytes on their way to the disk, and publishes it when it is closed: the file is renamed into
+ * place and a sidecar with the hex digest is written for each algorithm, "file.md5" for MD5 and "file.sha256" for SHA-256. Sidecars are written next
+ * to their final names first too and hold the bare digest without a line break, the way bammarkduplicates md5=1 writes them, so the file never has to
+ * be read back just to hash it and nothing half written ever carries a final name.
+ *
+ * Writers that fail call {@link #discard()} instead, typically from a finally block after a close on the normal path, which leaves nothing behind.
+ */
+public class SidecarOutputStream extends OutputStream {
+
+  public static final String MD5 = "MD5";
+  public static final String SHA256 = "SHA-256";
+
+  private final File file;
+  private final File part;
+  private final OutputStream out;
+  private final String[] algorithms;
+  private final MessageDigest[] digests;
+  private boolean closed = false;
+
+  /**
+   * @param file the final name of the file
+   * @param algorithms the digests to write sidecars for, any of {@link #MD5} and {@link #SHA256}
+   */
+  public SidecarOutputStream(File file, String... algorithms) throws IOException {
+    this.file = file;
+    this.algorithms = algorithms;
+    digests = new MessageDigest[algorithms.length];
+    for (int i = 0; i < algorithms.length; i++) {
+      try {
+        digests[i] = MessageDigest.getInstance(algorithms[i]);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalArgumentException("Unknown digest " + algorithms[i], e);
+      }
+    }
+    part = new File(file.getPath() + ".part");
+    out = new FileOutputStream(part);
+  }
+
+  /**
+   * The name of the sidecar of a file for a digest algorithm.
+   */
+  public static File sidecar(File file, String algorithm) {
+    return new File(file.getPath() + "." + algorithm.toLowerCase().replace("-", ""));
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    out.write(b);
+    for (MessageDigest digest : digests) {
+      digest.update((byte) b);
+    }
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    out.write(b, off, len);
+    for (MessageDigest digest : digests) {
+      digest.update(b, off, len);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /**
+   * Closes the file, renames it into place and writes its sidecars.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    out.close();
+    if (!part.renameTo(file)) {
+      throw new IOException("Could not rename " + part + " to " + file);
+    }
+    for (int i = 0; i < digests.length; i++) {
+      writeSidecar(sidecar(file, algorithms[i]), toHex(digests[i].digest()));
+    }
+  }
+
+  /**
+   * Closes and deletes the partial file unless the stream was closed already.
+   */
+  public void discard() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      out.close();
+    } catch (IOException e) {
+      // the file is deleted anyway
+    }
+    part.delete();
+  }
+
+  /**
+   * Writes the hex digest into a sidecar next to its final name first.
+   */
+  public static void writeSidecar(File sidecar, String hex) throws IOException {
+    File part = new File(sidecar.getPath() + ".part");
+    Writer out = new OutputStreamWriter(new FileOutputStream(part), "US-ASCII");
+    try {
+      out.write(hex);
+    } finally {
+      out.close();
+    }
+    if (!part.renameTo(sidecar)) {
+      throw new IOException("Could not rename " + part + " to " + sidecar);
+    }
+  }
+
+  public static String toHex(byte[] digest) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+}
@@ -0,0 +1,409 @@
+package com.github.seqware.bam;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Checks the indexes built while reading and while writing a BAM against what the SAM specification asks of them, worked out from the records as
+ * {@link Bams#read(File)} decodes them: every record of a bin lies in a chunk of that bin, every window of the linear index points at the first record
+ * overlapping it, and the metadata bin spans the reference and counts its reads.
+ */
+public class BamIndexBuilderTest {
+
+  private File dir;
+  private BamHeader header;
+  private List<byte[]> records;
+
+  @BeforeClass
+  public void setUp() throws IOException {
+    dir = Bams.createTempDir("bamindex");
+    // the third reference has no reads
+    header = Bams.header("1:5000000", "2:5000000", "3:1000000");
+    records = new ArrayList<byte[]>();
+    Random random = new Random(5);
+    StringBuilder bases = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      bases.append("ACGT".charAt(random.nextInt(4)));
+    }
+    for (int refId = 0; refId < 2; refId++) {
+      for (int i = 0; i < 3000; i++) {
+        String name = "read" + refId + "." + i;
+        int pos = random.nextInt(3000000);
+        int kind = random.nextInt(20);
+        if (kind == 0) {
+          // an unmapped read placed at its mate
+          records.add(Bams.record(name, BamRecord.FLAG_PAIRED | BamRecord.FLAG_UNMAPPED, refId, pos, "*", refId, pos, bases.toString(), 30));
+        } else if (kind == 1) {
+          // long enough for the bins of the upper levels and several windows of the linear index
+          records.add(Bams.record(name, BamRecord.FLAG_PAIRED, refId, pos, "50M" + random.nextInt(200000) + "N50M", refId, pos, bases.toString(), 30));
+        } else {
+          records.add(Bams.record(name, BamRecord.FLAG_PAIRED, refId, pos, "100M", refId, pos, kind < 10 ? bases.toString() : "*", 30));
+        }
+      }
+    }
+    Collections.sort(records, new Comparator<byte[]>() {
+      @Override
+      public int compare(byte[] a, byte[] b) {
+        long x = (long) Bams.getInt(a, 0) << 32 | Bams.getInt(a, 4);
+        long y = (long) Bams.getInt(b, 0) << 32 | Bams.getInt(b, 4);
+        return x < y ? -1 : x > y ? 1 : 0;
+      }
+    });
+    for (int i = 0; i < 25; i++) {
+      records.add(Bams.record("unplaced" + i, BamRecord.FLAG_PAIRED | BamRecord.FLAG_UNMAPPED | BamRecord.FLAG_MATE_UNMAPPED, -1, -1, "*", -1, -1,
+        bases.toString(), 20));
+    }
+  }
+
+  @AfterClass
+  public void tearDown() {
+    Bams.delete(dir);
+  }
+
+  /**
+   * Indexes a BAM with the virtual offsets a sequential read reports.
+   */
+  private static File indexByReading(File bam) throws IOException {
+    File bai = new File(bam.getPath() + ".read.bai");
+    BgzfInputStream in = BgzfInputStream.openSequential(bam);
+    try {
+      BamIndexBuilder builder = new BamIndexBuilder(BamHeader.read(in).getReferenceCount());
+      BamRecord record = new BamRecord();
+      while (true) {
+        long start = in.getFilePointer();
+        if (!record.read(in)) {
+          break;
+        }
+        builder.add(record, start, in.getFilePointer());
+      }
+      builder.write(bai);
+    } finally {
+      in.close();
+    }
+    return bai;
+  }
+
+  /**
+   * Writes the records with a writer compressing on a pool, indexing them as they go.
+   */
+  private File writeIndexed(File bam, List<byte[]> records, ExecutorService pool) throws IOException {
+    BgzfOutputStream out = new BgzfOutputStream(bam, 6, pool, 4);
+    BamWriter writer = new BamWriter(out, header);
+    BamIndexBuilder builder = new BamIndexBuilder(header.getReferenceCount(), out);
+    BamRecord record = new BamRecord();
+    for (byte[] b : records) {
+      record.wrap(b, 0, b.length);
+      writer.write(record, builder);
+    }
+    writer.close();
+    File bai = new File(bam.getPath() + ".bai");
+    builder.write(bai);
+    return bai;
+  }
+
+  private static byte[] readBytes(File file) throws IOException {
+    byte[] b = new byte[(int) file.length()];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      for (int n = 0; n < b.length; ) {
+        n += in.read(b, n, b.length - n);
+      }
+    } finally {
+      in.close();
+    }
+    return b;
+  }
+
+  /**
+   * Checks an index against the records of its BAM.
+   */
+  private static void assertIndex(File bam, File bai) throws IOException {
+    List<Bams.Read> reads = Bams.read(bam);
+    long[] offsets = new long[2 * reads.size()];
+    for (int i = 0; i < reads.size(); i++) {
+      offsets[2 * i] = reads.get(i).offset;
+      offsets[2 * i + 1] = reads.get(i).offset + 4 + reads.get(i).bytes.length;
+    }
+    long[] virtual = Bams.virtualOffsets(bam, offsets);
+    Bams.Index index = Bams.readIndex(bai);
+    assertEquals(index.bins.size(), 3);
+
+    long unplaced = 0;
+    for (int refId = 0; refId < index.bins.size(); refId++) {
+      Map<Integer, long[]> bins = index.bins.get(refId);
+      long[] linear = index.linear.get(refId);
+      // the reads of the reference by bin, the first and last read, the counts and the start of each window
+      Map<Integer, List<Integer>> readsByBin = new TreeMap<Integer, List<Integer>>();
+      int first = -1;
+      int last = -1;
+      long mapped = 0;
+      long unmapped = 0;
+      long[] windows = new long[1000];
+      Arrays.fill(windows, -1);
+      int windowCount = 0;
+      for (int i = 0; i < reads.size(); i++) {
+        Bams.Read read = reads.get(i);
+        if (refId == 0 && read.refId < 0) {
+          unplaced++;
+        }
+        if (read.refId != refId) {
+          continue;
+        }
+        int bin = BamIndex.regionToBin(read.pos, read.end);
+        if (!readsByBin.containsKey(bin)) {
+          readsByBin.put(bin, new ArrayList<Integer>());
+        }
+        readsByBin.get(bin).add(i);
+        first = first < 0 ? i : first;
+        last = i;
+        if ((read.flag & BamRecord.FLAG_UNMAPPED) != 0) {
+          unmapped++;
+        } else {
+          mapped++;
+        }
+        for (int w = read.pos >> 14; w <= (read.end - 1) >> 14; w++) {
+          if (windows[w] < 0) {
+            windows[w] = virtual[2 * i];
+          }
+          windowCount = Math.max(windowCount, w + 1);
+        }
+      }
+      if (first < 0) {
+        assertEquals(bins.size(), 0, "bins of reference " + refId);
+        assertEquals(linear.length, 0, "linear index of reference " + refId);
+        continue;
+      }
+
+      long[] meta = bins.get(BamIndex.METADATA_BIN);
+      assertEquals(meta, new long[]{virtual[2 * first], virtual[2 * last + 1], mapped, unmapped}, "metadata of reference " + refId);
+      Set<Integer> indexed = new TreeSet<Integer>(bins.keySet());
+      indexed.remove(BamIndex.METADATA_BIN);
+      assertEquals(indexed, readsByBin.keySet(), "bins of reference " + refId);
+      for (Map.Entry<Integer, List<Integer>> entry : readsByBin.entrySet()) {
+        long[] chunks = bins.get(entry.getKey());
+        Set<Long> starts = new HashSet<Long>();
+        Set<Long> ends = new HashSet<Long>();
+        for (int i : entry.getValue()) {
+          starts.add(virtual[2 * i]);
+          ends.add(virtual[2 * i + 1]);
+          boolean covered = false;
+          for (int c = 0; c < chunks.length; c += 2) {
+            covered |= chunks[c] <= virtual[2 * i] && virtual[2 * i + 1] <= chunks[c + 1];
+          }
+          assertTrue(covered, reads.get(i) + " in bin " + entry.getKey());
+        }
+        // chunks start and end with reads of their bin, and are in file order without overlapping
+        for (int c = 0; c < chunks.length; c += 2) {
+          assertTrue(starts.contains(chunks[c]) && ends.contains(chunks[c + 1]), "chunk " + c / 2 + " of bin " + entry.getKey());
+          assertTrue(c == 0 || chunks[c] > chunks[c - 1], "chunk " + c / 2 + " of bin " + entry.getKey());
+        }
+      }
+
+      // windows no read overlaps take the offset of the window before them
+      long[] expected = Arrays.copyOf(windows, windowCount);
+      for (int w = 0; w < expected.length; w++) {
+        if (expected[w] < 0) {
+          expected[w] = w == 0 ? 0 : expected[w - 1];
+        }
+      }
+      assertEquals(linear, expected, "linear index of reference " + refId);
+    }
+    assertEquals(index.noCoordinateCount, unplaced);
+  }
+
+  /**
+   * Reads placed on [beg, end) of a reference through the chunks of the index, as a region query does.
+   */
+  private static List<String> query(File bam, BamIndex index, int refId, int beg, int end) throws IOException {
+    ChunkList chunks = new ChunkList();
+    index.addChunks(refId, beg, end, chunks);
+    chunks.merge();
+    List<String> found = new ArrayList<String>();
+    BgzfInputStream in = new BgzfInputStream(bam);
+    try {
+      BamRecord record = new BamRecord();
+      for (int c = 0; c < chunks.size(); c++) {
+        in.seek(chunks.getStart(c));
+        while (in.getFilePointer() < chunks.getEnd(c) && record.read(in)) {
+          if (record.getReferenceIndex() == refId && record.getPosition() < end && record.getAlignmentEnd() > beg) {
+            found.add(record.getReadName() + "/" + record.getFlag());
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return found;
+  }
+
+  @Test
+  public void testIndexWhileReading() throws IOException {
+    File bam = new File(dir, "split.bam");
+    Bams.write(bam, header, records, true);
+    File bai = indexByReading(bam);
+    assertIndex(bam, bai);
+
+    // region queries through BamIndex find every read overlapping the region
+    BamIndex index = BamIndex.read(bai);
+    assertEquals(index.getNoCoordinateCount(), 25);
+    List<Bams.Read> reads = Bams.read(bam);
+    Random random = new Random(3);
+    for (int q = 0; q < 40; q++) {
+      int refId = random.nextInt(3);
+      int beg = random.nextInt(3200000);
+      int end = beg + 1 + random.nextInt(q % 2 == 0 ? 1000 : 300000);
+      List<String> expected = new ArrayList<String>();
+      for (Bams.Read read : reads) {
+        if (read.refId == refId && read.pos < end && read.end > beg) {
+          expected.add(read.toString());
+        }
+      }
+      assertEquals(query(bam, index, refId, beg, end), expected, refId + ":" + beg + "-" + end);
+    }
+  }
+
+  @Test
+  public void testIndexWhileWriting() throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(3);
+    try {
+      // block pointers resolve to the offsets of the finished file, so the index is the one a read of the file builds
+      File bam = new File(dir, "written.bam");
+      File bai = writeIndexed(bam, records, pool);
+      assertIndex(bam, bai);
+      assertEquals(readBytes(bai), readBytes(indexByReading(bam)));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testResolve() throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    File file = new File(dir, "pointers.gz");
+    byte[] data = new byte[6 * Bgzf.MAX_INPUT_SIZE];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte) (i % 251 < 120 ? i % 7 : i % 251);
+    }
+    // pointers to every 997th byte, the ends of full blocks and the bytes around a flush among them
+    List<Integer> positions = new ArrayList<Integer>();
+    for (int i = 0; i < data.length; i += 997) {
+      positions.add(i);
+    }
+    positions.addAll(Arrays.asList(Bgzf.MAX_INPUT_SIZE, 2 * Bgzf.MAX_INPUT_SIZE, 200000, 200001));
+    Collections.sort(positions);
+    long[] pointers = new long[positions.size()];
+    long[] resolved = new long[positions.size()];
+    try {
+      BgzfOutputStream out = new BgzfOutputStream(file, 5, pool, 3);
+      int p = 0;
+      for (int k = 0; k < positions.size(); k++) {
+        int position = positions.get(k);
+        if (position > 200000 && p <= 200000) {
+          out.write(data, p, 200000 - p);
+          p = 200000;
+          out.flush();
+        }
+        out.write(data, p, position - p);
+        p = position;
+        pointers[k] = out.getBlockPointer();
+        // pointers into the block still being filled flush it, the rest are resolved once the stream has moved on
+        if (k % 10 == 0) {
+          resolved[k] = out.resolve(pointers[k]);
+        }
+      }
+      out.write(data, p, data.length - p);
+      out.flush();
+      for (int k = 0; k < positions.size(); k++) {
+        if (k % 10 != 0) {
+          resolved[k] = out.resolve(pointers[k]);
+        }
+      }
+      out.close();
+    } finally {
+      pool.shutdown();
+    }
+
+    BgzfInputStream in = new BgzfInputStream(file);
+    try {
+      byte[] read = new byte[data.length];
+      int p = 0;
+      for (int k = 0; k < positions.size(); k++) {
+        in.readFully(read, p, positions.get(k) - p);
+        p = positions.get(k);
+        assertEquals(resolved[k], in.getFilePointer(), "byte " + p);
+      }
+      in.readFully(read, p, data.length - p);
+      assertEquals(read, data);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testWriteConcatenation() throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      // the first part has the reads of the first reference, the second those of the second and the unplaced ones
+      int split = 0;
+      while (Bams.getInt(records.get(split), 0) == 0) {
+        split++;
+      }
+      File[] parts = {new File(dir, "part0.bam"), new File(dir, "part1.bam")};
+      BamIndex[] indexes = {BamIndex.read(writeIndexed(parts[0], records.subList(0, split), pool)),
+        BamIndex.read(writeIndexed(parts[1], records.subList(split, records.size()), pool))};
+
+      File bam = new File(dir, "joined.bam");
+      BgzfOutputStream out = new BgzfOutputStream(bam, 6);
+      header.write(out);
+      out.flush();
+      long[] shifts = new long[parts.length];
+      for (int p = 0; p < parts.length; p++) {
+        long firstRecord = indexes[p].getReferenceStart(p);
+        shifts[p] = out.copyFrom(parts[p], firstRecord) - Bgzf.blockAddress(firstRecord);
+      }
+      out.close();
+      File bai = new File(dir, "joined.bam.bai");
+      BamIndexBuilder.writeConcatenation(indexes, shifts, indexes[1].getNoCoordinateCount(), bai);
+
+      assertEquals(Bams.names(Bams.read(bam)), joinedNames(parts));
+      assertIndex(bam, bai);
+      assertEquals(readBytes(bai), readBytes(indexByReading(bam)));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static List<String> joinedNames(File[] parts) throws IOException {
+    List<String> names = new ArrayList<String>();
+    for (File part : parts) {
+      names.addAll(Bams.names(Bams.read(part)));
+    }
+    return names;
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testConcatenationOfOverlappingParts() throws IOException {
+    File bam = new File(dir, "overlapping.bam");
+    BamIndex index = BamIndex.read(writeIndexed(bam, records.subList(0, 100), null));
+    BamIndexBuilder.writeConcatenation(new BamIndex[]{index, index}, new long[]{0, 1000}, 0, new File(dir, "overlapping.bai"));
+  }
+}
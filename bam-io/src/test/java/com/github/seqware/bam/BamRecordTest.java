@@ -0,0 +1,172 @@
+package com.github.seqware.bam;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class BamRecordTest {
+
+  private File dir;
+  private BamHeader header;
+  private List<byte[]> records;
+
+  @BeforeClass
+  public void setUp() throws IOException {
+    dir = Bams.createTempDir("bamrecord");
+    header = Bams.header("chr1:1000000", "chr2:1000000");
+    // long reads, so a few hundred of them fill several blocks
+    StringBuilder bases = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      bases.append("ACGTN".charAt(i * 7 % 5));
+    }
+    records = new ArrayList<byte[]>();
+    for (int i = 0; i < 300; i++) {
+      records.add(Bams.record("read" + i, BamRecord.FLAG_PAIRED | BamRecord.FLAG_READ1, i < 200 ? 0 : 1, 100 * i, "5S990M5H", i < 200 ? 0 : 1,
+        100 * i + 500, bases.toString(), 30, "RG:Z:rg", "MC:Z:1000M", "NM:i:" + i));
+    }
+    // unmapped reads placed at their mate, and unplaced reads
+    records.add(Bams.record("unmapped", BamRecord.FLAG_PAIRED | BamRecord.FLAG_UNMAPPED, 1, 29900, "*", 1, 29900, "ACGT", 20));
+    records.add(Bams.record("unplaced", BamRecord.FLAG_PAIRED | BamRecord.FLAG_UNMAPPED | BamRecord.FLAG_MATE_UNMAPPED, -1, -1, "*", -1, -1, "*",
+      0));
+  }
+
+  @AfterClass
+  public void tearDown() {
+    Bams.delete(dir);
+  }
+
+  private List<byte[]> readAll(BgzfInputStream in) throws IOException {
+    List<byte[]> read = new ArrayList<byte[]>();
+    try {
+      BamHeader.read(in);
+      BamRecord record = new BamRecord();
+      while (record.read(in)) {
+        read.add(Arrays.copyOfRange(record.getData(), record.getOffset(), record.getOffset() + record.getSize()));
+      }
+    } finally {
+      in.close();
+    }
+    return read;
+  }
+
+  private static void assertSameRecords(List<byte[]> actual, List<byte[]> expected) {
+    assertEquals(actual.size(), expected.size());
+    for (int i = 0; i < expected.size(); i++) {
+      assertEquals(actual.get(i), expected.get(i), "record " + i);
+    }
+  }
+
+  @Test
+  public void testRecordsSpanningBlocks() throws IOException {
+    File bam = new File(dir, "split.bam");
+    Bams.write(bam, header, records, true);
+    List<byte[]> decoded = new ArrayList<byte[]>();
+    for (Bams.Read read : Bams.read(bam)) {
+      decoded.add(read.bytes);
+    }
+    assertSameRecords(decoded, records);
+
+    // records are wrapped in their block where they fit and copied where they span two
+    assertSameRecords(readAll(BgzfInputStream.openSequential(bam)), records);
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      assertSameRecords(readAll(BgzfInputStream.openSequential(bam, pool, 3)), records);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testWriterKeepsRecordsInOneBlock() throws IOException {
+    File bam = new File(dir, "whole.bam");
+    BamWriter writer = new BamWriter(bam, header, 1);
+    BamRecord record = new BamRecord();
+    for (byte[] b : records) {
+      record.wrap(b, 0, b.length);
+      writer.write(record);
+    }
+    writer.close();
+    assertEquals(writer.getRecordCount(), records.size());
+    assertSameRecords(readAll(new BgzfInputStream(bam)), records);
+
+    // every record starts at a virtual offset whose block holds all of it
+    BgzfInputStream in = new BgzfInputStream(bam);
+    try {
+      BamHeader.read(in);
+      while (true) {
+        long start = in.getFilePointer();
+        if (!record.read(in)) {
+          break;
+        }
+        long end = in.getFilePointer();
+        assertTrue(Bgzf.blockAddress(start) == Bgzf.blockAddress(end) || Bgzf.offsetInBlock(end) == 0, record.getReadName());
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testFields() throws IOException {
+    BamRecord record = new BamRecord();
+    byte[] b = records.get(250);
+    record.wrap(b, 0, b.length);
+    assertEquals(record.getReadName(), "read250");
+    assertEquals(record.getReferenceIndex(), 1);
+    assertEquals(record.getPosition(), 25000);
+    assertEquals(record.getMateReferenceIndex(), 1);
+    assertEquals(record.getMatePosition(), 25500);
+    assertEquals(record.getFlag(), BamRecord.FLAG_PAIRED | BamRecord.FLAG_READ1);
+    assertEquals(record.getCigarLength(), 3);
+    assertEquals(record.getSequenceLength(), 1000);
+    assertEquals(record.getMappingQuality(), 60);
+    assertEquals(record.getBin(), BamIndex.regionToBin(25000, 25990));
+
+    // 5S990M5H
+    assertEquals(record.getAlignmentEnd(), 25990);
+    assertEquals(record.getUnclippedStart(), 24995);
+    assertEquals(record.getUnclippedEnd(), 25995);
+
+    int nm = record.findTag('N', 'M');
+    assertEquals(record.getTagInteger(nm), 250);
+    int mc = record.findTag('M', 'C');
+    assertEquals(new String(b, mc + 1, record.getStringLength(mc + 1), "US-ASCII"), "1000M");
+    assertEquals(record.findTag('X', 'X'), -1);
+
+    record.setFlag(record.getFlag() | BamRecord.FLAG_DUPLICATE);
+    assertTrue(record.hasFlags(BamRecord.FLAG_DUPLICATE | BamRecord.FLAG_PAIRED));
+    assertTrue(new Bams.Read(b, 0).flag == record.getFlag(), "the flag is changed in place");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    record.write(out);
+    assertEquals(Bams.getInt(out.toByteArray(), 0), b.length);
+    assertEquals(Arrays.copyOfRange(out.toByteArray(), 4, 4 + b.length), b);
+  }
+
+  @Test
+  public void testUnmappedRecords() throws IOException {
+    BamRecord record = new BamRecord();
+    byte[] placed = records.get(300);
+    record.wrap(placed, 0, placed.length);
+    // an unmapped read placed at its mate covers one base
+    assertEquals(record.getAlignmentEnd(), 29901);
+    assertEquals(record.getUnclippedStart(), 29900);
+
+    byte[] unplaced = records.get(301);
+    record.wrap(unplaced, 0, unplaced.length);
+    assertEquals(record.getReferenceIndex(), -1);
+    assertEquals(record.getPosition(), -1);
+    assertEquals(record.getSequenceLength(), 0);
+    assertEquals(record.getAuxOffset(), record.getReadNameOffset() + record.getReadNameLength());
+    assertEquals(record.findTag('R', 'G'), -1);
+  }
+}
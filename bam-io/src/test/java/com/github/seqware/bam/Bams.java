@@ -0,0 +1,391 @@
+package com.github.seqware.bam;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Builds small BAMs for the tests and reads BAMs back without the classes under test.
+ *
+ * {@link #read(File)} decodes a BAM with GZIPInputStream, which reads the blocks of a BGZF file as the members of one gzip stream, so what it returns
+ * does not depend on {@link BgzfInputStream} or {@link BamRecord}.
+ */
+public final class Bams {
+
+  /**
+   * A record as {@link #read(File)} decoded it.
+   */
+  public static final class Read {
+
+    public final String name;
+    public final int flag;
+    public final int refId;
+    public final int pos;
+    public final int end;
+    public final int mateRefId;
+    public final int matePos;
+    /** The record without its block_size field. */
+    public final byte[] bytes;
+    /** The uncompressed offset of the record's block_size field. */
+    public final long offset;
+
+    Read(byte[] b, long offset) {
+      this.bytes = b;
+      this.offset = offset;
+      refId = getInt(b, 0);
+      pos = getInt(b, 4);
+      int nameLength = b[8] & 0xff;
+      int cigarOps = b[12] & 0xff | (b[13] & 0xff) << 8;
+      flag = b[14] & 0xff | (b[15] & 0xff) << 8;
+      mateRefId = getInt(b, 20);
+      matePos = getInt(b, 24);
+      name = new String(b, 32, nameLength - 1);
+      int length = 0;
+      for (int i = 0; i < cigarOps; i++) {
+        int op = getInt(b, 32 + nameLength + 4 * i);
+        if ("MDN=X".indexOf(CIGAR_OPS.charAt(op & 0xf)) >= 0) {
+          length += op >>> 4;
+        }
+      }
+      end = pos + Math.max(1, (flag & BamRecord.FLAG_UNMAPPED) != 0 ? 1 : length);
+    }
+
+    /**
+     * The name and the flag, which tell the records of the tests apart.
+     */
+    @Override
+    public String toString() {
+      return name + "/" + flag;
+    }
+  }
+
+  /**
+   * A BAM index as {@link #readIndex(File)} decoded it.
+   */
+  public static final class Index {
+
+    /** The chunks of every bin of each reference as start and end pairs, the metadata bin among them, by bin. */
+    public final List<Map<Integer, long[]>> bins = new ArrayList<Map<Integer, long[]>>();
+    /** The linear index of each reference. */
+    public final List<long[]> linear = new ArrayList<long[]>();
+    /** The count of unplaced reads, or -1 if the index does not record it. */
+    public long noCoordinateCount = -1;
+  }
+
+  private static final String CIGAR_OPS = "MIDNSHP=X";
+  private static final String BASES = "=ACMGRSVTWYHKDBN";
+
+  private Bams() {
+  }
+
+  /**
+   * A coordinate sorted header with the given contigs, each given as name:length, and a read group "rg" of the library "lib".
+   */
+  public static BamHeader header(String... contigs) {
+    String[] names = new String[contigs.length];
+    int[] lengths = new int[contigs.length];
+    StringBuilder text = new StringBuilder("@HD\tVN:1.4\tSO:coordinate\n");
+    for (int i = 0; i < contigs.length; i++) {
+      names[i] = contigs[i].substring(0, contigs[i].indexOf(':'));
+      lengths[i] = Integer.parseInt(contigs[i].substring(contigs[i].indexOf(':') + 1));
+      text.append("@SQ\tSN:").append(names[i]).append("\tLN:").append(lengths[i]).append('\n');
+    }
+    text.append("@RG\tID:rg\tLB:lib\tSM:sample\n");
+    return new BamHeader(text.toString(), names, lengths);
+  }
+
+  /**
+   * Encodes a record without its block_size field.
+   *
+   * @param cigar the CIGAR as SAM writes it, or "*"
+   * @param bases the bases, or "*"
+   * @param quality the base quality of every base
+   * @param tags optional fields as SAM writes them, of the types Z and i only
+   */
+  public static byte[] record(String name, int flag, int refId, int pos, String cigar, int mateRefId, int matePos, String bases, int quality,
+    String... tags) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    List<Integer> ops = new ArrayList<Integer>();
+    int length = 0;
+    if (!"*".equals(cigar)) {
+      int n = 0;
+      for (char c : cigar.toCharArray()) {
+        if (Character.isDigit(c)) {
+          n = 10 * n + c - '0';
+        } else {
+          ops.add(n << 4 | CIGAR_OPS.indexOf(c));
+          if ("MDN=X".indexOf(c) >= 0) {
+            length += n;
+          }
+          n = 0;
+        }
+      }
+    }
+    String seq = "*".equals(bases) ? "" : bases;
+    int bin = refId < 0 ? 4680 : BamIndex.regionToBin(pos, pos + Math.max(1, length));
+    putInt(out, refId);
+    putInt(out, pos);
+    out.write(name.length() + 1);
+    out.write((flag & BamRecord.FLAG_UNMAPPED) != 0 ? 0 : 60);
+    out.write(bin);
+    out.write(bin >> 8);
+    out.write(ops.size());
+    out.write(ops.size() >> 8);
+    out.write(flag);
+    out.write(flag >> 8);
+    putInt(out, seq.length());
+    putInt(out, mateRefId);
+    putInt(out, matePos);
+    putInt(out, 0);
+    out.write(name.getBytes("US-ASCII"));
+    out.write(0);
+    for (int op : ops) {
+      putInt(out, op);
+    }
+    for (int i = 0; i < seq.length(); i += 2) {
+      int high = BASES.indexOf(seq.charAt(i));
+      int low = i + 1 < seq.length() ? BASES.indexOf(seq.charAt(i + 1)) : 0;
+      out.write(high << 4 | low);
+    }
+    for (int i = 0; i < seq.length(); i++) {
+      out.write(quality);
+    }
+    for (String tag : tags) {
+      String[] fields = tag.split(":", 3);
+      out.write(fields[0].getBytes("US-ASCII"));
+      out.write(fields[1].charAt(0));
+      if ("i".equals(fields[1])) {
+        putInt(out, Integer.parseInt(fields[2]));
+      } else {
+        out.write(fields[2].getBytes("US-ASCII"));
+        out.write(0);
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Writes the records after the header.
+   *
+   * @param split whether records go on into the next block where a block is full, as htslib writes them, rather than start a block of their own
+   */
+  public static void write(File bam, BamHeader header, List<byte[]> records, boolean split) throws IOException {
+    BgzfOutputStream out = new BgzfOutputStream(bam, 6);
+    header.write(out);
+    out.flush();
+    for (byte[] record : records) {
+      if (!split) {
+        out.reserve(record.length + 4);
+      }
+      putInt(out, record.length);
+      out.write(record);
+    }
+    out.close();
+  }
+
+  /**
+   * Reads every record of a BAM.
+   */
+  public static List<Read> read(File bam) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(bam), 1 << 16)));
+    try {
+      long offset = skipHeader(in);
+      List<Read> reads = new ArrayList<Read>();
+      while (true) {
+        int b0 = in.read();
+        if (b0 < 0) {
+          return reads;
+        }
+        byte[] size = {(byte) b0, 0, 0, 0};
+        in.readFully(size, 1, 3);
+        byte[] record = new byte[getInt(size, 0)];
+        in.readFully(record);
+        reads.add(new Read(record, offset));
+        offset += 4 + record.length;
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * The header text of a BAM.
+   */
+  public static String readHeaderText(File bam) throws IOException {
+    DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(bam)));
+    try {
+      in.readFully(new byte[4]);
+      byte[] text = new byte[readInt(in)];
+      in.readFully(text);
+      return new String(text, "US-ASCII");
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Reads past the header.
+   *
+   * @return the uncompressed length of the header
+   */
+  private static long skipHeader(DataInputStream in) throws IOException {
+    byte[] magic = new byte[4];
+    in.readFully(magic);
+    if (!"BAM\1".equals(new String(magic, "US-ASCII"))) {
+      throw new IOException("Not a BAM file");
+    }
+    int textLength = readInt(in);
+    in.readFully(new byte[textLength]);
+    int refCount = readInt(in);
+    long length = 12 + textLength;
+    for (int i = 0; i < refCount; i++) {
+      int nameLength = readInt(in);
+      in.readFully(new byte[nameLength + 4]);
+      length += 8 + nameLength;
+    }
+    return length;
+  }
+
+  /**
+   * Reads a BAM index.
+   */
+  public static Index readIndex(File bai) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(bai)));
+    try {
+      byte[] magic = new byte[4];
+      in.readFully(magic);
+      if (!"BAI\1".equals(new String(magic, "US-ASCII"))) {
+        throw new IOException("Not a BAM index");
+      }
+      Index index = new Index();
+      int refCount = readInt(in);
+      for (int ref = 0; ref < refCount; ref++) {
+        Map<Integer, long[]> bins = new TreeMap<Integer, long[]>();
+        int binCount = readInt(in);
+        for (int b = 0; b < binCount; b++) {
+          int bin = readInt(in);
+          long[] chunks = new long[2 * readInt(in)];
+          for (int c = 0; c < chunks.length; c++) {
+            chunks[c] = readLong(in);
+          }
+          bins.put(bin, chunks);
+        }
+        long[] linear = new long[readInt(in)];
+        for (int i = 0; i < linear.length; i++) {
+          linear[i] = readLong(in);
+        }
+        index.bins.add(bins);
+        index.linear.add(linear);
+      }
+      if (in.available() >= 8) {
+        index.noCoordinateCount = readLong(in);
+      }
+      return index;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Turns uncompressed offsets into the virtual offsets of the same bytes, from the sizes in the headers and trailers of the blocks. An offset at the end
+   * of a block is given as the start of the next one, as htslib reports it.
+   */
+  public static long[] virtualOffsets(File bgzf, long... offsets) throws IOException {
+    byte[] b = new byte[(int) bgzf.length()];
+    DataInputStream in = new DataInputStream(new FileInputStream(bgzf));
+    try {
+      in.readFully(b);
+    } finally {
+      in.close();
+    }
+    List<long[]> blocks = new ArrayList<long[]>();
+    long inflated = 0;
+    for (int address = 0; address < b.length; ) {
+      int size = (b[address + 16] & 0xff | (b[address + 17] & 0xff) << 8) + 1;
+      int length = getInt(b, address + size - 4);
+      blocks.add(new long[]{address, inflated, length});
+      inflated += length;
+      address += size;
+    }
+    long[] virtual = new long[offsets.length];
+    for (int i = 0; i < offsets.length; i++) {
+      virtual[i] = -1;
+      for (long[] block : blocks) {
+        if (offsets[i] >= block[1] && offsets[i] < block[1] + block[2]) {
+          virtual[i] = block[0] << 16 | offsets[i] - block[1];
+          break;
+        }
+      }
+      if (virtual[i] < 0) {
+        if (offsets[i] != inflated) {
+          throw new IOException("Offset " + offsets[i] + " is past the end of " + bgzf);
+        }
+        // the end of the data, where the EOF block starts
+        virtual[i] = (long) (b.length - 28) << 16;
+      }
+    }
+    return virtual;
+  }
+
+  /**
+   * The names and flags of the reads, in order, for comparing outputs.
+   */
+  public static List<String> names(List<Read> reads) {
+    List<String> names = new ArrayList<String>();
+    for (Read read : reads) {
+      names.add(read.toString());
+    }
+    return names;
+  }
+
+  /**
+   * Makes a new empty directory, to be removed with {@link #delete(File)}.
+   */
+  public static File createTempDir(String prefix) throws IOException {
+    File dir = File.createTempFile(prefix, "");
+    if (!dir.delete() || !dir.mkdir()) {
+      throw new IOException("Cannot create " + dir);
+    }
+    return dir;
+  }
+
+  public static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+
+  public static int getInt(byte[] b, int off) {
+    return b[off] & 0xff | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | b[off + 3] << 24;
+  }
+
+  private static int readInt(DataInputStream in) throws IOException {
+    byte[] b = new byte[4];
+    in.readFully(b);
+    return getInt(b, 0);
+  }
+
+  private static long readLong(DataInputStream in) throws IOException {
+    return readInt(in) & 0xffffffffL | (long) readInt(in) << 32;
+  }
+
+  private static void putInt(OutputStream out, int value) throws IOException {
+    out.write(value);
+    out.write(value >> 8);
+    out.write(value >> 16);
+    out.write(value >> 24);
+  }
+}
@@ -0,0 +1,165 @@
+package com.github.seqware.bam;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Random;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Follows files written by a thread the way the downloads write them: growing, preallocated and filled out of order, or only started after a while.
+ */
+public class BgzfBlockFollowerTest {
+
+  private static final long POLL_MILLIS = 20;
+  private static final long IDLE_TIMEOUT_MILLIS = 600;
+
+  private File dir;
+  private byte[] data;
+  private byte[] compressed;
+  private String md5;
+
+  @BeforeClass
+  public void setUp() throws Exception {
+    dir = Bams.createTempDir("follower");
+    StringBuilder text = new StringBuilder();
+    Random random = new Random(9);
+    while (text.length() < 8 * Bgzf.MAX_INPUT_SIZE) {
+      text.append(random.nextInt()).append('\n');
+    }
+    data = text.toString().getBytes("US-ASCII");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BgzfOutputStream out = new BgzfOutputStream(bytes, 6);
+    out.write(data);
+    out.close();
+    compressed = bytes.toByteArray();
+    md5 = SidecarOutputStream.toHex(MessageDigest.getInstance("MD5").digest(compressed));
+  }
+
+  @AfterClass
+  public void tearDown() {
+    Bams.delete(dir);
+  }
+
+  /**
+   * Writes pieces of the compressed bytes to a file in the given order, a pause before each, then a marker.
+   *
+   * @param delayMillis how long to wait before creating the file
+   * @param preallocate whether the file is created at its full length
+   * @param pieces the number of pieces the bytes are cut into
+   * @param order the pieces written, by number
+   * @param marker "complete", "failed" or null for none
+   */
+  private Thread download(final File file, final long delayMillis, final boolean preallocate, final int pieces, final int[] order,
+    final long pauseMillis, final String marker) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(delayMillis);
+          RandomAccessFile out = new RandomAccessFile(file, "rw");
+          try {
+            if (preallocate) {
+              out.setLength(compressed.length);
+            }
+            int piece = (compressed.length + pieces - 1) / pieces;
+            for (int p : order) {
+              Thread.sleep(pauseMillis);
+              int start = p * piece;
+              out.seek(start);
+              out.write(compressed, start, Math.min(piece, compressed.length - start));
+            }
+          } finally {
+            out.close();
+          }
+          if (marker != null) {
+            FileOutputStream complete = new FileOutputStream(new File(file.getPath() + "." + marker));
+            complete.write((md5 + "  " + file.getName() + "\n").getBytes("US-ASCII"));
+            complete.close();
+          }
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  private static byte[] follow(File file) throws IOException {
+    InputStream in = new BgzfInputStream(new BgzfBlockFollower(file, new File(file.getPath() + ".complete"), new File(file.getPath() + ".failed"),
+      POLL_MILLIS, IDLE_TIMEOUT_MILLIS));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      byte[] buffer = new byte[10000];
+      for (int n; (n = in.read(buffer)) > 0; ) {
+        out.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testGrowingFile() throws Exception {
+    File file = new File(dir, "growing.bam");
+    Thread thread = download(file, 0, false, 6, new int[]{0, 1, 2, 3, 4, 5}, 100, "complete");
+    assertEquals(follow(file), data);
+    thread.join();
+  }
+
+  @Test
+  public void testPreallocatedFileFilledOutOfOrder() throws Exception {
+    // the length never changes, and the first blocks come last, so only the writes show the download is going on for longer than the timeout
+    File file = new File(dir, "preallocated.bam");
+    long start = System.currentTimeMillis();
+    Thread thread = download(file, 0, true, 8, new int[]{3, 5, 4, 7, 6, 1, 2, 0}, IDLE_TIMEOUT_MILLIS / 3, "complete");
+    assertEquals(follow(file), data);
+    assertTrue(System.currentTimeMillis() - start > 2 * IDLE_TIMEOUT_MILLIS);
+    thread.join();
+  }
+
+  @Test
+  public void testQueuedDownload() throws Exception {
+    File file = new File(dir, "queued.bam");
+    Thread thread = download(file, 3 * IDLE_TIMEOUT_MILLIS, false, 2, new int[]{0, 1}, 0, "complete");
+    assertEquals(follow(file), data);
+    thread.join();
+  }
+
+  @Test
+  public void testStalledDownload() throws Exception {
+    // a piece in the middle is never written
+    File file = new File(dir, "stalled.bam");
+    download(file, 0, true, 4, new int[]{0, 3, 1}, 0, null).join();
+    try {
+      follow(file);
+      fail("A stalled download was followed to its end");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("has not changed"), e.getMessage());
+    }
+  }
+
+  @Test
+  public void testFailedDownload() throws Exception {
+    File file = new File(dir, "failed.bam");
+    Thread thread = download(file, 0, false, 3, new int[]{0, 1}, 50, "failed");
+    try {
+      follow(file);
+      fail("A failed download was followed to its end");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("failed"), e.getMessage());
+    }
+    thread.join();
+  }
+}
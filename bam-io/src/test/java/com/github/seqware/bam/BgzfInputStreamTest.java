@@ -0,0 +1,172 @@
+package com.github.seqware.bam;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class BgzfInputStreamTest {
+
+  private File dir;
+  private File bgzf;
+  private byte[] data;
+  // virtual offsets of every 1000th byte, as the writer reported them
+  private long[] offsets;
+
+  @BeforeClass
+  public void setUp() throws IOException {
+    dir = Bams.createTempDir("bgzf");
+    bgzf = new File(dir, "data.gz");
+    // compressible text over a few blocks, with a short block flushed in between
+    StringBuilder text = new StringBuilder();
+    Random random = new Random(7);
+    while (text.length() < 5 * Bgzf.MAX_INPUT_SIZE) {
+      text.append("line ").append(random.nextInt(1000)).append('\n');
+    }
+    data = text.toString().getBytes("US-ASCII");
+    offsets = new long[data.length / 1000 + 1];
+    BgzfOutputStream out = new BgzfOutputStream(bgzf, 5);
+    for (int i = 0; i < data.length; i++) {
+      if (i == 100000) {
+        out.flush();
+      }
+      if (i % 1000 == 0) {
+        offsets[i / 1000] = out.getFilePointer();
+      }
+      out.write(data[i]);
+    }
+    out.close();
+  }
+
+  @AfterClass
+  public void tearDown() {
+    Bams.delete(dir);
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[3001];
+    for (int n; (n = in.read(buffer)) > 0; ) {
+      out.write(buffer, 0, n);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testWrittenFileIsGzip() throws IOException {
+    assertEquals(readAll(new GZIPInputStream(new FileInputStream(bgzf))), data);
+  }
+
+  @Test
+  public void testSequentialRead() throws IOException {
+    assertEquals(readAll(BgzfInputStream.openSequential(bgzf)), data);
+    assertEquals(readAll(new BgzfInputStream(bgzf)), data);
+  }
+
+  @Test
+  public void testReadOnPool() throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(3);
+    try {
+      assertEquals(readAll(BgzfInputStream.openSequential(bgzf, pool, 2)), data);
+      assertEquals(readAll(new BgzfInputStream(bgzf, pool, 4)), data);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testFilePointers() throws IOException {
+    BgzfInputStream in = new BgzfInputStream(bgzf);
+    try {
+      for (int i = 0; i < data.length; i++) {
+        if (i % 1000 == 0) {
+          assertEquals(in.getFilePointer(), offsets[i / 1000], "offset of byte " + i);
+        }
+        assertEquals(in.read(), data[i] & 0xff);
+      }
+      assertEquals(in.read(), -1);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testSeek() throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    BgzfInputStream plain = new BgzfInputStream(bgzf);
+    BgzfInputStream pooled = new BgzfInputStream(bgzf, pool, 3);
+    try {
+      byte[] b = new byte[500];
+      // backwards, forwards and within the same block
+      for (int i : new int[]{offsets.length - 2, 3, 150, 151, 0, 65, 64}) {
+        for (BgzfInputStream in : new BgzfInputStream[]{plain, pooled}) {
+          in.seek(offsets[i]);
+          in.readFully(b, 0, b.length);
+          assertEquals(b, Arrays.copyOfRange(data, 1000 * i, 1000 * i + b.length), "bytes at " + 1000 * i);
+        }
+      }
+    } finally {
+      plain.close();
+      pooled.close();
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testSkip() throws IOException {
+    BgzfInputStream in = new BgzfInputStream(bgzf);
+    try {
+      assertEquals(in.skip(Bgzf.MAX_INPUT_SIZE + 10), Bgzf.MAX_INPUT_SIZE + 10);
+      assertEquals(in.read(), data[Bgzf.MAX_INPUT_SIZE + 10] & 0xff);
+      assertEquals(in.skip(data.length), data.length - Bgzf.MAX_INPUT_SIZE - 11);
+      assertEquals(in.read(), -1);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testSeekOnStream() throws IOException {
+    BgzfInputStream in = BgzfInputStream.openSequential(bgzf);
+    try {
+      in.seek(offsets[1]);
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testTruncatedFile() throws IOException {
+    File truncated = new File(dir, "truncated.gz");
+    RandomAccessFile file = new RandomAccessFile(truncated, "rw");
+    try {
+      byte[] b = new byte[(int) bgzf.length() - 1000];
+      RandomAccessFile source = new RandomAccessFile(bgzf, "r");
+      source.readFully(b);
+      source.close();
+      file.write(b);
+    } finally {
+      file.close();
+    }
+    try {
+      readAll(BgzfInputStream.openSequential(truncated));
+      fail("A truncated block was read");
+    } catch (EOFException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,67 @@
+package com.github.seqware.bam;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+public class BgzfTest {
+
+  private static byte[] gunzip(byte[] b, int off, int len) throws IOException {
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(b, off, len));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int n; (n = in.read(buffer)) > 0; ) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testBlockIsGzipMember() throws IOException {
+    byte[] data = new byte[Bgzf.MAX_INPUT_SIZE];
+    new Random(1).nextBytes(data);
+    byte[] block = new byte[Bgzf.MAX_BLOCK_SIZE];
+    // random bytes do not compress, the largest input still has to fit
+    int size = Bgzf.deflate(new Deflater(6, true), new CRC32(), data, 0, data.length, block);
+
+    assertEquals(Bgzf.blockSize(block, 0), size);
+    assertEquals(Bgzf.inflatedSize(block, 0, size), data.length);
+    assertEquals(gunzip(block, 0, size), data);
+    byte[] inflated = new byte[Bgzf.MAX_BLOCK_SIZE];
+    assertEquals(Bgzf.inflate(new Inflater(true), block, 0, size, inflated), data.length);
+    assertEquals(Arrays.copyOf(inflated, data.length), data);
+  }
+
+  @Test
+  public void testEofBlock() throws IOException {
+    assertTrue(Bgzf.isBlockHeader(Bgzf.EOF_BLOCK, 0));
+    assertEquals(Bgzf.blockSize(Bgzf.EOF_BLOCK, 0), Bgzf.EOF_BLOCK.length);
+    assertEquals(Bgzf.inflatedSize(Bgzf.EOF_BLOCK, 0, Bgzf.EOF_BLOCK.length), 0);
+    assertEquals(gunzip(Bgzf.EOF_BLOCK, 0, Bgzf.EOF_BLOCK.length).length, 0);
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testPlainGzipIsNoBlock() throws IOException {
+    byte[] header = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff, 0, 0, 0, 0, 0, 0, 0, 0};
+    assertFalse(Bgzf.isBlockHeader(header, 0));
+    Bgzf.blockSize(header, 0);
+  }
+
+  @Test
+  public void testVirtualOffsets() {
+    long offset = Bgzf.virtualOffset(123456789012L, 65535);
+    assertEquals(Bgzf.blockAddress(offset), 123456789012L);
+    assertEquals(Bgzf.offsetInBlock(offset), 65535);
+    assertTrue(Bgzf.virtualOffset(1, 0) > Bgzf.virtualOffset(0, 65535));
+  }
+}
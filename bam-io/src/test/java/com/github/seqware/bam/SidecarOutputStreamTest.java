@@ -0,0 +1,105 @@
+package com.github.seqware.bam;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Writes files through the stream and checks what is on the disk before and after they are published, with the sidecars compared to what md5sum and
+ * sha256sum say about the final file.
+ */
+public class SidecarOutputStreamTest {
+
+  private File dir;
+
+  @BeforeClass
+  public void setUp() throws IOException {
+    dir = Bams.createTempDir("sidecar");
+  }
+
+  @AfterClass
+  public void tearDown() {
+    Bams.delete(dir);
+  }
+
+  private static String read(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      for (int n; (n = in.read(buffer)) > 0; ) {
+        out.write(buffer, 0, n);
+      }
+      return out.toString("US-ASCII");
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * The digest a coreutils tool prints for a file, the first field of its output.
+   */
+  private static String digest(String tool, File file) throws IOException, InterruptedException {
+    Process process = new ProcessBuilder(tool, file.getPath()).start();
+    InputStream in = process.getInputStream();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int b; (b = in.read()) >= 0; ) {
+      out.write(b);
+    }
+    assertEquals(process.waitFor(), 0, tool);
+    return out.toString("US-ASCII").split("\\s+")[0];
+  }
+
+  @Test
+  public void testPublish() throws IOException, InterruptedException {
+    File file = new File(dir, "merged.bam");
+    byte[] data = new byte[300000];
+    new Random(7).nextBytes(data);
+    SidecarOutputStream out = new SidecarOutputStream(file, SidecarOutputStream.MD5, SidecarOutputStream.SHA256);
+    out.write(data, 0, 1000);
+    out.write(data[1000]);
+    out.write(data, 1001, data.length - 1001);
+    out.flush();
+
+    // until it is closed the file only exists beside its final name
+    File part = new File(dir, "merged.bam.part");
+    assertTrue(part.isFile());
+    assertEquals(part.length(), data.length);
+    assertFalse(file.exists());
+    assertFalse(SidecarOutputStream.sidecar(file, SidecarOutputStream.MD5).exists());
+
+    out.close();
+    out.close();
+    assertFalse(part.exists());
+    assertEquals(file.length(), data.length);
+    File md5 = new File(dir, "merged.bam.md5");
+    File sha256 = new File(dir, "merged.bam.sha256");
+    assertEquals(SidecarOutputStream.sidecar(file, SidecarOutputStream.MD5), md5);
+    assertEquals(SidecarOutputStream.sidecar(file, SidecarOutputStream.SHA256), sha256);
+    // the bare digest without a line break, as bammarkduplicates md5=1 writes it
+    assertEquals(read(md5), digest("md5sum", file));
+    assertEquals(read(sha256), digest("sha256sum", file));
+    assertEquals(dir.list().length, 3);
+  }
+
+  @Test
+  public void testDiscard() throws IOException {
+    File file = new File(dir, "failed.bam");
+    SidecarOutputStream out = new SidecarOutputStream(file, SidecarOutputStream.MD5);
+    out.write(new byte[100]);
+    out.discard();
+    out.close();
+    assertFalse(file.exists());
+    assertFalse(new File(dir, "failed.bam.part").exists());
+    assertFalse(new File(dir, "failed.bam.md5").exists());
+  }
+}
@@ -0,0 +1,81 @@
+package com.github.seqware.slicer;
+
+import java.io.File;
+import java.io.IOException;
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs the benchmarks with the JMH command line, writing the results as JSON to jmh-result.json unless -rf and -rff say otherwise, with one fork and
+ * short warmups unless -f, -wi, -w, -i and -r say otherwise.
+ *
+ * Every benchmark works on the same {@link #RECORDS} synthetic reads made from {@link #SEED}, so results of different releases compare.
+ */
+public final class Benchmarks {
+
+  static final int RECORDS = 100000;
+  static final long SEED = 20140601L;
+
+  private Benchmarks() {
+  }
+
+  static File tempFile(String suffix) throws IOException {
+    File file = File.createTempFile("bam-slicer-benchmark", suffix);
+    file.deleteOnExit();
+    return file;
+  }
+
+  /**
+   * The 44 regions of the ENCODE pilot, scaled to cover about 1% of the synthetic contigs like they cover 1% of the genome.
+   */
+  static BedRegions encodeLikeRegions() throws IOException {
+    File bed = tempFile(".bed");
+    SyntheticReads.writeBed(bed, 44, SyntheticReads.CONTIGS * SyntheticReads.CONTIG_LENGTH / 100 / 44);
+    return BedRegions.load(bed, SyntheticReads.header());
+  }
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions options;
+    try {
+      options = new CommandLineOptions(args);
+    } catch (CommandLineOptionException e) {
+      System.err.println("Error parsing command line: " + e.getMessage());
+      System.exit(1);
+      return;
+    }
+    if (options.shouldHelp() || options.shouldList() || options.shouldListProfilers() || options.shouldListResultFormats()) {
+      Main.main(args);
+      return;
+    }
+    ChainedOptionsBuilder builder = new OptionsBuilder().parent(options);
+    // what the builder sets wins over its parent, so only what the command line leaves open is set
+    if (!options.getResultFormat().hasValue()) {
+      builder.resultFormat(ResultFormatType.JSON);
+    }
+    if (!options.getResult().hasValue()) {
+      builder.result("jmh-result.json");
+    }
+    if (!options.getForkCount().hasValue()) {
+      builder.forks(1);
+    }
+    if (!options.getWarmupIterations().hasValue()) {
+      builder.warmupIterations(3);
+    }
+    if (!options.getWarmupTime().hasValue()) {
+      builder.warmupTime(TimeValue.seconds(2));
+    }
+    if (!options.getMeasurementIterations().hasValue()) {
+      builder.measurementIterations(5);
+    }
+    if (!options.getMeasurementTime().hasValue()) {
+      builder.measurementTime(TimeValue.seconds(2));
+    }
+    new Runner(builder.build()).run();
+  }
+}
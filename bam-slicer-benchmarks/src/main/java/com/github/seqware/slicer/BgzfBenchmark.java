@@ -0,0 +1,104 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BgzfInputStream;
+import com.github.seqware.bam.BgzfOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * BGZF compression and decompression of the synthetic reads, in memory so the disk does not count, on pools of the given number of threads the way
+ * the slicer stages run them with --threads and --read-threads. Times are per record.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(Benchmarks.RECORDS)
+public class BgzfBenchmark {
+
+  @Param({"100", "150", "250"})
+  int readLength;
+
+  @Param({"1", "4"})
+  int threads;
+
+  // the level of the slices and of the unmapped reads
+  @Param({"1", "6"})
+  int level;
+
+  private byte[] records;
+  private byte[] compressed;
+  private ExecutorService pool;
+
+  @Setup
+  public void setUp() throws IOException {
+    records = SyntheticReads.stream(SyntheticReads.generate(Benchmarks.RECORDS, readLength, Benchmarks.SEED));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    BgzfOutputStream out = new BgzfOutputStream(bytes, level);
+    out.write(records);
+    out.close();
+    compressed = bytes.toByteArray();
+    pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  @Benchmark
+  public long deflate() throws IOException {
+    CountingOutputStream bytes = new CountingOutputStream();
+    BgzfOutputStream out = new BgzfOutputStream(bytes, level, pool, 4 * threads);
+    out.write(records);
+    out.close();
+    return bytes.count;
+  }
+
+  @Benchmark
+  public long inflate() throws IOException {
+    BgzfInputStream in = new BgzfInputStream(new ByteArrayInputStream(compressed), 0, pool, 4 * threads);
+    byte[] buffer = new byte[65536];
+    long total = 0;
+    int n;
+    while ((n = in.read(buffer, 0, buffer.length)) > 0) {
+      total += n;
+    }
+    in.close();
+    return total;
+  }
+
+  /**
+   * Throws the compressed bytes away, keeping their count.
+   */
+  static final class CountingOutputStream extends OutputStream {
+
+    long count = 0;
+
+    @Override
+    public void write(int b) {
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
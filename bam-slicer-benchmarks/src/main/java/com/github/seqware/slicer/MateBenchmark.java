@@ -0,0 +1,78 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamRecord;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The hash lookups that pair the slice reads and find the mates of the orphans: hashing the read name and read group, opening and closing pairs in
+ * the {@link MateTable} of {@link BamSlicer}, and the test {@link MateRecovery} puts every candidate read through. Times are per record.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(Benchmarks.RECORDS)
+public class MateBenchmark {
+
+  @Param({"100", "150", "250"})
+  int readLength;
+
+  private BamRecord[] records;
+  private BedRegions regions;
+  private MateRecovery recovery;
+
+  @Setup
+  public void setUp() throws IOException {
+    records = SyntheticReads.wrap(SyntheticReads.generate(Benchmarks.RECORDS, readLength, Benchmarks.SEED));
+    regions = Benchmarks.encodeLikeRegions();
+    // the reads whose mate is on another contig wait for it, as the orphans of a slice would
+    recovery = new MateRecovery();
+    for (BamRecord record : records) {
+      if (record.getReferenceIndex() >= 0 && record.getMateReferenceIndex() >= 0 && record.getReferenceIndex() != record.getMateReferenceIndex()) {
+        recovery.addOrphan(record);
+      }
+    }
+    recovery.finishOrphans();
+  }
+
+  @Benchmark
+  public long nameHash() {
+    long sum = 0;
+    for (BamRecord record : records) {
+      sum += MateTable.nameHash(record);
+    }
+    return sum;
+  }
+
+  /**
+   * Every record as if it were in the region slice, so each pair is opened and closed again.
+   */
+  @Benchmark
+  public BamSlicer pair() {
+    BamSlicer slicer = new BamSlicer(regions, null, null, null, null);
+    for (BamRecord record : records) {
+      slicer.pair(record);
+    }
+    return slicer;
+  }
+
+  @Benchmark
+  public long recoverMates() {
+    long found = 0;
+    for (BamRecord record : records) {
+      if (recovery.accept(record)) {
+        found++;
+      }
+    }
+    return found;
+  }
+}
@@ -0,0 +1,92 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamRecord;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The work the slicer does on every record once it is inflated: decoding the fixed fields and the alignment end, and routing it through the flag
+ * filters and the region test of {@link BamSlicer}. Times are per record; run with -t to see how the work scales over threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(Benchmarks.RECORDS)
+public class RecordBenchmark {
+
+  @Param({"100", "150", "250"})
+  int readLength;
+
+  private byte[] stream;
+  private BamRecord[] records;
+  private BedRegions regions;
+
+  @Setup
+  public void setUp() throws IOException {
+    List<byte[]> generated = SyntheticReads.generate(Benchmarks.RECORDS, readLength, Benchmarks.SEED);
+    stream = SyntheticReads.stream(generated);
+    records = SyntheticReads.wrap(generated);
+    regions = Benchmarks.encodeLikeRegions();
+  }
+
+  @Benchmark
+  public long decode() throws IOException {
+    ByteArrayInputStream in = new ByteArrayInputStream(stream);
+    BamRecord record = new BamRecord();
+    long sum = 0;
+    while (record.read(in)) {
+      sum += record.getReferenceIndex() + record.getPosition() + record.getFlag() + record.getAlignmentEnd() + record.getMateReferenceIndex()
+        + record.getMatePosition();
+    }
+    return sum;
+  }
+
+  /**
+   * The region slice test of {@link BamSlicer#route}: both ends placed and overlapping the regions.
+   */
+  @Benchmark
+  public long sliceFilter() {
+    long kept = 0;
+    for (BamRecord record : records) {
+      int refId = record.getReferenceIndex();
+      if (BamSlicer.BOTH_ENDS_PLACED.accept(record) && (refId < 0 || regions.overlaps(refId, record.getPosition(), record.getAlignmentEnd()))) {
+        kept++;
+      }
+    }
+    return kept;
+  }
+
+  /**
+   * The flag filters of the unmapped outputs.
+   */
+  @Benchmark
+  public long unmappedFilters() {
+    long kept = 0;
+    for (BamRecord record : records) {
+      if (BamSlicer.UNMAPPED.accept(record)) {
+        kept++;
+      }
+      if (BamSlicer.MATE_UNMAPPED.accept(record)) {
+        kept++;
+      }
+      if (BamSlicer.BOTH_UNMAPPED.accept(record)) {
+        kept++;
+      }
+      if (BamSlicer.HALF_UNMAPPED.accept(record)) {
+        kept++;
+      }
+    }
+    return kept;
+  }
+}
@@ -0,0 +1,65 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamRecord;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Overlap queries of the {@link BedRegions} for the spans of the synthetic reads, against as many regions as the ENCODE pilot has and against a BED
+ * file the size of an exome target list. Times are per query.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(Benchmarks.RECORDS)
+public class RegionBenchmark {
+
+  @Param({"100", "150", "250"})
+  int readLength;
+
+  @Param({"44", "200000"})
+  int regionCount;
+
+  private int[] refIds;
+  private int[] starts;
+  private int[] ends;
+  private BedRegions regions;
+
+  @Setup
+  public void setUp() throws IOException {
+    BamRecord[] records = SyntheticReads.wrap(SyntheticReads.generate(Benchmarks.RECORDS, readLength, Benchmarks.SEED));
+    refIds = new int[records.length];
+    starts = new int[records.length];
+    ends = new int[records.length];
+    for (int i = 0; i < records.length; i++) {
+      refIds[i] = Math.max(0, records[i].getReferenceIndex());
+      starts[i] = Math.max(0, records[i].getPosition());
+      ends[i] = starts[i] + readLength;
+    }
+    File bed = Benchmarks.tempFile(".bed");
+    // the regions cover about 1% of the genome, like the ENCODE pilot regions
+    SyntheticReads.writeBed(bed, regionCount, Math.max(1, SyntheticReads.CONTIGS * SyntheticReads.CONTIG_LENGTH / 100 / regionCount));
+    regions = BedRegions.load(bed, SyntheticReads.header());
+  }
+
+  @Benchmark
+  public long overlaps() {
+    long hits = 0;
+    for (int i = 0; i < refIds.length; i++) {
+      if (regions.overlaps(refIds[i], starts[i], ends[i])) {
+        hits++;
+      }
+    }
+    return hits;
+  }
+}
@@ -0,0 +1,80 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamRecord;
+import com.github.seqware.bam.BamWriter;
+import com.github.seqware.bam.BgzfOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A whole unsharded slice of decoded records: routing every record to the region slice and the three unmapped outputs of {@link BamSlicer}, pairing
+ * the slice reads and compressing all outputs on a shared pool of the given number of threads at the levels the workflow uses. Times are per record.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(Benchmarks.RECORDS)
+public class SliceBenchmark {
+
+  @Param({"100", "150", "250"})
+  int readLength;
+
+  @Param({"1", "4"})
+  int threads;
+
+  private BamHeader header;
+  private BamRecord[] records;
+  private BedRegions regions;
+  private ExecutorService pool;
+
+  @Setup
+  public void setUp() throws IOException {
+    header = SyntheticReads.header();
+    records = SyntheticReads.wrap(SyntheticReads.generate(Benchmarks.RECORDS, readLength, Benchmarks.SEED));
+    regions = Benchmarks.encodeLikeRegions();
+    pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+  }
+
+  private BamWriter output(int level, BgzfBenchmark.CountingOutputStream bytes) throws IOException {
+    return new BamWriter(new BgzfOutputStream(bytes, level, pool, 4 * threads), header);
+  }
+
+  @Benchmark
+  public long slice() throws IOException {
+    BgzfBenchmark.CountingOutputStream bytes = new BgzfBenchmark.CountingOutputStream();
+    BamWriter sliceOut = output(1, bytes);
+    BamWriter unmappedOut = output(Deflater.DEFAULT_COMPRESSION, bytes);
+    BamWriter mateUnmappedOut = output(Deflater.DEFAULT_COMPRESSION, bytes);
+    BamWriter bothUnmappedOut = output(Deflater.DEFAULT_COMPRESSION, bytes);
+    BamSlicer slicer = new BamSlicer(regions, sliceOut, unmappedOut, mateUnmappedOut, bothUnmappedOut);
+    for (BamRecord record : records) {
+      slicer.route(record);
+    }
+    sliceOut.close();
+    unmappedOut.close();
+    mateUnmappedOut.close();
+    bothUnmappedOut.close();
+    return bytes.count;
+  }
+}
@@ -0,0 +1,236 @@
+package com.github.seqware.slicer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the Java stages of the bam-slicer workflow end to end on local BAMs, such as those of {@link SyntheticBam}, and reports the wall time, the
+ * bytes read and written and the peak resident memory of each.
+ *
+ * The stages are given the arguments, heap and threads WorkflowClient gives their jobs for the same inputs with use_resource_model: indexing the
+ * inputs where the workflow does, one slice and one mate recovery per shard of each input, or a single slice with the mates recovered in it with
+ * --mates-in-slice, then merging the slices and concatenating the unmapped reads unless --no-unmapped. Each stage runs in its own JVM under
+ * {@link StageProbe}, one after the other so their numbers do not disturb each other, in the working directory the outputs are written to.
+ *
+ * The arguments come from {@link StageArguments} as the workflow's do, with the compression levels and sidecars of the ini file unless given here.
+ * What remains different is how a slice without an index finds one: the inputs are complete local files, so no slice follows a download with
+ * --follow, and whether it writes the index is decided here instead of by the shell test of the workflow's command line.
+ */
+public class StageBenchmark {
+
+  private static final Logger logger = Logger.getLogger(StageBenchmark.class.getName());
+
+  private static final String USAGE = "java " + StageBenchmark.class.getName() + " --input <bam>[,<bam>...] --regions <bed> --workdir <directory>"
+    + " [--shards <n>] [--mates-in-slice] [--no-unmapped] [--slice-level <0-9>] [--mates-level <0-9>] [--unmapped-level <0-9>] [--sha256]"
+    + " [--max-memory-m <MB>] [--max-threads <n>] [--report <json>]";
+
+  private static final Pattern NUMBER_FIELD = Pattern.compile("\"(\\w+)\": (-?[0-9.]+)");
+
+  private static final class Stage {
+
+    final String name;
+    final String mainClass;
+    final int memoryM;
+    final List<String> args = new ArrayList<String>();
+
+    Stage(String name, String mainClass, int memoryM) {
+      this.name = name;
+      this.mainClass = mainClass;
+      this.memoryM = memoryM;
+    }
+
+    Stage arg(List<String> values) {
+      args.addAll(values);
+      return this;
+    }
+  }
+
+  private final List<File> inputs;
+  private final File workdir;
+  private final int shards;
+  private final boolean matesInSlice;
+  private final boolean unmapped;
+  private final ResourcePlan plan;
+  private final StageArguments arguments;
+
+  StageBenchmark(List<File> inputs, File workdir, int shards, boolean matesInSlice, boolean unmapped, StageArguments arguments,
+      int maxMemoryM, int maxThreads) throws IOException {
+    this.inputs = inputs;
+    this.workdir = workdir;
+    this.shards = shards;
+    this.matesInSlice = matesInSlice;
+    this.unmapped = unmapped;
+    this.arguments = arguments;
+    List<ResourcePlan.Input> sizes = new ArrayList<ResourcePlan.Input>();
+    for (File input : inputs) {
+      sizes.add(ResourcePlan.Input.measure(input, shards));
+    }
+    // the ini file defaults for what the model leaves alone
+    plan = new ResourcePlan(sizes, shards, maxMemoryM, maxThreads, 4, 8, 8, 16000);
+  }
+
+  /**
+   * The stages in the order the workflow's dependencies allow them to run one at a time.
+   */
+  List<Stage> stages() {
+    List<Stage> stages = new ArrayList<Stage>();
+    List<String> inputPaths = new ArrayList<String>();
+    for (int i = 0; i < inputs.size(); i++) {
+      String file = inputs.get(i).getAbsolutePath();
+      File bai = new File(file + ".bai");
+      inputPaths.add(file);
+      boolean indexed = shards > 1 || !unmapped;
+      if (indexed && !(bai.length() > 0)) {
+        stages.add(new Stage("buildBamIndex" + i, "com.github.seqware.slicer.BamIndexer", plan.index(i, "buildBamIndex" + i).getMemoryM())
+          .arg(StageArguments.index(file)));
+      }
+      for (int shard = 0; shard < shards; shard++) {
+        String part = arguments.part(i, shard);
+        ResourcePlan.Resources sliceResources = matesInSlice ? plan.sliceWithMates(i, shard, "slice" + part, unmapped)
+          : plan.slice(i, shard, "slice" + part, unmapped);
+        Stage slice = new Stage("slice" + part, "com.github.seqware.slicer.BamSlicer", sliceResources.getMemoryM())
+          .arg(arguments.slice(file, part, matesInSlice, unmapped, true, sliceResources));
+        if (indexed) {
+          slice.arg(arguments.sliceIndex(file, shard));
+        } else if (!(bai.length() > 0)) {
+          slice.arg(Arrays.asList("--index-output", bai.getPath()));
+        }
+        stages.add(slice);
+
+        if (!matesInSlice) {
+          ResourcePlan.Resources mateResources = plan.mateRecovery(i, shard, "secondSlice" + part);
+          stages.add(new Stage("secondSlice" + part, "com.github.seqware.slicer.MateRecovery", mateResources.getMemoryM())
+            .arg(arguments.mateRecovery(file, part, mateResources)));
+        }
+      }
+    }
+    ResourcePlan.Resources mergeResources = plan.merge("mergeBAM");
+    stages.add(new Stage("mergeBAM", "com.github.seqware.slicer.BamMerger", mergeResources.getMemoryM())
+      .arg(arguments.merge(inputs.size(), "merged.bam", mergeResources)));
+    if (unmapped) {
+      ResourcePlan.Resources unmappedResources = plan.mergeUnmapped("mergeUnmappedBAM");
+      stages.add(new Stage("mergeUnmappedBAM", "com.github.seqware.slicer.BamMerger", unmappedResources.getMemoryM())
+        .arg(arguments.mergeUnmapped(inputPaths, "unmapped.bam", unmappedResources)));
+    }
+    return stages;
+  }
+
+  /**
+   * Runs the stages and returns the line {@link StageProbe} reported for each.
+   */
+  List<String> run(List<Stage> stages) throws IOException, InterruptedException {
+    File lines = new File(workdir, "stages.jsonl");
+    lines.delete();
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    for (Stage stage : stages) {
+      List<String> command = new ArrayList<String>();
+      // the heap WorkflowClient's javaStage gives the job's memory
+      command.addAll(Arrays.asList(java, "-Xmx" + (stage.memoryM * 3 / 4) + "m", "-cp", System.getProperty("java.class.path"),
+        StageProbe.class.getName(), lines.getAbsolutePath(), stage.name, stage.mainClass));
+      command.addAll(stage.args);
+      logger.log(Level.INFO, "Running {0}: {1}", new Object[]{stage.name, command});
+      Process process = new ProcessBuilder(command).directory(workdir).inheritIO().start();
+      int status = process.waitFor();
+      if (status != 0) {
+        throw new IOException("Stage " + stage.name + " exited with " + status);
+      }
+    }
+    List<String> reported = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new FileReader(lines));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        reported.add(line.trim());
+      }
+    } finally {
+      reader.close();
+    }
+    return reported;
+  }
+
+  static Map<String, Double> numbers(String line) {
+    Map<String, Double> numbers = new LinkedHashMap<String, Double>();
+    Matcher m = NUMBER_FIELD.matcher(line);
+    while (m.find()) {
+      numbers.put(m.group(1), Double.parseDouble(m.group(2)));
+    }
+    return numbers;
+  }
+
+  private static String megabytes(double bytes) {
+    return bytes < 0 ? "-" : String.format(Locale.ROOT, "%.1f", bytes / (1 << 20));
+  }
+
+  public static void main(String[] args) {
+    try {
+      Arguments arguments = new Arguments(args);
+      List<File> inputs = new ArrayList<File>();
+      for (String input : arguments.require("input").split(",")) {
+        inputs.add(new File(input));
+      }
+      File workdir = new File(arguments.require("workdir"));
+      if (!workdir.isDirectory() && !workdir.mkdirs()) {
+        throw new IOException("Cannot create " + workdir);
+      }
+      int shards = arguments.getInt("shards", 1);
+      // the compression levels default to those of the ini file
+      StageArguments stageArguments = new StageArguments(new File(arguments.require("regions")).getAbsolutePath(), shards,
+        arguments.getInt("slice-level", 1), arguments.getInt("mates-level", 1), arguments.getInt("unmapped-level", 6), arguments.has("sha256"));
+      StageBenchmark benchmark = new StageBenchmark(inputs, workdir, shards, arguments.has("mates-in-slice"), !arguments.has("no-unmapped"),
+        stageArguments, arguments.getInt("max-memory-m", 16000), arguments.getInt("max-threads", 8));
+      List<Stage> stages = benchmark.stages();
+      long start = System.nanoTime();
+      List<String> reported = benchmark.run(stages);
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      long inputBytes = 0;
+      for (File input : inputs) {
+        inputBytes += input.length();
+      }
+      StringBuilder table = new StringBuilder(String.format(Locale.ROOT, "%n%-22s %10s %12s %12s %12s %12s %10s", "stage", "seconds", "read MB",
+        "written MB", "disk read MB", "disk wrt MB", "peak MB"));
+      for (String line : reported) {
+        Map<String, Double> n = numbers(line);
+        String stage = line.replaceFirst("^\\{\"stage\": \"([^\"]*)\".*$", "$1");
+        table.append(String.format(Locale.ROOT, "%n%-22s %10.2f %12s %12s %12s %12s %10s", stage, n.get("seconds"), megabytes(n.get("rchar")),
+          megabytes(n.get("wchar")), megabytes(n.get("read_bytes")), megabytes(n.get("write_bytes")), megabytes(n.get("peak_rss_bytes"))));
+      }
+      table.append(String.format(Locale.ROOT, "%n%-22s %10.2f%n", "total", seconds));
+      System.out.print(table);
+
+      File report = new File(arguments.get("report", new File(workdir, "stage-benchmark.json").getPath()));
+      Writer out = new FileWriter(report);
+      try {
+        out.write(String.format(Locale.ROOT, "{\"input_bytes\": %d, \"shards\": %d, \"mates_in_slice\": %b, \"unmapped\": %b, \"seconds\": %.3f,"
+          + " \"stages\": [%n", inputBytes, benchmark.shards, benchmark.matesInSlice, benchmark.unmapped, seconds));
+        for (int i = 0; i < reported.size(); i++) {
+          out.write("  " + reported.get(i) + (i + 1 < reported.size() ? "," : "") + String.format("%n"));
+        }
+        out.write(String.format("]}%n"));
+      } finally {
+        out.close();
+      }
+      logger.log(Level.INFO, "Wrote {0}", report);
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.SEVERE, e.getMessage() + "\n" + USAGE);
+      System.exit(2);
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "The stage benchmark failed", e);
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,86 @@
+package com.github.seqware.slicer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Runs the main method of a stage in this JVM and, when the JVM exits however the stage ends, appends one JSON line to a report file with the wall
+ * time of the stage, the bytes the process read and wrote from /proc/self/io and its peak resident memory from /proc/self/status. Values that cannot
+ * be read, outside Linux or where /proc/self/io is not readable, are -1.
+ *
+ * <pre>
+ * java com.github.seqware.slicer.StageProbe &lt;report&gt; &lt;stage name&gt; &lt;main class&gt; [arguments...]
+ * </pre>
+ */
+public final class StageProbe {
+
+  private StageProbe() {
+  }
+
+  /**
+   * A field of a /proc file of "name: value" lines as a number, with its unit dropped, or -1.
+   */
+  static long procField(String file, String name) {
+    try {
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.startsWith(name + ":")) {
+            return Long.parseLong(line.substring(name.length() + 1).trim().split("\\s+")[0]);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      // not Linux, or not ours to read
+    } catch (NumberFormatException e) {
+      // not a number
+    }
+    return -1;
+  }
+
+  private static String quote(String s) {
+    return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
+      System.err.println("java " + StageProbe.class.getName() + " <report> <stage name> <main class> [arguments...]");
+      System.exit(2);
+    }
+    final File report = new File(args[0]);
+    final String stage = args[1];
+    final long start = System.nanoTime();
+    Runtime.getRuntime().addShutdownHook(new Thread() {
+      @Override
+      public void run() {
+        long vmHwmK = procField("/proc/self/status", "VmHWM");
+        String line = String.format(Locale.ROOT,
+          "{\"stage\": %s, \"seconds\": %.3f, \"rchar\": %d, \"wchar\": %d, \"read_bytes\": %d, \"write_bytes\": %d, \"peak_rss_bytes\": %d}%n",
+          quote(stage), (System.nanoTime() - start) / 1e9, procField("/proc/self/io", "rchar"), procField("/proc/self/io", "wchar"),
+          procField("/proc/self/io", "read_bytes"), procField("/proc/self/io", "write_bytes"), vmHwmK < 0 ? -1 : vmHwmK * 1024);
+        try {
+          Writer out = new FileWriter(report, true);
+          try {
+            out.write(line);
+          } finally {
+            out.close();
+          }
+        } catch (IOException e) {
+          System.err.print(line);
+        }
+      }
+    });
+    Method main = Class.forName(args[2]).getMethod("main", String[].class);
+    main.invoke(null, (Object) Arrays.copyOfRange(args, 3, args.length));
+  }
+}
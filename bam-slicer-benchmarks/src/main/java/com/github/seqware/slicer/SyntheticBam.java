@@ -0,0 +1,399 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamIndexBuilder;
+import com.github.seqware.bam.BamRecord;
+import com.github.seqware.bam.BamWriter;
+import com.github.seqware.bam.BgzfOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes a coordinate sorted BAM of paired reads on the GRCh37 contigs, and its index, made up from a seed so the same options always give the same
+ * file, for load testing the slicer at production sizes without patient data.
+ *
+ * Pairs start at the points of a Poisson process along each contig whose rate is --region-density times higher inside the regions of the --regions
+ * BED file than outside them, so a targeted or a whole genome library can be mimicked. Their second ends follow at the insert size, and the shares
+ * given by the options instead get one end unmapped and placed at its mate, have their mate far away on the same or a later contig so their slice
+ * reads become orphans, are duplicated at the same positions, or have both ends unmapped and go to the unplaced section at the end. Each pair belongs
+ * to one of --read-groups read groups, each a library of its own.
+ *
+ * The file is written as it is generated, keeping only the second ends that are still ahead in memory, so its size is only bounded by the disk.
+ * With --size instead of --reads the number of reads is found by generating a small sample first and measuring its compressed size per read.
+ */
+public class SyntheticBam {
+
+  private static final Logger logger = Logger.getLogger(SyntheticBam.class.getName());
+
+  private static final String USAGE = "java " + SyntheticBam.class.getName() + " --output <bam> --reads <count> | --size <bytes>[K|M|G]"
+    + " [--read-length <bp>] [--insert-size <bp>] [--read-groups <n>] [--unmapped-fraction <0-1>] [--unplaced-fraction <0-1>]"
+    + " [--orphan-rate <0-1>] [--duplicate-rate <0-1>] [--regions <bed> [--region-density <x>]] [--seed <n>] [--level <0-9>] [--threads <n>]";
+
+  static final String[] GRCH37_NAMES = {"1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11", "12", "13", "14", "15", "16", "17", "18", "19",
+    "20", "21", "22", "X", "Y", "MT"};
+  static final int[] GRCH37_LENGTHS = {249250621, 243199373, 198022430, 191154276, 180915260, 171115067, 159138663, 146364022, 141213431,
+    135534747, 135006516, 133851895, 115169878, 107349540, 102531392, 90354753, 81195210, 78077248, 59128983, 63025520, 48129895, 51304566,
+    155270560, 59373566, 16569};
+
+  // how far a mate on the same contig is put to make an orphan of its slice read, from well past any insert to well past any ENCODE region
+  static final int MIN_DISTANT_MATE = 1000000;
+  static final int MAX_DISTANT_MATE = 10000000;
+
+  // the reads of the sample that measures the compressed size per read for --size
+  static final long SAMPLE_READS = 20000;
+
+  /**
+   * A second end waiting for its position to come by.
+   */
+  private static final class Pending implements Comparable<Pending> {
+
+    final long position;
+    final long serial;
+    final String name;
+    final int flag;
+    final long matePosition;
+    final String readGroup;
+
+    Pending(long position, long serial, String name, int flag, long matePosition, String readGroup) {
+      this.position = position;
+      this.serial = serial;
+      this.name = name;
+      this.flag = flag;
+      this.matePosition = matePosition;
+      this.readGroup = readGroup;
+    }
+
+    @Override
+    public int compareTo(Pending other) {
+      if (position != other.position) {
+        return position < other.position ? -1 : 1;
+      }
+      return serial < other.serial ? -1 : serial > other.serial ? 1 : 0;
+    }
+  }
+
+  private final int readLength;
+  private final int insertSize;
+  private final String[] readGroups;
+  private final double unmappedFraction;
+  private final double unplacedFraction;
+  private final double orphanRate;
+  private final double duplicateRate;
+  private final double regionDensity;
+  private final long seed;
+  private final BamHeader header;
+  // the merged regions of each contig
+  private final int[][] regionStarts;
+  private final int[][] regionEnds;
+
+  private Random random;
+  private final PriorityQueue<Pending> pending = new PriorityQueue<Pending>();
+  private long serial = 0;
+  private BamWriter out;
+  private BamIndexBuilder index;
+  private final BamRecord record = new BamRecord();
+
+  SyntheticBam(int readLength, int insertSize, int readGroupCount, double unmappedFraction, double unplacedFraction, double orphanRate,
+      double duplicateRate, File regions, double regionDensity, long seed) throws IOException {
+    this.readLength = readLength;
+    this.insertSize = insertSize;
+    this.unmappedFraction = unmappedFraction;
+    this.unplacedFraction = unplacedFraction;
+    this.orphanRate = orphanRate;
+    this.duplicateRate = duplicateRate;
+    this.regionDensity = regionDensity;
+    this.seed = seed;
+    readGroups = new String[readGroupCount];
+    StringBuilder text = new StringBuilder("@HD\tVN:1.4\tSO:coordinate\n");
+    for (int i = 0; i < GRCH37_NAMES.length; i++) {
+      text.append("@SQ\tSN:").append(GRCH37_NAMES[i]).append("\tLN:").append(GRCH37_LENGTHS[i]).append('\n');
+    }
+    for (int i = 0; i < readGroupCount; i++) {
+      readGroups[i] = "synthetic." + (i + 1);
+      text.append("@RG\tID:").append(readGroups[i]).append("\tLB:synthetic-library-").append(i + 1).append("\tSM:synthetic\tPL:ILLUMINA\n");
+    }
+    text.append("@PG\tID:").append(SyntheticBam.class.getSimpleName()).append("\tPN:").append(SyntheticBam.class.getName()).append('\n');
+    header = new BamHeader(text.toString(), GRCH37_NAMES, GRCH37_LENGTHS);
+    regionStarts = new int[GRCH37_NAMES.length][];
+    regionEnds = new int[GRCH37_NAMES.length][];
+    loadRegions(regions);
+  }
+
+  BamHeader getHeader() {
+    return header;
+  }
+
+  /**
+   * Reads the BED file into merged intervals per contig, leaving every contig without regions when there is none.
+   */
+  private void loadRegions(File bed) throws IOException {
+    List<List<long[]>> intervals = new ArrayList<List<long[]>>();
+    for (int i = 0; i < GRCH37_NAMES.length; i++) {
+      intervals.add(new ArrayList<long[]>());
+    }
+    if (bed != null) {
+      BufferedReader reader = new BufferedReader(new FileReader(bed));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.length() == 0 || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+            continue;
+          }
+          String[] fields = line.split("\t");
+          int refId = header.getReferenceIndex(fields[0].startsWith("chr") ? fields[0].substring(3) : fields[0]);
+          if (refId >= 0) {
+            intervals.get(refId).add(new long[]{Long.parseLong(fields[1].trim()), Long.parseLong(fields[2].trim())});
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    for (int refId = 0; refId < intervals.size(); refId++) {
+      long[][] sorted = intervals.get(refId).toArray(new long[0][]);
+      Arrays.sort(sorted, new java.util.Comparator<long[]>() {
+        @Override
+        public int compare(long[] a, long[] b) {
+          return a[0] < b[0] ? -1 : a[0] > b[0] ? 1 : 0;
+        }
+      });
+      int[] starts = new int[sorted.length];
+      int[] ends = new int[sorted.length];
+      int n = 0;
+      for (long[] interval : sorted) {
+        int start = (int) Math.max(0, interval[0]);
+        int end = (int) Math.min(GRCH37_LENGTHS[refId], interval[1]);
+        if (n > 0 && start <= ends[n - 1]) {
+          ends[n - 1] = Math.max(ends[n - 1], end);
+        } else if (start < end) {
+          starts[n] = start;
+          ends[n] = end;
+          n++;
+        }
+      }
+      regionStarts[refId] = Arrays.copyOf(starts, n);
+      regionEnds[refId] = Arrays.copyOf(ends, n);
+    }
+  }
+
+  /**
+   * The bases of the genome weighted by the pair rate of each, relative to the rate outside the regions.
+   */
+  private double weightedLength() {
+    double length = 0;
+    for (int refId = 0; refId < GRCH37_LENGTHS.length; refId++) {
+      long covered = 0;
+      for (int i = 0; i < regionStarts[refId].length; i++) {
+        covered += regionEnds[refId][i] - regionStarts[refId][i];
+      }
+      length += GRCH37_LENGTHS[refId] - covered + regionDensity * covered;
+    }
+    return length;
+  }
+
+  /**
+   * Writes about the given number of reads.
+   *
+   * @return the number of reads written
+   */
+  long write(long reads, BamWriter out, BamIndexBuilder index) throws IOException {
+    this.out = out;
+    this.index = index;
+    random = new Random(seed);
+    pending.clear();
+    serial = 0;
+
+    // every placed pair stands for its duplicates too
+    long unplacedPairs = Math.round(reads / 2.0 * unplacedFraction);
+    double placedPairs = (reads / 2.0 - unplacedPairs) / (1 + duplicateRate);
+    // pairs per base outside the regions
+    double rate = placedPairs / weightedLength();
+
+    long pairs = 0;
+    for (int refId = 0; refId < GRCH37_LENGTHS.length; refId++) {
+      double pos = 0;
+      int region = 0;
+      while (true) {
+        // walk the exponential distance to the next pair start through the stretches in and out of the regions
+        double distance = -Math.log(1 - random.nextDouble());
+        int[] starts = regionStarts[refId];
+        int[] ends = regionEnds[refId];
+        while (pos < GRCH37_LENGTHS[refId]) {
+          while (region < starts.length && ends[region] <= pos) {
+            region++;
+          }
+          boolean inside = region < starts.length && starts[region] <= pos;
+          double stretchEnd = inside ? ends[region] : region < starts.length ? starts[region] : GRCH37_LENGTHS[refId];
+          double stretchRate = inside ? rate * regionDensity : rate;
+          if (stretchRate > 0 && distance <= stretchRate * (stretchEnd - pos)) {
+            pos += distance / stretchRate;
+            break;
+          }
+          distance -= stretchRate * (stretchEnd - pos);
+          pos = stretchEnd;
+        }
+        if (pos >= GRCH37_LENGTHS[refId] - readLength) {
+          break;
+        }
+        pair(refId, (int) pos, pairs++);
+      }
+    }
+    flush(Long.MAX_VALUE);
+
+    String name = "SYN:unplaced:";
+    int unplaced = BamRecord.FLAG_PAIRED | BamRecord.FLAG_UNMAPPED | BamRecord.FLAG_MATE_UNMAPPED;
+    for (long i = 0; i < unplacedPairs; i++) {
+      String readGroup = readGroups[random.nextInt(readGroups.length)];
+      emit(SyntheticReads.record(name + i, -1, -1, unplaced | BamRecord.FLAG_READ1, -1, -1, readLength, readGroup, random));
+      emit(SyntheticReads.record(name + i, -1, -1, unplaced | BamRecord.FLAG_READ2, -1, -1, readLength, readGroup, random));
+    }
+    return out.getRecordCount();
+  }
+
+  /**
+   * Writes the first end of a pair starting at a position, after every second end before it, and queues its second end.
+   */
+  private void pair(int refId, int pos, long number) throws IOException {
+    flush(MateTable.position(refId, pos));
+    String name = "SYN:" + (1 + number % 8) + ":" + (1101 + (number >> 3) % 16) + ":" + number;
+    String readGroup = readGroups[random.nextInt(readGroups.length)];
+    int contigLength = GRCH37_LENGTHS[refId];
+    double kind = random.nextDouble();
+    if (kind < unmappedFraction) {
+      // the unmapped end takes the place of its mate, as bwa leaves it
+      boolean firstMapped = random.nextBoolean();
+      int mapped = BamRecord.FLAG_PAIRED | BamRecord.FLAG_MATE_UNMAPPED | (firstMapped ? BamRecord.FLAG_READ1 : BamRecord.FLAG_READ2);
+      int unmapped = BamRecord.FLAG_PAIRED | BamRecord.FLAG_UNMAPPED | (firstMapped ? BamRecord.FLAG_READ2 : BamRecord.FLAG_READ1);
+      emit(SyntheticReads.record(name, refId, pos, mapped, refId, pos, readLength, readGroup, random));
+      emit(SyntheticReads.record(name, refId, pos, unmapped, refId, pos, readLength, readGroup, random));
+      return;
+    }
+    int mateRefId = refId;
+    int matePos;
+    int flag = BamRecord.FLAG_PAIRED;
+    if (kind < unmappedFraction + orphanRate) {
+      if (refId + 1 < GRCH37_LENGTHS.length && random.nextBoolean()) {
+        mateRefId = refId + 1 + random.nextInt(GRCH37_LENGTHS.length - refId - 1);
+        matePos = random.nextInt(GRCH37_LENGTHS[mateRefId] - readLength);
+      } else {
+        matePos = (int) Math.min(contigLength - readLength, pos + MIN_DISTANT_MATE + (long) random.nextInt(MAX_DISTANT_MATE - MIN_DISTANT_MATE));
+      }
+    } else {
+      flag |= BamRecord.FLAG_PROPER_PAIR;
+      matePos = pos + Math.max(0, insertSize - readLength + (int) (random.nextGaussian() * insertSize / 8));
+      matePos = Math.min(contigLength - readLength, matePos);
+    }
+    int copies = random.nextDouble() < duplicateRate ? 2 : 1;
+    for (int copy = 0; copy < copies; copy++) {
+      String copyName = copy == 0 ? name : name + "." + copy;
+      emit(SyntheticReads.record(copyName, refId, pos, flag | BamRecord.FLAG_READ1 | BamRecord.FLAG_MATE_REVERSE, mateRefId, matePos, readLength,
+        readGroup, random));
+      pending.add(new Pending(MateTable.position(mateRefId, matePos), serial++, copyName, flag | BamRecord.FLAG_READ2 | BamRecord.FLAG_REVERSE,
+        MateTable.position(refId, pos), readGroup));
+    }
+  }
+
+  /**
+   * Writes the second ends waiting before a position.
+   */
+  private void flush(long position) throws IOException {
+    while (!pending.isEmpty() && pending.peek().position < position) {
+      Pending end = pending.poll();
+      emit(SyntheticReads.record(end.name, (int) (end.position >>> 32), (int) end.position, end.flag, (int) (end.matePosition >>> 32),
+        (int) end.matePosition, readLength, end.readGroup, random));
+    }
+  }
+
+  private void emit(byte[] bytes) throws IOException {
+    record.wrap(bytes, 0, bytes.length);
+    if (index == null) {
+      out.write(record);
+    } else {
+      out.write(record, index);
+    }
+  }
+
+  /**
+   * Parses a size with an optional K, M or G suffix for binary kilo-, mega- and gigabytes.
+   */
+  static long parseSize(String size) {
+    String s = size.trim().toUpperCase();
+    long unit = 1;
+    if (s.endsWith("K")) {
+      unit = 1L << 10;
+    } else if (s.endsWith("M")) {
+      unit = 1L << 20;
+    } else if (s.endsWith("G")) {
+      unit = 1L << 30;
+    }
+    if (unit > 1) {
+      s = s.substring(0, s.length() - 1);
+    }
+    return (long) (Double.parseDouble(s) * unit);
+  }
+
+  private static double getDouble(Arguments arguments, String name, double _default) {
+    return arguments.has(name) ? Double.parseDouble(arguments.require(name)) : _default;
+  }
+
+  public static void main(String[] args) {
+    try {
+      Arguments arguments = new Arguments(args);
+      File output = new File(arguments.require("output"));
+      if (arguments.has("reads") == arguments.has("size")) {
+        throw new IllegalArgumentException("Give either --reads or --size");
+      }
+      int level = arguments.getInt("level", 6);
+      int threads = arguments.getInt("threads", 1);
+      SyntheticBam generator = new SyntheticBam(arguments.getInt("read-length", 101), arguments.getInt("insert-size", 400),
+        arguments.getInt("read-groups", 1), getDouble(arguments, "unmapped-fraction", 0.02), getDouble(arguments, "unplaced-fraction", 0.005),
+        getDouble(arguments, "orphan-rate", 0.01), getDouble(arguments, "duplicate-rate", 0.05),
+        arguments.has("regions") ? new File(arguments.require("regions")) : null, getDouble(arguments, "region-density", 1),
+        Long.parseLong(arguments.get("seed", "1")));
+
+      ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+      try {
+        long reads;
+        if (arguments.has("reads")) {
+          reads = Long.parseLong(arguments.require("reads"));
+        } else {
+          BgzfBenchmark.CountingOutputStream sample = new BgzfBenchmark.CountingOutputStream();
+          BamWriter sampleOut = new BamWriter(new BgzfOutputStream(sample, level, pool, 4 * threads), generator.getHeader());
+          long sampleReads = generator.write(SAMPLE_READS, sampleOut, null);
+          sampleOut.close();
+          reads = Math.max(2, (long) (parseSize(arguments.require("size")) / ((double) sample.count / sampleReads)));
+          logger.log(Level.INFO, "{0} compressed bytes per read, writing about {1} reads", new Object[]{(double) sample.count / sampleReads, reads});
+        }
+
+        BgzfOutputStream stream = new BgzfOutputStream(output, level, pool, 4 * threads);
+        BamWriter out = new BamWriter(stream, generator.getHeader());
+        BamIndexBuilder index = new BamIndexBuilder(generator.getHeader().getReferenceCount(), stream);
+        long written = generator.write(reads, out, index);
+        out.close();
+        index.write(new File(output.getPath() + ".bai"));
+        logger.log(Level.INFO, "Wrote {0} reads, {1} bytes to {2}", new Object[]{written, output.length(), output});
+      } finally {
+        if (pool != null) {
+          pool.shutdown();
+        }
+      }
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.SEVERE, e.getMessage() + "\n" + USAGE);
+      System.exit(2);
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Generating the BAM failed", e);
+      System.exit(1);
+    }
+  }
+}
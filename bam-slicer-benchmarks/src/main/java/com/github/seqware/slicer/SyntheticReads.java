@@ -0,0 +1,207 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamIndex;
+import com.github.seqware.bam.BamRecord;
+import com.github.seqware.bam.LittleEndian;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Coordinate sorted paired reads made up from a seed, so every run of a benchmark sees the same records.
+ *
+ * Pairs are placed uniformly over a few contigs with inserts around {@link #INSERT_SIZE}. A small share of them has its mate far away on another
+ * contig, which makes orphans of slice reads, has one end unmapped and placed at its mate, or has both ends unmapped and goes to the unplaced section
+ * at the end. Some pairs are repeated at the same positions as duplicates. Every read carries a full match CIGAR, random bases and qualities, and RG
+ * and MC tags the way bwa mem and samtools fixmate leave them.
+ */
+public final class SyntheticReads {
+
+  static final int CONTIGS = 3;
+  static final int CONTIG_LENGTH = 50000000;
+  static final int INSERT_SIZE = 400;
+  static final String READ_GROUP = "synthetic";
+
+  // shares of the pairs, in percent
+  static final int DISTANT_MATES = 2;
+  static final int ONE_END_UNMAPPED = 2;
+  static final int BOTH_UNMAPPED = 1;
+  static final int DUPLICATES = 5;
+
+  private static final byte[] BASES = {1, 2, 4, 8};
+
+  private SyntheticReads() {
+  }
+
+  /**
+   * The header of the synthetic reads: contigs "1" to "3" and one read group.
+   */
+  public static BamHeader header() {
+    String[] names = new String[CONTIGS];
+    int[] lengths = new int[CONTIGS];
+    StringBuilder text = new StringBuilder("@HD\tVN:1.4\tSO:coordinate\n");
+    for (int i = 0; i < CONTIGS; i++) {
+      names[i] = Integer.toString(i + 1);
+      lengths[i] = CONTIG_LENGTH;
+      text.append("@SQ\tSN:").append(names[i]).append("\tLN:").append(CONTIG_LENGTH).append('\n');
+    }
+    text.append("@RG\tID:").append(READ_GROUP).append("\tLB:synthetic-library\tSM:synthetic\tPL:ILLUMINA\n");
+    return new BamHeader(text.toString(), names, lengths);
+  }
+
+  /**
+   * Makes a number of records, without their block_size fields, in coordinate order. The last pair made may lose an end to make the count.
+   */
+  public static List<byte[]> generate(int count, int readLength, long seed) {
+    Random random = new Random(seed);
+    List<byte[]> records = new ArrayList<byte[]>(count + 3);
+    int paired = BamRecord.FLAG_PAIRED | BamRecord.FLAG_PROPER_PAIR;
+    for (int i = 0; records.size() < count; i++) {
+      String name = "SYN:1:" + (1101 + i % 16) + ":" + (1000 + random.nextInt(20000)) + ":" + i;
+      int refId = random.nextInt(CONTIGS);
+      int pos = random.nextInt(CONTIG_LENGTH - 2 * INSERT_SIZE);
+      int matePos = pos + Math.max(0, INSERT_SIZE - readLength + (int) (random.nextGaussian() * INSERT_SIZE / 8));
+      int kind = random.nextInt(100);
+      if (kind < DISTANT_MATES) {
+        int mateRefId = random.nextInt(CONTIGS);
+        matePos = random.nextInt(CONTIG_LENGTH - readLength);
+        records.add(record(name, refId, pos, BamRecord.FLAG_PAIRED | BamRecord.FLAG_READ1, mateRefId, matePos, readLength, random));
+        records.add(record(name, mateRefId, matePos, BamRecord.FLAG_PAIRED | BamRecord.FLAG_READ2 | BamRecord.FLAG_REVERSE, refId, pos, readLength,
+          random));
+      } else if (kind < DISTANT_MATES + ONE_END_UNMAPPED) {
+        // the unmapped end takes the place of its mate, as bwa leaves it
+        records.add(record(name, refId, pos, BamRecord.FLAG_PAIRED | BamRecord.FLAG_READ1 | BamRecord.FLAG_MATE_UNMAPPED, refId, pos, readLength,
+          random));
+        records.add(record(name, refId, pos, BamRecord.FLAG_PAIRED | BamRecord.FLAG_READ2 | BamRecord.FLAG_UNMAPPED, refId, pos, readLength, random));
+      } else if (kind < DISTANT_MATES + ONE_END_UNMAPPED + BOTH_UNMAPPED) {
+        int unmapped = BamRecord.FLAG_PAIRED | BamRecord.FLAG_UNMAPPED | BamRecord.FLAG_MATE_UNMAPPED;
+        records.add(record(name, -1, -1, unmapped | BamRecord.FLAG_READ1, -1, -1, readLength, random));
+        records.add(record(name, -1, -1, unmapped | BamRecord.FLAG_READ2, -1, -1, readLength, random));
+      } else {
+        int copies = kind >= 100 - DUPLICATES ? 2 : 1;
+        for (int copy = 0; copy < copies; copy++) {
+          String copyName = copy == 0 ? name : name + "." + copy;
+          records.add(record(copyName, refId, pos, paired | BamRecord.FLAG_READ1 | BamRecord.FLAG_MATE_REVERSE, refId, matePos, readLength, random));
+          records.add(record(copyName, refId, matePos, paired | BamRecord.FLAG_READ2 | BamRecord.FLAG_REVERSE, refId, pos, readLength, random));
+        }
+      }
+    }
+    byte[][] sorted = records.subList(0, count).toArray(new byte[count][]);
+    Arrays.sort(sorted, new Comparator<byte[]>() {
+      @Override
+      public int compare(byte[] a, byte[] b) {
+        long x = sortKey(a);
+        long y = sortKey(b);
+        return x < y ? -1 : x > y ? 1 : 0;
+      }
+    });
+    return Arrays.asList(sorted);
+  }
+
+  private static long sortKey(byte[] record) {
+    int refId = LittleEndian.getInt(record, 0);
+    return refId < 0 ? Long.MAX_VALUE : MateTable.position(refId, LittleEndian.getInt(record, 4));
+  }
+
+  private static byte[] record(String name, int refId, int pos, int flag, int mateRefId, int matePos, int readLength, Random random) {
+    return record(name, refId, pos, flag, mateRefId, matePos, readLength, READ_GROUP, random);
+  }
+
+  /**
+   * One record without its block_size field: a full match of the read length unless it is unmapped, random bases and qualities, an RG tag and an MC
+   * tag unless the mate is unmapped.
+   */
+  static byte[] record(String name, int refId, int pos, int flag, int mateRefId, int matePos, int readLength, String readGroup, Random random) {
+    byte[] readName = (name + "\0").getBytes();
+    byte[] rg = ("RG" + "Z" + readGroup + "\0").getBytes();
+    byte[] mc = (flag & BamRecord.FLAG_MATE_UNMAPPED) != 0 ? new byte[0] : ("MC" + "Z" + readLength + "M\0").getBytes();
+    boolean unmapped = (flag & BamRecord.FLAG_UNMAPPED) != 0;
+    int cigarOps = unmapped ? 0 : 1;
+    int seqBytes = (readLength + 1) / 2;
+    byte[] b = new byte[32 + readName.length + 4 * cigarOps + seqBytes + readLength + rg.length + mc.length];
+
+    LittleEndian.putInt(b, 0, refId);
+    LittleEndian.putInt(b, 4, pos);
+    b[8] = (byte) readName.length;
+    b[9] = (byte) (unmapped ? 0 : 60);
+    int start = Math.max(pos, 0);
+    LittleEndian.putShort(b, 10, BamIndex.regionToBin(start, start + (unmapped ? 1 : readLength)));
+    LittleEndian.putShort(b, 12, cigarOps);
+    LittleEndian.putShort(b, 14, flag);
+    LittleEndian.putInt(b, 16, readLength);
+    LittleEndian.putInt(b, 20, mateRefId);
+    LittleEndian.putInt(b, 24, matePos);
+    int tlen = refId == mateRefId && refId >= 0 && !unmapped && (flag & BamRecord.FLAG_MATE_UNMAPPED) == 0 ? matePos - pos
+      + (matePos >= pos ? readLength : -readLength) : 0;
+    LittleEndian.putInt(b, 28, tlen);
+
+    int off = 32;
+    System.arraycopy(readName, 0, b, off, readName.length);
+    off += readName.length;
+    if (cigarOps == 1) {
+      // readLength M
+      LittleEndian.putInt(b, off, readLength << 4);
+      off += 4;
+    }
+    for (int i = 0; i < seqBytes; i++) {
+      b[off++] = (byte) (BASES[random.nextInt(4)] << 4 | BASES[random.nextInt(4)]);
+    }
+    for (int i = 0; i < readLength; i++) {
+      b[off++] = (byte) (20 + random.nextInt(21));
+    }
+    System.arraycopy(rg, 0, b, off, rg.length);
+    off += rg.length;
+    System.arraycopy(mc, 0, b, off, mc.length);
+    return b;
+  }
+
+  /**
+   * The records with their block_size fields, as they follow the header in a decompressed BAM.
+   */
+  public static byte[] stream(List<byte[]> records) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] record : records) {
+      LittleEndian.writeInt(out, record.length);
+      out.write(record);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Records pointing at the bytes of each of the records.
+   */
+  public static BamRecord[] wrap(List<byte[]> records) {
+    BamRecord[] wrapped = new BamRecord[records.size()];
+    for (int i = 0; i < wrapped.length; i++) {
+      wrapped[i] = new BamRecord();
+      wrapped[i].wrap(records.get(i), 0, records.get(i).length);
+    }
+    return wrapped;
+  }
+
+  /**
+   * Writes a BED file of regions of a given length spread evenly over the contigs of the synthetic header.
+   */
+  public static void writeBed(File bed, int regions, int regionLength) throws IOException {
+    Writer out = new FileWriter(bed);
+    try {
+      int perContig = (regions + CONTIGS - 1) / CONTIGS;
+      long step = CONTIG_LENGTH / perContig;
+      for (int i = 0; i < regions; i++) {
+        int contig = i % CONTIGS;
+        long start = (i / CONTIGS) * step + step / 2 - regionLength / 2;
+        out.write((contig + 1) + "\t" + Math.max(0, start) + "\t" + Math.min(CONTIG_LENGTH, start + regionLength) + "\tsynthetic" + i + "\n");
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package io.seqware.pancancer;
 
+import com.github.seqware.telemetry.JobTelemetry;
 import java.io.File;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -55,8 +56,21 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
   String gtdownloadRetries = "30";
   String gtdownloadMd5Time = "120";
   String gtdownloadMem = "8";
+  // the node-local cache of downloaded BAMs shared by the runs, none without download_cache_dir
+  String downloadCacheDir = null;
+  String downloadCacheQuotaG = "500";
+  // names this run's references on the cache entries
+  String runId = UUID.randomUUID().toString();
+  // the extracted dependencies bundles shared by the runs, output_prefix/dependencies without dependencies_store_dir
+  File dependenciesStoreDir = null;
+  String dependenciesStoreVerify = "sizes";
   String smallJobMemM = "3000";
   String roddyBaseJobMemory = "8192";
+  // with roddy_job_watcher Roddy submits its jobs and exits, and roddy_job_watcher.pl waits for them in a job of this size
+  String roddySubmitJobMemory = "3000";
+  String roddyWatcherMaxInterval = "300";
+  // the job IDs in Roddy's output, the first group is the ID
+  String roddyWatcherIdPattern = "Your job(?:-array)? ([0-9]+)";
 
   String inputFileTumorURL = null;
   String inputFileNormalURL = null;
@@ -87,6 +101,9 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
   boolean doCopyNumberEstimation = false;
   boolean doTelomereExtraction = false;
   boolean useDellyOnDisk = false;
+  boolean roddyJobWatcher = false;
+  boolean jobTelemetry = false;
+  int telemetryIntervalSeconds = 5;
 
   // workflow related
   private String workflowName = "dkfz_1-0-0";
@@ -96,8 +113,12 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
   private String workflowVersion = null;
   private String seqwareVersion = null;
   
-  // the GNOS download directories to cleanup
-  private ArrayList<String> dirsToCleanup = new ArrayList<String>();
+  // the GNOS download directories to cleanup, each with the jobs reading it, which its cleanup job waits for
+  private Map<String, List<Job>> downloadConsumers = new LinkedHashMap<String, List<Job>>();
+  private ArrayList<String> bamDownloads = new ArrayList<String>();
+  private ArrayList<String> dellyDownloads = new ArrayList<String>();
+  // the analyses linked from the download cache, released on cleanup
+  private ArrayList<String> cachedDownloads = new ArrayList<String>();
 
   /**
    * Safely load a property from seqwares workflow environment.
@@ -188,8 +209,22 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
       gtdownloadRetries = loadProperty("gtdownloadRetries", gtdownloadRetries);
       gtdownloadMd5Time = loadProperty("gtdownloadMd5time", gtdownloadMd5Time);
       gtdownloadMem = loadProperty("gtdownloadMemG", gtdownloadMem);
+      downloadCacheDir = loadProperty("download_cache_dir", "");
+      if (downloadCacheDir.isEmpty()) {
+        downloadCacheDir = null;
+      }
+      downloadCacheQuotaG = loadProperty("download_cache_quota_gb", downloadCacheQuotaG);
+      String dependenciesStore = loadProperty("dependencies_store_dir", "");
+      dependenciesStoreDir = dependenciesStore.isEmpty() ? new File(directoryBaseOutput, "dependencies") : new File(dependenciesStore);
+      dependenciesStoreVerify = loadProperty("dependencies_store_verify", dependenciesStoreVerify);
       smallJobMemM = loadProperty("smallJobMemM", smallJobMemM);
       roddyBaseJobMemory = loadProperty("roddyBaseJobMemory", roddyBaseJobMemory);
+      roddyJobWatcher = loadBooleanProperty("roddy_job_watcher");
+      roddySubmitJobMemory = loadProperty("roddySubmitJobMemory", roddySubmitJobMemory);
+      roddyWatcherMaxInterval = loadProperty("roddy_job_watcher_max_interval", roddyWatcherMaxInterval);
+      roddyWatcherIdPattern = loadProperty("roddy_job_watcher_id_pattern", roddyWatcherIdPattern);
+      jobTelemetry = loadBooleanProperty("job_telemetry");
+      telemetryIntervalSeconds = Integer.parseInt(loadProperty("telemetry_interval_seconds", "" + telemetryIntervalSeconds));
 
       // workflow related
       workflowName = loadProperty("workflow_name", "dkfz_unkown");
@@ -223,6 +258,9 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
    *
    * Roddy itself calls a range of SGE jobs and waits for those jobs to finish. The return code of Roddy is either 0 (0 faulty jobs) or n (1 .. n faulty jobs).
    *
+   * With roddy_job_watcher Roddy only submits its SGE jobs and exits, and scripts/roddy_job_watcher.pl then waits for the jobs whose IDs Roddy printed,
+   * with the same return code, so the job holds roddySubmitJobMemory instead of roddyBaseJobMemory for the whole run.
+   *
    * @param name The name for the job
    * @param pid The pid of the dataset to process
    * @param analysisConfigurationID The configuration which will be used for the process
@@ -233,7 +271,7 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
   private Job createRoddyJob(String name, String pid, String analysisConfigurationID, List<Job> parentJobs, String runMode) {
     Job job = this.getWorkflow().createBashJob(name);
     // FIXME: why does this need 16384M?  Seems excessive for a simple wrapper script?  
-    job.setMaxMemory(this.roddyBaseJobMemory);
+    job.setMaxMemory(roddyJobWatcher ? this.roddySubmitJobMemory : this.roddyBaseJobMemory);
     for (Job parentJob : parentJobs) {
       job.addParent(parentJob);
     }
@@ -241,15 +279,31 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
     // TODO: this needs to be parameterized I think if we can't bundle Roddy
     job.getCommand()
       .addArgument("cd " + this.getWorkflowBaseDir() + "/bin/RoddyBundlePancancer")
-      .addArgument(String.format(" && bash roddy.sh %s %s %s --useconfig=applicationPropertiesAllLocal.ini --waitforjobs", runMode, fullConfiguration, pid));
+      .addArgument(String.format(" && bash roddy.sh %s %s %s --useconfig=applicationPropertiesAllLocal.ini", runMode, fullConfiguration, pid)
+        + (roddyJobWatcher ? "" : " --waitforjobs"));
     if (debugmode) {
       job.getCommand().addArgument(" --verbositylevel=5 ");
     }
 
-    job.getCommand().addArgument(String.format("  &> %s/roddy_%s.txt ", directorySNVCallingResults, name));
+    String roddyLog = String.format("%s/roddy_%s.txt", directorySNVCallingResults, name);
+    job.getCommand().addArgument(String.format("  &> %s ", roddyLog));
+    if (roddyJobWatcher) {
+      job.getCommand().addArgument(String.format(" && perl %s/scripts/roddy_job_watcher.pl --log %s --id-pattern '%s' --max-interval %s --report %s/roddy_%s.jobs.json",
+        this.getWorkflowBaseDir(), roddyLog, roddyWatcherIdPattern.replace("'", "'\\''"), roddyWatcherMaxInterval, directorySNVCallingResults, name));
+    }
     return job;
   }
 
+  /**
+   * Hashes the deliverables of a job as its last step, while they are still in the page cache, instead of reading them back in separate md5sum jobs
+   * before the upload. Each file.md5 is written next to its final name first and renamed into place.
+   */
+  private void addMd5Sidecars(Job job, List<String> files) {
+    for (String file : files) {
+      job.getCommand().addArgument(String.format(" && md5sum %1$s | awk '{print $1}' > %1$s.md5.part && mv %1$s.md5.part %1$s.md5", file));
+    }
+  }
+
   /**
    * Create a default job for GNOS Up or Download
    *
@@ -278,22 +332,27 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
     String checkpointFile = String.format("%s/%s/download_checkpoint.txt", targetDirectory, elementID);
     job.getCommand()
       .addArgument(
-        String.format("lockfile %s; ", lockfile)
-        + String.format("[[ ! -f %s ]] && ", checkpointFile)
+        String.format("%s once --lock %s --done %s -- ", fileCoordinator(), lockfile, checkpointFile)
         + String.format("perl %s/scripts/launch_and_monitor_gnos.pl ", this.getWorkflowBaseDir())
         + String.format("--command 'gtdownload -c %s -d %s -p %s ' ", gnosKey, fileURL, targetDirectory)
-        + String.format("--file-grep %s --search-path %s --retries %s --md5-retries %s ", elementID, targetDirectory, gtdownloadRetries, gtdownloadMd5Time)
-        + String.format(" && touch %s; ", checkpointFile)
-        + String.format("rm -rf %s; ", lockfile)
+        + String.format("--file-grep %s --search-path %s --retries %s --md5-retries %s; ", elementID, targetDirectory, gtdownloadRetries, gtdownloadMd5Time)
       );
     return job;
   }
 
   private String getLockfileNameForGNOSDownload(File targetDirectory, String elementID) {
-    String lockfile = new File(targetDirectory, "gnosDownload_" + elementID + ".lock~").getAbsolutePath();
+    String lockfile = new File(targetDirectory, "gnosDownload_" + elementID + ".lock").getAbsolutePath();
     return lockfile;
   }
 
+  /**
+   * The command line of the FileCoordinator bundled in the classes directory, which holds the locks the runs on a node share.
+   */
+  private String fileCoordinator() {
+    return String.format("%s/bin/jre1.7.0_51/bin/java -Xmx64m -cp %s/classes %s", this.getWorkflowBaseDir(), this.getWorkflowBaseDir(),
+      FileCoordinator.class.getName());
+  }
+
   /**
    * Extract the uuid of an object from its url. Example: https://gtrepo-dkfz.annailabs.com/cghub/metadata/analysisFull/174bdd2d-1810-4890-af87-8aef4827eb3c => 174bdd2d-1810-4890-af87-8aef4827eb3c
    *
@@ -330,14 +389,49 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
    * @param dst
    */
   private void addSafeLinkCommand(Job job, String src, String dst) {
-    String lockfile = dst + ".lock~";
-    job.getCommand().addArgument(String.format("lockfile %s; [[ ! -f %s ]] && ln -sn %s %s; rm -rf %s; ", lockfile, dst, src, dst, lockfile));
+    job.getCommand().addArgument(String.format("%s link --source %s --target %s; ", fileCoordinator(), src, dst));
+  }
+
+  /**
+   * Creates a download job that links the files of a GNOS analysis from the node's download cache into the download directory, downloading them
+   * into the cache first when no run has before. The cache serializes the downloads of an analysis itself.
+   *
+   * @param parent
+   * @param fileURL
+   * @param targetDirectory
+   * @return
+   */
+  private CreateDownloadJobResult createCachedGNOSDownloadJob(Job parent, String fileURL, File targetDirectory) {
+    String elementID = getElementIDFromURL(fileURL);
+    Job job = createDefaultGNOSJob("GNOS download job", parent);
+    File outputDirectory = new File(targetDirectory, elementID);
+    String metadataURL = null;
+    for (String url : inputMetadataURLs) {
+      if (url.endsWith("/" + elementID)) {
+        metadataURL = url;
+      }
+    }
+    // without the metadata there is no md5 to key the cache entry by, and the cache downloads as if it were not there
+    job.getCommand()
+      .addArgument(
+        String.format("perl %s/scripts/download_cache.pl fetch --cache %s --quota-bytes %d --analysis %s ", this.getWorkflowBaseDir(), downloadCacheDir,
+          Long.parseLong(downloadCacheQuotaG) * 1024L * 1024L * 1024L, elementID)
+        + (metadataURL == null ? "" : String.format("--metadata-url %s ", metadataURL))
+        + String.format("--target %s --run %s -- ", outputDirectory, runId)
+        + String.format("perl %s/scripts/launch_and_monitor_gnos.pl ", this.getWorkflowBaseDir())
+        + String.format("--command 'gtdownload -c %s -d %s ' ", gnosKey, fileURL)
+        + String.format("--file-grep %s --search-path . --retries %s --md5-retries %s; ", elementID, gtdownloadRetries, gtdownloadMd5Time)
+      );
+    cachedDownloads.add(elementID);
+    return new CreateDownloadJobResult(job, elementID, outputDirectory);
   }
 
   private Job createGNOSBamDownloadJob(String fileURL, SampleType sampleType, Job parent) {
-    CreateDownloadJobResult jcr = createDefaultGNOSDownloadJob(parent, fileURL, gnosDownloadDirGeneric);
+    CreateDownloadJobResult jcr = downloadCacheDir != null ? createCachedGNOSDownloadJob(parent, fileURL, gnosDownloadDirGeneric)
+      : createDefaultGNOSDownloadJob(parent, fileURL, gnosDownloadDirGeneric);
     // adding output dir to cleanup later
-    this.dirsToCleanup.add(jcr.outputDirectory.getAbsolutePath());
+    this.downloadConsumers.put(jcr.outputDirectory.getAbsolutePath(), new ArrayList<Job>());
+    this.bamDownloads.add(jcr.outputDirectory.getAbsolutePath());
     String bamSrc = String.format("%s/*.bam", jcr.outputDirectory);
     String bamDst = String.format("%s/%s_%s_merged.mdup.bam", directoryAlignmentFiles, sampleType.name(), pid);
     String baiSrc = bamSrc + ".bai";
@@ -350,22 +444,44 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
   private Job createGNOSDellyDownloadJob(String fileURL, Job parent) {
     CreateDownloadJobResult jcr = createDefaultGNOSDownloadJob(parent, fileURL, gnosDownloadDirGeneric);
     // adding output dir to cleanup later
-    this.dirsToCleanup.add(jcr.outputDirectory.getAbsolutePath());
+    this.downloadConsumers.put(jcr.outputDirectory.getAbsolutePath(), new ArrayList<Job>());
+    this.dellyDownloads.add(jcr.outputDirectory.getAbsolutePath());
     String dellySrc = String.format("%s/*.txt", jcr.outputDirectory);
     String dellyDst = String.format("%s/%s.DELLY.somaticFilter.highConf.bedpe.txt", directoryDellyFiles, pid);
     addSafeLinkCommand(jcr.job, dellySrc, dellyDst);
     return jcr.job;
   }
 
+  /**
+   * Records that the job reads the downloaded files, so their cleanup waits for it.
+   */
+  private void addDownloadConsumer(Job job, List<String> downloads) {
+    for (String download : downloads) {
+      downloadConsumers.get(download).add(job);
+    }
+  }
+
+  /**
+   * Creates the job that links the extracted dependencies bundle into the bundledFiles directory from the store of bundles, downloading and extracting
+   * it into the store first when no run has before. The store keys the bundles by their GNOS analysis UUID and extracts each once.
+   *
+   * @param fileURL
+   * @param parent
+   * @return
+   */
   private Job createDependenciesDownloadJob(String fileURL, Job parent) {
-    // TODO: would be nice to download this just once and skip in future runs if that download directory exists
-    CreateDownloadJobResult jcr = createDefaultGNOSDownloadJob(parent, fileURL, gnosDownloadDirGeneric);
-    String lockfile = getLockfileNameForGNOSDownload(gnosDownloadDirGeneric, jcr.elementID);
-    String extractedDirectory = jcr.outputDirectory + "/bundledFiles";
-    jcr.job.getCommand().addArgument(
-      String.format("lockfile %s; [[ ! -d %s ]] && cd %s && tar -xf *.tar.gz && ln -sf %s %s; rm -rf %s; ", lockfile, jcr.outputDirectory + "/bundledFiles", jcr.outputDirectory, extractedDirectory, directoryBaseOutput, lockfile)
-    );
-    return jcr.job;
+    String elementID = getElementIDFromURL(fileURL);
+    Job job = createDefaultGNOSJob("GNOS download job", parent);
+    job.getCommand()
+      .addArgument(
+        String.format("perl %s/scripts/dependencies_store.pl --store %s --bundle %s ", this.getWorkflowBaseDir(), dependenciesStoreDir.getAbsolutePath(),
+          elementID)
+        + String.format("--link %s --verify %s -- ", directoryBundledFiles.getAbsolutePath(), dependenciesStoreVerify)
+        + String.format("perl %s/scripts/launch_and_monitor_gnos.pl ", this.getWorkflowBaseDir())
+        + String.format("--command 'gtdownload -c %s -d %s ' ", gnosKey, fileURL)
+        + String.format("--file-grep %s --search-path . --retries %s --md5-retries %s; ", elementID, gtdownloadRetries, gtdownloadMd5Time)
+      );
+    return job;
   }
 
   @Override
@@ -440,6 +556,7 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
       if (doSNVCalling) {
         logger.info("SNV Calling will be done.");
         jobSNVCalling = createRoddyJob("RoddySNVCalling", pid, "snvCalling", downloadJobDependencies);
+        addDownloadConsumer(jobSNVCalling, bamDownloads);
         varCalls.add(jobSNVCalling);
         // files for upload
         vcfFiles.add(new File(directorySNVCallingResults, "snvs_" + pid + ".vcf.gz").getAbsolutePath());
@@ -449,12 +566,14 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
         vcfOutputIndexFiles.add(inputFileTumorSpecimenUuid + "." + this.workflowName + "." + this.dateString + ".somatic.snv_mnv.vcf.gz.tbi");
         vcfOutputMd5Files.add(inputFileTumorSpecimenUuid + "." + this.workflowName + "." + this.dateString + ".somatic.snv_mnv.vcf.gz.md5");
         vcfIndexOutputMd5Files.add(inputFileTumorSpecimenUuid + "." + this.workflowName + "." + this.dateString + ".somatic.snv_mnv.vcf.gz.tbi.md5");
+        addMd5Sidecars(jobSNVCalling, Arrays.asList(vcfFiles.get(vcfFiles.size() - 1), vcfIndexFiles.get(vcfIndexFiles.size() - 1)));
         // TODO: add raw files to tarball
       }
 
       if (doIndelCalling) {
         logger.info("Indel Calling will be done.");
         jobIndelCalling = createRoddyJob("RoddyIndelCalling", pid, "indelCalling", downloadJobDependencies);
+        addDownloadConsumer(jobIndelCalling, bamDownloads);
         varCalls.add(jobIndelCalling);
         // files
         vcfFiles.add(new File(directoryIndelCallingResults, "indels_" + pid + ".vcf.raw.gz").getAbsolutePath());
@@ -464,12 +583,13 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
         vcfOutputIndexFiles.add(inputFileTumorSpecimenUuid + "." + this.workflowName + "." + this.dateString + ".somatic.indel.vcf.gz.tbi");
         vcfOutputMd5Files.add(inputFileTumorSpecimenUuid + "." + this.workflowName + "." + this.dateString + ".somatic.indel.vcf.gz.md5");
         vcfIndexOutputMd5Files.add(inputFileTumorSpecimenUuid + "." + this.workflowName + "." + this.dateString + ".somatic.indel.vcf.gz.tbi.md5");
-
+        addMd5Sidecars(jobIndelCalling, Arrays.asList(vcfFiles.get(vcfFiles.size() - 1), vcfIndexFiles.get(vcfIndexFiles.size() - 1)));
       }
       
 	  if (doTelomereExtraction) {
 		logger.info("Telomere extraction will be done.");
 		Job jobTelomereExtraction = createRoddyJob("RoddyTelomereExtraction", pid, "telomereExtraction", downloadJobDependencies);
+		addDownloadConsumer(jobTelomereExtraction, bamDownloads);
 	  }
 
       if (jobDownloadDellyBedPe != null) {
@@ -480,6 +600,8 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
       if (doCopyNumberEstimation) {
         logger.info("Copy number estimation will be done.");
         jobCopyNumberEstimation = createRoddyJob("RoddyCNE", pid, "copyNumberEstimation", downloadJobDependencies);
+        addDownloadConsumer(jobCopyNumberEstimation, bamDownloads);
+        addDownloadConsumer(jobCopyNumberEstimation, dellyDownloads);
         varCalls.add(jobCopyNumberEstimation);
         // files
         vcfFiles.add(new File(directoryIndelCallingResults, "indels_" + pid + ".vcf.raw.gz").getAbsolutePath());
@@ -489,6 +611,9 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
         vcfOutputIndexFiles.add(inputFileTumorSpecimenUuid + "." + this.workflowName + "." + this.dateString + ".somatic.indel.vcf.gz.tbi");
         vcfOutputMd5Files.add(inputFileTumorSpecimenUuid + "." + this.workflowName + "." + this.dateString + ".somatic.indel.vcf.gz.md5");
         vcfIndexOutputMd5Files.add(inputFileTumorSpecimenUuid + "." + this.workflowName + "." + this.dateString + ".somatic.indel.vcf.gz.tbi.md5");
+        if (!doIndelCalling) {
+          addMd5Sidecars(jobCopyNumberEstimation, Arrays.asList(vcfFiles.get(vcfFiles.size() - 1), vcfIndexFiles.get(vcfIndexFiles.size() - 1)));
+        }
         //TODO Create additional files upload job.
         //Upload all vcfs + tabix files
         //Upload a tarball
@@ -501,24 +626,32 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
       }
 
       // CLEANUP DOWNLOADED INPUT BAM FILES (And intermediate files?)
+      // each download is removed as soon as the last job reading it is done rather than after the upload, so the BAMs do not hold the disk while
+      // the later callers and the upload run
       if (doCleanup && varCalls.size() > 0) {
-        Job cleanup = this.getWorkflow().createBashJob("cleanup");
-        for (String dir : this.dirsToCleanup) {
-          cleanup.getCommand().addArgument("rm -rf " + dir + ";");
-        }
-        // TODO: this just cleans up the GNOS download files which are really large.  In the future cleanup other dirs as well
-        cleanup.setMaxMemory(smallJobMemM);
-
-        //If no job was started, then the cleanup can be run without any dependency.
-        if (runAtLeastOneJob) {
-          for (Job varJob : varCalls) {
-            cleanup.addParent(varJob);
+        for (Map.Entry<String, List<Job>> download : this.downloadConsumers.entrySet()) {
+          if (download.getValue().isEmpty()) {
+            continue;
+          }
+          String elementID = new File(download.getKey()).getName();
+          Job cleanup = this.getWorkflow().createBashJob("cleanup " + elementID);
+          cleanup.getCommand().addArgument("rm -rf " + download.getKey() + ";");
+          // the directory only holds links to the cached BAMs, which stay in the cache for the next run
+          if (this.cachedDownloads.contains(elementID)) {
+            cleanup.getCommand().addArgument(String.format("perl %s/scripts/download_cache.pl release --cache %s --analysis %s --run %s;",
+              this.getWorkflowBaseDir(), downloadCacheDir, elementID, runId));
+          }
+          // TODO: this just cleans up the GNOS download files which are really large.  In the future cleanup other dirs as well
+          cleanup.setMaxMemory(smallJobMemM);
+          for (Job consumer : download.getValue()) {
+            cleanup.addParent(consumer);
           }
-        }
-        if (useGtUpload && varCalls.size() > 0) {
-          cleanup.addParent(uploadJob);
         }
       }
+
+      if (jobTelemetry) {
+        new JobTelemetry(this.getWorkflow(), this.getWorkflowBaseDir() + "/scripts", telemetryIntervalSeconds).instrument();
+      }
     } catch (Exception ex) {
       Logger.getLogger(DKFZBundleWorkflow.class.getName()).log(Level.SEVERE, "Problem running workflow", ex);
       throw new RuntimeException("Problem parsing variable values: " + ex.getMessage());
@@ -530,25 +663,20 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
 
     String outputPath = this.processDirectoryPID.getAbsolutePath() + "/uploads";
 
-    // make output dir
+    // make output dir and link the files and the md5 sidecars the calling jobs left next to them to their output names
     Job mkdir = this.getWorkflow().createBashJob("upload_mkdir");
     mkdir.getCommand().addArgument("mkdir -p " + outputPath);
+    for (int i = 0; i < vcfFiles.size(); i++) {
+      mkdir.getCommand().addArgument(" && ln -sf " + vcfFiles.get(i) + " " + outputPath + "/" + vcfOutputFiles.get(i))
+        .addArgument(" && ln -sf " + vcfFiles.get(i) + ".md5 " + outputPath + "/" + vcfOutputMd5Files.get(i))
+        .addArgument(" && ln -sf " + vcfIndexFiles.get(i) + " " + outputPath + "/" + vcfOutputIndexFiles.get(i))
+        .addArgument(" && ln -sf " + vcfIndexFiles.get(i) + ".md5 " + outputPath + "/" + vcfIndexOutputMd5Files.get(i));
+    }
+    mkdir.setMaxMemory(smallJobMemM);
     for (Job parent : parents) {
       mkdir.addParent(parent);
     }
 
-    //make md5sum files and link to output
-    ArrayList<Job> md5sums = new ArrayList<Job>();
-    for (int i = 0; i < vcfFiles.size(); i++) {
-      Job currMd5 = this.getWorkflow().createBashJob("md5sum");
-      currMd5.getCommand().addArgument("ln -s " + vcfFiles.get(i) + " " + outputPath + "/" + vcfOutputFiles.get(i) + " && ")
-        .addArgument("md5sum " + vcfFiles.get(i) + " | awk '{print $1}' > " + outputPath + "/" + vcfOutputMd5Files.get(i) + " && ")
-        .addArgument("ln -s " + vcfIndexFiles.get(i) + " " + outputPath + "/" + vcfOutputIndexFiles.get(i) + " && ")
-        .addArgument("md5sum " + vcfIndexFiles.get(i) + " | awk '{print $1}' > " + outputPath + "/" + vcfIndexOutputMd5Files.get(i) + " && ");
-      currMd5.addParent(mkdir);
-      md5sums.add(currMd5);
-    }
-
     // now perform the actual upload
     Job job = this.getWorkflow().createBashJob("upload");
     job.getCommand()
@@ -570,10 +698,7 @@ public class DKFZBundleWorkflow extends AbstractWorkflowDataModel {
       job.getCommand().addArgument("--test");
     }
 
-    // link to the parent jobs
-    for (Job md5job : md5sums) {
-      job.addParent(md5job);
-    }
+    job.addParent(mkdir);
 
     return (job);
   }
@@ -0,0 +1,206 @@
+package io.seqware.pancancer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coordinates the jobs of concurrent workflow runs on the files they share, in place of procmail's lockfile, which polls for its lock file every few
+ * seconds and leaves it behind when the job holding it is killed.
+ *
+ * <pre>
+ * java io.seqware.pancancer.FileCoordinator once --lock &lt;file&gt; --done &lt;file&gt; -- &lt;command&gt; [args]
+ * java io.seqware.pancancer.FileCoordinator link --source &lt;file&gt; --target &lt;link&gt;
+ * </pre>
+ *
+ * once runs the command unless its done file exists, holding an exclusive lock on the lock file meanwhile, and writes the done file when the command
+ * succeeds. The lock is a FileChannel lock, which the kernel hands to the next waiter the moment it is released and releases itself when its owner
+ * dies, so nothing polls and nothing goes stale. The owner writes its pid and host into the lock file; a waiter that finds the lock held by a process
+ * of its host that is gone, as a lock on a network filesystem may stay, moves the file aside and locks a new one, unless another waiter moved it
+ * first. The done file is written beside its name and moved into place, so it exists only once the command succeeded. The exit status is the
+ * command's, or 0 when it was done before.
+ *
+ * link makes the target a symbolic link to the source unless the target already is a file or a link to one. The link is created beside the target and
+ * moved over it, which also replaces a link left dangling by the cleanup of an earlier run.
+ */
+public class FileCoordinator {
+
+  private static final Logger logger = Logger.getLogger(FileCoordinator.class.getName());
+
+  private static final String USAGE = "java " + FileCoordinator.class.getName() + " once --lock <file> --done <file> -- <command> [args]\n"
+    + "java " + FileCoordinator.class.getName() + " link --source <file> --target <link>";
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  // pid@host, as the JVM names itself on Linux
+  private static final String OWNER = ManagementFactory.getRuntimeMXBean().getName();
+
+  /**
+   * Opens the lock file and locks it, waiting for the owner to release it.
+   */
+  static FileChannel lock(Path lockFile) throws IOException {
+    while (true) {
+      FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      Object key = fileKey(lockFile);
+      FileLock lock = channel.tryLock();
+      if (lock == null) {
+        String owner = readOwner(channel);
+        if (isDeadOnThisHost(owner)) {
+          channel.close();
+          // another waiter may have moved the stale file aside already, and the file now at the path may be the live lock of a third
+          if (key != null && key.equals(fileKey(lockFile))) {
+            logger.log(Level.WARNING, "{0} is held by {1}, which is gone, moving it aside", new Object[]{lockFile, owner});
+            try {
+              Files.move(lockFile, lockFile.resolveSibling(lockFile.getFileName() + ".stale." + System.currentTimeMillis()),
+                StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+              logger.log(Level.INFO, "{0} was moved aside by another waiter", lockFile);
+            }
+          }
+          continue;
+        }
+        logger.log(Level.INFO, "Waiting for {0} held by {1}", new Object[]{lockFile, owner});
+        lock = channel.lock();
+      }
+      // a waiter that moved a stale file aside meanwhile left this one behind
+      if (key == null || !key.equals(fileKey(lockFile))) {
+        channel.close();
+        continue;
+      }
+      channel.truncate(0);
+      channel.write(ByteBuffer.wrap((OWNER + "\n").getBytes(UTF8)), 0);
+      channel.force(false);
+      return channel;
+    }
+  }
+
+  /**
+   * The identity of the file at the path, or null if there is none.
+   */
+  private static Object fileKey(Path file) throws IOException {
+    try {
+      return Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  private static String readOwner(FileChannel channel) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(256);
+    channel.read(buffer, 0);
+    buffer.flip();
+    return UTF8.decode(buffer).toString().trim();
+  }
+
+  private static boolean isDeadOnThisHost(String owner) {
+    int at = owner.indexOf('@');
+    if (at <= 0 || !owner.substring(at + 1).equals(OWNER.substring(OWNER.indexOf('@') + 1))) {
+      return false;
+    }
+    String pid = owner.substring(0, at);
+    return pid.matches("\\d+") && !new File("/proc/" + pid).exists();
+  }
+
+  /**
+   * Writes the file beside its name and moves it into place.
+   */
+  static void publish(Path file, String content) throws IOException {
+    Path part = file.resolveSibling(file.getFileName() + ".part." + OWNER);
+    Files.write(part, content.getBytes(UTF8));
+    Files.move(part, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  static int once(Path lockFile, Path doneFile, List<String> command) throws IOException, InterruptedException {
+    if (Files.exists(doneFile)) {
+      return 0;
+    }
+    FileChannel channel = lock(lockFile);
+    try {
+      if (Files.exists(doneFile)) {
+        logger.log(Level.INFO, "{0} was done while waiting", doneFile);
+        return 0;
+      }
+      int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+      if (status == 0) {
+        publish(doneFile, OWNER + " " + System.currentTimeMillis() + "\n");
+      }
+      return status;
+    } finally {
+      channel.close();
+    }
+  }
+
+  static void link(Path source, Path target) throws IOException {
+    if (Files.exists(target)) {
+      return;
+    }
+    if (Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+      logger.log(Level.INFO, "Replacing the dangling link {0}", target);
+    }
+    Path part = target.resolveSibling(target.getFileName() + ".part." + OWNER);
+    Files.deleteIfExists(part);
+    Files.createSymbolicLink(part, source);
+    Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static String require(Map<String, String> options, String name) {
+    String value = options.get(name);
+    if (value == null) {
+      throw new IllegalArgumentException("Missing --" + name);
+    }
+    return value;
+  }
+
+  public static void main(String[] args) {
+    try {
+      if (args.length == 0) {
+        throw new IllegalArgumentException("No action given");
+      }
+      String action = args[0];
+      int separator = Arrays.asList(args).indexOf("--");
+      List<String> command = separator < 0 ? new ArrayList<String>() : Arrays.asList(args).subList(separator + 1, args.length);
+      Map<String, String> options = new HashMap<String, String>();
+      for (int i = 1; i < (separator < 0 ? args.length : separator); i += 2) {
+        if (!args[i].startsWith("--") || i + 1 >= args.length) {
+          throw new IllegalArgumentException("Unexpected argument " + args[i]);
+        }
+        options.put(args[i].substring(2), args[i + 1]);
+      }
+      if ("once".equals(action)) {
+        if (command.isEmpty()) {
+          throw new IllegalArgumentException("No command given after --");
+        }
+        System.exit(once(Paths.get(require(options, "lock")), Paths.get(require(options, "done")), command));
+      } else if ("link".equals(action)) {
+        link(Paths.get(require(options, "source")), Paths.get(require(options, "target")));
+      } else {
+        throw new IllegalArgumentException("Unknown action " + action);
+      }
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.SEVERE, e.getMessage() + "\n" + USAGE);
+      System.exit(2);
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Coordinating on the files failed", e);
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package io.seqware.pancancer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Runs once and link on a temporary directory, with the other workflow runs played by child JVMs running FileCoordinator as the jobs do.
+ */
+public class FileCoordinatorTest {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private Path dir;
+  private final List<Process> children = new ArrayList<Process>();
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("coordinator");
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException, InterruptedException {
+    for (Process child : children) {
+      child.destroy();
+      child.waitFor();
+    }
+    children.clear();
+    delete(dir);
+  }
+
+  private static void delete(Path path) throws IOException {
+    if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+      DirectoryStream<Path> entries = Files.newDirectoryStream(path);
+      try {
+        for (Path entry : entries) {
+          delete(entry);
+        }
+      } finally {
+        entries.close();
+      }
+    }
+    Files.deleteIfExists(path);
+  }
+
+  /**
+   * Starts another job running once on the lock and waits until it holds the lock.
+   */
+  private Process startOnce(Path lock, Path done, String script) throws IOException, InterruptedException {
+    String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), FileCoordinator.class.getName(), "once", "--lock",
+      lock.toString(), "--done", done.toString(), "--", "sh", "-c", script).redirectErrorStream(true)
+      .redirectOutput(dir.resolve("child.log").toFile()).start();
+    children.add(child);
+    // the owner writes its name into the lock file once it holds the lock
+    long deadline = System.currentTimeMillis() + 30000;
+    while (!Files.exists(lock) || Files.size(lock) == 0) {
+      assertTrue(System.currentTimeMillis() < deadline, "the child never took the lock");
+      Thread.sleep(50);
+    }
+    return child;
+  }
+
+  private static String read(Path file) throws IOException {
+    return new String(Files.readAllBytes(file), UTF8);
+  }
+
+  @Test
+  public void testOnce() throws IOException, InterruptedException {
+    Path lock = dir.resolve("download.lock");
+    Path done = dir.resolve("download.done");
+    Path runs = dir.resolve("runs");
+
+    // a failing command leaves no done file and passes its status on
+    assertEquals(FileCoordinator.once(lock, done, Arrays.asList("sh", "-c", "echo failed >> " + runs + "; exit 3")), 3);
+    assertFalse(Files.exists(done));
+    assertEquals(FileCoordinator.once(lock, done, Arrays.asList("sh", "-c", "echo run >> " + runs)), 0);
+    assertTrue(Files.exists(done));
+    // once done, the command is not run again
+    assertEquals(FileCoordinator.once(lock, done, Arrays.asList("sh", "-c", "echo again >> " + runs + "; exit 1")), 0);
+    assertEquals(read(runs), "failed\nrun\n");
+  }
+
+  @Test
+  public void testWaiter() throws IOException, InterruptedException {
+    Path lock = dir.resolve("download.lock");
+    Path done = dir.resolve("download.done");
+    Path runs = dir.resolve("runs");
+    Process child = startOnce(lock, done, "sleep 1; echo child >> " + runs);
+
+    // the waiter gets the lock when the child is done and finds the done file
+    assertEquals(FileCoordinator.once(lock, done, Arrays.asList("sh", "-c", "echo waiter >> " + runs)), 0);
+    assertEquals(child.waitFor(), 0);
+    assertEquals(read(runs), "child\n");
+  }
+
+  @Test
+  public void testStaleLock() throws IOException, InterruptedException {
+    Path lock = dir.resolve("download.lock");
+    Path done = dir.resolve("download.done");
+    startOnce(lock, done, "sleep 60");
+    // the lock is still held, as a network filesystem may keep it, but its owner of this host is gone; no pid reaches 999999999
+    String owner = ManagementFactory.getRuntimeMXBean().getName();
+    Files.write(lock, ("999999999" + owner.substring(owner.indexOf('@')) + "\n").getBytes(UTF8));
+
+    FileChannel channel = FileCoordinator.lock(lock);
+    try {
+      assertEquals(read(lock), owner + "\n");
+      int stale = 0;
+      DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "download.lock.stale.*");
+      try {
+        for (Path entry : entries) {
+          stale++;
+          assertTrue(read(entry).startsWith("999999999@"));
+        }
+      } finally {
+        entries.close();
+      }
+      assertEquals(stale, 1);
+    } finally {
+      channel.close();
+    }
+  }
+
+  @Test
+  public void testLink() throws IOException {
+    Path source = Files.write(dir.resolve("source.bam"), new byte[]{1});
+    Path target = dir.resolve("target.bam");
+    // a link left dangling by the cleanup of an earlier run is replaced
+    Files.createSymbolicLink(target, dir.resolve("gone.bam"));
+    FileCoordinator.link(source, target);
+    assertEquals(Files.readSymbolicLink(target), source);
+    assertTrue(Files.exists(target));
+
+    // a file already there stays
+    Path file = Files.write(dir.resolve("file.bam"), new byte[]{2});
+    FileCoordinator.link(source, file);
+    assertFalse(Files.isSymbolicLink(file));
+    assertEquals(Files.readAllBytes(file), new byte[]{2});
+  }
+}
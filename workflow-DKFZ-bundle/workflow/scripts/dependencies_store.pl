@@ -0,0 +1,209 @@
+use strict;
+use Getopt::Long;
+use Fcntl qw(:flock);
+use File::Basename;
+use File::Path qw(mkpath rmtree);
+use File::Find;
+use File::Spec;
+use Digest::MD5;
+
+# PURPOSE:
+# keeps the extracted dependencies bundles of the DKFZ workflow in a store
+# on the node, or on a filesystem the nodes share, so the bundle is
+# downloaded and extracted by the first run that needs it and every later
+# run links it.  A bundle is keyed by its GNOS analysis UUID, which changes
+# with every new version of the bundle.
+#
+# On a miss the command after -- downloads the bundle's tarball in a staging
+# directory of the store, the tarball is extracted there, a manifest of the
+# extracted files with their sizes and md5s is written, the files are made
+# read-only and the directory is published into the store by a rename, so a
+# bundle is complete or absent.  The manifest's own md5 is kept beside it.
+#
+# On a hit the manifest is checked against its md5 and the files against
+# the manifest's sizes, or their md5s with --verify full; a bundle that
+# fails is moved aside and extracted again.  Then --link, the bundledFiles
+# directory the Roddy configurations expect, is pointed at the bundle's
+# bundledFiles by replacing the link in one rename.
+#
+# store layout:
+#   locks/<uuid>.lock        held while <uuid> is looked up or extracted
+#   <uuid>/bundledFiles/     the extracted bundle
+#   <uuid>/MANIFEST          <md5>  <bytes>  <path> per file
+#   <uuid>/MANIFEST.md5      the md5 of MANIFEST
+#   staging/, trash/         extractions in progress, bundles being deleted
+
+my $store;
+my $bundle;
+my $link;
+my $verify = "sizes";
+
+GetOptions (
+  "store=s" => \$store,
+  "bundle=s" => \$bundle,
+  "link=s" => \$link,
+  "verify=s" => \$verify,
+);
+my @command = @ARGV;
+
+if (!defined($store) || !defined($bundle) || !defined($link) || !@command || ($verify ne "sizes" && $verify ne "full")) {
+  die "USAGE: perl dependencies_store.pl --store <dir> --bundle <uuid> --link <dir>/bundledFiles [--verify sizes|full] -- <download command>\n";
+}
+
+# the command changes directory
+$store = File::Spec->rel2abs($store);
+$link = File::Spec->rel2abs($link);
+
+sub info {
+  print STDERR "[dependencies_store] @_\n";
+}
+
+foreach my $dir ("locks", "staging", "trash") {
+  mkpath("$store/$dir");
+}
+
+sub lock_file {
+  my ($file) = @_;
+  open(my $fh, ">>", $file) or die "Cannot open $file: $!\n";
+  flock($fh, LOCK_EX) or die "Cannot lock $file: $!\n";
+  return $fh;
+}
+
+sub file_md5 {
+  my ($file) = @_;
+  open(my $fh, "<", $file) or die "Cannot read $file: $!\n";
+  binmode($fh);
+  my $md5 = Digest::MD5->new->addfile($fh)->hexdigest;
+  close $fh;
+  return $md5;
+}
+
+# the files under the directory, relative to it and sorted
+sub files {
+  my ($dir) = @_;
+  my @files;
+  find({ wanted => sub { push @files, File::Spec->abs2rel($_, $dir) if -f $_ && !-l $_; }, no_chdir => 1 }, $dir);
+  return sort @files;
+}
+
+sub write_manifest {
+  my ($dir) = @_;
+  open(my $out, ">", "$dir/MANIFEST") or die "Cannot write $dir/MANIFEST: $!\n";
+  foreach my $file (files("$dir/bundledFiles")) {
+    my $path = "bundledFiles/$file";
+    print $out file_md5("$dir/$path") . "  " . (-s "$dir/$path") . "  $path\n";
+  }
+  close $out;
+  open($out, ">", "$dir/MANIFEST.md5") or die "Cannot write $dir/MANIFEST.md5: $!\n";
+  print $out file_md5("$dir/MANIFEST") . "\n";
+  close $out;
+}
+
+# whether the published bundle is whole, with the reason it is not
+sub check {
+  my ($dir) = @_;
+  return "no manifest" unless -f "$dir/MANIFEST" && -f "$dir/MANIFEST.md5";
+  open(my $in, "<", "$dir/MANIFEST.md5") or return "cannot read MANIFEST.md5";
+  my $expected = <$in>;
+  close $in;
+  chomp $expected;
+  return "the manifest does not match its md5" if file_md5("$dir/MANIFEST") ne $expected;
+  open($in, "<", "$dir/MANIFEST") or return "cannot read MANIFEST";
+  my $listed = 0;
+  while (my $line = <$in>) {
+    chomp $line;
+    my ($md5, $bytes, $path) = split(/  /, $line, 3);
+    $listed++;
+    return "$path is missing" unless -f "$dir/$path";
+    return "$path has " . (-s "$dir/$path") . " bytes, not $bytes" if (-s "$dir/$path") != $bytes;
+    return "$path does not match its md5" if $verify eq "full" && file_md5("$dir/$path") ne $md5;
+  }
+  close $in;
+  return "the manifest lists no files" unless $listed;
+  return undef;
+}
+
+# points the link at the bundle, replacing an older link in one rename
+sub link_bundle {
+  my $source = "$store/$bundle/bundledFiles";
+  if (-e $link && !-l $link) {
+    info("$link is a directory of its own, leaving it instead of linking $source");
+    return;
+  }
+  mkpath(dirname($link));
+  my $temporary = "$link.$$";
+  unlink($temporary);
+  symlink($source, $temporary) or die "Cannot link $temporary: $!\n";
+  rename($temporary, $link) or die "Cannot replace $link: $!\n";
+  info("linked $link to $source");
+}
+
+sub list {
+  my ($dir) = @_;
+  opendir(my $dh, $dir) or return ();
+  my @names = grep { !/^\./ } readdir($dh);
+  closedir($dh);
+  return @names;
+}
+
+sub empty_trash {
+  foreach my $name (list("$store/trash")) {
+    # the bundles are read-only
+    system("chmod", "-R", "u+w", "$store/trash/$name");
+    rmtree("$store/trash/$name");
+  }
+}
+
+# one extraction of a bundle at a time, the others wait for it and find it
+my $lock = lock_file("$store/locks/$bundle.lock");
+if (-d "$store/$bundle") {
+  my $problem = check("$store/$bundle");
+  if (!defined($problem)) {
+    close $lock;
+    info("found $bundle in $store");
+    link_bundle();
+    exit 0;
+  }
+  info("extracting $bundle again: $problem");
+  rename("$store/$bundle", "$store/trash/$bundle.$$") or die "Cannot move $store/$bundle aside: $!\n";
+  empty_trash();
+}
+
+# the extractions of processes that died are given up
+foreach my $name (grep { /^\Q$bundle\E\.(\d+)$/ && !kill(0, $1) } list("$store/staging")) {
+  rename("$store/staging/$name", "$store/trash/$name");
+}
+my $staging = "$store/staging/$bundle.$$";
+rmtree($staging);
+mkpath("$staging/extracted");
+chdir($staging) or die "Cannot change to $staging: $!\n";
+info("downloading $bundle");
+if (system(@command) != 0) {
+  chdir("/");
+  rmtree($staging);
+  die "Downloading $bundle failed\n";
+}
+my @tarballs = glob("$staging/$bundle/*.tar.gz");
+if (@tarballs != 1) {
+  chdir("/");
+  rmtree($staging);
+  die "Expected one tarball in the download of $bundle, found " . scalar(@tarballs) . "\n";
+}
+info("extracting $tarballs[0]");
+chdir("$staging/extracted") or die "Cannot change to $staging/extracted: $!\n";
+if (system("tar", "-xf", $tarballs[0]) != 0 || !-d "$staging/extracted/bundledFiles") {
+  chdir("/");
+  rmtree($staging);
+  die "Extracting $bundle failed or it has no bundledFiles\n";
+}
+chdir("/");
+write_manifest("$staging/extracted");
+system("chmod", "-R", "a-w", "$staging/extracted/bundledFiles");
+
+# publish the complete bundle in one rename
+rename("$staging/extracted", "$store/$bundle") or die "Cannot publish $bundle: $!\n";
+close $lock;
+rmtree($staging);
+empty_trash();
+info("stored $bundle in $store");
+link_bundle();
@@ -0,0 +1,283 @@
+use strict;
+use Getopt::Long;
+use Fcntl qw(:flock);
+use File::Basename;
+use File::Path qw(mkpath rmtree);
+use File::Find;
+use File::Spec;
+
+# PURPOSE:
+# a node-local cache of GNOS downloads shared by the workflow runs on the
+# node, so a BAM that is downloaded again, by a re-run or by another
+# workflow, is linked from the cache instead.  The entries are keyed by the
+# analysis UUID and the md5 of its BAM from the analysis metadata, so a new
+# upload under the same UUID is a different entry.
+#
+#   fetch:   links the analysis' files into --target, a directory named by
+#            the analysis UUID like gtdownload's own, downloading them first
+#            with the command after -- when the cache has no entry.  The
+#            command runs in a staging directory of the cache and the
+#            directory it downloads is published into the cache by a rename,
+#            so an entry is complete or absent.  The run takes a reference
+#            on the entry, which keeps it from eviction.
+#   release: drops the references of a run on an analysis, when the run is
+#            done with its files.
+#
+# Entries without references are evicted least recently used first to keep
+# the cache and the downloads in progress within --quota-bytes.  References
+# older than --ref-max-age-days are left by runs that failed before their
+# release and are dropped.  When the download does not fit even after
+# eviction, or the metadata has no md5, the files are downloaded into the
+# target's directory as without the cache.
+#
+# cache layout:
+#   .lock              held while the cache's bookkeeping changes
+#   locks/<key>.lock   held while <key> is looked up or downloaded
+#   entries/<key>/     the published files of <uuid>.<md5>
+#   used/<key>         its mtime is the last use of the entry
+#   refs/<key>/<run>   a reference of a run
+#   reserved/<key>.<pid>  the bytes of a download in progress
+#   staging/, trash/   downloads in progress, entries being deleted
+
+my $cache;
+my $quota = 500 * 1024 * 1024 * 1024;
+my $analysis;
+my $metadata_url;
+my $md5;
+my $target;
+my $run;
+my $ref_max_age_days = 14;
+
+my $action = shift @ARGV;
+GetOptions (
+  "cache=s" => \$cache,
+  "quota-bytes=f" => \$quota,
+  "analysis=s" => \$analysis,
+  "metadata-url=s" => \$metadata_url,
+  "md5=s" => \$md5,
+  "target=s" => \$target,
+  "run=s" => \$run,
+  "ref-max-age-days=f" => \$ref_max_age_days,
+);
+my @command = @ARGV;
+
+if (!defined($action) || !defined($cache) || !defined($analysis) || !defined($run)
+    || ($action eq "fetch" && (!defined($target) || !@command)) || ($action ne "fetch" && $action ne "release")) {
+  die "USAGE: perl download_cache.pl fetch --cache <dir> --analysis <uuid> --run <id> --target <dir>/<uuid> [--metadata-url <url> | --md5 <md5>]"
+    . " [--quota-bytes <bytes>] [--ref-max-age-days <days>] -- <download command>\n"
+    . "       perl download_cache.pl release --cache <dir> --analysis <uuid> --run <id>\n";
+}
+
+# the command changes directory
+$cache = File::Spec->rel2abs($cache);
+$target = File::Spec->rel2abs($target) if defined($target);
+
+sub info {
+  print STDERR "[download_cache] @_\n";
+}
+
+foreach my $dir ("locks", "entries", "used", "refs", "reserved", "staging", "trash") {
+  mkpath("$cache/$dir");
+}
+
+sub lock_file {
+  my ($file) = @_;
+  open(my $fh, ">>", $file) or die "Cannot open $file: $!\n";
+  flock($fh, LOCK_EX) or die "Cannot lock $file: $!\n";
+  return $fh;
+}
+
+sub touch {
+  my ($file) = @_;
+  open(my $fh, ">>", $file) or die "Cannot write $file: $!\n";
+  close $fh;
+  my $now = time();
+  utime($now, $now, $file);
+}
+
+sub bytes {
+  my ($path) = @_;
+  my $bytes = 0;
+  find({ wanted => sub { $bytes += -s $_ if -f $_ && !-l $_; }, no_chdir => 1 }, $path) if -e $path;
+  return $bytes;
+}
+
+sub list {
+  my ($dir) = @_;
+  opendir(my $dh, $dir) or return ();
+  my @names = grep { !/^\./ } readdir($dh);
+  closedir($dh);
+  return @names;
+}
+
+# the live references of an entry, dropping those of runs gone too long
+sub references {
+  my ($key) = @_;
+  my $live = 0;
+  foreach my $ref (list("$cache/refs/$key")) {
+    if (-M "$cache/refs/$key/$ref" > $ref_max_age_days) {
+      info("dropping the stale reference of $ref on $key");
+      unlink("$cache/refs/$key/$ref");
+    } else {
+      $live++;
+    }
+  }
+  return $live;
+}
+
+# evicts unreferenced entries, least recently used first, until $need more bytes fit in the quota; returns whether they fit
+sub make_room {
+  my ($need) = @_;
+  my %size;
+  my $used = 0;
+  foreach my $key (list("$cache/entries")) {
+    $size{$key} = bytes("$cache/entries/$key");
+    $used += $size{$key};
+  }
+  # the downloads of processes that died are given up
+  foreach my $name (list("$cache/staging")) {
+    my ($pid) = $name =~ /\.(\d+)$/;
+    rename("$cache/staging/$name", "$cache/trash/$name") if defined($pid) && !kill(0, $pid);
+  }
+  foreach my $reservation (list("$cache/reserved")) {
+    my ($pid) = $reservation =~ /\.(\d+)$/;
+    if (defined($pid) && !kill(0, $pid)) {
+      unlink("$cache/reserved/$reservation");
+      next;
+    }
+    open(my $fh, "<", "$cache/reserved/$reservation") or next;
+    my $bytes = <$fh>;
+    close $fh;
+    $used += $bytes;
+  }
+  foreach my $key (sort { (-M "$cache/used/$b") <=> (-M "$cache/used/$a") } keys %size) {
+    last if $used + $need <= $quota;
+    next if references($key) > 0;
+    my $trash = "$cache/trash/$key.$$";
+    rename("$cache/entries/$key", $trash) or next;
+    unlink("$cache/used/$key");
+    rmdir("$cache/refs/$key");
+    $used -= $size{$key};
+    info("evicted $key, " . $size{$key} . " bytes");
+  }
+  return $used + $need <= $quota;
+}
+
+sub empty_trash {
+  foreach my $name (list("$cache/trash")) {
+    rmtree("$cache/trash/$name");
+  }
+}
+
+sub link_entry {
+  my ($key) = @_;
+  mkpath($target);
+  foreach my $name (list("$cache/entries/$key")) {
+    unlink("$target/$name");
+    symlink("$cache/entries/$key/$name", "$target/$name") or die "Cannot link $target/$name: $!\n";
+  }
+}
+
+# the md5 and the bytes of the analysis' BAM from its GNOS metadata
+sub metadata {
+  return ($md5, 0) if defined($md5);
+  return (undef, 0) unless defined($metadata_url);
+  my $xml = `wget -q -O - $metadata_url`;
+  return (undef, 0) if $? != 0;
+  my ($bam_md5, $bytes);
+  while ($xml =~ /<file>(.*?)<\/file>/gs) {
+    my $file = $1;
+    my ($name) = $file =~ /<filename>([^<]*)<\/filename>/;
+    my ($size) = $file =~ /<filesize>(\d+)<\/filesize>/;
+    my ($checksum) = $file =~ /<checksum[^>]*>([0-9a-fA-F]{32})<\/checksum>/;
+    $bytes += $size if defined($size);
+    $bam_md5 = lc($checksum) if defined($name) && $name =~ /\.bam$/ && defined($checksum);
+  }
+  return ($bam_md5, $bytes || 0);
+}
+
+# the download as it would run without the cache
+sub download_uncached {
+  my ($reason) = @_;
+  info("downloading $analysis without the cache: $reason");
+  my $parent = dirname($target);
+  mkpath($parent);
+  chdir($parent) or die "Cannot change to $parent: $!\n";
+  exit(system(@command) == 0 ? 0 : 1);
+}
+
+if ($action eq "release") {
+  my $global = lock_file("$cache/.lock");
+  foreach my $key (grep { /^\Q$analysis\E\./ } list("$cache/refs")) {
+    unlink("$cache/refs/$key/$run");
+    touch("$cache/used/$key") if -d "$cache/entries/$key";
+    info("released $key for $run");
+  }
+  make_room(0);
+  close $global;
+  empty_trash();
+  exit 0;
+}
+
+my ($bam_md5, $bytes) = metadata();
+download_uncached("no md5 in the metadata") unless defined($bam_md5);
+my $key = "$analysis.$bam_md5";
+
+# one download of a key at a time, the others wait for it and find the entry
+my $key_lock = lock_file("$cache/locks/$key.lock");
+my $global = lock_file("$cache/.lock");
+if (-d "$cache/entries/$key") {
+  mkpath("$cache/refs/$key");
+  touch("$cache/refs/$key/$run");
+  touch("$cache/used/$key");
+  close $global;
+  close $key_lock;
+  link_entry($key);
+  info("found $key in the cache");
+  exit 0;
+}
+if (!make_room($bytes)) {
+  close $global;
+  close $key_lock;
+  empty_trash();
+  download_uncached("$bytes bytes do not fit in the quota of $quota bytes beside the entries in use");
+}
+my $reservation = "$cache/reserved/$key.$$";
+open(my $fh, ">", $reservation) or die "Cannot write $reservation: $!\n";
+print $fh "$bytes\n";
+close $fh;
+mkpath("$cache/refs/$key");
+touch("$cache/refs/$key/$run");
+close $global;
+empty_trash();
+
+my $staging = "$cache/staging/$key.$$";
+rmtree($staging);
+mkpath($staging);
+chdir($staging) or die "Cannot change to $staging: $!\n";
+info("downloading $key");
+my $status = system(@command);
+chdir("/");
+if ($status != 0 || !-d "$staging/$analysis" || ($bytes > 0 && bytes("$staging/$analysis") < $bytes)) {
+  $global = lock_file("$cache/.lock");
+  unlink($reservation);
+  unlink("$cache/refs/$key/$run");
+  rmdir("$cache/refs/$key");
+  close $global;
+  rmtree($staging);
+  die "Downloading $key failed\n";
+}
+
+# publish the complete download in one rename
+$global = lock_file("$cache/.lock");
+rename("$staging/$analysis", "$cache/entries/$key") or die "Cannot publish $key: $!\n";
+touch("$cache/used/$key");
+unlink($reservation);
+# a download of unknown size may have taken the cache over its quota
+make_room(0);
+close $global;
+close $key_lock;
+rmtree($staging);
+empty_trash();
+link_entry($key);
+info("cached $key");
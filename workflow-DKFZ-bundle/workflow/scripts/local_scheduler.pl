@@ -0,0 +1,151 @@
+use strict;
+use Fcntl qw(:flock);
+use File::Path qw(mkpath);
+use File::Spec;
+use POSIX qw(setsid);
+
+# PURPOSE:
+# a stand-in for the SGE commands Roddy and roddy_job_watcher.pl use, which
+# runs the jobs on the local machine, to try the submit-and-watch mode of
+# the DKFZ workflow without a cluster.  It prints what qsub, qstat and qacct
+# print for the parts the watcher reads:
+#
+#   perl local_scheduler.pl --dir <dir> qsub [-N <name>] [-hold_jid <id,...>] [-o <file>] [-e <file>] [-cwd] [-V] <script> [args]
+#   perl local_scheduler.pl --dir <dir> qstat
+#   perl local_scheduler.pl --dir <dir> qacct -j <id>
+#
+# A job runs with bash in the background once the jobs it holds on have
+# ended, whatever their exit status, as SGE's -hold_jid does.  Its state is
+# kept in the directory: <id>.job with its name and pid, <id>.exit with its
+# exit status once it ended.  A job whose process is gone without an exit
+# status is reported as failed.
+
+my $dir;
+if (@ARGV >= 2 && $ARGV[0] eq "--dir") {
+  shift @ARGV;
+  $dir = shift @ARGV;
+}
+my $action = shift @ARGV;
+if (!defined($dir) || !defined($action) || ($action ne "qsub" && $action ne "qstat" && $action ne "qacct")) {
+  die "USAGE: perl local_scheduler.pl --dir <dir> qsub [-N <name>] [-hold_jid <id,...>] [-o <file>] [-e <file>] <script> [args]\n"
+    . "       perl local_scheduler.pl --dir <dir> qstat\n"
+    . "       perl local_scheduler.pl --dir <dir> qacct -j <id>\n";
+}
+$dir = File::Spec->rel2abs($dir);
+mkpath($dir);
+
+sub read_file {
+  my ($file) = @_;
+  open(my $in, "<", $file) or return undef;
+  my $content = do { local $/; <$in> };
+  close $in;
+  chomp $content;
+  return $content;
+}
+
+sub write_file {
+  my ($file, $content) = @_;
+  open(my $out, ">", "$file.tmp") or die "Cannot write $file.tmp: $!\n";
+  print $out "$content\n";
+  close $out;
+  rename("$file.tmp", $file) or die "Cannot rename $file.tmp: $!\n";
+}
+
+sub jobs {
+  opendir(my $dh, $dir) or return ();
+  my @ids = sort { $a <=> $b } map { /^(\d+)\.job$/ ? $1 : () } readdir($dh);
+  closedir($dh);
+  return @ids;
+}
+
+# the name and pid of a job, with its state: r, hqw, Eqw when its process died, or undef when it ended
+sub job {
+  my ($id) = @_;
+  my ($name, $pid, $holds) = split(/\t/, read_file("$dir/$id.job"));
+  return ($name, undef) if -f "$dir/$id.exit";
+  return ($name, "Eqw") if !kill(0, $pid);
+  foreach my $hold (grep { length($_) } split(/,/, $holds)) {
+    return ($name, "hqw") if -f "$dir/$hold.job" && !-f "$dir/$hold.exit";
+  }
+  return ($name, "r");
+}
+
+if ($action eq "qstat") {
+  my @lines;
+  foreach my $id (jobs()) {
+    my ($name, $state) = job($id);
+    push @lines, sprintf("%7d 0.50000 %-10s %-12s %-5s %s %-30s %5d", $id, substr($name, 0, 10), scalar(getpwuid($<)) || "user", $state,
+      POSIX::strftime("%m/%d/%Y %H:%M:%S", localtime((stat("$dir/$id.job"))[9])), "local.q\@localhost", 1) if defined($state);
+  }
+  if (@lines) {
+    print "job-ID  prior   name       user         state submit/start at     queue                          slots ja-task-ID\n";
+    print "-" x 113 . "\n";
+    print "$_\n" foreach @lines;
+  }
+  exit 0;
+}
+
+if ($action eq "qacct") {
+  shift @ARGV if @ARGV && $ARGV[0] eq "-j";
+  my $id = shift @ARGV;
+  if (!defined($id) || !-f "$dir/$id.job") {
+    print STDERR "error: job id " . (defined($id) ? $id : "") . " not found\n";
+    exit 1;
+  }
+  my ($name, $state) = job($id);
+  if (defined($state) && $state ne "Eqw") {
+    print STDERR "error: job id $id not found\n";
+    exit 1;
+  }
+  my $exit = read_file("$dir/$id.exit");
+  print "=" x 62 . "\n";
+  print "qname        local.q\nhostname     localhost\njobname      $name\njobnumber    $id\n";
+  print "failed       " . (defined($exit) ? 0 : "100 : assumer process died") . "\n";
+  print "exit_status  " . (defined($exit) ? $exit : 137) . "\n";
+  exit 0;
+}
+
+# qsub
+my ($name, $holds, $stdout, $stderr) = (undef, "", undef, undef);
+while (@ARGV && $ARGV[0] =~ /^-/) {
+  my $option = shift @ARGV;
+  if ($option eq "-N") { $name = shift @ARGV; }
+  elsif ($option eq "-hold_jid") { $holds = shift @ARGV; }
+  elsif ($option eq "-o") { $stdout = shift @ARGV; }
+  elsif ($option eq "-e") { $stderr = shift @ARGV; }
+  elsif ($option eq "-cwd" || $option eq "-V") { }
+  else { die "local_scheduler.pl: unsupported qsub option $option\n"; }
+}
+my @command = @ARGV;
+die "local_scheduler.pl: qsub needs a script\n" unless @command;
+$name = (split(/\//, $command[0]))[-1] unless defined($name);
+
+open(my $lock, ">>", "$dir/.lock") or die "Cannot open $dir/.lock: $!\n";
+flock($lock, LOCK_EX) or die "Cannot lock $dir/.lock: $!\n";
+my $id = (read_file("$dir/.next_id") || 1);
+write_file("$dir/.next_id", $id + 1);
+close $lock;
+
+my $pid = fork();
+die "Cannot fork: $!\n" unless defined($pid);
+if ($pid == 0) {
+  setsid();
+  open(STDIN, "<", "/dev/null");
+  open(STDOUT, ">>", defined($stdout) ? $stdout : "$dir/$id.out");
+  open(STDERR, ">>", defined($stderr) ? $stderr : "$dir/$id.err");
+  # waits for the jobs it holds on to end, as their own processes would do on a cluster node
+  foreach my $hold (grep { length($_) } split(/,/, $holds)) {
+    while (-f "$dir/$hold.job" && !-f "$dir/$hold.exit") {
+      my (undef, $holdPid) = split(/\t/, read_file("$dir/$hold.job"));
+      last if !kill(0, $holdPid);
+      sleep 1;
+    }
+  }
+  $ENV{JOB_ID} = $id;
+  $ENV{JOB_NAME} = $name;
+  my $status = system("bash", @command);
+  write_file("$dir/$id.exit", $status == -1 ? 127 : ($status & 127 ? 128 + ($status & 127) : $status >> 8));
+  exit 0;
+}
+write_file("$dir/$id.job", "$name\t$pid\t$holds");
+print "Your job $id (\"$name\") has been submitted\n";
@@ -0,0 +1,173 @@
+use strict;
+use Getopt::Long;
+use File::Basename;
+use JSON::PP;
+
+# PURPOSE:
+# waits for the cluster jobs Roddy submitted and reports how they ended, so
+# Roddy can submit its jobs and exit instead of waiting for them with
+# --waitforjobs inside a job that holds its memory for the whole run.  The
+# job IDs are read from Roddy's output with --id-pattern, whose first group
+# is the ID.
+#
+# The scheduler is asked about all the jobs with one qstat per poll; a job
+# that left the queue is looked up with qacct for its exit status, which the
+# accounting file may only show some polls later.  A job in an error state
+# is counted as failed, and so are the jobs left on hold behind it.  The
+# poll interval starts at --min-interval seconds and doubles up to
+# --max-interval while nothing changes, and goes back to the minimum when a
+# job ends.
+#
+# --scheduler local runs qstat and qacct of local_scheduler.pl in
+# --local-dir instead, the stand-in that runs the jobs on this machine.
+#
+# The exit status is the number of failed jobs, as Roddy's with
+# --waitforjobs, and the jobs are written to --report as JSON.  A log
+# without any job ID fails with 1 without watching anything: either Roddy
+# submitted nothing or --id-pattern does not match its output, and the jobs
+# after this one must not go on as if the results were there.
+
+my $log;
+my $id_pattern = 'Your job(?:-array)? (\d+)';
+my $scheduler = "sge";
+my $local_dir;
+my $min_interval = 15;
+my $max_interval = 300;
+my $accounting_polls = 10;
+my $report;
+
+GetOptions (
+  "log=s" => \$log,
+  "id-pattern=s" => \$id_pattern,
+  "scheduler=s" => \$scheduler,
+  "local-dir=s" => \$local_dir,
+  "min-interval=i" => \$min_interval,
+  "max-interval=i" => \$max_interval,
+  "accounting-polls=i" => \$accounting_polls,
+  "report=s" => \$report,
+);
+
+if (!defined($log) || ($scheduler ne "sge" && $scheduler ne "local") || ($scheduler eq "local" && !defined($local_dir))) {
+  die "USAGE: perl roddy_job_watcher.pl --log <roddy output> [--id-pattern <regex>] [--scheduler sge|local] [--local-dir <dir>]"
+    . " [--min-interval <seconds>] [--max-interval <seconds>] [--accounting-polls <n>] [--report <json>]\n";
+}
+
+sub info {
+  print "[roddy_job_watcher] @_\n";
+}
+
+my @qstat = ("qstat");
+my @qacct = ("qacct");
+if ($scheduler eq "local") {
+  my $stand_in = dirname($0) . "/local_scheduler.pl";
+  @qstat = ("perl", $stand_in, "--dir", $local_dir, "qstat");
+  @qacct = ("perl", $stand_in, "--dir", $local_dir, "qacct");
+}
+
+# the IDs in the order Roddy submitted them
+my @ids;
+my %jobs;
+open(my $in, "<", $log) or die "Cannot read $log: $!\n";
+while (my $line = <$in>) {
+  while ($line =~ /$id_pattern/g) {
+    next if exists $jobs{$1};
+    push @ids, $1;
+    $jobs{$1} = { id => $1, state => "queued" };
+  }
+}
+close $in;
+if (!@ids) {
+  info("no job IDs matching /$id_pattern/ in $log");
+  if (defined($report)) {
+    open(my $out, ">", $report) or die "Cannot write $report: $!\n";
+    print $out JSON::PP->new->canonical->pretty->encode({ jobs => [], failed => 0, error => "no job IDs in the log" });
+    close $out;
+  }
+  exit 1;
+}
+info("watching " . scalar(@ids) . " jobs: @ids");
+
+sub run {
+  my (@command) = @_;
+  my $pid = open(my $out, "-|");
+  die "Cannot fork: $!\n" unless defined($pid);
+  if ($pid == 0) {
+    open(STDERR, ">", "/dev/null");
+    exec(@command) or exit 127;
+  }
+  local $/;
+  my $output = <$out>;
+  close $out;
+  return ($? >> 8, defined($output) ? $output : "");
+}
+
+my $interval = $min_interval;
+my @open = @ids;
+while (@open) {
+  my ($status, $output) = run(@qstat);
+  if ($status != 0) {
+    info("qstat failed, polling again");
+  } else {
+    my %queued;
+    foreach my $line (split(/\n/, $output)) {
+      # job-ID prior name user state ...
+      my @fields = split(' ', $line);
+      $queued{$fields[0]} = $fields[4] if @fields >= 5 && $fields[0] =~ /^\d+$/;
+    }
+    my $changed = 0;
+    foreach my $id (@open) {
+      my $job = $jobs{$id};
+      if (exists $queued{$id} && $queued{$id} !~ /E/) {
+        $job->{state} = $queued{$id} =~ /r|t/ ? "running" : "queued";
+        $job->{queue_state} = $queued{$id};
+        next;
+      }
+      if (exists $queued{$id}) {
+        $job->{state} = "error";
+        $job->{queue_state} = $queued{$id};
+        $changed = 1;
+        info("job $id is in the error state $queued{$id}");
+        next;
+      }
+      my ($found, $accounting) = run(@qacct, "-j", $id);
+      my ($exit) = $accounting =~ /^exit_status\s+(\d+)/m;
+      my ($failed) = $accounting =~ /^failed\s+(\d+)/m;
+      if ($found != 0 || !defined($exit)) {
+        # the accounting file is written after the job left the queue
+        $job->{accounting_polls}++;
+        next if $job->{accounting_polls} < $accounting_polls;
+        $job->{state} = "unknown";
+        $changed = 1;
+        info("job $id left the queue without an accounting record");
+        next;
+      }
+      $job->{exit_status} = $exit + 0;
+      $job->{failed} = defined($failed) ? $failed + 0 : 0;
+      $job->{state} = $exit == 0 && !$job->{failed} ? "done" : "failed";
+      $changed = 1;
+      info("job $id ended with exit status $exit" . ($job->{failed} ? ", failed $failed" : ""));
+    }
+    @open = grep { $jobs{$_}{state} eq "queued" || $jobs{$_}{state} eq "running" } @open;
+    # jobs on hold for a job in an error state would wait for it forever
+    if (@open && !grep { $jobs{$_}{queue_state} !~ /h/ } @open) {
+      if (grep { $jobs{$_}{state} eq "error" } @ids) {
+        foreach my $id (@open) {
+          $jobs{$id}{state} = "held";
+        }
+        info("giving up on the jobs held behind jobs in an error state: @open");
+        @open = ();
+      }
+    }
+    $interval = $changed ? $min_interval : ($interval * 2 > $max_interval ? $max_interval : $interval * 2);
+  }
+  sleep($interval) if @open;
+}
+
+my @failed = grep { $jobs{$_}{state} ne "done" } @ids;
+info(scalar(@ids) - scalar(@failed) . " of " . scalar(@ids) . " jobs succeeded" . (@failed ? ", failed: @failed" : ""));
+if (defined($report)) {
+  open(my $out, ">", $report) or die "Cannot write $report: $!\n";
+  print $out JSON::PP->new->canonical->pretty->encode({ jobs => [map { $jobs{$_} } @ids], failed => scalar(@failed) });
+  close $out;
+}
+exit(@failed > 255 ? 255 : scalar(@failed));
@@ -0,0 +1,126 @@
+use strict;
+use File::Basename;
+use File::Spec;
+use File::Temp qw(tempdir);
+use JSON::PP;
+use Test::More tests => 17;
+
+# PURPOSE:
+# runs roddy_job_watcher.pl against jobs submitted to local_scheduler.pl,
+# with a Roddy log made of what qsub printed for them.
+#
+#   prove workflow-DKFZ-bundle/workflow/scripts/t
+
+my $scripts = dirname(dirname(File::Spec->rel2abs($0)));
+my $tmp = tempdir(CLEANUP => 1);
+my $case = 0;
+
+# submits each job, given as [name, script, hold IDs], and returns the scheduler's directory, the log and the IDs
+sub submit {
+  my (@jobs) = @_;
+  $case++;
+  my $dir = "$tmp/scheduler$case";
+  my $log = "$tmp/roddy$case.txt";
+  my @ids;
+  open(my $out, ">", $log) or die "Cannot write $log: $!\n";
+  print $out "Roddy starts case $case\n";
+  foreach my $job (@jobs) {
+    my ($name, $script, $holds) = @$job;
+    my $file = "$tmp/$name.$case.sh";
+    open(my $sh, ">", $file) or die "Cannot write $file: $!\n";
+    print $sh "$script\n";
+    close $sh;
+    my @hold = defined($holds) ? ("-hold_jid", join(",", map { $ids[$_] } @$holds)) : ();
+    my $submitted = `perl $scripts/local_scheduler.pl --dir $dir qsub -N $name @hold $file`;
+    my ($id) = $submitted =~ /Your job (\d+)/ or die "qsub failed: $submitted\n";
+    push @ids, $id;
+    print $out "Submitted $name: $submitted";
+  }
+  close $out;
+  return ($dir, $log, @ids);
+}
+
+# runs the watcher and returns its exit status and report
+sub watch {
+  my ($dir, $log, @options) = @_;
+  my $report = "$log.json";
+  my $status = system("perl $scripts/roddy_job_watcher.pl --log $log @options --scheduler local --local-dir $dir --min-interval 1 --max-interval 1 --accounting-polls 3"
+    . " --report $report > $log.watcher 2>&1") >> 8;
+  open(my $in, "<", $report) or return ($status, undef);
+  my $json = do { local $/; <$in> };
+  close $in;
+  return ($status, decode_json($json));
+}
+
+sub states {
+  my ($report) = @_;
+  return join(" ", map { $_->{state} } @{$report->{jobs}});
+}
+
+# the pattern the workflow passes by default
+my $ini = dirname($scripts) . "/config/DKFZ-Workflow-Bundle.ini";
+open(my $config, "<", $ini) or die "Cannot read $ini: $!\n";
+my ($id_pattern) = map { /^roddy_job_watcher_id_pattern=(.*)$/ ? $1 : () } <$config>;
+close $config;
+
+# jobs that succeed
+{
+  my ($dir, $log) = submit(["first", "sleep 1"], ["second", "true"]);
+  my ($status, $report) = watch($dir, $log, "--id-pattern", "'$id_pattern'");
+  is($status, 0, "succeeding jobs exit with 0");
+  is(states($report), "done done", "succeeding jobs are done");
+  is($report->{failed}, 0, "no job failed");
+}
+
+# a job that exits non-zero
+{
+  my ($dir, $log) = submit(["good", "true"], ["bad", "exit 3"]);
+  my ($status, $report) = watch($dir, $log);
+  is($status, 1, "one failed job exits with 1");
+  is(states($report), "done failed", "the job exiting non-zero failed");
+  is($report->{jobs}[1]{exit_status}, 3, "its exit status is reported");
+}
+
+# a chain of jobs each held on the one before
+{
+  my $order = "$tmp/order";
+  my ($dir, $log) = submit(["a", "sleep 2; echo a >> $order"], ["b", "echo b >> $order", [0]], ["c", "echo c >> $order", [1]]);
+  my ($status, $report) = watch($dir, $log);
+  is($status, 0, "a hold chain exits with 0");
+  is(states($report), "done done done", "every job of the chain is done");
+  open(my $in, "<", $order) or die "Cannot read $order: $!\n";
+  my $ran = join(" ", map { chomp; $_ } <$in>);
+  close $in;
+  is($ran, "a b c", "the held jobs ran after the jobs they held on");
+}
+
+# a job whose process is killed, which the scheduler shows in the error state Eqw
+{
+  my ($dir, $log, @ids) = submit(["survivor", "true"], ["victim", "sleep 60"]);
+  open(my $in, "<", "$dir/$ids[1].job") or die "Cannot read $dir/$ids[1].job: $!\n";
+  my (undef, $pid) = split(/\t/, <$in>);
+  close $in;
+  ok($pid, "the victim was started");
+  # the job runs in a session of its own
+  kill("KILL", -$pid);
+  sleep 1 while kill(0, $pid);
+  my ($status, $report) = watch($dir, $log);
+  is($status, 1, "a killed job exits with 1");
+  is(states($report), "done error", "the killed job is in the error state");
+  is($report->{jobs}[1]{queue_state}, "Eqw", "the state is the one qstat shows");
+}
+
+# a log without job IDs
+{
+  my $log = "$tmp/roddy.failed.txt";
+  open(my $out, ">", $log) or die "Cannot write $log: $!\n";
+  print $out "Roddy could not load the configuration\n";
+  close $out;
+  my ($status, $report) = watch("$tmp/scheduler.empty", $log);
+  isnt($status, 0, "a log without job IDs fails");
+  is(scalar(@{$report->{jobs}}), 0, "no jobs are reported");
+  ok($report->{error}, "the report says why");
+  open(my $in, "<", "$log.watcher") or die "Cannot read $log.watcher: $!\n";
+  like(do { local $/; <$in> }, qr/no job IDs/, "the watcher says why");
+  close $in;
+}
@@ -0,0 +1,162 @@
+package com.github.seqware;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.sourceforge.seqware.pipeline.workflowV2.model.AbstractJob;
+import net.sourceforge.seqware.pipeline.workflowV2.model.Job;
+
+/**
+ * Collapses strictly serial chains of short jobs into single jobs once the workflow is built, so a chain pays the scheduler's queue wait once instead of
+ * once per step.
+ *
+ * A job is merged into its parent when it is the parent's only child and the parent is its only parent, both have a duration estimate and together they
+ * stay within the duration and memory limits. Jobs without an estimate are never merged, so a long download or a step of unknown size keeps its own
+ * slot. The merged job gets the larger memory and thread count of the two and runs the steps one after the other, each in its own subshell with its
+ * start and exit code logged to stderr, stopping at the first step that fails with that step's exit code.
+ */
+class JobFusion {
+
+  private static final Logger logger = Logger.getLogger(JobFusion.class.getName());
+
+  // the jobs of the workflow, which fusing removes the merged jobs from
+  private final List<AbstractJob> jobs;
+  private final long maxSeconds;
+  private final int maxMemoryM;
+
+  private final Map<Job, Long> seconds = new IdentityHashMap<Job, Long>();
+  // the steps of the jobs merged so far, by the job that runs them
+  private final Map<Job, List<String[]>> steps = new IdentityHashMap<Job, List<String[]>>();
+
+  JobFusion(List<AbstractJob> jobs, long maxSeconds, int maxMemoryM) {
+    this.jobs = jobs;
+    this.maxSeconds = maxSeconds;
+    this.maxMemoryM = maxMemoryM;
+  }
+
+  /**
+   * Records how long a job is expected to run, a negative duration for unknown.
+   */
+  void estimate(Job job, long jobSeconds) {
+    if (jobSeconds >= 0) {
+      seconds.put(job, jobSeconds);
+    }
+  }
+
+  /**
+   * Merges the chains of the workflow's jobs.
+   *
+   * @return the number of jobs merged into their parents
+   */
+  int fuse() {
+    int fused = 0;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      Map<Job, List<Job>> children = children();
+      for (AbstractJob job : jobs) {
+        List<Job> next = children.get(job);
+        if (next != null && next.size() == 1 && canFuse(job, next.get(0))) {
+          fuse(job, next.get(0), children.get(next.get(0)));
+          fused++;
+          changed = true;
+          break;
+        }
+      }
+    }
+    return fused;
+  }
+
+  private Map<Job, List<Job>> children() {
+    Map<Job, List<Job>> children = new IdentityHashMap<Job, List<Job>>();
+    for (AbstractJob job : jobs) {
+      for (Job parent : job.getParents()) {
+        List<Job> list = children.get(parent);
+        if (list == null) {
+          list = new ArrayList<Job>();
+          children.put(parent, list);
+        }
+        list.add(job);
+      }
+    }
+    return children;
+  }
+
+  private boolean canFuse(Job parent, Job child) {
+    if (child.getParents().size() != 1 || !seconds.containsKey(parent) || !seconds.containsKey(child)) {
+      return false;
+    }
+    return seconds.get(parent) + seconds.get(child) <= maxSeconds && Math.max(memory(parent), memory(child)) <= maxMemoryM;
+  }
+
+  private static int memory(Job job) {
+    return job.getMaxMemory() == null ? 0 : Integer.parseInt(job.getMaxMemory());
+  }
+
+  private void fuse(Job parent, Job child, List<Job> grandchildren) {
+    List<String[]> merged = stepsOf(parent);
+    merged.addAll(stepsOf(child));
+    steps.remove(child);
+
+    List<String> arguments = parent.getCommand().getArguments();
+    arguments.clear();
+    arguments.add(script(merged));
+    parent.setMaxMemory("" + Math.max(memory(parent), memory(child)));
+    parent.setThreads(Math.max(parent.getThreads(), child.getThreads()));
+    seconds.put(parent, seconds.get(parent) + seconds.remove(child));
+
+    if (grandchildren != null) {
+      for (Job grandchild : grandchildren) {
+        grandchild.getParents().remove(child);
+        if (!grandchild.getParents().contains(parent)) {
+          grandchild.addParent(parent);
+        }
+      }
+    }
+    for (Iterator<AbstractJob> it = jobs.iterator(); it.hasNext();) {
+      if (it.next() == child) {
+        it.remove();
+      }
+    }
+    logger.log(Level.INFO, "Fused {0} into {1}, about {2} s and {3} MB for {4} steps", new Object[]{child.getAlgo(), parent.getAlgo(),
+      seconds.get(parent), parent.getMaxMemory(), merged.size()});
+  }
+
+  /**
+   * The steps a job runs, as name and command pairs: its own command until something is merged into it.
+   */
+  private List<String[]> stepsOf(Job job) {
+    List<String[]> list = steps.get(job);
+    if (list == null) {
+      StringBuilder command = new StringBuilder();
+      for (String argument : job.getCommand().getArguments()) {
+        command.append(command.length() == 0 ? "" : " ").append(argument);
+      }
+      list = new ArrayList<String[]>();
+      list.add(new String[]{job.getAlgo(), command.toString()});
+      steps.put(job, list);
+    }
+    return list;
+  }
+
+  private static String script(List<String[]> steps) {
+    StringBuilder script = new StringBuilder();
+    Map<String, Integer> seen = new HashMap<String, Integer>();
+    for (String[] step : steps) {
+      String name = step[0];
+      Integer count = seen.get(name);
+      seen.put(name, count == null ? 1 : count + 1);
+      if (count != null) {
+        name = name + "#" + (count + 1);
+      }
+      script.append(String.format("echo \"[%1$s] started $(date)\" >&2 ; ( %2$s ) ; rc=$? ; echo \"[%1$s] exit code $rc $(date)\" >&2 ;"
+          + " [ $rc -eq 0 ] || exit $rc ; ", name, step[1]));
+    }
+    return script.toString();
+  }
+}
@@ -4,8 +4,14 @@ package com.github.seqware;
  * Mine
  */
 import ca.on.oicr.pde.utilities.workflows.OicrWorkflow;
+import com.github.seqware.slicer.ResourcePlan;
+import com.github.seqware.slicer.StageArguments;
+import com.github.seqware.telemetry.JobTelemetry;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import net.sourceforge.seqware.pipeline.workflowV2.model.Job;
@@ -34,6 +40,18 @@ public class WorkflowClient extends OicrWorkflow {
   boolean useGtUpload = true;
   boolean isTesting = true;
   boolean extract_and_upload_unmapped_reads = true;
+  // slice each BAM while gtdownload is still writing it
+  boolean streamDownload = false;
+  String downloadCacheDir = null;
+  int downloadCacheQuotaG = 500;
+  // names this run's references on the download cache entries
+  String runId = UUID.randomUUID().toString();
+  // recover the mates of the orphans in the slice job, handing the orphans over in memory instead of through a file
+  boolean recoverMatesInSlice = false;
+  // fetch only the parts of each BAM the slices need over HTTP range requests instead of downloading it
+  boolean useHttpRanges = false;
+  ArrayList<String> httpURLs = new ArrayList<String>();
+  int httpConnections = 4;
 
   String outputDir = "results";
   String outputPrefix = "./";
@@ -44,9 +62,34 @@ public class WorkflowClient extends OicrWorkflow {
   
   String mergeJobMemG = "4";
 
+  // the number of slice/orphan/mate recovery job groups each input BAM is split into
+  int sliceShards = 1;
+
+  // BGZF compression of the slicer outputs and decompression of its input
+  int compressionThreads = 1;
+  int decompressionThreads = 1;
+  int firstSliceCompressionLevel = 1;
+  int secondSliceCompressionLevel = 1;
+  int unmappedReadsCompressionLevel = 6;
+  // also write SHA-256 sidecars next to the MD5 ones of the merged BAMs and their indexes
+  boolean writeSha256 = false;
+
+  // size the memory and threads of the slicer jobs from the inputs instead of the fixed settings, within these limits
+  boolean useResourceModel = false;
+  int maxJobMemM = 16000;
+  int maxJobThreads = 8;
+
+  // merge serial chains of short jobs into single jobs within these limits
+  boolean fuseJobs = false;
+  int fuseMaxMinutes = 15;
+  int fuseMaxMemM = 8000;
+  boolean jobTelemetry = false;
+  int telemetryIntervalSeconds = 5;
+
   String skipUpload = null;
 
   String pcapPath = "/bin/PCAP-core-1.0.4";
+  String javaPath = "/bin/jre1.7.0_51/bin/java";
   
   // GTDownload
   // each retry is 1 minute
@@ -98,11 +141,37 @@ public class WorkflowClient extends OicrWorkflow {
       gtuploadMemG = getProperty("gtuploadMemG") == null ? "8" : getProperty("gtuploadMemG");
       smallJobMemM = getProperty("smallJobMemM") == null ? "4000" : getProperty("smallJobMemM");
       mergeJobMemG = getProperty("mergeJobMemG") == null ? "4" : getProperty("mergeJobMemG");
+      sliceShards = getProperty("slice_shards") == null ? 1 : Integer.parseInt(getProperty("slice_shards"));
+      compressionThreads = getProperty("compression_threads") == null ? 1 : Integer.parseInt(getProperty("compression_threads"));
+      decompressionThreads = getProperty("decompression_threads") == null ? 1 : Integer.parseInt(getProperty("decompression_threads"));
+      firstSliceCompressionLevel = getProperty("first_slice_compression_level") == null ? 1 : Integer.parseInt(getProperty("first_slice_compression_level"));
+      secondSliceCompressionLevel = getProperty("second_slice_compression_level") == null ? 1 : Integer.parseInt(getProperty("second_slice_compression_level"));
+      unmappedReadsCompressionLevel = getProperty("unmapped_reads_compression_level") == null ? 6 : Integer.parseInt(getProperty("unmapped_reads_compression_level"));
       
       if (getProperty("use_gtdownload") != null && "false".equals(getProperty("use_gtdownload"))) { useGtDownload = false; }
       if (getProperty("use_gtupload") != null && "false".equals(getProperty("use_gtupload"))) { useGtUpload = false; }
       if (getProperty("isTesting") != null && "false".equals(getProperty("isTesting"))) { isTesting = false; }
       if (getProperty("extract_and_upload_unmapped_reads") != null && "false".equals(getProperty("extract_and_upload_unmapped_reads"))) { extract_and_upload_unmapped_reads = false; }
+      if (getProperty("use_http_ranges") != null && "true".equals(getProperty("use_http_ranges"))) { useHttpRanges = true; }
+      if (getProperty("write_sha256") != null && "true".equals(getProperty("write_sha256"))) { writeSha256 = true; }
+      if (getProperty("use_resource_model") != null && "true".equals(getProperty("use_resource_model"))) { useResourceModel = true; }
+      maxJobMemM = getProperty("max_job_mem_m") == null ? 16000 : Integer.parseInt(getProperty("max_job_mem_m"));
+      maxJobThreads = getProperty("max_job_threads") == null ? 8 : Integer.parseInt(getProperty("max_job_threads"));
+      if (getProperty("fuse_jobs") != null && "true".equals(getProperty("fuse_jobs"))) { fuseJobs = true; }
+      fuseMaxMinutes = getProperty("fuse_max_minutes") == null ? 15 : Integer.parseInt(getProperty("fuse_max_minutes"));
+      fuseMaxMemM = getProperty("fuse_max_mem_m") == null ? 8000 : Integer.parseInt(getProperty("fuse_max_mem_m"));
+      if (getProperty("job_telemetry") != null && "true".equals(getProperty("job_telemetry"))) { jobTelemetry = true; }
+      telemetryIntervalSeconds = getProperty("telemetry_interval_seconds") == null ? 5 : Integer.parseInt(getProperty("telemetry_interval_seconds"));
+      if (useHttpRanges) {
+        for (String url : getProperty("input_bam_http_urls").split(",")) {
+          httpURLs.add(url);
+        }
+      }
+      httpConnections = getProperty("http_connections") == null ? 4 : Integer.parseInt(getProperty("http_connections"));
+      if (getProperty("stream_download") != null && "true".equals(getProperty("stream_download"))) { streamDownload = true; }
+      if (getProperty("download_cache_dir") != null && !"".equals(getProperty("download_cache_dir"))) { downloadCacheDir = getProperty("download_cache_dir"); }
+      downloadCacheQuotaG = getProperty("download_cache_quota_gb") == null ? 500 : Integer.parseInt(getProperty("download_cache_quota_gb"));
+      if (getProperty("recover_mates_in_slice") != null && "true".equals(getProperty("recover_mates_in_slice"))) { recoverMatesInSlice = true; }
 
     } catch (Exception e) {
       Logger.getLogger(WorkflowClient.class.getName()).log(Level.SEVERE, null, e);
@@ -122,9 +191,38 @@ public class WorkflowClient extends OicrWorkflow {
   public void buildWorkflow() {
 
     int numBamFiles = bamPaths.size();
+    int numThreads = 1;
+    if (getProperty("numOfThreads") != null && !getProperty("numOfThreads").isEmpty()) {
+      numThreads = Integer.parseInt(getProperty("numOfThreads"));
+    }
+    ResourcePlan plan = resourcePlan(numThreads);
+    JobFusion fusion = new JobFusion(this.getWorkflow().getJobs(), fuseMaxMinutes * 60L, fuseMaxMemM);
+    StageArguments stages = new StageArguments(this.getWorkflowBaseDir() + "/scripts/encodeRegions.bed", sliceShards, firstSliceCompressionLevel,
+        secondSliceCompressionLevel, unmappedReadsCompressionLevel, writeSha256);
     ArrayList<Job> firstPartJobs = new ArrayList<Job>();
     ArrayList<Job> firstPartUnmappedReadJobs = new ArrayList<Job>();
 
+    // the unmapped reads are spread over the whole file, so fetching ranges only pays off without them
+    boolean ranges = useHttpRanges && !extract_and_upload_unmapped_reads;
+    if (useHttpRanges && !ranges) {
+      Logger.getLogger(WorkflowClient.class.getName()).log(Level.WARNING,
+          "use_http_ranges needs extract_and_upload_unmapped_reads=false since the unmapped reads are spread over the whole BAM, downloading instead");
+    }
+
+    // the range fetch of the mates needs the orphans in a file before the mate recovery can read them
+    boolean inSlice = recoverMatesInSlice && !ranges;
+    if (recoverMatesInSlice && !inSlice) {
+      Logger.getLogger(WorkflowClient.class.getName()).log(Level.WARNING,
+          "recover_mates_in_slice cannot be combined with use_http_ranges, which fetches the mates from the orphans file, using separate jobs instead");
+    }
+
+    // following a download needs a single sequential pass over the input, so sharded slicing waits for the download instead
+    boolean streaming = streamDownload && useGtDownload && sliceShards == 1 && !ranges && downloadCacheDir == null;
+    if (streamDownload && downloadCacheDir != null) {
+      Logger.getLogger(WorkflowClient.class.getName()).log(Level.WARNING,
+          "stream_download cannot follow a download into the download cache, which publishes a BAM only once it is complete, slicing after the download instead");
+    }
+
     int numInputURLs = this.inputURLs.size();
     for (int i = 0; i < numInputURLs; i++) {
       
@@ -135,210 +233,165 @@ public class WorkflowClient extends OicrWorkflow {
         
       // the download job that either downloads or locates the file on the file system
       Job downloadJob = null;
-      if (useGtDownload) {
+      if (ranges) {
+        // the index, the header and the region chunks, written at their own offsets into a sparse copy of the BAM
+        downloadJob = this.getWorkflow().createBashJob("fetchRanges" + i);
+        downloadJob.getCommand().addArgument(javaStage("com.github.seqware.slicer.RangeFetcher", 2000))
+            .addArgument("--url " + httpURLs.get(i))
+            .addArgument("--output " + file)
+            .addArgument("--regions " + this.getWorkflowBaseDir() + "/scripts/encodeRegions.bed")
+            .addArgument("--connections " + httpConnections);
+        downloadJob.setMaxMemory("2000");
+      } else if (useGtDownload) {
         downloadJob = this.getWorkflow().createBashJob("gtdownload" + i);
-        addDownloadJobArgs(downloadJob, file, fileURL);
+        addDownloadJobArgs(downloadJob, file, fileURL, inputMetadataURLs.get(i));
+        if (streaming) {
+          // tell the slice job following the download how it ended
+          downloadJob.getCommand().addArgument("&& touch " + file + ".complete || { touch " + file + ".failed; exit 1; }");
+        }
         downloadJob.setMaxMemory(gtdownloadMemG + "000");
       }
       
-      // dump out the original header for later use
-      Job headerJob = null;
-      headerJob = this.getWorkflow().createBashJob("headerJob" + i);
-      //headerJob.getCommand().addArgument(this.getWorkflowBaseDir() + pcapPath + "/bin/samtools view -H " + file + " | sed 's/\\t/\\\\t/g' > bam_header." + i + ".txt");
-      headerJob.getCommand().addArgument("samtools view -H " + file + " | sed 's/\\t/\\\\t/g' > bam_header." + i + ".txt");
-      headerJob.setMaxMemory("6000");
-
-      if (useGtDownload) {
-    	  headerJob.addParent(downloadJob);
+      // build BAM index file if it does not exist; an unsharded slice that also extracts the unmapped reads indexes the input during its own full
+      // read instead
+      Job buildBamIndex = null;
+      if (!streaming && (sliceShards > 1 || !extract_and_upload_unmapped_reads)) {
+        buildBamIndex = this.getWorkflow().createBashJob("buildBamIndex" + i);
+        ResourcePlan.Resources indexResources = plan.index(i, "buildBamIndex" + i);
+        buildBamIndex.getCommand().addArgument("test -s " + file + ".bai ||")
+            .addArgument(javaStage("com.github.seqware.slicer.BamIndexer", indexResources.getMemoryM()));
+        addArguments(buildBamIndex, StageArguments.index(file));
+
+        buildBamIndex.setMaxMemory("" + indexResources.getMemoryM());
+        fusion.estimate(buildBamIndex, indexResources.getSeconds());
+        if (downloadJob != null) {
+          buildBamIndex.addParent(downloadJob);
+        }
       }
       
-      // build BAM index file if it does not exist
-      Job buildBamIndex = this.getWorkflow().createBashJob("buildBamIndex" + i);
-      buildBamIndex.getCommand().addArgument(
-    		  "test -s " + file + ".bai || "
-    		  + "cat " + file + " | "
-    		  + "LD_LIBRARY_PATH=" + this.getWorkflowBaseDir() + pcapPath + "/lib "
-    		  + this.getWorkflowBaseDir() + pcapPath + "/bin/bamindex "
-    		  + "> " + file + ".bai");
-
-      buildBamIndex.setMaxMemory("4000");
-      buildBamIndex.addParent(headerJob);      
-      
-      // slice out the reads within the specified regions in a BED file
-      Job firstSliceJob = this.getWorkflow().createBashJob("firstSlice" + i);
-      firstSliceJob.getCommand().addArgument(
-    		  this.getWorkflowBaseDir() + pcapPath + "/bin/samtools view -h -L "  // this will include single-end-mapped reads and their unmapped mates (which share the same rname and pos)
-    		  + this.getWorkflowBaseDir() + "/scripts/encodeRegions.bed "
-    		  + file
-    		  + " | perl " + this.getWorkflowBaseDir() + "/scripts/remove_both_ends_unmapped_reads.pl "  // this is necessary because samtools -L outputs both-ends-unmapped reads
-    		  + " | "
-    		  + "LD_LIBRARY_PATH=" + this.getWorkflowBaseDir() + pcapPath + "/lib "
-              + this.getWorkflowBaseDir() + pcapPath + "/bin/bamsort "
-              + "inputformat=sam level=1 outputthreads=2 "
-              + "tmpfile=firstSlice." + i + ".sorttmp "
-              + "O=firstSlice." + i + ".bam");
-
-      firstSliceJob.setMaxMemory("4000");
-      firstSliceJob.addParent(buildBamIndex);
-      
-      // extract unmapped reads (both ends or either end unmapped)
-      Job unmappedReadsJob1;
-      Job unmappedReadsJob2;
-      Job unmappedReadsJob3;
-      if (extract_and_upload_unmapped_reads) {
-    	  unmappedReadsJob1 = this.getWorkflow().createBashJob("unmappedReads1." + i);
-    	  unmappedReadsJob1.getCommand().addArgument(
-        		  this.getWorkflowBaseDir() + pcapPath + "/bin/samtools view -h -f 4 " // reads unmapped
-        		  + file
-        		  + " | perl " + this.getWorkflowBaseDir() + "/scripts/remove_both_ends_unmapped_reads.pl "  // this is necessary because samtools -f 4 outputs both-ends-unmapped reads
-        		  + " | "
-        		  + this.getWorkflowBaseDir() + pcapPath + "/bin/samtools view -S -b - "
-        		  + " > unmappedReads1." + i + ".bam");
-    	  unmappedReadsJob1.setMaxMemory("4000");
-    	  unmappedReadsJob1.addParent(buildBamIndex);
-    	  
-    	  unmappedReadsJob2 = this.getWorkflow().createBashJob("unmappedReads2." + i);
-    	  unmappedReadsJob2.getCommand().addArgument(
-        		  this.getWorkflowBaseDir() + pcapPath + "/bin/samtools view -h -f 8 " // reads' mate unmapped
-        		  + file
-        		  + " | perl " + this.getWorkflowBaseDir() + "/scripts/remove_both_ends_unmapped_reads.pl "  // this is necessary because samtools -f 8 outputs both-ends-unmapped reads
-        		  + " | "
-        		  + this.getWorkflowBaseDir() + pcapPath + "/bin/samtools view -S -b - "
-        		  + " > unmappedReads2." + i + ".bam");
-    	  unmappedReadsJob2.setMaxMemory("4000");
-    	  unmappedReadsJob2.addParent(buildBamIndex);
-    	  
-    	  unmappedReadsJob3 = this.getWorkflow().createBashJob("unmappedReads3." + i);
-    	  unmappedReadsJob3.getCommand().addArgument(
-        		  this.getWorkflowBaseDir() + pcapPath + "/bin/samtools view -h -b -f 12 " // reads with both ends unmapped
-        		  + file
-        		  + " > unmappedReads3." + i + ".bam");
-    	  unmappedReadsJob3.setMaxMemory("4000");
-    	  unmappedReadsJob3.addParent(buildBamIndex);
-
-    	  firstPartUnmappedReadJobs.add(unmappedReadsJob1);
-    	  firstPartUnmappedReadJobs.add(unmappedReadsJob2);
-    	  firstPartUnmappedReadJobs.add(unmappedReadsJob3);
-    	  
-      }
+      // one slice/orphan/mate recovery job group per shard of the input, each reading only its own contigs
+      for (int shard = 0; shard < sliceShards; shard++) {
+        String part = stages.part(i, shard);
+
+        // read the BAM once, writing the reads within the regions of the BED file and the unmapped reads at the same time
+        Job sliceJob = this.getWorkflow().createBashJob("slice" + part);
+        ResourcePlan.Resources sliceResources = inSlice ? plan.sliceWithMates(i, shard, "slice" + part, extract_and_upload_unmapped_reads)
+            : plan.slice(i, shard, "slice" + part, extract_and_upload_unmapped_reads);
+        // with inSlice the mates of the slice reads whose mate is not in the slice are recovered at once and never leave memory; the placed reads
+        // with an end unmapped are indexed, the reads with both ends unmapped are copied from the input's unplaced section on merge. Without the
+        // unmapped reads only the index chunks that can hold reads within the regions are read, unless the input is still downloading
+        sliceJob.getCommand().addArgument(javaStage("com.github.seqware.slicer.BamSlicer", sliceResources.getMemoryM()));
+        addArguments(sliceJob, stages.slice(file, part, inSlice, extract_and_upload_unmapped_reads, !streaming, sliceResources));
+        if (extract_and_upload_unmapped_reads) {
+          firstPartUnmappedReadJobs.add(sliceJob);
+        }
+        setResources(sliceJob, sliceResources, fusion);
+        if (buildBamIndex != null) {
+          // shards and region queries seek through the index
+          addArguments(sliceJob, stages.sliceIndex(file, shard));
+          sliceJob.addParent(buildBamIndex);
+        } else if (streaming) {
+          // starts with the download and reads the input as it grows, the index is built on the way
+          sliceJob.getCommand().addArgument("--follow")
+              .addArgument("--follow-timeout " + (2 * Integer.parseInt(gtdownloadRetries) + Integer.parseInt(gtdownloadMd5Time)))
+              .addArgument("--index-output " + file + ".bai");
+        } else {
+          sliceJob.getCommand().addArgument("$(test -s " + file + ".bai || echo --index-output " + file + ".bai)");
+          if (downloadJob != null) {
+            sliceJob.addParent(downloadJob);
+          }
+        }
 
-      
-      // find out the orphaned reads in the sliced out BAM
-      Job orphanedRead = this.getWorkflow().createBashJob("orphanedReads" + i);
-      orphanedRead.getCommand().addArgument("LD_LIBRARY_PATH=" + this.getWorkflowBaseDir() + pcapPath + "/lib") 
-          .addArgument(this.getWorkflowBaseDir() + pcapPath + "/bin/bamcollate2")
-          .addArgument("collate=1")
-          .addArgument("classes=O,O2")
-          .addArgument("O=firstSliceOrphaned." + i + ".bam")
-          .addArgument("filename=" + "firstSlice." + i + ".bam");
-      
-      orphanedRead.setMaxMemory("4000");
-      orphanedRead.addParent(firstSliceJob);
-      
-      // generate BED file for second round slicing
-      Job getMissingMateRegions = this.getWorkflow().createBashJob("getMissingMateRegions" + i);
-      getMissingMateRegions.getCommand().addArgument(
-    		  this.getWorkflowBaseDir() + pcapPath + "/bin/samtools view "
-    		  + "firstSliceOrphaned." + i + ".bam "
-    		  + " | "
-    	      + "perl " + this.getWorkflowBaseDir() + "/scripts/gen_missing_mates_bed.pl > missing_mates." + i + ".bed"
-          );
-
-      getMissingMateRegions.setMaxMemory(smallJobMemM);
-      getMissingMateRegions.addParent(orphanedRead);
-
-      Job secondSliceJob = this.getWorkflow().createBashJob("secondSlice" + i);
-      secondSliceJob.getCommand().addArgument(
-    		  this.getWorkflowBaseDir() + pcapPath + "/bin/samtools view -F 12 -L "  // this will capture mapped ends which are out side of the target regions, but their mates were captured in the first slicing
-    		  + "missing_mates." + i + ".bed "
-    		  + file
-    		  + " | "
-    		  + "perl " + this.getWorkflowBaseDir() + "/scripts/extract_missing_mates.pl "
-    		  + "bam_header." + i + ".txt "
-    		  + "missing_mates." + i + ".bed "
-    		  + " | "
-    		  + "LD_LIBRARY_PATH=" + this.getWorkflowBaseDir() + pcapPath + "/lib "
-              + this.getWorkflowBaseDir() + pcapPath + "/bin/bamsort "
-              + "inputformat=sam level=1 outputthreads=2 "
-              + "tmpfile=secondSlice." + i + ".sorttmp "
-              + "O=secondSlice." + i + ".bam");    		  
-      
-      secondSliceJob.setMaxMemory("4000");
-      secondSliceJob.addParent(getMissingMateRegions);
-      
-      firstPartJobs.add(secondSliceJob);
+        if (inSlice) {
+          firstPartJobs.add(sliceJob);
+          continue;
+        }
+
+        // recover the mates of the orphaned reads, reading only the index chunks that can hold them
+        Job secondSliceJob = this.getWorkflow().createBashJob("secondSlice" + part);
+        ResourcePlan.Resources mateResources = plan.mateRecovery(i, shard, "secondSlice" + part);
+        if (ranges) {
+          // fetch the chunks that can hold the mates first
+          secondSliceJob.getCommand().addArgument(javaStage("com.github.seqware.slicer.RangeFetcher", mateResources.getMemoryM()))
+              .addArgument("--url " + httpURLs.get(i))
+              .addArgument("--output " + file)
+              .addArgument("--orphans " + StageArguments.orphans(part))
+              .addArgument("--connections " + httpConnections)
+              .addArgument("&&");
+        }
+        secondSliceJob.getCommand().addArgument(javaStage("com.github.seqware.slicer.MateRecovery", mateResources.getMemoryM()));
+        addArguments(secondSliceJob, stages.mateRecovery(file, part, mateResources));
+
+        setResources(secondSliceJob, mateResources, fusion);
+        secondSliceJob.addParent(sliceJob);
+        if (streaming) {
+          secondSliceJob.addParent(downloadJob);
+        }
+        
+        firstPartJobs.add(secondSliceJob);
+      }
       
     }
 
     // MERGE 
     Job mergeJob = this.getWorkflow().createBashJob("mergeBAM");
-
-    int numThreads = 1;
-    if (getProperty("numOfThreads") != null && !getProperty("numOfThreads").isEmpty()) {
-      numThreads = Integer.parseInt(getProperty("numOfThreads"));
-    }
-    mergeJob.getCommand().addArgument("LD_LIBRARY_PATH=" + this.getWorkflowBaseDir() + pcapPath + "/lib") 
-            .addArgument(this.getWorkflowBaseDir() + pcapPath + "/bin/bammarkduplicates")
-            .addArgument("O=" + this.outputPrefix + outputFileName)
-            .addArgument("M=" + this.outputPrefix + outputFileName + ".metrics")
-            .addArgument("tmpfile=" + this.outputPrefix + outputFileName + ".biormdup")
-            .addArgument("markthreads=" + numThreads)
-            .addArgument("rewritebam=1 rewritebamlevel=1 index=1 md5=1");
-    for (int i = 0; i < numBamFiles; i++) {
-    	mergeJob.getCommand().addArgument(" I=firstSlice." + i + ".bam" + " I=secondSlice." + i + ".bam");
-    }
-    // now compute md5sum for the bai file
-    mergeJob.getCommand().addArgument(" && md5sum " + this.outputPrefix + outputFileName + ".bai | awk '{printf $1}'"
-        + " > " + this.outputPrefix + outputFileName + ".bai.md5");
+    ResourcePlan.Resources mergeResources = plan.merge("mergeBAM");
+    // the slices are coordinate sorted already, so they are merged without sorting: a first pass decides the duplicates and the second one marks them
+    // and writes the index, the md5 sidecars of both and the metrics too
+    mergeJob.getCommand().addArgument(javaStage("com.github.seqware.slicer.BamMerger", mergeResources.getMemoryM()));
+    addArguments(mergeJob, stages.merge(numBamFiles, this.outputPrefix + outputFileName, mergeResources));
     
     for (Job pJob : firstPartJobs) {
     	mergeJob.addParent(pJob);
     }
-    mergeJob.setMaxMemory(mergeJobMemG + "000");
+    setResources(mergeJob, mergeResources, fusion);
     
     // MERGE unmapped reads
     Job mergeUnmappedJob = null;
     if (extract_and_upload_unmapped_reads) {
         mergeUnmappedJob = this.getWorkflow().createBashJob("mergeUnmappedBAM");
+        ResourcePlan.Resources unmappedResources = plan.mergeUnmapped("mergeUnmappedBAM");
 
-        numThreads = 1;
-        if (getProperty("numOfThreads") != null && !getProperty("numOfThreads").isEmpty()) {
-            numThreads = Integer.parseInt(getProperty("numOfThreads"));
-            }
-        mergeUnmappedJob.getCommand().addArgument("LD_LIBRARY_PATH=" + this.getWorkflowBaseDir() + pcapPath + "/lib") 
-            .addArgument(this.getWorkflowBaseDir() + pcapPath + "/bin/bammarkduplicates")
-            .addArgument("O=" + this.outputPrefix + outputUnmappedFileName)
-            .addArgument("M=" + this.outputPrefix + outputUnmappedFileName + ".metrics")
-            .addArgument("tmpfile=" + this.outputPrefix + outputUnmappedFileName + ".biormdup")
-            .addArgument("markthreads=" + numThreads)
-            .addArgument("rewritebam=1 rewritebamlevel=1 index=1 md5=1");
-        for (int i = 0; i < numBamFiles; i++) {
-            mergeUnmappedJob.getCommand().addArgument(" I=unmappedReads1." + i + ".bam" + " I=unmappedReads2." + i + ".bam" + " I=unmappedReads3." + i + ".bam");
-        }
-        // now compute md5sum for the bai file
-        mergeUnmappedJob.getCommand().addArgument(" && md5sum " + this.outputPrefix + outputUnmappedFileName + ".bai | awk '{printf $1}'"
-            + " > " + this.outputPrefix + outputUnmappedFileName + ".bai.md5");
+        // the shards of one input hold separate runs of contigs, so their blocks are joined as they are, followed by the unplaced section of the
+        // input; the outputs of several input BAMs overlap in their contigs and are always merged record by record
+        mergeUnmappedJob.getCommand().addArgument(javaStage("com.github.seqware.slicer.BamMerger", unmappedResources.getMemoryM()));
+        addArguments(mergeUnmappedJob, stages.mergeUnmapped(bamPaths, this.outputPrefix + outputUnmappedFileName, unmappedResources));
         
         for (Job pJob : firstPartUnmappedReadJobs) {
             mergeUnmappedJob.addParent(pJob);
         }
         
-        mergeUnmappedJob.setMaxMemory(mergeJobMemG + "000");
+        setResources(mergeUnmappedJob, unmappedResources, fusion);
     
     }
     
     // CLEANUP ORIGINAL BAM FILES
     for (int i = 0; i < numBamFiles; i++) {
       Job cleanup = this.getWorkflow().createBashJob("cleanup" + i);
-      cleanup.getCommand().addArgument("rm -fr " + "firstSlice." + i + ".bam " + "firstSliceOrphaned." + i + ".bam" + "secondSlice." + i + ".bam");
+      cleanup.getCommand().addArgument("rm -fr");
+      for (int shard = 0; shard < sliceShards; shard++) {
+        String part = stages.part(i, shard);
+        cleanup.getCommand().addArgument(StageArguments.slice(part) + " " + StageArguments.orphans(part) + " " + StageArguments.mates(part));
+      }
       // cleanup.getCommand().addArgument("ls " + "firstSlice." + i + ".bam " + "firstSliceOrphaned." + i + ".bam" + "secondSlice." + i + ".bam");  // ls only for now, this is for debugging
 
       // clean up the original downloaded BAMs
       cleanup.getCommand().addArgument(" && rm -f " + bamPaths.get(i));
+      if (useGtDownload && !isTesting && downloadCacheDir != null) {
+        // only the link is gone, the BAM stays in the cache for the next run that needs it
+        cleanup.getCommand().addArgument(" && perl " + this.getWorkflowBaseDir() + "/scripts/download_cache.pl release")
+            .addArgument("--cache " + downloadCacheDir)
+            .addArgument("--analysis " + bamPaths.get(i).split("/")[0])
+            .addArgument("--run " + runId);
+      }
       // cleanup.getCommand().addArgument(" && ls " + bamPaths.get(i)); // for debugging
       
       if (extract_and_upload_unmapped_reads){
-          cleanup.getCommand().addArgument(" && rm -fr " + "unmappedReads1." + i + ".bam " + "unmappedReads2." + i + ".bam " + "unmappedReads3." + i + ".bam");
+          cleanup.getCommand().addArgument(" && rm -fr");
+          for (int shard = 0; shard < sliceShards; shard++) {
+            String part = stages.part(i, shard);
+            cleanup.getCommand().addArgument(StageArguments.unmapped(part) + " " + StageArguments.unmapped(part) + ".bai");
+          }
           // cleanup.getCommand().addArgument(" && ls " + "unmappedReads1." + i + ".bam " + "unmappedReads2." + i + ".bam " + "unmappedReads3." + i + ".bam"); // this is for debugging
           cleanup.addParent(mergeUnmappedJob);
       }
@@ -404,10 +457,70 @@ public class WorkflowClient extends OicrWorkflow {
     cleanup2.addParent(bamUploadJob);
     cleanup2.setMaxMemory(smallJobMemM);
 
+    Logger.getLogger(WorkflowClient.class.getName()).log(Level.INFO, plan.describe());
+    if (fuseJobs) {
+      fusion.fuse();
+    }
+    // after fusing, so a fused job is measured as the one job it runs as
+    if (jobTelemetry) {
+      new JobTelemetry(this.getWorkflow(), this.getWorkflowBaseDir() + "/scripts", telemetryIntervalSeconds).instrument();
+    }
   }
 
+  /**
+   * The plan of the slicer jobs' memory and threads: sized from the inputs with use_resource_model, from the fixed settings otherwise. Local inputs are
+   * measured together with their index, downloaded ones are looked up in their GNOS analysis metadata.
+   */
+  private ResourcePlan resourcePlan(int numThreads) {
+    int mergeMemM = Integer.parseInt(mergeJobMemG) * 1000;
+    if (!useResourceModel) {
+      return ResourcePlan.fixed(decompressionThreads, compressionThreads, numThreads, mergeMemM);
+    }
+    ArrayList<ResourcePlan.Input> inputs = new ArrayList<ResourcePlan.Input>();
+    for (int i = 0; i < bamPaths.size(); i++) {
+      String file = bamPaths.get(i);
+      if (isTesting && useGtDownload) {
+        inputs.add(ResourcePlan.Input.measure(new File(getProperty("testBamPath")), sliceShards));
+      } else if (!useGtDownload) {
+        inputs.add(ResourcePlan.Input.measure(new File(file), sliceShards));
+      } else {
+        inputs.add(ResourcePlan.Input.fromGnosMetadata(inputMetadataURLs.get(i), new File(file).getName()));
+      }
+    }
+    return new ResourcePlan(inputs, sliceShards, maxJobMemM, maxJobThreads, decompressionThreads, compressionThreads, numThreads, mergeMemM);
+  }
+
+  /**
+   * Gives a job the memory of its plan and, with the resource model, the number of cores it keeps busy so the scheduler can pack jobs by them. The
+   * planned duration decides whether the job may be fused with its neighbours.
+   */
+  private void setResources(Job job, ResourcePlan.Resources resources, JobFusion fusion) {
+    job.setMaxMemory("" + resources.getMemoryM());
+    fusion.estimate(job, resources.getSeconds());
+    if (useResourceModel) {
+      job.setThreads(resources.getThreads());
+    }
+  }
+
+  /**
+   * Puts the arguments of a Java stage on the job's command line.
+   */
+  private static void addArguments(Job job, List<String> arguments) {
+    for (String argument : arguments) {
+      job.getCommand().addArgument(argument);
+    }
+  }
+
+  /**
+   * The command line that runs one of the Java stages bundled in the classes directory, with a heap that leaves room for the JVM's own memory inside
+   * the job's limit.
+   */
+  private String javaStage(String mainClass, int jobMemM) {
+    return this.getWorkflowBaseDir() + javaPath + " -Xmx" + (jobMemM * 3 / 4) + "m"
+        + " -cp " + this.getWorkflowBaseDir() + "/classes " + mainClass;
+  }
   
-  private Job addDownloadJobArgs (Job job, String file, String fileURL) {
+  private Job addDownloadJobArgs (Job job, String file, String fileURL, String metadataURL) {
 
     // a little unsafe
     String[] pathElements = file.split("/");
@@ -422,6 +535,17 @@ public class WorkflowClient extends OicrWorkflow {
 
     } else {
 
+        if (downloadCacheDir != null) {
+          // links the BAM from the node's cache, downloading it into the cache first when no run has before
+          job.getCommand().addArgument("perl " + this.getWorkflowBaseDir() + "/scripts/download_cache.pl fetch")
+              .addArgument("--cache " + downloadCacheDir)
+              .addArgument("--quota-bytes " + downloadCacheQuotaG * 1024L * 1024L * 1024L)
+              .addArgument("--analysis " + analysisId)
+              .addArgument("--metadata-url " + metadataURL)
+              .addArgument("--target " + analysisId)
+              .addArgument("--run " + runId)
+              .addArgument("--");
+        }
     	job.getCommand().addArgument("perl " + this.getWorkflowBaseDir() + "/scripts/launch_and_monitor_gnos.pl")
     	    .addArgument("--command 'gtdownload -c " + gnosKey + " -v -d " + fileURL + "'")
             .addArgument("--file-grep " + analysisId)
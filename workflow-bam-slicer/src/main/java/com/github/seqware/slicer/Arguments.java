@@ -0,0 +1,48 @@
+package com.github.seqware.slicer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Minimal "--name value" command line parsing for the Java stages of the workflow. A name that is not followed by a value is read as "true".
+ */
+class Arguments {
+
+  private final Map<String, String> values = new HashMap<String, String>();
+
+  Arguments(String[] args) {
+    for (int i = 0; i < args.length; i++) {
+      if (!args[i].startsWith("--")) {
+        throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+      }
+      String name = args[i].substring(2);
+      if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+        values.put(name, args[++i]);
+      } else {
+        values.put(name, "true");
+      }
+    }
+  }
+
+  boolean has(String name) {
+    return values.containsKey(name);
+  }
+
+  String get(String name, String _default) {
+    String value = values.get(name);
+    return value == null ? _default : value;
+  }
+
+  String require(String name) {
+    String value = values.get(name);
+    if (value == null) {
+      throw new IllegalArgumentException("Missing required argument --" + name);
+    }
+    return value;
+  }
+
+  int getInt(String name, int _default) {
+    String value = values.get(name);
+    return value == null ? _default : Integer.parseInt(value);
+  }
+}
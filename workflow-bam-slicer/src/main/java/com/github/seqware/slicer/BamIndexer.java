@@ -0,0 +1,192 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamIndexBuilder;
+import com.github.seqware.bam.BamRecord;
+import com.github.seqware.bam.Bgzf;
+import com.github.seqware.bam.BgzfInputStream;
+import com.github.seqware.bam.LittleEndian;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Inflater;
+
+/**
+ * Indexes a coordinate sorted BAM, replacing "cat file | bamindex".
+ *
+ * The file is memory mapped a window at a time and walked block by block: each BGZF block is copied out of the mapping, inflated into one reusable
+ * buffer and its records are handed to a {@link BamIndexBuilder} in place. Only a record that spans two blocks is copied, into a second reusable
+ * buffer, so the scan does not allocate per record or per block.
+ */
+public class BamIndexer {
+
+  private static final Logger logger = Logger.getLogger(BamIndexer.class.getName());
+
+  private static final String USAGE = "java " + BamIndexer.class.getName() + " --input <bam> [--output <bai>]";
+
+  // the most of the file mapped at once
+  private static final long WINDOW = 1L << 30;
+
+  private final FileChannel channel;
+  private final long fileSize;
+  private final BamIndexBuilder builder;
+
+  private MappedByteBuffer window = null;
+  private long windowStart = 0;
+
+  private final byte[] block = new byte[Bgzf.MAX_BLOCK_SIZE];
+  private final byte[] data = new byte[Bgzf.MAX_BLOCK_SIZE];
+  private final Inflater inflater = new Inflater(true);
+  private final BamRecord record = new BamRecord();
+
+  // a record that started in an earlier block
+  private byte[] carry = new byte[1024];
+  private int carryLength = 0;
+  private long carryStart;
+
+  BamIndexer(FileChannel channel, BamIndexBuilder builder) throws IOException {
+    this.channel = channel;
+    this.fileSize = channel.size();
+    this.builder = builder;
+  }
+
+  /**
+   * Makes sure [address, address + length) of the file is mapped.
+   */
+  private void map(long address, int length) throws IOException {
+    if (window != null && address >= windowStart && address + length <= windowStart + window.capacity()) {
+      return;
+    }
+    if (address + length > fileSize) {
+      throw new IOException("Truncated BGZF block at " + address);
+    }
+    windowStart = address;
+    window = channel.map(FileChannel.MapMode.READ_ONLY, address, Math.min(WINDOW, fileSize - address));
+  }
+
+  /**
+   * Indexes every record from the given virtual offset, the first one after the header, to the end of the file.
+   *
+   * @return the number of records indexed
+   */
+  long scan(long firstRecord) throws IOException {
+    long count = 0;
+    long address = Bgzf.blockAddress(firstRecord);
+    int skip = Bgzf.offsetInBlock(firstRecord);
+    while (address < fileSize) {
+      map(address, Bgzf.HEADER_LENGTH);
+      window.position((int) (address - windowStart));
+      window.get(block, 0, Bgzf.HEADER_LENGTH);
+      int blockSize = Bgzf.blockSize(block, 0);
+      map(address, blockSize);
+      window.position((int) (address - windowStart + Bgzf.HEADER_LENGTH));
+      window.get(block, Bgzf.HEADER_LENGTH, blockSize - Bgzf.HEADER_LENGTH);
+      int length = Bgzf.inflate(inflater, block, 0, blockSize, data);
+      long next = address + blockSize;
+      count += records(address, next, length, skip);
+      skip = 0;
+      address = next;
+    }
+    if (carryLength > 0) {
+      throw new IOException("Truncated BAM record at the end of the file");
+    }
+    return count;
+  }
+
+  /**
+   * Indexes the records of one inflated block, completing one carried over from earlier blocks first.
+   */
+  private int records(long address, long next, int length, int p) throws IOException {
+    int count = 0;
+    while (carryLength > 0 && p < length) {
+      int want = carryLength < 4 ? 4 : 4 + recordSize(carry, 0);
+      int n = Math.min(want - carryLength, length - p);
+      if (want > carry.length) {
+        carry = Arrays.copyOf(carry, Math.max(want, 2 * carry.length));
+      }
+      System.arraycopy(data, p, carry, carryLength, n);
+      carryLength += n;
+      p += n;
+      if (carryLength == want && want > 4) {
+        record.wrap(carry, 4, want - 4);
+        builder.add(record, carryStart, tell(address, next, length, p));
+        carryLength = 0;
+        count++;
+      }
+    }
+    while (p < length) {
+      if (length - p >= 4) {
+        int size = recordSize(data, p);
+        if (length - p >= 4 + size) {
+          record.wrap(data, p + 4, size);
+          builder.add(record, Bgzf.virtualOffset(address, p), tell(address, next, length, p + 4 + size));
+          p += 4 + size;
+          count++;
+          continue;
+        }
+      }
+      carryStart = Bgzf.virtualOffset(address, p);
+      carryLength = length - p;
+      if (carryLength > carry.length) {
+        carry = Arrays.copyOf(carry, Math.max(carryLength, 2 * carry.length));
+      }
+      System.arraycopy(data, p, carry, 0, carryLength);
+      p = length;
+    }
+    return count;
+  }
+
+  private static int recordSize(byte[] b, int off) throws IOException {
+    int size = LittleEndian.getInt(b, off);
+    if (size < 32) {
+      throw new IOException("Invalid BAM record size " + size);
+    }
+    return size;
+  }
+
+  /**
+   * The virtual offset of position p of a block, moved to the start of the next block at the end, as BgzfInputStream reports it.
+   */
+  private static long tell(long address, long next, int length, int p) {
+    return p == length ? Bgzf.virtualOffset(next, 0) : Bgzf.virtualOffset(address, p);
+  }
+
+  public static void main(String[] args) {
+    try {
+      Arguments arguments = new Arguments(args);
+      File input = new File(arguments.require("input"));
+      File output = new File(arguments.get("output", input.getPath() + ".bai"));
+
+      BamHeader header;
+      long firstRecord;
+      BgzfInputStream in = BgzfInputStream.openSequential(input);
+      try {
+        header = BamHeader.read(in);
+        firstRecord = in.getFilePointer();
+      } finally {
+        in.close();
+      }
+
+      BamIndexBuilder builder = new BamIndexBuilder(header.getReferenceCount());
+      RandomAccessFile file = new RandomAccessFile(input, "r");
+      try {
+        long count = new BamIndexer(file.getChannel(), builder).scan(firstRecord);
+        builder.write(output);
+        logger.log(Level.INFO, "Indexed {0} records of {1} into {2}", new Object[]{count, input, output});
+      } finally {
+        file.close();
+      }
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.SEVERE, e.getMessage() + "\n" + USAGE);
+      System.exit(2);
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Indexing failed", e);
+      System.exit(1);
+    }
+  }
+}
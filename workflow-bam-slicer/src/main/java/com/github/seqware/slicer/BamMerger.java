@@ -0,0 +1,471 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamIndex;
+import com.github.seqware.bam.BamIndexBuilder;
+import com.github.seqware.bam.BamRecord;
+import com.github.seqware.bam.BamWriter;
+import com.github.seqware.bam.Bgzf;
+import com.github.seqware.bam.BgzfInputStream;
+import com.github.seqware.bam.BgzfOutputStream;
+import com.github.seqware.bam.SidecarOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Merges coordinate sorted BAMs, such as the region slices and recovered mates of every input, into one coordinate sorted BAM and marks the duplicates
+ * on the way, replacing bammarkduplicates for the merged slice.
+ *
+ * Every input is read sequentially through a cursor holding its next record, and a binary heap on the packed reference and position of those records
+ * picks the next one to write, the cursor with the lowest number on a tie, so the output is the same from run to run. The records are never decoded: each
+ * goes from its input's inflated block through the {@link DuplicateMarker} straight into the output. The inputs were sorted by the slicer, so there is no
+ * temporary file, and an input that turns out not to be sorted fails the merge. The duplicates are decided on a first pass over the inputs that only
+ * examines the records and marked on the second one that writes them, since the copy to keep is only known once all copies have gone by.
+ *
+ * The merged BAM, its index, their MD5s and the duplication metrics are all written in the same pass: the index from block pointers of the output
+ * stream, the MD5s from the bytes on their way to the disk through a {@link SidecarOutputStream}, with SHA-256 sidecars as well given --sha256.
+ *
+ * With --concatenate, meant for the unmapped reads where duplicate marking means little, nothing is marked and the inputs are joined block by block
+ * without inflating or deflating anything, as long as each of them holds a run of references no other one reaches into, which is the case for the
+ * --half-unmapped-output of the shards of one input BAM, since {@link ShardPlan} gives each shard a run of consecutive contigs. Their indexes are
+ * joined the same way, by moving their offsets along with their blocks. Inputs that interleave are merged record by record instead, which is always
+ * the case for the outputs of several input BAMs, since each of them holds reads on the same references. --unplaced-from appends the no-coordinate
+ * section of the given BAMs, the reads with both ends unmapped, by seeking to where their index says it starts and copying its blocks, so the input
+ * BAMs are not read for them at all.
+ */
+public class BamMerger {
+
+  private static final Logger logger = Logger.getLogger(BamMerger.class.getName());
+
+  private static final String USAGE = "java " + BamMerger.class.getName() + " --input <bam>[,<bam>...] --output <bam> [--metrics <file> | --concatenate]"
+    + " [--unplaced-from <bam>[,<bam>...]] [--level <0-9>] [--threads <n>] [--read-threads <n>] [--sha256]";
+
+  private final File[] files;
+  private final ExecutorService readPool;
+  private final int maxInFlight;
+  private final BgzfInputStream[] inputs;
+  private final BamRecord[] records;
+  private final long[] keys;
+  // the virtual offset of the first record of each input
+  private final long[] recordStarts;
+
+  // cursor numbers ordered as a binary heap on their keys
+  private final int[] heap;
+  private int heapSize = 0;
+
+  /**
+   * Opens every input and reads its header.
+   *
+   * @param headers receives the header of every input
+   */
+  BamMerger(File[] files, BamHeader[] headers, ExecutorService readPool, int maxInFlight) throws IOException {
+    this.files = files;
+    this.readPool = readPool;
+    this.maxInFlight = maxInFlight;
+    inputs = new BgzfInputStream[files.length];
+    records = new BamRecord[files.length];
+    keys = new long[files.length];
+    heap = new int[files.length];
+    recordStarts = new long[files.length];
+    for (int i = 0; i < files.length; i++) {
+      records[i] = new BamRecord();
+    }
+    open(headers);
+  }
+
+  /**
+   * Opens every input at its first record.
+   */
+  private void open(BamHeader[] headers) throws IOException {
+    try {
+      for (int i = 0; i < files.length; i++) {
+        inputs[i] = BgzfInputStream.openSequential(files[i], readPool, maxInFlight);
+        headers[i] = BamHeader.read(inputs[i]);
+        recordStarts[i] = inputs[i].getFilePointer();
+      }
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * The sort key of a record, with the unplaced reads after all others.
+   */
+  private static long key(BamRecord record) {
+    int refId = record.getReferenceIndex();
+    return refId < 0 ? Long.MAX_VALUE : MateTable.position(refId, record.getPosition());
+  }
+
+  private boolean before(int a, int b) {
+    return keys[a] < keys[b] || keys[a] == keys[b] && a < b;
+  }
+
+  /**
+   * Reads the next record of a cursor and puts the cursor into the heap, unless its input is at its end.
+   */
+  private void advance(int cursor) throws IOException {
+    if (!records[cursor].read(inputs[cursor])) {
+      return;
+    }
+    long key = key(records[cursor]);
+    if (key < keys[cursor]) {
+      throw new IOException(files[cursor] + " is not coordinate sorted at " + records[cursor].getReadName());
+    }
+    keys[cursor] = key;
+    int i = heapSize++;
+    while (i > 0 && before(cursor, heap[(i - 1) / 2])) {
+      heap[i] = heap[(i - 1) / 2];
+      i = (i - 1) / 2;
+    }
+    heap[i] = cursor;
+  }
+
+  /**
+   * Takes the cursor with the lowest key out of the heap.
+   */
+  private int poll() {
+    int top = heap[0];
+    int last = heap[--heapSize];
+    int i = 0;
+    while (2 * i + 1 < heapSize) {
+      int child = 2 * i + 1;
+      if (child + 1 < heapSize && before(heap[child + 1], heap[child])) {
+        child++;
+      }
+      if (!before(heap[child], last)) {
+        break;
+      }
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = last;
+    return top;
+  }
+
+  /**
+   * Writes every record of the inputs in coordinate order, marking duplicates and indexing the output as it goes.
+   *
+   * @param marker marks the duplicates, or null to leave the flags alone
+   * @return the number of duplicates marked
+   */
+  long merge(DuplicateMarker marker, BamWriter out, BamIndexBuilder index) throws IOException {
+    if (marker != null) {
+      start();
+      while (heapSize > 0) {
+        int cursor = poll();
+        marker.examine(records[cursor]);
+        advance(cursor);
+      }
+      close();
+      open(new BamHeader[files.length]);
+    }
+    start();
+    long duplicates = 0;
+    while (heapSize > 0) {
+      int cursor = poll();
+      BamRecord record = records[cursor];
+      if (marker != null && marker.mark(record)) {
+        duplicates++;
+      }
+      out.write(record, index);
+      advance(cursor);
+    }
+    return duplicates;
+  }
+
+  /**
+   * Puts every cursor on the first record of its input.
+   */
+  private void start() throws IOException {
+    heapSize = 0;
+    for (int i = 0; i < inputs.length; i++) {
+      keys[i] = Long.MIN_VALUE;
+      advance(i);
+    }
+  }
+
+  /**
+   * The order in which the inputs can be joined block by block: by the references they hold, when each holds a run of references no other input
+   * reaches into, has no unplaced reads and starts its records in a fresh block. Inputs without reads are left out.
+   *
+   * @param indexes the index of every input
+   * @return the inputs in order, or null if they cannot be joined that way
+   */
+  int[] concatenationOrder(BamIndex[] indexes) {
+    long[] runs = new long[files.length];
+    int[] lastRefs = new int[files.length];
+    int count = 0;
+    for (int i = 0; i < files.length; i++) {
+      if (indexes[i].getNoCoordinateCount() != 0 || Bgzf.offsetInBlock(recordStarts[i]) != 0) {
+        return null;
+      }
+      int first = -1;
+      for (int ref = 0; ref < indexes[i].getReferenceCount(); ref++) {
+        if (indexes[i].getReferenceStart(ref) >= 0) {
+          if (first < 0) {
+            first = ref;
+          }
+          lastRefs[i] = ref;
+        }
+      }
+      if (first >= 0) {
+        runs[count++] = (long) first << 32 | i;
+      }
+    }
+    Arrays.sort(runs, 0, count);
+    int[] order = new int[count];
+    for (int k = 0; k < count; k++) {
+      order[k] = (int) runs[k];
+      if (k > 0 && lastRefs[order[k - 1]] >= runs[k] >>> 32) {
+        return null;
+      }
+    }
+    return order;
+  }
+
+  /**
+   * Copies the records of the inputs block by block in the given order.
+   *
+   * @return how far the blocks of each input moved, in bytes
+   */
+  long[] concatenate(int[] order, BgzfOutputStream out) throws IOException {
+    long[] shifts = new long[order.length];
+    for (int k = 0; k < order.length; k++) {
+      int i = order[k];
+      shifts[k] = out.copyFrom(files[i], recordStarts[i]) - Bgzf.blockAddress(recordStarts[i]);
+    }
+    return shifts;
+  }
+
+  /**
+   * Copies the no-coordinate section of a coordinate sorted BAM, found through its index, block by block.
+   *
+   * @return the number of reads copied
+   */
+  static long appendUnplaced(File bam, BgzfOutputStream out) throws IOException {
+    BamIndex index = BamIndex.read(new File(bam.getPath() + ".bai"));
+    long count = index.getNoCoordinateCount();
+    if (count < 0) {
+      throw new IOException("The index of " + bam + " does not count its unplaced reads");
+    }
+    if (count > 0) {
+      long start = index.getUnplacedStart();
+      if (start < 0) {
+        BgzfInputStream in = new BgzfInputStream(bam);
+        try {
+          BamHeader.read(in);
+          start = in.getFilePointer();
+        } finally {
+          in.close();
+        }
+      }
+      out.copyFrom(bam, start);
+    }
+    return count;
+  }
+
+  static BamHeader readHeader(File bam) throws IOException {
+    BgzfInputStream in = new BgzfInputStream(bam);
+    try {
+      return BamHeader.read(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static File[] files(String names) {
+    if (names == null || names.length() == 0) {
+      return new File[0];
+    }
+    String[] split = names.split(",");
+    File[] files = new File[split.length];
+    for (int i = 0; i < split.length; i++) {
+      files[i] = new File(split[i]);
+    }
+    return files;
+  }
+
+  void close() throws IOException {
+    IOException failure = null;
+    for (BgzfInputStream in : inputs) {
+      try {
+        if (in != null) {
+          in.close();
+        }
+      } catch (IOException e) {
+        failure = e;
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * The header of the merged BAM: the first header with the read groups, programs and comments of the others added, and a program line of its own. The
+   * references of all inputs have to be the same.
+   */
+  static BamHeader mergeHeaders(File[] files, BamHeader[] headers) throws IOException {
+    BamHeader first = headers[0];
+    Set<String> lines = new LinkedHashSet<String>();
+    for (int i = 0; i < headers.length; i++) {
+      BamHeader header = headers[i];
+      if (header.getReferenceCount() != first.getReferenceCount()) {
+        throw new IOException(files[i] + " has other references than " + files[0]);
+      }
+      for (int r = 0; r < header.getReferenceCount(); r++) {
+        if (!header.getReferenceName(r).equals(first.getReferenceName(r)) || header.getReferenceLength(r) != first.getReferenceLength(r)) {
+          throw new IOException(files[i] + " has other references than " + files[0]);
+        }
+      }
+      for (String line : header.getText().split("\n")) {
+        if (line.length() > 0 && (i == 0 || line.startsWith("@RG") || line.startsWith("@PG") || line.startsWith("@CO"))) {
+          lines.add(line);
+        }
+      }
+    }
+    String id = BamMerger.class.getSimpleName();
+    for (int n = 1; containsProgram(lines, id); n++) {
+      id = BamMerger.class.getSimpleName() + "." + n;
+    }
+    lines.add("@PG\tID:" + id + "\tPN:" + BamMerger.class.getSimpleName());
+    StringBuilder text = new StringBuilder();
+    for (String line : lines) {
+      text.append(line).append('\n');
+    }
+    String[] names = new String[first.getReferenceCount()];
+    int[] lengths = new int[names.length];
+    for (int r = 0; r < names.length; r++) {
+      names[r] = first.getReferenceName(r);
+      lengths[r] = first.getReferenceLength(r);
+    }
+    return new BamHeader(text.toString(), names, lengths);
+  }
+
+  private static boolean containsProgram(Set<String> lines, String id) {
+    for (String line : lines) {
+      if (line.startsWith("@PG") && (line + "\t").contains("\tID:" + id + "\t")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Runs the merge the arguments describe, as main does without exiting.
+   */
+  static void run(Arguments arguments) throws IOException {
+    File[] files = files(arguments.require("input"));
+    File[] unplaced = files(arguments.get("unplaced-from", null));
+    File output = new File(arguments.require("output"));
+    boolean concatenate = arguments.has("concatenate");
+    int level = arguments.getInt("level", 1);
+    int threads = arguments.getInt("threads", 1);
+    int readThreads = arguments.getInt("read-threads", 1);
+    String[] digests = arguments.has("sha256") ? new String[]{SidecarOutputStream.MD5, SidecarOutputStream.SHA256}
+      : new String[]{SidecarOutputStream.MD5};
+
+    ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    ExecutorService readPool = readThreads > 1 ? Executors.newFixedThreadPool(readThreads) : null;
+    BamHeader[] headers = new BamHeader[files.length + unplaced.length];
+    BamMerger merger = new BamMerger(files, headers, readPool, 2 * readThreads);
+    SidecarOutputStream file = null;
+    try {
+      File[] sources = Arrays.copyOf(files, headers.length);
+      for (int i = 0; i < unplaced.length; i++) {
+        sources[files.length + i] = unplaced[i];
+        headers[files.length + i] = readHeader(unplaced[i]);
+      }
+      BamHeader header = mergeHeaders(sources, headers);
+
+      BamIndex[] indexes = null;
+      int[] order = null;
+      if (concatenate) {
+        indexes = new BamIndex[files.length];
+        for (int i = 0; i < files.length; i++) {
+          indexes[i] = BamIndex.read(new File(files[i].getPath() + ".bai"));
+        }
+        order = merger.concatenationOrder(indexes);
+        if (order == null) {
+          logger.log(Level.INFO, "The inputs interleave and are merged record by record");
+        }
+      }
+
+      file = new SidecarOutputStream(output, digests);
+      BgzfOutputStream stream = new BgzfOutputStream(new BufferedOutputStream(file, 4 * Bgzf.MAX_BLOCK_SIZE), level, pool, 4 * threads);
+      BamWriter out = new BamWriter(stream, header);
+      BamIndexBuilder index = null;
+      DuplicateMarker marker = null;
+      long[] shifts = null;
+      long duplicates = 0;
+      if (order != null) {
+        shifts = merger.concatenate(order, stream);
+      } else {
+        index = new BamIndexBuilder(header.getReferenceCount(), stream);
+        marker = concatenate ? null : new DuplicateMarker(header);
+        duplicates = merger.merge(marker, out, index);
+      }
+      long unplacedCount = 0;
+      for (File bam : unplaced) {
+        unplacedCount += appendUnplaced(bam, stream);
+      }
+      out.close();
+
+      File bai = new File(output.getPath() + ".bai");
+      if (order != null) {
+        BamIndex[] parts = new BamIndex[order.length];
+        for (int k = 0; k < order.length; k++) {
+          parts[k] = indexes[order[k]];
+        }
+        if (parts.length == 0) {
+          BamIndexBuilder empty = new BamIndexBuilder(header.getReferenceCount());
+          empty.addUnplaced(unplacedCount);
+          empty.write(bai, digests);
+        } else {
+          BamIndexBuilder.writeConcatenation(parts, shifts, unplacedCount, bai, digests);
+        }
+        logger.log(Level.INFO, "Joined {0} inputs and {1} unplaced reads into {2} block by block", new Object[]{order.length, unplacedCount, output});
+      } else {
+        index.addUnplaced(unplacedCount);
+        index.write(bai, digests);
+        logger.log(Level.INFO, "Merged {0} records from {1} inputs and {2} unplaced reads into {3}, {4} marked as duplicates",
+          new Object[]{out.getRecordCount(), files.length, unplacedCount, output, duplicates});
+      }
+      if (marker != null) {
+        marker.writeMetrics(new File(arguments.get("metrics", output.getPath() + ".metrics")));
+      }
+    } finally {
+      if (file != null) {
+        file.discard();
+      }
+      merger.close();
+      if (pool != null) {
+        pool.shutdown();
+      }
+      if (readPool != null) {
+        readPool.shutdown();
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    try {
+      run(new Arguments(args));
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.SEVERE, e.getMessage() + "\n" + USAGE);
+      System.exit(2);
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Merging failed", e);
+      System.exit(1);
+    }
+  }
+}
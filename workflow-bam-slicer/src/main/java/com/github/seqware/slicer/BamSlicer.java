@@ -0,0 +1,428 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamIndex;
+import com.github.seqware.bam.BamIndexBuilder;
+import com.github.seqware.bam.BamRecord;
+import com.github.seqware.bam.BamWriter;
+import com.github.seqware.bam.Bgzf;
+import com.github.seqware.bam.BgzfBlockFollower;
+import com.github.seqware.bam.BgzfInputStream;
+import com.github.seqware.bam.BgzfOutputStream;
+import com.github.seqware.bam.ChunkList;
+import com.github.seqware.bam.RecordFilter;
+import com.github.seqware.bam.RecordFilters;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/**
+ * Reads an input BAM once and routes every record, still in binary form, to the slices the workflow needs:
+ *
+ * <ul>
+ * <li>the region slice: reads overlapping the BED regions, as "samtools view -L" followed by remove_both_ends_unmapped_reads.pl produced</li>
+ * <li>unmapped reads: flag 4 set, as "samtools view -f 4" followed by remove_both_ends_unmapped_reads.pl</li>
+ * <li>reads with an unmapped mate: flag 8 set, as "samtools view -f 8" followed by remove_both_ends_unmapped_reads.pl</li>
+ * <li>reads with both ends unmapped: flags 4 and 8 set, as "samtools view -f 12"</li>
+ * </ul>
+ *
+ * With --half-unmapped-output the placed reads with an unmapped end, what the first two unmapped outputs hold between them, go to a single file in
+ * input order instead, with its index written next to it as it is written. That file is coordinate sorted and ends where the no-coordinate section of
+ * the input starts, so {@link BamMerger} can join it with that section block by block instead of merging the three unmapped outputs.
+ *
+ * Records are written in input order, so the slices of a coordinate sorted BAM are coordinate sorted as well and need no sorting. The input order is
+ * checked as the records go by, and an input that is not coordinate sorted fails the slice rather than producing unsorted slices.
+ *
+ * With --orphans-output it also writes the reads of the region slice whose other end is not in the slice, as "bamcollate2 collate=1 classes=O,O2"
+ * found them. Since the slice is in coordinate order the pairs are matched as they stream by, keeping only the open ones in a table of primitive keys,
+ * and the orphans are then picked out of the finished slice in one more sequential read instead of collating the slice by name. Secondary and
+ * supplementary alignments are not pair ends and are left out, as bamcollate2 does.
+ *
+ * With --mates-output the mates of the orphans are recovered by a {@link MateRecovery} in the same run, once the outputs are closed and the index is
+ * written, so the orphans go from one pass to the next in memory and never reach the disk unless --orphans-output asks for them too.
+ *
+ * With --shards the input is split into groups of contigs by {@link ShardPlan} and only the contigs of the given --shard are read, seeking to them
+ * through the index. The shard that owns the unplaced reads also reads the tail of the file.
+ *
+ * An unsharded run reads every record anyway, so with --index-output it also writes the index of the input.
+ *
+ * With --query only the region slice is written, and only the parts of the input that can hold reads overlapping the regions are read: the BED
+ * intervals are turned into index chunks, which are merged and then coalesced with their neighbours when less than --coalesce-gap compressed bytes
+ * apart, trading a little extra reading for fewer seeks. The unplaced reads at the end of the file are read as well, by the shard that owns them,
+ * since "samtools view -L" passes those whose mate is placed through to the slice. The unmapped outputs need every record and cannot be combined with
+ * --query.
+ *
+ * With --follow the input is read while it is still being downloaded, through a {@link BgzfBlockFollower} that waits for the input's ".complete"
+ * or ".failed" marker and checks the downloaded file once it is complete. The slice, the unmapped outputs and the index are then ready moments after the
+ * download ends.
+ *
+ * With --threads greater than 1 all outputs are compressed on a shared pool of that many threads, and with --read-threads greater than 1 the input is
+ * inflated on a pool of its own.
+ */
+public class BamSlicer {
+
+  private static final Logger logger = Logger.getLogger(BamSlicer.class.getName());
+
+  private static final String USAGE = "java " + BamSlicer.class.getName() + " --input <bam> --regions <bed> --slice-output <bam>"
+    + " [--orphans-output <bam>] [--mates-output <bam> [--mates-level <0-9>]] [--unmapped-output <bam> --mate-unmapped-output <bam> --both-unmapped-output <bam> | --half-unmapped-output <bam>]"
+    + " [--shard <n> --shards <count> [--index <bai>] | --index-output <bai>] [--query [--index <bai>] [--coalesce-gap <bytes>]]"
+    + " [--follow [--follow-timeout <minutes>]] [--slice-level <0-9>] [--unmapped-level <0-9>] [--threads <n>] [--read-threads <n>]";
+
+  // the filters of the samtools and remove_both_ends_unmapped_reads.pl pipelines each output used to be made with
+  static final RecordFilter BOTH_ENDS_PLACED = RecordFilters.removeBothEndsUnmapped();
+  static final RecordFilter UNMAPPED = RecordFilters.all(RecordFilters.requireAll(BamRecord.FLAG_UNMAPPED), BOTH_ENDS_PLACED);
+  static final RecordFilter MATE_UNMAPPED = RecordFilters.all(RecordFilters.requireAll(BamRecord.FLAG_MATE_UNMAPPED), BOTH_ENDS_PLACED);
+  static final RecordFilter BOTH_UNMAPPED = RecordFilters.requireAll(BamRecord.FLAG_UNMAPPED | BamRecord.FLAG_MATE_UNMAPPED);
+  static final RecordFilter HALF_UNMAPPED = RecordFilters.all(RecordFilters.placed(),
+    RecordFilters.requireAny(BamRecord.FLAG_UNMAPPED | BamRecord.FLAG_MATE_UNMAPPED));
+
+  // chunks closer than this are read as one, about what a disk reads in the time of a seek
+  static final long COALESCE_GAP = 1 << 20;
+
+  // how often a followed download is looked at again once the reader has caught up with it
+  private static final long FOLLOW_POLL_MILLIS = 5000;
+
+  private final BedRegions regions;
+  private final BamWriter sliceOut;
+  private final BamWriter unmappedOut;
+  private final BamWriter mateUnmappedOut;
+  private final BamWriter bothUnmappedOut;
+  private BamWriter halfUnmappedOut = null;
+  private BamIndexBuilder halfUnmappedIndex = null;
+
+  // pairs of the region slice with one end seen so far, and the ends of the orphans once the slice is complete
+  private final MateTable openPairs = new MateTable(1024);
+  private long lastPosition = Long.MIN_VALUE;
+
+  /**
+   * @param regions the regions of the region slice
+   * @param sliceOut receives the region slice
+   * @param unmappedOut receives the unmapped reads, may be null
+   * @param mateUnmappedOut receives reads with an unmapped mate, may be null
+   * @param bothUnmappedOut receives pairs with both ends unmapped, may be null
+   */
+  public BamSlicer(BedRegions regions, BamWriter sliceOut, BamWriter unmappedOut, BamWriter mateUnmappedOut, BamWriter bothUnmappedOut) {
+    this.regions = regions;
+    this.sliceOut = sliceOut;
+    this.unmappedOut = unmappedOut;
+    this.mateUnmappedOut = mateUnmappedOut;
+    this.bothUnmappedOut = bothUnmappedOut;
+  }
+
+  /**
+   * Also writes the placed reads with an unmapped end to one output, indexing it on the way.
+   *
+   * @param index an index builder given the stream of out
+   */
+  public void setHalfUnmappedOutput(BamWriter out, BamIndexBuilder index) {
+    halfUnmappedOut = out;
+    halfUnmappedIndex = index;
+  }
+
+  /**
+   * Routes every remaining record of the stream.
+   *
+   * @param index receives every record with its offsets, may be null
+   * @return the number of records read
+   */
+  public long slice(BgzfInputStream in, BamIndexBuilder index) throws IOException {
+    BamRecord record = new BamRecord();
+    long count = 0;
+    long start = in.getFilePointer();
+    while (record.read(in)) {
+      route(record);
+      if (index != null) {
+        long end = in.getFilePointer();
+        index.add(record, start, end);
+        start = end;
+      }
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Routes the records of the given virtual offset ranges of a seekable stream.
+   *
+   * @return the number of records read
+   */
+  public long slice(BgzfInputStream in, ChunkList chunks) throws IOException {
+    BamRecord record = new BamRecord();
+    long count = 0;
+    for (int c = 0; c < chunks.size(); c++) {
+      long end = chunks.getEnd(c);
+      in.seek(chunks.getStart(c));
+      while (in.getFilePointer() < end && record.read(in)) {
+        route(record);
+        count++;
+      }
+    }
+    return count;
+  }
+
+  void route(BamRecord record) throws IOException {
+    int refId = record.getReferenceIndex();
+    long position = refId < 0 ? Long.MAX_VALUE : MateTable.position(refId, record.getPosition());
+    if (position < lastPosition) {
+      throw new IOException("The input is not coordinate sorted at " + record.getReadName());
+    }
+    lastPosition = position;
+
+    // samtools -L only tests placed reads against the regions and passes unplaced ones through
+    if (BOTH_ENDS_PLACED.accept(record) && (refId < 0 || regions.overlaps(refId, record.getPosition(), record.getAlignmentEnd()))) {
+      sliceOut.write(record);
+      pair(record);
+    }
+    if (unmappedOut != null && UNMAPPED.accept(record)) {
+      unmappedOut.write(record);
+    }
+    if (mateUnmappedOut != null && MATE_UNMAPPED.accept(record)) {
+      mateUnmappedOut.write(record);
+    }
+    if (bothUnmappedOut != null && BOTH_UNMAPPED.accept(record)) {
+      bothUnmappedOut.write(record);
+    }
+    if (halfUnmappedOut != null && HALF_UNMAPPED.accept(record)) {
+      halfUnmappedOut.write(record, halfUnmappedIndex);
+    }
+  }
+
+  /**
+   * The ranges --query reads: the index chunks of the regions on the contigs of a shard, merged and coalesced.
+   *
+   * @param plan the shards, or null to take every contig
+   */
+  static ChunkList planQuery(BedRegions regions, BamIndex index, ShardPlan plan, int shard, long coalesceGap) {
+    ChunkList chunks = new ChunkList();
+    for (int refId = 0; refId < index.getReferenceCount(); refId++) {
+      if (plan == null || plan.getShard(refId) == shard) {
+        regions.addChunks(index, refId, chunks);
+      }
+    }
+    chunks.merge();
+    chunks.coalesce(coalesceGap);
+    return chunks;
+  }
+
+  private static boolean isPairEnd(BamRecord record) {
+    int flag = record.getFlag();
+    return (flag & BamRecord.FLAG_PAIRED) != 0 && (flag & (BamRecord.FLAG_SECONDARY | BamRecord.FLAG_SUPPLEMENTARY)) == 0;
+  }
+
+  /**
+   * Both ends of a pair share the name and the leftmost of their two positions.
+   */
+  private static long pairPosition(BamRecord record) {
+    return Math.min(MateTable.position(record.getReferenceIndex(), record.getPosition()),
+      MateTable.position(record.getMateReferenceIndex(), record.getMatePosition()));
+  }
+
+  /**
+   * Closes the pair of a slice record if its other end was seen, or opens it.
+   */
+  void pair(BamRecord record) {
+    if (!isPairEnd(record)) {
+      return;
+    }
+    long name = MateTable.nameHash(record);
+    long position = pairPosition(record);
+    int flag = record.getFlag();
+    int other = openPairs.get(name, position);
+    if (other >= 0 && other != flag) {
+      openPairs.remove(name, position);
+    } else {
+      openPairs.put(name, position, flag);
+    }
+  }
+
+  /**
+   * Reads the finished region slice again and writes the ends of the pairs that are still open, handing them to a mate recovery as well.
+   *
+   * @param out receives the orphans, may be null
+   * @param recovery is given the orphans to find the mates of, may be null
+   * @return the number of orphans
+   */
+  public long writeOrphans(File slice, BamWriter out, MateRecovery recovery) throws IOException {
+    long count = 0;
+    BgzfInputStream in = BgzfInputStream.openSequential(slice);
+    try {
+      BamHeader.read(in);
+      BamRecord record = new BamRecord();
+      while (record.read(in)) {
+        if (isPairEnd(record) && openPairs.get(MateTable.nameHash(record), pairPosition(record)) == record.getFlag()) {
+          count++;
+          if (out != null) {
+            out.write(record);
+          }
+          if (recovery != null) {
+            recovery.addOrphan(record);
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+    if (recovery != null) {
+      recovery.finishOrphans();
+    }
+    return count;
+  }
+
+  private static BamWriter openOutput(Arguments arguments, String name, BamHeader header, int level, ExecutorService pool, int maxInFlight)
+    throws IOException {
+    return arguments.has(name) ? new BamWriter(new File(arguments.require(name)), header, level, pool, maxInFlight) : null;
+  }
+
+  private static void close(BamWriter writer) throws IOException {
+    if (writer != null) {
+      writer.close();
+    }
+  }
+
+  /**
+   * Runs the slice the arguments describe, as main does without exiting.
+   */
+  static void run(Arguments arguments) throws IOException {
+    File input = new File(arguments.require("input"));
+
+    boolean query = arguments.has("query");
+    if (query && (arguments.has("unmapped-output") || arguments.has("mate-unmapped-output") || arguments.has("both-unmapped-output")
+        || arguments.has("half-unmapped-output"))) {
+      throw new IllegalArgumentException("--query writes only the region slice");
+    }
+    int shards = arguments.getInt("shards", 1);
+    boolean follow = arguments.has("follow");
+    if (follow && (shards > 1 || query)) {
+      throw new IllegalArgumentException("--follow reads the input in one sequential pass and cannot be combined with --shards or --query");
+    }
+    int shard = arguments.getInt("shard", 0);
+    int threads = arguments.getInt("threads", 1);
+    int readThreads = arguments.getInt("read-threads", 1);
+    // level 1 for the slice as bamsort wrote it, the samtools default for the unmapped reads
+    int sliceLevel = arguments.getInt("slice-level", 1);
+    int unmappedLevel = arguments.getInt("unmapped-level", Deflater.DEFAULT_COMPRESSION);
+
+    ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    ExecutorService readPool = readThreads > 1 ? Executors.newFixedThreadPool(readThreads) : null;
+    BgzfInputStream in;
+    if (follow) {
+      long idleTimeout = arguments.getInt("follow-timeout", 60) * 60000L;
+      BgzfBlockFollower follower = new BgzfBlockFollower(input, new File(input.getPath() + ".complete"), new File(input.getPath() + ".failed"),
+        FOLLOW_POLL_MILLIS, idleTimeout);
+      in = new BgzfInputStream(follower, 0, readPool, 4 * readThreads);
+    } else if (shards > 1 || query) {
+      in = new BgzfInputStream(input, readPool, 4 * readThreads);
+    } else {
+      in = BgzfInputStream.openSequential(input, readPool, 4 * readThreads);
+    }
+    try {
+      BamHeader header = BamHeader.read(in);
+      BedRegions regions = BedRegions.load(new File(arguments.require("regions")), header);
+
+      ChunkList chunks = null;
+      BamIndexBuilder indexBuilder = null;
+      if (query || shards > 1) {
+        BamIndex index = BamIndex.read(new File(arguments.get("index", input.getPath() + ".bai")));
+        long unplacedStart = index.getUnplacedStart();
+        if (unplacedStart < 0) {
+          unplacedStart = in.getFilePointer();
+        }
+        long unplacedBytes = input.length() - Bgzf.blockAddress(unplacedStart);
+        ShardPlan plan = ShardPlan.balance(index, unplacedBytes, shards);
+        boolean unplaced = plan.hasUnplaced(shard);
+        if (query) {
+          chunks = planQuery(regions, index, plan, shard, Long.parseLong(arguments.get("coalesce-gap", Long.toString(COALESCE_GAP))));
+          logger.log(Level.INFO, "Reading about {0} of {1} bytes in {2} ranges",
+            new Object[]{chunks.getCompressedBytes() + (unplaced ? unplacedBytes : 0), input.length(), chunks.size() + (unplaced ? 1 : 0)});
+        } else {
+          chunks = plan.getChunks(shard, index);
+          logger.log(Level.INFO, "Shard {0} of {1}: about {2} bytes in contigs {3}",
+            new Object[]{shard, shards, plan.getBytes(shard), plan.describe(shard, header)});
+        }
+        // "samtools view -L" passes the unplaced reads whose mate is placed through to the slice
+        if (unplaced) {
+          chunks.add(unplacedStart, Long.MAX_VALUE);
+        }
+      } else if (arguments.has("index-output")) {
+        indexBuilder = new BamIndexBuilder(header.getReferenceCount());
+      }
+
+      // each output may keep a few blocks per thread queued, enough to keep the pool busy when one output takes most records
+      int maxInFlight = 4 * threads;
+      BamWriter sliceOut = new BamWriter(new File(arguments.require("slice-output")), header, sliceLevel, pool, maxInFlight);
+      BamWriter unmappedOut = openOutput(arguments, "unmapped-output", header, unmappedLevel, pool, maxInFlight);
+      BamWriter mateUnmappedOut = openOutput(arguments, "mate-unmapped-output", header, unmappedLevel, pool, maxInFlight);
+      BamWriter bothUnmappedOut = openOutput(arguments, "both-unmapped-output", header, unmappedLevel, pool, maxInFlight);
+
+      BamSlicer slicer = new BamSlicer(regions, sliceOut, unmappedOut, mateUnmappedOut, bothUnmappedOut);
+      BamWriter halfUnmappedOut = null;
+      BamIndexBuilder halfUnmappedIndex = null;
+      if (arguments.has("half-unmapped-output")) {
+        BgzfOutputStream stream = new BgzfOutputStream(new File(arguments.require("half-unmapped-output")), unmappedLevel, pool, maxInFlight);
+        halfUnmappedOut = new BamWriter(stream, header);
+        halfUnmappedIndex = new BamIndexBuilder(header.getReferenceCount(), stream);
+        slicer.setHalfUnmappedOutput(halfUnmappedOut, halfUnmappedIndex);
+      }
+      long count = chunks == null ? slicer.slice(in, indexBuilder) : slicer.slice(in, chunks);
+
+      sliceOut.close();
+      MateRecovery recovery = null;
+      if (arguments.has("mates-output")) {
+        recovery = new MateRecovery();
+        if (shards > 1) {
+          // a pair split across shards is an orphan in both, but each end is already in the slice of its own shard
+          recovery.setSliced(regions);
+        }
+      }
+      if (arguments.has("orphans-output") || recovery != null) {
+        BamWriter orphansOut = openOutput(arguments, "orphans-output", header, sliceLevel, pool, maxInFlight);
+        long orphans = slicer.writeOrphans(new File(arguments.require("slice-output")), orphansOut, recovery);
+        close(orphansOut);
+        logger.log(Level.INFO, "{0} reads of the region slice are orphans", orphans);
+      }
+      close(unmappedOut);
+      close(mateUnmappedOut);
+      close(bothUnmappedOut);
+      if (halfUnmappedOut != null) {
+        halfUnmappedOut.close();
+        halfUnmappedIndex.write(new File(arguments.require("half-unmapped-output") + ".bai"));
+      }
+      if (indexBuilder != null) {
+        indexBuilder.write(new File(arguments.require("index-output")));
+      }
+      if (recovery != null) {
+        File bai = new File(arguments.has("index-output") ? arguments.require("index-output") : arguments.get("index", input.getPath() + ".bai"));
+        BamWriter matesOut = new BamWriter(new File(arguments.require("mates-output")), header, arguments.getInt("mates-level", sliceLevel), pool,
+          maxInFlight);
+        long inspected = recovery.recover(input, bai, matesOut, readPool, readThreads);
+        matesOut.close();
+        logger.log(Level.INFO, "Recovered {0} mates from {1} records read", new Object[]{matesOut.getRecordCount(), inspected});
+      }
+      logger.log(Level.INFO, "Read {0} records from {1}, {2} in the region slice", new Object[]{count, input, sliceOut.getRecordCount()});
+    } finally {
+      in.close();
+      if (pool != null) {
+        pool.shutdown();
+      }
+      if (readPool != null) {
+        readPool.shutdown();
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    try {
+      run(new Arguments(args));
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.SEVERE, e.getMessage() + "\n" + USAGE);
+      System.exit(2);
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Slicing failed", e);
+      System.exit(1);
+    }
+  }
+}
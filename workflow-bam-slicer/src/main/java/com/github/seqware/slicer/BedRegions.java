@@ -0,0 +1,126 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamIndex;
+import com.github.seqware.bam.ChunkList;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The intervals of a BED file, sorted and merged per reference, for overlap tests against BAM records and for planning which parts of an indexed BAM
+ * can hold overlapping reads.
+ */
+public class BedRegions {
+
+  // merged intervals per reference index, as 0-based half open [start, end)
+  private final int[][] starts;
+  private final int[][] ends;
+
+  private BedRegions(int[][] starts, int[][] ends) {
+    this.starts = starts;
+    this.ends = ends;
+  }
+
+  /**
+   * Loads a BED file and resolves its contig names against the reference dictionary of a BAM. Intervals on contigs the BAM does not have are dropped.
+   */
+  public static BedRegions load(File bed, BamHeader header) throws IOException {
+    Map<String, List<long[]>> byContig = new LinkedHashMap<String, List<long[]>>();
+    BufferedReader reader = new BufferedReader(new FileReader(bed));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.length() == 0 || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+          continue;
+        }
+        String[] fields = line.split("\t");
+        if (fields.length < 3) {
+          throw new IOException("Malformed BED line: " + line);
+        }
+        List<long[]> intervals = byContig.get(fields[0]);
+        if (intervals == null) {
+          intervals = new ArrayList<long[]>();
+          byContig.put(fields[0], intervals);
+        }
+        intervals.add(new long[]{Long.parseLong(fields[1].trim()), Long.parseLong(fields[2].trim())});
+      }
+    } finally {
+      reader.close();
+    }
+
+    int count = header.getReferenceCount();
+    int[][] starts = new int[count][];
+    int[][] ends = new int[count][];
+    for (int refId = 0; refId < count; refId++) {
+      List<long[]> intervals = byContig.get(header.getReferenceName(refId));
+      if (intervals == null) {
+        starts[refId] = new int[0];
+        ends[refId] = new int[0];
+        continue;
+      }
+      long[] packed = new long[intervals.size()];
+      for (int i = 0; i < packed.length; i++) {
+        packed[i] = intervals.get(i)[0] << 32 | intervals.get(i)[1];
+      }
+      Arrays.sort(packed);
+      int[] s = new int[packed.length];
+      int[] e = new int[packed.length];
+      int n = 0;
+      for (long interval : packed) {
+        int start = (int) (interval >>> 32);
+        int end = (int) interval;
+        if (n > 0 && start <= e[n - 1]) {
+          e[n - 1] = Math.max(e[n - 1], end);
+        } else {
+          s[n] = start;
+          e[n] = end;
+          n++;
+        }
+      }
+      starts[refId] = Arrays.copyOf(s, n);
+      ends[refId] = Arrays.copyOf(e, n);
+    }
+    return new BedRegions(starts, ends);
+  }
+
+  /**
+   * @return true if [start, end) on the reference overlaps any interval
+   */
+  public boolean overlaps(int refId, int start, int end) {
+    if (refId < 0 || refId >= starts.length) {
+      return false;
+    }
+    int[] e = ends[refId];
+    // first interval ending after start
+    int lo = 0;
+    int hi = e.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (e[mid] <= start) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo < e.length && starts[refId][lo] < end;
+  }
+
+  /**
+   * Adds the index chunks that can hold reads overlapping the intervals of a reference. The chunks are neither sorted nor merged.
+   */
+  public void addChunks(BamIndex index, int refId, ChunkList out) {
+    if (refId < 0 || refId >= starts.length) {
+      return;
+    }
+    for (int i = 0; i < starts[refId].length; i++) {
+      index.addChunks(refId, starts[refId][i], ends[refId][i], out);
+    }
+  }
+}
@@ -0,0 +1,385 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamRecord;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Marks duplicates the way bammarkduplicates and Picard MarkDuplicates define them: reads are duplicates when they come from the same library and their
+ * unclipped 5' ends fall on the same position with the same orientation, for pairs at both ends. Of every set of duplicates the copy with the highest
+ * sum of base qualities of at least 15 is kept, the first one in coordinate order on a tie. A single read, or one whose mate is unmapped, that shares its
+ * end with an end of a pair is a duplicate whichever comes first, while pairs are never duplicates because of single reads.
+ *
+ * Which copy is the best is only known once every copy has gone by, so the records are {@link #examine(BamRecord) examined} in a first pass and
+ * {@link #mark(BamRecord) marked} in a second pass over the same records in the same order, through a bit per record. A pair is signed once both of its
+ * ends have gone by, from the 5' end and orientation each of them has, so no MC tag is needed: the first end waits in a table until the second one
+ * comes by, and a pair whose other end is not in the input is never a pair duplicate. The groups of single ends and of pairs and the waiting ends live in
+ * {@link SignatureTable}s outside the heap, which let go of what the coordinate order says cannot come back.
+ *
+ * Secondary and supplementary alignments are never marked, and existing marks are cleared.
+ */
+class DuplicateMarker {
+
+  /**
+   * The DuplicationMetrics counts of one library.
+   */
+  static final class Library {
+
+    final String name;
+    long unpairedReads;
+    long pairedEnds;
+    long unmappedReads;
+    long unpairedDuplicates;
+    long pairedEndDuplicates;
+
+    Library(String name) {
+      this.name = name;
+    }
+  }
+
+  // the furthest clipping or read length can take a 5' end from the position of its record
+  static final int WINDOW = 1 << 20;
+
+  // bases of lower quality do not count towards the score of a read, as in bammarkduplicates
+  private static final int MIN_BASE_QUALITY = 15;
+
+  private static final int NOT_EXAMINED = BamRecord.FLAG_SECONDARY | BamRecord.FLAG_SUPPLEMENTARY;
+
+  // the values of the signature tables: the score of the best copy and its record, the other end of a pair or whether a pair has the end, and for a
+  // waiting end its signature and 5' position
+  private static final int SCORE = 0;
+  private static final int BEST = 1;
+  private static final int MATE = 2;
+  private static final int PAIRED = 2;
+  private static final int END = 2;
+  private static final int END_POSITION = 3;
+
+  // the read group IDs of the header and the library each of them belongs to
+  private final byte[][] readGroups;
+  private final int[] readGroupLibraries;
+  private final List<Library> libraries = new ArrayList<Library>();
+  private final int unknownLibrary;
+
+  private final SignatureTable ends = new SignatureTable(1 << 16);
+  private final SignatureTable pairs = new SignatureTable(1 << 16);
+  private final SignatureTable openPairs = new SignatureTable(1 << 12);
+
+  // a bit for every record of the first pass, set for the duplicates
+  private long[] duplicates = new long[1024];
+  private long examined = 0;
+  private long marked = 0;
+
+  DuplicateMarker(BamHeader header) {
+    Map<String, Integer> libraryIndex = new LinkedHashMap<String, Integer>();
+    List<String> ids = new ArrayList<String>();
+    List<Integer> idLibraries = new ArrayList<Integer>();
+    for (String line : header.getText().split("\n")) {
+      if (!line.startsWith("@RG")) {
+        continue;
+      }
+      String id = null;
+      String library = "Unknown Library";
+      for (String field : line.split("\t")) {
+        if (field.startsWith("ID:")) {
+          id = field.substring(3).trim();
+        } else if (field.startsWith("LB:")) {
+          library = field.substring(3).trim();
+        }
+      }
+      if (id != null) {
+        ids.add(id);
+        idLibraries.add(libraryIndex(library, libraryIndex));
+      }
+    }
+    unknownLibrary = libraryIndex("Unknown Library", libraryIndex);
+    readGroups = new byte[ids.size()][];
+    readGroupLibraries = new int[ids.size()];
+    for (int i = 0; i < readGroups.length; i++) {
+      readGroups[i] = ids.get(i).getBytes();
+      readGroupLibraries[i] = idLibraries.get(i);
+    }
+  }
+
+  private int libraryIndex(String name, Map<String, Integer> libraryIndex) {
+    Integer index = libraryIndex.get(name);
+    if (index == null) {
+      index = libraries.size();
+      libraryIndex.put(name, index);
+      libraries.add(new Library(name));
+    }
+    return index;
+  }
+
+  /**
+   * The library of the record's read group.
+   */
+  private int library(BamRecord record) {
+    int tag = record.findTag('R', 'G');
+    if (tag < 0 || record.getData()[tag] != 'Z') {
+      return unknownLibrary;
+    }
+    byte[] data = record.getData();
+    int length = record.getStringLength(tag + 1);
+    for (int i = 0; i < readGroups.length; i++) {
+      byte[] id = readGroups[i];
+      if (id.length != length) {
+        continue;
+      }
+      int j = 0;
+      while (j < length && data[tag + 1 + j] == id[j]) {
+        j++;
+      }
+      if (j == length) {
+        return readGroupLibraries[i];
+      }
+    }
+    return unknownLibrary;
+  }
+
+  private static boolean isPairEnd(int flag) {
+    return (flag & BamRecord.FLAG_PAIRED) != 0 && (flag & BamRecord.FLAG_MATE_UNMAPPED) == 0;
+  }
+
+  /**
+   * The sum of the base qualities of at least {@link #MIN_BASE_QUALITY}, 0 for a read without qualities.
+   */
+  private static long score(BamRecord record) {
+    byte[] data = record.getData();
+    int off = record.getQualityOffset();
+    int end = off + record.getSequenceLength();
+    if (off == end || data[off] == (byte) 0xff) {
+      return 0;
+    }
+    long score = 0;
+    for (int i = off; i < end; i++) {
+      if (data[i] >= MIN_BASE_QUALITY) {
+        score += data[i];
+      }
+    }
+    return score;
+  }
+
+  private void setDuplicate(long index) {
+    int word = (int) (index >>> 6);
+    if (word >= duplicates.length) {
+      duplicates = Arrays.copyOf(duplicates, Math.max(word + 1, 2 * duplicates.length));
+    }
+    duplicates[word] |= 1L << index;
+  }
+
+  private boolean isDuplicate(long index) {
+    int word = (int) (index >>> 6);
+    return word < duplicates.length && (duplicates[word] & 1L << index) != 0;
+  }
+
+  /**
+   * Takes the next record of the first pass into account.
+   */
+  void examine(BamRecord record) {
+    long index = examined++;
+    int flag = record.getFlag();
+    if ((flag & NOT_EXAMINED) != 0) {
+      return;
+    }
+    int libraryId = library(record);
+    Library library = libraries.get(libraryId);
+    if ((flag & BamRecord.FLAG_UNMAPPED) != 0) {
+      library.unmappedReads++;
+      return;
+    }
+    int refId = record.getReferenceIndex();
+    long horizon = MateTable.position(refId, Math.max(0, record.getPosition() - WINDOW));
+    ends.setHorizon(horizon);
+    pairs.setHorizon(horizon);
+    openPairs.setHorizon(horizon);
+
+    boolean reverse = (flag & BamRecord.FLAG_REVERSE) != 0;
+    int fivePrime = reverse ? record.getUnclippedEnd() - 1 : record.getUnclippedStart();
+    long end = signature(libraryId, refId, fivePrime, reverse);
+    long endPosition = MateTable.position(refId, Math.max(0, fivePrime));
+    long score = score(record);
+    int slot = ends.add(end, endPosition);
+    if (isPairEnd(flag)) {
+      library.pairedEnds++;
+      if (ends.get(slot, PAIRED) < 0) {
+        ends.set(slot, PAIRED, 1);
+        // the single reads at this end that came first
+        if (ends.get(slot, BEST) >= 0) {
+          setDuplicate(ends.get(slot, BEST));
+          ends.set(slot, BEST, -1);
+        }
+      }
+      examinePairEnd(record, index, end, endPosition, score);
+    } else {
+      library.unpairedReads++;
+      if (ends.get(slot, PAIRED) > 0 || score <= ends.get(slot, SCORE)) {
+        setDuplicate(index);
+      } else {
+        if (ends.get(slot, BEST) >= 0) {
+          setDuplicate(ends.get(slot, BEST));
+        }
+        ends.set(slot, SCORE, score);
+        ends.set(slot, BEST, index);
+      }
+    }
+  }
+
+  /**
+   * Holds the first end of a pair until the second one comes by, then compares the pair with the others of its signature.
+   */
+  private void examinePairEnd(BamRecord record, long index, long end, long endPosition, long score) {
+    long name = MateTable.nameHash(record);
+    long own = MateTable.position(record.getReferenceIndex(), record.getPosition());
+    long mate = MateTable.position(record.getMateReferenceIndex(), record.getMatePosition());
+    int open = openPairs.find(mix(name ^ mix(own)));
+    if (open < 0) {
+      // the mate should have come by already when it is before this end, and is not in the input then
+      if (mate >= own) {
+        open = openPairs.add(mix(name ^ mix(mate)), mate);
+        openPairs.set(open, SCORE, score);
+        openPairs.set(open, BEST, index);
+        openPairs.set(open, END, end);
+        openPairs.set(open, END_POSITION, endPosition);
+      }
+      return;
+    }
+    long first = openPairs.get(open, BEST);
+    long pairScore = openPairs.get(open, SCORE) + score;
+    // the ends added up, so the signature does not depend on which end comes first
+    long signature = mix(0x9e3779b97f4a7c15L ^ (openPairs.get(open, END) + end));
+    long position = Math.max(openPairs.get(open, END_POSITION), endPosition);
+    openPairs.remove(open);
+
+    int slot = pairs.add(signature, position);
+    long best = pairs.get(slot, BEST);
+    if (best >= 0 && (pairScore < pairs.get(slot, SCORE) || pairScore == pairs.get(slot, SCORE) && first > best)) {
+      setDuplicate(first);
+      setDuplicate(index);
+      return;
+    }
+    if (best >= 0) {
+      setDuplicate(best);
+      setDuplicate(pairs.get(slot, MATE));
+    }
+    pairs.set(slot, SCORE, pairScore);
+    pairs.set(slot, BEST, first);
+    pairs.set(slot, MATE, index);
+  }
+
+  /**
+   * Sets or clears the duplicate flag of the next record of the second pass.
+   *
+   * @return true if the record is a duplicate
+   */
+  boolean mark(BamRecord record) {
+    boolean duplicate = isDuplicate(marked++);
+    int flag = record.getFlag() & ~BamRecord.FLAG_DUPLICATE;
+    if (duplicate) {
+      Library library = libraries.get(library(record));
+      if (isPairEnd(flag)) {
+        library.pairedEndDuplicates++;
+      } else {
+        library.unpairedDuplicates++;
+      }
+    }
+    record.setFlag(duplicate ? flag | BamRecord.FLAG_DUPLICATE : flag);
+    return duplicate;
+  }
+
+  private static long signature(int library, int refId, int position, boolean reverse) {
+    long h = mix(0x9e3779b97f4a7c15L + library);
+    h = mix(h ^ ((long) refId << 32 | (position & 0xffffffffL)));
+    return mix(h ^ (reverse ? 0x5bd1e995L : 0x1b873593L));
+  }
+
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  List<Library> getLibraries() {
+    return libraries;
+  }
+
+  /**
+   * Writes the counts in the DuplicationMetrics format of bammarkduplicates, without optical duplicates and the histogram.
+   */
+  void writeMetrics(File metrics) throws IOException {
+    File part = new File(metrics.getPath() + ".part");
+    PrintWriter out = new PrintWriter(part, "US-ASCII");
+    try {
+      out.print("# " + BamMerger.class.getName() + "\n");
+      out.print("## METRICS CLASS\tnet.sf.picard.sam.DuplicationMetrics\n");
+      out.print("LIBRARY\tUNPAIRED_READS_EXAMINED\tREAD_PAIRS_EXAMINED\tUNMAPPED_READS\tUNPAIRED_READ_DUPLICATES\tREAD_PAIR_DUPLICATES"
+        + "\tREAD_PAIR_OPTICAL_DUPLICATES\tPERCENT_DUPLICATION\tESTIMATED_LIBRARY_SIZE\n");
+      for (Library library : libraries) {
+        if (library.unpairedReads + library.pairedEnds + library.unmappedReads == 0) {
+          continue;
+        }
+        long pairs = library.pairedEnds / 2;
+        long pairDuplicates = library.pairedEndDuplicates / 2;
+        long examined = library.unpairedReads + 2 * pairs;
+        double percent = examined == 0 ? 0 : (library.unpairedDuplicates + 2.0 * pairDuplicates) / examined;
+        long size = estimateLibrarySize(pairs, pairs - pairDuplicates);
+        out.print(library.name + "\t" + library.unpairedReads + "\t" + pairs + "\t" + library.unmappedReads + "\t" + library.unpairedDuplicates
+          + "\t" + pairDuplicates + "\t0\t" + String.format(Locale.ROOT, "%.6f", percent) + "\t" + (size < 0 ? "" : Long.toString(size)) + "\n");
+      }
+    } finally {
+      out.close();
+    }
+    if (out.checkError()) {
+      throw new IOException("Could not write " + part);
+    }
+    if (!part.renameTo(metrics)) {
+      throw new IOException("Could not rename " + part + " to " + metrics);
+    }
+  }
+
+  /**
+   * Picard's estimate of the number of distinct molecules in a library from the pairs read and the pairs that are not duplicates, found by bisection of
+   * uniquePairs / x = 1 - exp(-pairs / x).
+   *
+   * @return the estimate, or -1 if there are no duplicates to estimate it from
+   */
+  static long estimateLibrarySize(long pairs, long uniquePairs) {
+    if (pairs <= 0 || uniquePairs <= 0 || uniquePairs >= pairs) {
+      return -1;
+    }
+    double low = 1.0;
+    double high = 100.0;
+    if (librarySizeFunction(low * uniquePairs, uniquePairs, pairs) < 0) {
+      return -1;
+    }
+    while (librarySizeFunction(high * uniquePairs, uniquePairs, pairs) >= 0) {
+      high *= 10.0;
+    }
+    for (int i = 0; i < 40; i++) {
+      double r = (low + high) / 2.0;
+      double u = librarySizeFunction(r * uniquePairs, uniquePairs, pairs);
+      if (u == 0) {
+        break;
+      } else if (u > 0) {
+        low = r;
+      } else {
+        high = r;
+      }
+    }
+    return (long) (uniquePairs * (low + high) / 2.0);
+  }
+
+  private static double librarySizeFunction(double x, double c, double n) {
+    return c / x - 1 + Math.exp(-n / x);
+  }
+}
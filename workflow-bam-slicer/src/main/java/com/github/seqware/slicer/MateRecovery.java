@@ -0,0 +1,243 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamIndex;
+import com.github.seqware.bam.BamRecord;
+import com.github.seqware.bam.BamWriter;
+import com.github.seqware.bam.BgzfInputStream;
+import com.github.seqware.bam.ChunkList;
+import com.github.seqware.bam.RecordFilter;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Recovers the mates of the orphaned reads of the region slice by reading only the parts of the input BAM the index says can hold them.
+ *
+ * This replaces gen_missing_mates_bed.pl, the second "samtools view -F 12 -L" pass over the whole input and extract_missing_mates.pl: the mate positions
+ * of the orphans are sorted into a primitive array, turned into index chunks, and every mapped read found in those chunks is matched against the orphans
+ * on read name, read group, reference and position. A read is kept if an orphan is waiting for it and it does not carry the orphan's own flag.
+ *
+ * Chunks are visited in file order, so the recovered mates come out in the order of the input.
+ *
+ * When the region slice was split into shards, the two ends of a pair can be orphans of different shards while both are in the region slice. Passing
+ * --regions skips mates that overlap the regions, since those are already in the slice of their own shard.
+ *
+ * {@link BamSlicer} can also run the recovery itself once its slice is written, handing the orphans over in memory instead of through a file.
+ */
+public class MateRecovery implements RecordFilter {
+
+  private static final Logger logger = Logger.getLogger(MateRecovery.class.getName());
+
+  private static final String USAGE = "java " + MateRecovery.class.getName() + " --orphans <bam> --input <bam> [--index <bai>] --output <bam> [--regions <bed>]";
+
+  private static final int BOTH_UNMAPPED = BamRecord.FLAG_UNMAPPED | BamRecord.FLAG_MATE_UNMAPPED;
+
+  private MateTable mates;
+  private BedRegions sliced = null;
+  private long[] positions = new long[1024];
+  private int positionCount = 0;
+  // the read name hashes and flags of the orphans, until the table is built
+  private long[] names = new long[1024];
+  private int[] flags = new int[1024];
+  private long orphanCount = 0;
+
+  /**
+   * Reads the orphans and records where each of their mates should be.
+   *
+   * @return the number of orphans read
+   */
+  long loadOrphans(File orphans) throws IOException {
+    BgzfInputStream in = BgzfInputStream.openSequential(orphans);
+    try {
+      BamHeader.read(in);
+      BamRecord record = new BamRecord();
+      while (record.read(in)) {
+        addOrphan(record);
+      }
+    } finally {
+      in.close();
+    }
+    finishOrphans();
+    return orphanCount;
+  }
+
+  /**
+   * Records where the mate of an orphan should be, for orphans handed over in memory instead of read from a file. {@link #finishOrphans()} is called
+   * once the last one is added.
+   */
+  void addOrphan(BamRecord record) {
+    orphanCount++;
+    int mateRefId = record.getMateReferenceIndex();
+    int matePos = record.getMatePosition();
+    if (mateRefId < 0) {
+      return;
+    }
+    // both ends at the same place were captured together by the region slice
+    if (mateRefId == record.getReferenceIndex() && matePos == record.getPosition()) {
+      return;
+    }
+    if (positionCount == positions.length) {
+      positions = Arrays.copyOf(positions, 2 * positionCount);
+      names = Arrays.copyOf(names, 2 * positionCount);
+      flags = Arrays.copyOf(flags, 2 * positionCount);
+    }
+    positions[positionCount] = MateTable.position(mateRefId, matePos);
+    names[positionCount] = MateTable.nameHash(record);
+    flags[positionCount] = record.getFlag();
+    positionCount++;
+  }
+
+  /**
+   * Builds the table of the orphans added and sorts the positions of their mates.
+   */
+  void finishOrphans() {
+    mates = new MateTable(positionCount);
+    for (int i = 0; i < positionCount; i++) {
+      mates.put(names[i], positions[i], flags[i]);
+    }
+    names = null;
+    flags = null;
+
+    Arrays.sort(positions, 0, positionCount);
+    int unique = 0;
+    for (int i = 0; i < positionCount; i++) {
+      if (unique == 0 || positions[unique - 1] != positions[i]) {
+        positions[unique++] = positions[i];
+      }
+    }
+    positionCount = unique;
+  }
+
+  /**
+   * Skips mates that overlap the regions of the slice, null to keep them all.
+   */
+  void setSliced(BedRegions sliced) {
+    this.sliced = sliced;
+  }
+
+  /**
+   * The index chunks that can contain a read starting at any of the mate positions, merged and sorted.
+   */
+  ChunkList planChunks(BamIndex index) {
+    ChunkList chunks = new ChunkList();
+    for (int i = 0; i < positionCount; i++) {
+      int refId = (int) (positions[i] >>> 32);
+      int pos = (int) positions[i];
+      index.addChunks(refId, pos, pos + 1, chunks);
+    }
+    chunks.merge();
+    return chunks;
+  }
+
+  /**
+   * Reads the planned chunks and writes every read that completes an orphan.
+   *
+   * @return the number of records inspected
+   */
+  long recover(BgzfInputStream in, ChunkList chunks, BamWriter out) throws IOException {
+    BamRecord record = new BamRecord();
+    long inspected = 0;
+    for (int c = 0; c < chunks.size(); c++) {
+      long end = chunks.getEnd(c);
+      in.seek(chunks.getStart(c));
+      while (in.getFilePointer() < end && record.read(in)) {
+        inspected++;
+        if (accept(record)) {
+          out.write(record);
+        }
+      }
+    }
+    return inspected;
+  }
+
+  /**
+   * Reads the chunks of the input that can hold the mates of the orphans and writes the mates found.
+   *
+   * @param bai the index of the input
+   * @return the number of records inspected
+   */
+  long recover(File input, File bai, BamWriter out, ExecutorService readPool, int readThreads) throws IOException {
+    ChunkList chunks = planChunks(BamIndex.read(bai));
+    logger.log(Level.INFO, "{0} orphans waiting for mates at {1} positions in {2} chunks", new Object[]{orphanCount, positionCount, chunks.size()});
+    BgzfInputStream in = new BgzfInputStream(input, readPool, 4 * readThreads);
+    try {
+      return recover(in, chunks, out);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * The extract_missing_mates.pl test: a mapped read completes an orphan if one is waiting for it at its position and it does not carry the orphan's
+   * own flag.
+   */
+  @Override
+  public boolean accept(BamRecord record) {
+    int flag = record.getFlag();
+    if ((flag & BOTH_UNMAPPED) != 0) {
+      return false;
+    }
+    long position = MateTable.position(record.getReferenceIndex(), record.getPosition());
+    if (Arrays.binarySearch(positions, 0, positionCount, position) < 0) {
+      return false;
+    }
+    int orphanFlag = mates.get(MateTable.nameHash(record), position);
+    return orphanFlag >= 0 && orphanFlag != flag && !isSliced(record);
+  }
+
+  private boolean isSliced(BamRecord record) {
+    return sliced != null && sliced.overlaps(record.getReferenceIndex(), record.getPosition(), record.getAlignmentEnd());
+  }
+
+  /**
+   * Recovers the mates the arguments describe, as main does without exiting.
+   */
+  static void run(Arguments arguments) throws IOException {
+    File input = new File(arguments.require("input"));
+    File orphans = new File(arguments.require("orphans"));
+    File bai = new File(arguments.get("index", input.getPath() + ".bai"));
+    int level = arguments.getInt("level", 1);
+    int threads = arguments.getInt("threads", 1);
+    int readThreads = arguments.getInt("read-threads", 1);
+
+    MateRecovery recovery = new MateRecovery();
+    recovery.loadOrphans(orphans);
+    BamHeader header = BamMerger.readHeader(input);
+    if (arguments.has("regions")) {
+      recovery.sliced = BedRegions.load(new File(arguments.require("regions")), header);
+    }
+
+    ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    ExecutorService readPool = readThreads > 1 ? Executors.newFixedThreadPool(readThreads) : null;
+    try {
+      BamWriter out = new BamWriter(new File(arguments.require("output")), header, level, pool, 4 * threads);
+      long inspected = recovery.recover(input, bai, out, readPool, readThreads);
+      out.close();
+      logger.log(Level.INFO, "Recovered {0} mates from {1} records read", new Object[]{out.getRecordCount(), inspected});
+    } finally {
+      if (pool != null) {
+        pool.shutdown();
+      }
+      if (readPool != null) {
+        readPool.shutdown();
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+    try {
+      run(new Arguments(args));
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.SEVERE, e.getMessage() + "\n" + USAGE);
+      System.exit(2);
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Mate recovery failed", e);
+      System.exit(1);
+    }
+  }
+}
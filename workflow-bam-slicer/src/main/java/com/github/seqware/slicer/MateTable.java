@@ -0,0 +1,150 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamRecord;
+
+/**
+ * An open addressing hash table of the mates missing from the region slice.
+ *
+ * Each entry is keyed on a 64 bit hash of the read name and read group together with the packed reference and position the mate is expected at, and
+ * holds the flag of the orphan that is waiting for it. This is the qname~RG~chr~pos key of extract_missing_mates.pl without keeping any strings.
+ *
+ * The table grows as entries are added, and entries can be removed again, so it can also track the pairs of a stream that are still open.
+ */
+class MateTable {
+
+  private long[] names;
+  private long[] positions;
+  private int[] flags;
+  private boolean[] used;
+  private int mask;
+  private int size = 0;
+
+  MateTable(int expected) {
+    int capacity = Integer.highestOneBit(Math.max(16, 2 * expected - 1)) << 1;
+    names = new long[capacity];
+    positions = new long[capacity];
+    flags = new int[capacity];
+    used = new boolean[capacity];
+    mask = capacity - 1;
+  }
+
+  static long position(int refId, int pos) {
+    return (long) refId << 32 | (pos & 0xffffffffL);
+  }
+
+  /**
+   * Hashes the read name and the first RG:Z value of a record with FNV-1a.
+   */
+  static long nameHash(BamRecord record) {
+    byte[] data = record.getData();
+    long h = 0xcbf29ce484222325L;
+    int off = record.getReadNameOffset();
+    int end = off + record.getReadNameLength() - 1;
+    for (int i = off; i < end; i++) {
+      h = (h ^ (data[i] & 0xff)) * 0x100000001b3L;
+    }
+    // the separator keeps "ab"+"c" and "a"+"bc" apart
+    h = (h ^ '~') * 0x100000001b3L;
+    int tag = record.findTag('R', 'G');
+    if (tag >= 0 && data[tag] == 'Z') {
+      end = tag + 1 + record.getStringLength(tag + 1);
+      for (int i = tag + 1; i < end; i++) {
+        h = (h ^ (data[i] & 0xff)) * 0x100000001b3L;
+      }
+    }
+    return h;
+  }
+
+  private int slot(long name, long position) {
+    long h = name ^ position * 0x9e3779b97f4a7c15L;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return (int) h & mask;
+  }
+
+  /**
+   * Records the flag of an orphan whose mate is expected at position. A later orphan with the same key replaces an earlier one.
+   */
+  void put(long name, long position, int flag) {
+    if (2 * (size + 1) > names.length) {
+      grow();
+    }
+    int i = slot(name, position);
+    while (used[i] && (names[i] != name || positions[i] != position)) {
+      i = (i + 1) & mask;
+    }
+    if (!used[i]) {
+      used[i] = true;
+      names[i] = name;
+      positions[i] = position;
+      size++;
+    }
+    flags[i] = flag;
+  }
+
+  /**
+   * @return the flag of the orphan waiting for a read with this key, or -1 if there is none
+   */
+  int get(long name, long position) {
+    int i = slot(name, position);
+    while (used[i]) {
+      if (names[i] == name && positions[i] == position) {
+        return flags[i];
+      }
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Removes the entry with this key, if there is one.
+   */
+  void remove(long name, long position) {
+    int i = slot(name, position);
+    while (used[i] && (names[i] != name || positions[i] != position)) {
+      i = (i + 1) & mask;
+    }
+    if (!used[i]) {
+      return;
+    }
+    used[i] = false;
+    size--;
+    // move back the entries of the probe run that can no longer be reached across the hole
+    for (int j = (i + 1) & mask; used[j]; j = (j + 1) & mask) {
+      int home = slot(names[j], positions[j]);
+      if (i <= j ? i < home && home <= j : i < home || home <= j) {
+        continue;
+      }
+      names[i] = names[j];
+      positions[i] = positions[j];
+      flags[i] = flags[j];
+      used[i] = true;
+      used[j] = false;
+      i = j;
+    }
+  }
+
+  private void grow() {
+    long[] oldNames = names;
+    long[] oldPositions = positions;
+    int[] oldFlags = flags;
+    boolean[] oldUsed = used;
+    int capacity = 2 * oldNames.length;
+    names = new long[capacity];
+    positions = new long[capacity];
+    flags = new int[capacity];
+    used = new boolean[capacity];
+    mask = capacity - 1;
+    size = 0;
+    for (int i = 0; i < oldNames.length; i++) {
+      if (oldUsed[i]) {
+        put(oldNames[i], oldPositions[i], oldFlags[i]);
+      }
+    }
+  }
+
+  int size() {
+    return size;
+  }
+}
@@ -0,0 +1,358 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamIndex;
+import com.github.seqware.bam.Bgzf;
+import com.github.seqware.bam.BgzfInputStream;
+import com.github.seqware.bam.ChunkList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fetches the parts of a remote BAM that the slicer stages read with HTTP range requests, instead of downloading the whole file.
+ *
+ * The fetched bytes are written at their own offsets into a sparse local file of the remote file's length, so the remote index and every virtual
+ * offset in it stay valid, and BamSlicer --query and MateRecovery read the local file as if it had been downloaded whole.
+ *
+ * With --regions it fetches the index, the header and the chunks BamSlicer --query reads for the regions. With --orphans it fetches the chunks
+ * MateRecovery reads for the mates of the orphans, into the file the first call created. Ranges are fetched on --connections connections at once, and
+ * every range is retried --retries times. A server that answers a range request with the whole file does not support ranges, which no retry changes,
+ * so that fails at once.
+ */
+public class RangeFetcher {
+
+  private static final Logger logger = Logger.getLogger(RangeFetcher.class.getName());
+
+  private static final String USAGE = "java " + RangeFetcher.class.getName() + " --url <bam url> --output <bam> [--index <bai>] [--index-url <url>]"
+    + " (--regions <bed> [--coalesce-gap <bytes>] | --orphans <bam>) [--connections <n>] [--retries <n>]";
+
+  // the first request asks for this much of the file, which holds the header of most BAMs
+  private static final int HEAD_LENGTH = 1 << 20;
+
+  // large ranges are split so they spread over the connections
+  private static final long PART_LENGTH = 64L << 20;
+
+  private static final int TIMEOUT_MILLIS = 60000;
+
+  // the wait before the first retry, growing with every further one
+  private static final long RETRY_MILLIS = 5000;
+
+  /**
+   * The server sent something other than the part of the file asked for.
+   */
+  private static class RangeNotSupportedException extends IOException {
+
+    RangeNotSupportedException(String message) {
+      super(message);
+    }
+  }
+
+  private final URL url;
+  private final int retries;
+  private final long retryMillis;
+
+  public RangeFetcher(URL url, int retries) {
+    this(url, retries, RETRY_MILLIS);
+  }
+
+  RangeFetcher(URL url, int retries, long retryMillis) {
+    this.url = url;
+    this.retries = retries;
+    this.retryMillis = retryMillis;
+  }
+
+  private HttpURLConnection open(URL target, long from, long to) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+    connection.setConnectTimeout(TIMEOUT_MILLIS);
+    connection.setReadTimeout(TIMEOUT_MILLIS);
+    if (to > from) {
+      connection.setRequestProperty("Range", "bytes=" + from + "-" + (to - 1));
+    }
+    int status = connection.getResponseCode();
+    if (to > from && status == HttpURLConnection.HTTP_OK) {
+      connection.disconnect();
+      throw new RangeNotSupportedException(target + " ignored a request for bytes " + from + "-" + to + " and sent the whole file");
+    }
+    if (to > from ? status != HttpURLConnection.HTTP_PARTIAL : status != HttpURLConnection.HTTP_OK) {
+      connection.disconnect();
+      throw new IOException(target + " answered " + status + " to a request for bytes " + from + "-" + to);
+    }
+    String range = connection.getHeaderField("Content-Range");
+    if (to > from && (range == null || !range.trim().startsWith("bytes " + from + "-"))) {
+      connection.disconnect();
+      throw new RangeNotSupportedException(target + " sent " + range + " for a request for bytes " + from + "-" + to);
+    }
+    return connection;
+  }
+
+  /**
+   * Fetches the start of the file, up to length bytes.
+   *
+   * @param head receives the bytes
+   * @return the length of the whole remote file
+   */
+  long fetchHead(int length, ByteArrayOutputStream head) throws IOException {
+    HttpURLConnection connection = open(url, 0, length);
+    try {
+      // Content-Range: bytes 0-1048575/123456789
+      String range = connection.getHeaderField("Content-Range");
+      if (range == null || range.indexOf('/') < 0) {
+        throw new IOException(url + " did not say how long it is");
+      }
+      copy(connection.getInputStream(), head);
+      return Long.parseLong(range.substring(range.indexOf('/') + 1).trim());
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  /**
+   * Fetches a whole file, such as the index, writing it under a temporary name first.
+   */
+  void fetchFile(URL target, File output) throws IOException {
+    File part = new File(output.getPath() + ".part");
+    HttpURLConnection connection = open(target, 0, 0);
+    try {
+      FileOutputStream out = new FileOutputStream(part);
+      try {
+        copy(connection.getInputStream(), out);
+      } finally {
+        out.close();
+      }
+    } finally {
+      connection.disconnect();
+    }
+    if (!part.renameTo(output)) {
+      throw new IOException("Could not rename " + part + " to " + output);
+    }
+  }
+
+  /**
+   * Fetches [from, to) of the file into the same place of the local file, trying again on failure.
+   */
+  void fetchRange(long from, long to, FileChannel out) throws IOException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        HttpURLConnection connection = open(url, from, to);
+        try {
+          InputStream in = connection.getInputStream();
+          try {
+            byte[] buffer = new byte[Bgzf.MAX_BLOCK_SIZE];
+            long position = from;
+            int n;
+            while (position < to && (n = in.read(buffer, 0, (int) Math.min(buffer.length, to - position))) > 0) {
+              ByteBuffer b = ByteBuffer.wrap(buffer, 0, n);
+              while (b.hasRemaining()) {
+                position += out.write(b, position);
+              }
+            }
+            if (position != to) {
+              throw new EOFException("Got " + (position - from) + " of the " + (to - from) + " bytes from " + from + " of " + url);
+            }
+            return;
+          } finally {
+            in.close();
+          }
+        } finally {
+          connection.disconnect();
+        }
+      } catch (RangeNotSupportedException e) {
+        throw e;
+      } catch (IOException e) {
+        if (attempt > retries) {
+          throw e;
+        }
+        logger.log(Level.WARNING, "Fetching bytes " + from + "-" + to + " failed, retrying: " + e.getMessage());
+        try {
+          Thread.sleep(retryMillis * attempt);
+        } catch (InterruptedException ie) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    try {
+      byte[] buffer = new byte[Bgzf.MAX_BLOCK_SIZE];
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        out.write(buffer, 0, n);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * The compressed byte ranges that hold the blocks of the chunks, as [from, to) pairs sorted and merged. A chunk that ends inside a block needs that
+   * whole block, which is at most {@link Bgzf#MAX_BLOCK_SIZE} long.
+   */
+  static long[] byteRanges(ChunkList chunks, long length) {
+    long[] ranges = new long[2 * chunks.size()];
+    int n = 0;
+    for (int c = 0; c < chunks.size(); c++) {
+      long from = Bgzf.blockAddress(chunks.getStart(c));
+      long end = chunks.getEnd(c);
+      long to = Bgzf.offsetInBlock(end) == 0 ? Bgzf.blockAddress(end) : Bgzf.blockAddress(end) + Bgzf.MAX_BLOCK_SIZE;
+      to = Math.min(to, length);
+      if (n > 0 && from <= ranges[n - 1]) {
+        ranges[n - 1] = Math.max(ranges[n - 1], to);
+      } else if (from < to) {
+        ranges[n++] = from;
+        ranges[n++] = to;
+      }
+    }
+    long[] merged = new long[n];
+    System.arraycopy(ranges, 0, merged, 0, n);
+    return merged;
+  }
+
+  /**
+   * Fetches the ranges on a pool of connections.
+   *
+   * @return the number of bytes fetched
+   */
+  long fetchRanges(long[] ranges, final FileChannel out, int connections) throws IOException {
+    ExecutorService pool = Executors.newFixedThreadPool(connections);
+    List<Future<Void>> parts = new ArrayList<Future<Void>>();
+    long bytes = 0;
+    try {
+      for (int i = 0; i < ranges.length; i += 2) {
+        for (long from = ranges[i]; from < ranges[i + 1]; from += PART_LENGTH) {
+          final long partFrom = from;
+          final long partTo = Math.min(from + PART_LENGTH, ranges[i + 1]);
+          bytes += partTo - partFrom;
+          parts.add(pool.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+              fetchRange(partFrom, partTo, out);
+              return null;
+            }
+          }));
+        }
+      }
+      for (Future<Void> part : parts) {
+        part.get();
+      }
+    } catch (InterruptedException e) {
+      throw new IOException("Interrupted while fetching " + url);
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+    return bytes;
+  }
+
+  /**
+   * Fetches the header into the local file, fetching more of the start of the file until the header is complete.
+   *
+   * @return the length of the remote file
+   */
+  long fetchHeader(FileChannel out) throws IOException {
+    for (int length = HEAD_LENGTH; ; length *= 2) {
+      ByteArrayOutputStream head = new ByteArrayOutputStream(length);
+      long total = fetchHead(length, head);
+      byte[] bytes = head.toByteArray();
+      try {
+        BamHeader.read(new BgzfInputStream(new ByteArrayInputStream(bytes)));
+      } catch (EOFException e) {
+        if (bytes.length < total) {
+          continue;
+        }
+        throw e;
+      }
+      out.write(ByteBuffer.wrap(bytes), 0);
+      return total;
+    }
+  }
+
+  public static void main(String[] args) {
+    try {
+      Arguments arguments = new Arguments(args);
+      URL url = new URL(arguments.require("url"));
+      File output = new File(arguments.require("output"));
+      File bai = new File(arguments.get("index", output.getPath() + ".bai"));
+      int connections = arguments.getInt("connections", 4);
+      RangeFetcher fetcher = new RangeFetcher(url, arguments.getInt("retries", 3));
+
+      if (arguments.has("regions")) {
+        File directory = output.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+          throw new IOException("Could not create " + directory);
+        }
+        fetcher.fetchFile(new URL(arguments.get("index-url", url + ".bai")), bai);
+      } else if (!arguments.has("orphans")) {
+        throw new IllegalArgumentException("Either --regions or --orphans is needed");
+      }
+
+      RandomAccessFile file = new RandomAccessFile(output, "rw");
+      try {
+        FileChannel channel = file.getChannel();
+        long length;
+        if (arguments.has("regions")) {
+          length = fetcher.fetchHeader(channel);
+          // sparse, so only the fetched ranges take up space
+          file.setLength(length);
+        } else {
+          length = file.length();
+        }
+        BamHeader header = readHeader(output);
+        BamIndex index = BamIndex.read(bai);
+
+        ChunkList chunks;
+        if (arguments.has("regions")) {
+          BedRegions regions = BedRegions.load(new File(arguments.require("regions")), header);
+          chunks = BamSlicer.planQuery(regions, index, null, 0,
+            Long.parseLong(arguments.get("coalesce-gap", Long.toString(BamSlicer.COALESCE_GAP))));
+        } else {
+          MateRecovery recovery = new MateRecovery();
+          recovery.loadOrphans(new File(arguments.require("orphans")));
+          chunks = recovery.planChunks(index);
+        }
+        long[] ranges = byteRanges(chunks, length);
+        long fetched = fetcher.fetchRanges(ranges, channel, connections);
+        channel.force(false);
+        logger.log(Level.INFO, "Fetched {0} of {1} bytes of {2} in {3} ranges", new Object[]{fetched, length, url, ranges.length / 2});
+      } finally {
+        file.close();
+      }
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.SEVERE, e.getMessage() + "\n" + USAGE);
+      System.exit(2);
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Fetching failed", e);
+      System.exit(1);
+    }
+  }
+
+  private static BamHeader readHeader(File bam) throws IOException {
+    BgzfInputStream in = new BgzfInputStream(bam);
+    try {
+      return BamHeader.read(in);
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,434 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamIndex;
+import com.github.seqware.bam.Bgzf;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Sizes the memory, threads and temporary disk of the slicer jobs from what is known about the input BAMs when the workflow is built: the size of each
+ * BAM and, when its index can be read, the compressed bytes of every contig and the counts of mapped, unmapped and unplaced reads the index records.
+ *
+ * The model is deliberately simple. Inflating the input is what the slice and index jobs spend their time on, so their read threads follow the
+ * compressed bytes they read, one per {@link #READ_BYTES_PER_THREAD}. Compression threads follow the bytes the job writes, the region slice being about
+ * {@link #SLICE_FRACTION} of the input and the unmapped reads the share of the reads the index counts as unmapped. Memory is a fixed JVM base, some per
+ * thread for the blocks in flight and some per compressed gigabyte for the mate and signature tables, which grow with the depth of the data. Everything
+ * is rounded up to {@link #MEMORY_STEP_M} and kept between the minimum and the maximum the workflow allows.
+ *
+ * An input whose size cannot be found gets the fixed settings of the ini file, which is also all a plan without any sizes hands out.
+ */
+public class ResourcePlan {
+
+  private static final Logger logger = Logger.getLogger(ResourcePlan.class.getName());
+
+  static final long GB = 1L << 30;
+  static final long MB = 1L << 20;
+
+  // inflating runs at about 100 MB/s of compressed input per thread, so a thread per 4 GB keeps a job within a minute per thread
+  static final long READ_BYTES_PER_THREAD = 4 * GB;
+  // deflating at level 6 is several times slower than inflating
+  static final long WRITE_BYTES_PER_THREAD = 256 * MB;
+  // the ENCODE regions cover about 1% of the genome, their reads and recovered mates a little more of the input
+  static final double SLICE_FRACTION = 0.02;
+  static final int JVM_BASE_M = 1000;
+  static final int THREAD_M = 32;
+  static final int TABLE_M_PER_GB = 32;
+  static final int MEMORY_STEP_M = 500;
+  static final int MIN_JOB_M = 2000;
+  // for the duration estimates: reading from a local disk, inflating and deflating per thread, and starting the JVM
+  static final long DISK_BYTES_PER_SECOND = 200 * MB;
+  static final long INFLATE_BYTES_PER_SECOND = 100 * MB;
+  static final long DEFLATE_BYTES_PER_SECOND = 20 * MB;
+  static final long STARTUP_SECONDS = 5;
+
+  /**
+   * What is known about one input BAM.
+   */
+  public static class Input {
+
+    final String name;
+    // compressed bytes, -1 if unknown
+    final long bytes;
+    // the compressed bytes of each shard, null if the index could not be read
+    final long[] shardBytes;
+    // the share of the reads that end up in the unmapped output, -1 if unknown
+    final double unmappedFraction;
+    final long reads;
+
+    Input(String name, long bytes, long[] shardBytes, double unmappedFraction, long reads) {
+      this.name = name;
+      this.bytes = bytes;
+      this.shardBytes = shardBytes;
+      this.unmappedFraction = unmappedFraction;
+      this.reads = reads;
+    }
+
+    /**
+     * An input of unknown size.
+     */
+    public static Input unknown(String name) {
+      return new Input(name, -1, null, -1, -1);
+    }
+
+    /**
+     * An input known only by its size.
+     */
+    public static Input ofSize(String name, long bytes) {
+      return bytes < 0 ? unknown(name) : new Input(name, bytes, null, -1, -1);
+    }
+
+    /**
+     * Measures a local BAM and reads its index next to it, if there is one.
+     */
+    public static Input measure(File bam, int shards) {
+      if (!bam.isFile()) {
+        return unknown(bam.getPath());
+      }
+      File bai = new File(bam.getPath() + ".bai");
+      if (!bai.isFile()) {
+        return ofSize(bam.getPath(), bam.length());
+      }
+      try {
+        BamIndex index = BamIndex.read(bai);
+        long unplacedStart = index.getUnplacedStart();
+        long unplacedBytes = unplacedStart < 0 ? bam.length() : bam.length() - Bgzf.blockAddress(unplacedStart);
+        ShardPlan plan = ShardPlan.balance(index, unplacedBytes, shards);
+        long[] shardBytes = new long[shards];
+        for (int shard = 0; shard < shards; shard++) {
+          shardBytes[shard] = plan.getBytes(shard);
+        }
+        long mapped = 0;
+        long unmapped = 0;
+        for (int refId = 0; refId < index.getReferenceCount(); refId++) {
+          long m = index.getMappedCount(refId);
+          long u = index.getUnmappedCount(refId);
+          if (m < 0 || u < 0) {
+            return new Input(bam.getPath(), bam.length(), shardBytes, -1, -1);
+          }
+          mapped += m;
+          unmapped += u;
+        }
+        long unplaced = Math.max(0, index.getNoCoordinateCount());
+        long reads = mapped + unmapped + unplaced;
+        // each placed unmapped read comes with its mapped mate
+        double fraction = reads == 0 ? 0 : Math.min(1.0, (2.0 * unmapped + unplaced) / reads);
+        return new Input(bam.getPath(), bam.length(), shardBytes, fraction, reads);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Cannot read the index of " + bam + ", planning its jobs from its size alone", e);
+        return ofSize(bam.getPath(), bam.length());
+      }
+    }
+
+    /**
+     * Looks up the size of a BAM in the analysis metadata of a GNOS repository, a single small request made while the workflow is built, before the BAM
+     * is downloaded.
+     */
+    public static Input fromGnosMetadata(String metadataURL, String fileName) {
+      try {
+        URLConnection connection = new URL(metadataURL).openConnection();
+        connection.setConnectTimeout(10000);
+        connection.setReadTimeout(30000);
+        InputStream in = connection.getInputStream();
+        StringBuilder xml = new StringBuilder();
+        try {
+          Reader reader = new InputStreamReader(in, "UTF-8");
+          char[] buffer = new char[8192];
+          int n;
+          while ((n = reader.read(buffer)) > 0) {
+            xml.append(buffer, 0, n);
+          }
+        } finally {
+          in.close();
+        }
+        Matcher file = Pattern.compile("<filename>([^<]*)</filename>\\s*<filesize>(\\d+)</filesize>").matcher(xml);
+        while (file.find()) {
+          if (file.group(1).trim().equals(fileName)) {
+            return ofSize(fileName, Long.parseLong(file.group(2)));
+          }
+        }
+        logger.log(Level.WARNING, "{0} does not list the size of {1}, planning its jobs with the fixed settings",
+          new Object[]{metadataURL, fileName});
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Cannot read the size of " + fileName + " from " + metadataURL + ", planning its jobs with the fixed settings", e);
+      }
+      return unknown(fileName);
+    }
+
+    long getShardBytes(int shard, int shards) {
+      if (bytes < 0) {
+        return -1;
+      }
+      return shardBytes != null ? shardBytes[shard] : bytes / shards;
+    }
+
+    double getUnmappedFraction() {
+      // whole genome alignments leave a few percent of the reads unmapped
+      return unmappedFraction < 0 ? 0.05 : unmappedFraction;
+    }
+  }
+
+  /**
+   * The memory, threads and temporary disk of one job.
+   */
+  public static class Resources {
+
+    private final int memoryM;
+    private final int readThreads;
+    private final int writeThreads;
+    private final long diskBytes;
+    private long seconds;
+
+    /**
+     * @param readBytes the compressed bytes the job reads, -1 if unknown
+     * @param diskBytes the compressed bytes the job writes, -1 if unknown
+     */
+    Resources(int memoryM, int readThreads, int writeThreads, long readBytes, long diskBytes) {
+      this.memoryM = memoryM;
+      this.readThreads = readThreads;
+      this.writeThreads = writeThreads;
+      this.diskBytes = diskBytes;
+      seconds = readBytes < 0 ? -1 : STARTUP_SECONDS + Math.max(Math.max(readBytes / DISK_BYTES_PER_SECOND,
+        readBytes / (INFLATE_BYTES_PER_SECOND * readThreads)), Math.max(0, diskBytes) / (DEFLATE_BYTES_PER_SECOND * writeThreads));
+    }
+
+    /**
+     * The two passes run one after the other in one job: the larger memory and pools of the two, the disk and time of both.
+     */
+    Resources then(Resources next) {
+      Resources both = new Resources(Math.max(memoryM, next.memoryM), Math.max(readThreads, next.readThreads), Math.max(writeThreads,
+        next.writeThreads), -1, diskBytes < 0 || next.diskBytes < 0 ? -1 : diskBytes + next.diskBytes);
+      both.seconds = seconds < 0 || next.seconds < 0 ? -1 : seconds + next.seconds - STARTUP_SECONDS;
+      return both;
+    }
+
+    public int getMemoryM() {
+      return memoryM;
+    }
+
+    public int getReadThreads() {
+      return readThreads;
+    }
+
+    public int getWriteThreads() {
+      return writeThreads;
+    }
+
+    /**
+     * The cores the job keeps busy: the main thread hands blocks to both pools but does little work of its own.
+     */
+    public int getThreads() {
+      return Math.max(1, Math.max(readThreads, writeThreads));
+    }
+
+    /**
+     * The bytes the job's outputs add to the working directory, -1 if unknown.
+     */
+    public long getDiskBytes() {
+      return diskBytes;
+    }
+
+    /**
+     * About how long the job runs once it has started, -1 if unknown.
+     */
+    public long getSeconds() {
+      return seconds;
+    }
+  }
+
+  private final List<Input> inputs;
+  private final int shards;
+  private final int maxMemoryM;
+  private final int maxThreads;
+
+  // the settings of the ini file, for inputs of unknown size and jobs the model leaves alone
+  private final int fixedReadThreads;
+  private final int fixedWriteThreads;
+  private final int fixedMergeThreads;
+  private final int fixedMergeMemoryM;
+
+  private final StringBuilder log = new StringBuilder();
+
+  /**
+   * @param inputs what is known about each input, or an empty list to hand out the fixed settings only
+   * @param maxMemoryM the most memory a job may get
+   * @param maxThreads the most threads a job may get
+   */
+  public ResourcePlan(List<Input> inputs, int shards, int maxMemoryM, int maxThreads, int fixedReadThreads, int fixedWriteThreads,
+      int fixedMergeThreads, int fixedMergeMemoryM) {
+    this.inputs = inputs;
+    this.shards = shards;
+    this.maxMemoryM = maxMemoryM;
+    this.maxThreads = maxThreads;
+    this.fixedReadThreads = fixedReadThreads;
+    this.fixedWriteThreads = fixedWriteThreads;
+    this.fixedMergeThreads = fixedMergeThreads;
+    this.fixedMergeMemoryM = fixedMergeMemoryM;
+  }
+
+  /**
+   * A plan that hands out the settings of the ini file to every job.
+   */
+  public static ResourcePlan fixed(int readThreads, int writeThreads, int mergeThreads, int mergeMemoryM) {
+    return new ResourcePlan(new ArrayList<Input>(), 1, Integer.MAX_VALUE, Integer.MAX_VALUE, readThreads, writeThreads, mergeThreads, mergeMemoryM);
+  }
+
+  private boolean known(int input) {
+    return input < inputs.size() && inputs.get(input).bytes >= 0;
+  }
+
+  private int threadsFor(long bytes, long bytesPerThread) {
+    return (int) Math.max(1, Math.min(maxThreads, (bytes + bytesPerThread - 1) / bytesPerThread));
+  }
+
+  private int memoryFor(int threads, long tableBytes) {
+    long m = JVM_BASE_M + THREAD_M * threads + TABLE_M_PER_GB * tableBytes / GB;
+    m = (m + MEMORY_STEP_M - 1) / MEMORY_STEP_M * MEMORY_STEP_M;
+    return (int) Math.min(maxMemoryM, Math.max(MIN_JOB_M, m));
+  }
+
+  private Resources plan(String job, Resources resources) {
+    log.append(String.format(Locale.ROOT, "%n  %-20s %6d MB  %2d read / %2d write threads  %s  %s", job, resources.memoryM, resources.readThreads,
+        resources.writeThreads, resources.diskBytes < 0 ? "disk unknown" : "+" + gigabytes(resources.diskBytes) + " disk",
+        resources.seconds < 0 ? "duration unknown" : "~" + resources.seconds + " s"));
+    return resources;
+  }
+
+  /**
+   * The slice job of one shard of an input, writing the region slice, its orphans and the unmapped reads.
+   */
+  public Resources slice(int input, int shard, String job, boolean unmapped) {
+    return plan(job, sliceResources(input, shard, unmapped));
+  }
+
+  /**
+   * The mate recovery job of one shard, which reads only the chunks that can hold the mates.
+   */
+  public Resources mateRecovery(int input, int shard, String job) {
+    return plan(job, mateResources(input, shard));
+  }
+
+  /**
+   * A slice job of one shard that recovers the mates of its orphans itself once the slice is written.
+   */
+  public Resources sliceWithMates(int input, int shard, String job, boolean unmapped) {
+    return plan(job, sliceResources(input, shard, unmapped).then(mateResources(input, shard)));
+  }
+
+  private Resources sliceResources(int input, int shard, boolean unmapped) {
+    if (!known(input)) {
+      return new Resources(4000, fixedReadThreads, fixedWriteThreads, -1, -1);
+    }
+    Input in = inputs.get(input);
+    long bytes = in.getShardBytes(shard, shards);
+    long written = (long) (bytes * (SLICE_FRACTION + (unmapped ? in.getUnmappedFraction() : 0)));
+    int readThreads = threadsFor(bytes, READ_BYTES_PER_THREAD);
+    int writeThreads = threadsFor(written, WRITE_BYTES_PER_THREAD);
+    return new Resources(memoryFor(readThreads + writeThreads, bytes), readThreads, writeThreads, bytes, written);
+  }
+
+  private Resources mateResources(int input, int shard) {
+    if (!known(input)) {
+      return new Resources(4000, fixedReadThreads, fixedWriteThreads, -1, -1);
+    }
+    long bytes = inputs.get(input).getShardBytes(shard, shards);
+    // the chunks that can hold the mates are a small, scattered part of the input, so the job waits on the disk more than on inflating
+    long read = (long) (bytes * SLICE_FRACTION);
+    return new Resources(memoryFor(2, read), threadsFor(read, GB), 1, read, read / 10);
+  }
+
+  /**
+   * The job indexing a whole input.
+   */
+  public Resources index(int input, String job) {
+    if (!known(input)) {
+      return plan(job, new Resources(4000, 1, 1, -1, -1));
+    }
+    long bytes = inputs.get(input).bytes;
+    return plan(job, new Resources(memoryFor(1, 0), 1, 1, bytes, bytes / 10000));
+  }
+
+  /**
+   * The merge of all the slices, reading them in parallel and marking duplicates.
+   */
+  public Resources merge(String job) {
+    long slices = 0;
+    for (int i = 0; i < inputs.size(); i++) {
+      if (!known(i)) {
+        return plan(job, new Resources(fixedMergeMemoryM, fixedReadThreads, fixedMergeThreads, -1, -1));
+      }
+      slices += (long) (inputs.get(i).bytes * SLICE_FRACTION);
+    }
+    if (inputs.isEmpty()) {
+      return plan(job, new Resources(fixedMergeMemoryM, fixedReadThreads, fixedMergeThreads, -1, -1));
+    }
+    int streams = 2 * inputs.size() * shards;
+    int threads = threadsFor(slices, WRITE_BYTES_PER_THREAD);
+    return plan(job, new Resources(memoryFor(threads + streams, slices * 10), Math.min(threads, streams), threads, slices, slices));
+  }
+
+  /**
+   * The join of the unmapped reads, which mostly copies compressed blocks.
+   */
+  public Resources mergeUnmapped(String job) {
+    long unmapped = 0;
+    for (int i = 0; i < inputs.size(); i++) {
+      if (!known(i)) {
+        return plan(job, new Resources(fixedMergeMemoryM, fixedReadThreads, fixedMergeThreads, -1, -1));
+      }
+      unmapped += (long) (inputs.get(i).bytes * inputs.get(i).getUnmappedFraction());
+    }
+    if (inputs.isEmpty()) {
+      return plan(job, new Resources(fixedMergeMemoryM, fixedReadThreads, fixedMergeThreads, -1, -1));
+    }
+    // threads only matter if the parts interleave and have to be merged record by record
+    int threads = Math.min(4, threadsFor(unmapped, WRITE_BYTES_PER_THREAD));
+    return plan(job, new Resources(memoryFor(2 * threads, 0), threads, threads, unmapped, unmapped));
+  }
+
+  /**
+   * The bytes the downloaded inputs take up, -1 if any is unknown.
+   */
+  public long getInputBytes() {
+    long bytes = 0;
+    for (int i = 0; i < inputs.size(); i++) {
+      if (!known(i)) {
+        return -1;
+      }
+      bytes += inputs.get(i).bytes;
+    }
+    return bytes;
+  }
+
+  /**
+   * The inputs as they were sized and every job planned so far.
+   */
+  public String describe() {
+    StringBuilder text = new StringBuilder("Resource plan");
+    for (Input input : inputs) {
+      text.append(String.format(Locale.ROOT, "%n  input %s: %s, %s", input.name, input.bytes < 0 ? "size unknown, fixed settings" : gigabytes(input.bytes),
+          input.unmappedFraction < 0 ? "no index statistics" : String.format(Locale.ROOT, "%,d reads, %.1f%% to the unmapped output", input.reads,
+            100 * input.unmappedFraction)));
+    }
+    long inputBytes = getInputBytes();
+    if (inputBytes >= 0) {
+      text.append(String.format(Locale.ROOT, "%n  inputs on disk: %s", gigabytes(inputBytes)));
+    }
+    return text.append(log).toString();
+  }
+
+  private static String gigabytes(long bytes) {
+    return String.format(Locale.ROOT, "%.2f GB", (double) bytes / GB);
+  }
+}
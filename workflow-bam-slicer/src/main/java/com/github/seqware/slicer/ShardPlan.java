@@ -0,0 +1,118 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamIndex;
+import com.github.seqware.bam.ChunkList;
+
+/**
+ * Splits the contigs of an indexed BAM into a fixed number of shards of about equal compressed size, each a run of consecutive contigs.
+ *
+ * Every job of a sharded slice computes the plan for itself from the same index, so the plan has to be deterministic. The unplaced reads at the end
+ * of the file are treated as one more contig after the last one. The runs are cut so that the largest shard is as small as a cut between contigs
+ * allows, found by bisection over that size and a greedy fill of the shards in file order, with a run cut early where every remaining contig needs a
+ * shard of its own, so with at least as many shards as contigs every contig gets a shard of its own. Since the outputs of the shards hold separate
+ * runs of contigs in file order, {@link BamMerger} can join them block by block.
+ */
+class ShardPlan {
+
+  // shard of each reference, with the unplaced reads in the last slot
+  private final int[] shardOf;
+  private final long[] shardBytes;
+
+  private ShardPlan(int[] shardOf, long[] shardBytes) {
+    this.shardOf = shardOf;
+    this.shardBytes = shardBytes;
+  }
+
+  /**
+   * @param unplacedBytes the compressed size of the unplaced reads at the end of the file
+   */
+  static ShardPlan balance(BamIndex index, long unplacedBytes, int shards) {
+    int count = index.getReferenceCount() + 1;
+    long[] bytes = new long[count];
+    long low = 0;
+    long high = 0;
+    for (int refId = 0; refId < count; refId++) {
+      bytes[refId] = Math.max(0, refId < count - 1 ? index.getReferenceBytes(refId) : unplacedBytes);
+      low = Math.max(low, bytes[refId]);
+      high += bytes[refId];
+    }
+    // the smallest largest shard a greedy fill reaches with the shards there are
+    while (low < high) {
+      long capacity = low + (high - low) / 2;
+      if (runs(bytes, capacity) <= shards) {
+        high = capacity;
+      } else {
+        low = capacity + 1;
+      }
+    }
+
+    int[] shardOf = new int[count];
+    long[] shardBytes = new long[shards];
+    int shard = 0;
+    for (int refId = 0; refId < count; refId++) {
+      if (refId > 0 && shard < shards - 1 && (shardBytes[shard] + bytes[refId] > low || count - refId <= shards - 1 - shard)) {
+        shard++;
+      }
+      shardOf[refId] = shard;
+      shardBytes[shard] += bytes[refId];
+    }
+    return new ShardPlan(shardOf, shardBytes);
+  }
+
+  /**
+   * The number of runs a greedy fill of shards of the given size takes.
+   */
+  private static int runs(long[] bytes, long capacity) {
+    int runs = 1;
+    long size = 0;
+    for (long b : bytes) {
+      if (size + b > capacity && size > 0) {
+        runs++;
+        size = 0;
+      }
+      size += b;
+    }
+    return runs;
+  }
+
+  int getShard(int refId) {
+    return shardOf[refId];
+  }
+
+  boolean hasUnplaced(int shard) {
+    return shardOf[shardOf.length - 1] == shard;
+  }
+
+  long getBytes(int shard) {
+    return shardBytes[shard];
+  }
+
+  /**
+   * The virtual offset ranges of the placed reads of a shard's contigs, in file order.
+   */
+  ChunkList getChunks(int shard, BamIndex index) {
+    ChunkList chunks = new ChunkList();
+    for (int refId = 0; refId < shardOf.length - 1; refId++) {
+      long start = index.getReferenceStart(refId);
+      if (shardOf[refId] == shard && start >= 0) {
+        chunks.add(start, index.getReferenceEnd(refId));
+      }
+    }
+    chunks.merge();
+    return chunks;
+  }
+
+  /**
+   * The names of a shard's contigs, for logging.
+   */
+  String describe(int shard, BamHeader header) {
+    StringBuilder sb = new StringBuilder();
+    for (int refId = 0; refId < shardOf.length; refId++) {
+      if (shardOf[refId] == shard) {
+        sb.append(sb.length() == 0 ? "" : ",").append(refId < shardOf.length - 1 ? header.getReferenceName(refId) : "*");
+      }
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,167 @@
+package com.github.seqware.slicer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An open addressing table of 64 bit duplicate signatures and what is known about each of them, kept in a direct buffer outside the Java heap.
+ *
+ * Each slot holds a signature, the packed reference and position it belongs to and four values of the owner's choosing. Records come in coordinate
+ * order, so a signature whose position is further behind the current record than any clipping or read length can reach will never be seen again: when
+ * the table fills up, those entries are dropped first and the table only grows if that does not free enough room. Memory follows the depth of the data
+ * rather than the size of the input.
+ */
+class SignatureTable {
+
+  // 0 marks an empty slot, so the signature 0 is stored as 1
+  private static final long EMPTY = 0;
+
+  private static final int SLOT_SIZE = 48;
+
+  static final int VALUES = 4;
+
+  private ByteBuffer slots;
+  private int mask;
+  private int size = 0;
+
+  // entries at positions before this one are no longer needed
+  private long horizon = Long.MIN_VALUE;
+
+  SignatureTable(int capacity) {
+    allocate(Integer.highestOneBit(Math.max(16, capacity - 1)) << 1);
+  }
+
+  private void allocate(int capacity) {
+    slots = ByteBuffer.allocateDirect(SLOT_SIZE * capacity);
+    mask = capacity - 1;
+    size = 0;
+  }
+
+  /**
+   * Lets go of the entries at positions before horizon the next time the table is full.
+   */
+  void setHorizon(long horizon) {
+    this.horizon = horizon;
+  }
+
+  private int slot(long signature) {
+    long h = signature;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return (int) h & mask;
+  }
+
+  /**
+   * Finds the entry of a signature.
+   *
+   * @return the slot of the entry, valid until the table is next changed, or -1 if there is none
+   */
+  int find(long signature) {
+    if (signature == EMPTY) {
+      signature = 1;
+    }
+    int i = slot(signature);
+    long key;
+    while ((key = slots.getLong(SLOT_SIZE * i)) != EMPTY) {
+      if (key == signature) {
+        return i;
+      }
+      i = (i + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Finds the entry of a signature, adding one with all its values -1 if there is none.
+   *
+   * @param position the packed reference and position of the signature
+   * @return the slot of the entry, valid until the table is next changed
+   */
+  int add(long signature, long position) {
+    if (signature == EMPTY) {
+      signature = 1;
+    }
+    if (2 * (size + 1) > mask + 1) {
+      rebuild();
+    }
+    int i = slot(signature);
+    long key;
+    while ((key = slots.getLong(SLOT_SIZE * i)) != EMPTY) {
+      if (key == signature) {
+        return i;
+      }
+      i = (i + 1) & mask;
+    }
+    slots.putLong(SLOT_SIZE * i, signature);
+    slots.putLong(SLOT_SIZE * i + 8, position);
+    for (int v = 0; v < VALUES; v++) {
+      slots.putLong(SLOT_SIZE * i + 16 + 8 * v, -1);
+    }
+    size++;
+    return i;
+  }
+
+  long get(int slot, int value) {
+    return slots.getLong(SLOT_SIZE * slot + 16 + 8 * value);
+  }
+
+  void set(int slot, int value, long v) {
+    slots.putLong(SLOT_SIZE * slot + 16 + 8 * value, v);
+  }
+
+  /**
+   * Removes the entry in a slot, moving back the entries of its probe run that could no longer be reached across the hole.
+   */
+  void remove(int slot) {
+    int i = slot;
+    slots.putLong(SLOT_SIZE * i, EMPTY);
+    size--;
+    for (int j = (i + 1) & mask; slots.getLong(SLOT_SIZE * j) != EMPTY; j = (j + 1) & mask) {
+      int home = slot(slots.getLong(SLOT_SIZE * j));
+      if (i <= j ? i < home && home <= j : i < home || home <= j) {
+        continue;
+      }
+      for (int b = 0; b < SLOT_SIZE; b += 8) {
+        slots.putLong(SLOT_SIZE * i + b, slots.getLong(SLOT_SIZE * j + b));
+      }
+      slots.putLong(SLOT_SIZE * j, EMPTY);
+      i = j;
+    }
+  }
+
+  /**
+   * Drops the entries behind the horizon, and doubles the table if it is still more than a quarter full.
+   */
+  private void rebuild() {
+    ByteBuffer old = slots;
+    int oldCapacity = mask + 1;
+    int live = 0;
+    for (int i = 0; i < oldCapacity; i++) {
+      if (old.getLong(SLOT_SIZE * i) != EMPTY && old.getLong(SLOT_SIZE * i + 8) >= horizon) {
+        live++;
+      }
+    }
+    allocate(4 * (live + 1) > oldCapacity ? 2 * oldCapacity : oldCapacity);
+    for (int i = 0; i < oldCapacity; i++) {
+      long signature = old.getLong(SLOT_SIZE * i);
+      if (signature != EMPTY && old.getLong(SLOT_SIZE * i + 8) >= horizon) {
+        int j = slot(signature);
+        while (slots.getLong(SLOT_SIZE * j) != EMPTY) {
+          j = (j + 1) & mask;
+        }
+        for (int b = 0; b < SLOT_SIZE; b += 8) {
+          slots.putLong(SLOT_SIZE * j + b, old.getLong(SLOT_SIZE * i + b));
+        }
+        size++;
+      }
+    }
+  }
+
+  int size() {
+    return size;
+  }
+
+  int capacity() {
+    return mask + 1;
+  }
+}
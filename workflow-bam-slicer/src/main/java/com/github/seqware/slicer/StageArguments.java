@@ -0,0 +1,156 @@
+package com.github.seqware.slicer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The arguments of the Java stages of the workflow and the names of the files they pass on, shared by the WorkflowClient, which puts them on the
+ * command lines of its jobs, and the stage benchmark, which runs the same stages on local BAMs, so the two cannot drift apart.
+ *
+ * Left to the callers is how a slice finds the index of its input, which depends on how the input arrives: the workflow adds --follow to a slice
+ * reading a download as it grows and asks the shell whether the BAM came with an index, where the benchmark looks before it starts the stage. The
+ * range fetches of the workflow's use_http_ranges mode have no part in the benchmark either.
+ */
+public class StageArguments {
+
+  private final String regions;
+  private final int shards;
+  private final int sliceLevel;
+  private final int matesLevel;
+  private final int unmappedLevel;
+  private final boolean sha256;
+
+  /**
+   * @param regions the BED file of the regions to slice
+   * @param sliceLevel the compression level of the region slices
+   * @param matesLevel the compression level of the recovered mates
+   * @param unmappedLevel the compression level of the unmapped reads
+   * @param sha256 whether the merges write .sha256 sidecars as well
+   */
+  public StageArguments(String regions, int shards, int sliceLevel, int matesLevel, int unmappedLevel, boolean sha256) {
+    this.regions = regions;
+    this.shards = shards;
+    this.sliceLevel = sliceLevel;
+    this.matesLevel = matesLevel;
+    this.unmappedLevel = unmappedLevel;
+    this.sha256 = sha256;
+  }
+
+  /**
+   * The name of the outputs of one shard of an input: the input's number, followed by the shard's when there are several.
+   */
+  public String part(int input, int shard) {
+    return shards > 1 ? input + "." + shard : "" + input;
+  }
+
+  public static String slice(String part) {
+    return "firstSlice." + part + ".bam";
+  }
+
+  public static String orphans(String part) {
+    return "firstSliceOrphaned." + part + ".bam";
+  }
+
+  public static String mates(String part) {
+    return "secondSlice." + part + ".bam";
+  }
+
+  public static String unmapped(String part) {
+    return "unmappedReads." + part + ".bam";
+  }
+
+  /**
+   * BamIndexer writing the index next to the input.
+   */
+  public static List<String> index(String input) {
+    return Arrays.asList("--input", input, "--output", input + ".bai");
+  }
+
+  /**
+   * BamSlicer writing the region slice of one shard and either its orphans or, with matesInSlice, the mates of its orphans, and the placed reads with
+   * an unmapped end if unmapped is set.
+   *
+   * @param query whether to read only the index chunks of the regions, which needs the index and excludes the unmapped reads
+   */
+  public List<String> slice(String input, String part, boolean matesInSlice, boolean unmapped, boolean query, ResourcePlan.Resources resources) {
+    List<String> arguments = new ArrayList<String>(Arrays.asList("--input", input, "--regions", regions, "--slice-output", slice(part)));
+    if (matesInSlice) {
+      arguments.addAll(Arrays.asList("--mates-output", mates(part), "--mates-level", "" + matesLevel));
+    } else {
+      arguments.addAll(Arrays.asList("--orphans-output", orphans(part)));
+    }
+    arguments.addAll(Arrays.asList("--slice-level", "" + sliceLevel, "--threads", "" + resources.getWriteThreads(), "--read-threads",
+      "" + resources.getReadThreads()));
+    if (unmapped) {
+      arguments.addAll(Arrays.asList("--half-unmapped-output", unmapped(part), "--unmapped-level", "" + unmappedLevel));
+    } else if (query) {
+      arguments.add("--query");
+    }
+    return arguments;
+  }
+
+  /**
+   * The arguments of a slice that seeks through an existing index: the index, and the shard to read when there are several.
+   */
+  public List<String> sliceIndex(String input, int shard) {
+    List<String> arguments = new ArrayList<String>(Arrays.asList("--index", input + ".bai"));
+    if (shards > 1) {
+      arguments.addAll(Arrays.asList("--shard", "" + shard, "--shards", "" + shards));
+    }
+    return arguments;
+  }
+
+  /**
+   * MateRecovery reading the mates of the orphans of one shard from the input.
+   */
+  public List<String> mateRecovery(String input, String part, ResourcePlan.Resources resources) {
+    List<String> arguments = new ArrayList<String>(Arrays.asList("--orphans", orphans(part), "--input", input, "--index", input + ".bai",
+      "--output", mates(part), "--level", "" + matesLevel, "--threads", "" + resources.getWriteThreads(), "--read-threads",
+      "" + resources.getReadThreads()));
+    if (shards > 1) {
+      // a pair split across shards is an orphan in both, but each end is already in the slice of its own shard
+      arguments.addAll(Arrays.asList("--regions", regions));
+    }
+    return arguments;
+  }
+
+  /**
+   * BamMerger merging the slices and recovered mates of every shard of the inputs, marking duplicates.
+   */
+  public List<String> merge(int inputs, String output, ResourcePlan.Resources resources) {
+    StringBuilder slices = new StringBuilder();
+    for (int i = 0; i < inputs; i++) {
+      for (int shard = 0; shard < shards; shard++) {
+        slices.append(slices.length() == 0 ? "" : ",").append(slice(part(i, shard))).append(",").append(mates(part(i, shard)));
+      }
+    }
+    List<String> arguments = new ArrayList<String>(Arrays.asList("--input", slices.toString(), "--output", output, "--metrics",
+      output + ".metrics", "--threads", "" + resources.getWriteThreads(), "--read-threads", "" + resources.getReadThreads()));
+    if (sha256) {
+      arguments.add("--sha256");
+    }
+    return arguments;
+  }
+
+  /**
+   * BamMerger joining the unmapped reads of every shard with the unplaced reads of the inputs.
+   */
+  public List<String> mergeUnmapped(List<String> inputs, String output, ResourcePlan.Resources resources) {
+    StringBuilder unmapped = new StringBuilder();
+    StringBuilder unplaced = new StringBuilder();
+    for (int i = 0; i < inputs.size(); i++) {
+      for (int shard = 0; shard < shards; shard++) {
+        unmapped.append(unmapped.length() == 0 ? "" : ",").append(unmapped(part(i, shard)));
+      }
+      unplaced.append(i == 0 ? "" : ",").append(inputs.get(i));
+    }
+    List<String> arguments = new ArrayList<String>(Arrays.asList("--concatenate", "--input", unmapped.toString(), "--unplaced-from",
+      unplaced.toString(), "--output", output, "--level", "" + unmappedLevel, "--threads", "" + resources.getWriteThreads(), "--read-threads",
+      "" + resources.getReadThreads()));
+    if (sha256) {
+      arguments.add("--sha256");
+    }
+    return arguments;
+  }
+}
@@ -0,0 +1,110 @@
+package com.github.seqware;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import net.sourceforge.seqware.pipeline.workflowV2.model.AbstractJob;
+import net.sourceforge.seqware.pipeline.workflowV2.model.BashJob;
+import net.sourceforge.seqware.pipeline.workflowV2.model.Job;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.Test;
+
+/**
+ * Fuses a small workflow with a chain, a fan-out and jobs over the limits, then runs the script of the fused chain with bash.
+ */
+public class JobFusionTest {
+
+  private final List<AbstractJob> jobs = new ArrayList<AbstractJob>();
+
+  private Job job(String name, String command, int memoryM, int threads, Job... parents) {
+    BashJob job = new BashJob(name);
+    job.getCommand().addArgument(command);
+    job.setMaxMemory(Integer.toString(memoryM));
+    job.setThreads(threads);
+    for (Job parent : parents) {
+      job.addParent(parent);
+    }
+    jobs.add(job);
+    return job;
+  }
+
+  private static List<String> names(Iterable<? extends Job> jobs) {
+    List<String> names = new ArrayList<String>();
+    for (Job job : jobs) {
+      names.add(job.getAlgo());
+    }
+    return names;
+  }
+
+  private static String read(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      for (int b; (b = in.read()) >= 0; ) {
+        out.write(b);
+      }
+      return out.toString("UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+  @Test
+  public void testFuse() throws IOException, InterruptedException {
+    File dir = File.createTempFile("fusion", "");
+    dir.delete();
+    dir.mkdir();
+    File log = new File(dir, "log");
+
+    // a chain of three, the last of which fans out to two
+    Job first = job("first", "echo first >> " + log, 1000, 1);
+    Job failing = job("failing", "echo failing >> " + log + " ; exit 3", 3000, 4, first);
+    Job last = job("last", "echo last >> " + log, 2000, 2, failing);
+    Job left = job("left", "echo left", 1000, 1, last);
+    Job right = job("right", "echo right", 1000, 1, last);
+    // below the fan-out, a job that needs more memory than a fused job may have and one that would run too long with its parent
+    Job big = job("big", "echo big", 20000, 1, left);
+    Job slow = job("slow", "echo slow", 1000, 1, right);
+    // a job without an estimate stays on its own
+    Job unknown = job("unknown", "echo unknown", 1000, 1, big);
+
+    JobFusion fusion = new JobFusion(jobs, 600, 8000);
+    for (Job job : Arrays.asList(first, failing, last, left, right, big)) {
+      fusion.estimate(job, 60);
+    }
+    fusion.estimate(slow, 590);
+    fusion.estimate(unknown, -1);
+    assertEquals(fusion.fuse(), 2);
+
+    assertEquals(names(jobs), Arrays.asList("first", "left", "right", "big", "slow", "unknown"));
+    // the children of the end of the chain now hang off its start, the rest keep their parents
+    assertEquals(names(left.getParents()), Arrays.asList("first"));
+    assertEquals(names(right.getParents()), Arrays.asList("first"));
+    assertEquals(names(big.getParents()), Arrays.asList("left"));
+    assertEquals(names(slow.getParents()), Arrays.asList("right"));
+    assertEquals(names(unknown.getParents()), Arrays.asList("big"));
+    assertTrue(first.getParents().isEmpty());
+    // the largest memory and thread count of the chain
+    assertEquals(first.getMaxMemory(), "3000");
+    assertEquals(first.getThreads(), 4);
+    assertEquals(left.getMaxMemory(), "1000");
+
+    // the fused job stops at the failing step and exits with its code
+    assertEquals(first.getCommand().getArguments().size(), 1);
+    Process process = new ProcessBuilder("bash", "-c", first.getCommand().getArguments().get(0)).start();
+    process.getOutputStream().close();
+    String stderr = read(process.getErrorStream());
+    assertEquals(process.waitFor(), 3);
+    assertTrue(stderr.contains("[failing] exit code 3"), stderr);
+    assertFalse(stderr.contains("[last] started"), stderr);
+    assertEquals(read(new FileInputStream(log)), "first\nfailing\n");
+    log.delete();
+    dir.delete();
+  }
+}
@@ -0,0 +1,131 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamIndexBuilder;
+import com.github.seqware.bam.BamRecord;
+import com.github.seqware.bam.Bams;
+import com.github.seqware.bam.BgzfInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import static org.testng.Assert.assertEquals;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Compares the indexes of the memory mapped scan with the one samtools wrote for the bundled test BAM, and with the index a sequential read builds.
+ */
+public class BamIndexerTest {
+
+  private static final File TEST_BAM = new File("workflow/scripts/t/test.bam");
+
+  private File dir;
+
+  @BeforeClass
+  public void setUp() throws IOException {
+    dir = Bams.createTempDir("indexer");
+  }
+
+  @AfterClass
+  public void tearDown() {
+    Bams.delete(dir);
+  }
+
+  /**
+   * Indexes a BAM as BamIndexer.main does.
+   */
+  private File scan(File bam, String name) throws IOException {
+    BgzfInputStream in = BgzfInputStream.openSequential(bam);
+    BamHeader header;
+    long firstRecord;
+    try {
+      header = BamHeader.read(in);
+      firstRecord = in.getFilePointer();
+    } finally {
+      in.close();
+    }
+    BamIndexBuilder builder = new BamIndexBuilder(header.getReferenceCount());
+    RandomAccessFile file = new RandomAccessFile(bam, "r");
+    try {
+      assertEquals(new BamIndexer(file.getChannel(), builder).scan(firstRecord), Bams.read(bam).size());
+    } finally {
+      file.close();
+    }
+    File bai = new File(dir, name + ".bai");
+    builder.write(bai);
+    return bai;
+  }
+
+  private static void assertSameIndex(Bams.Index actual, Bams.Index expected) {
+    assertEquals(actual.bins.size(), expected.bins.size(), "references");
+    for (int refId = 0; refId < expected.bins.size(); refId++) {
+      Map<Integer, long[]> bins = actual.bins.get(refId);
+      assertEquals(bins.keySet(), expected.bins.get(refId).keySet(), "bins of reference " + refId);
+      for (Map.Entry<Integer, long[]> bin : expected.bins.get(refId).entrySet()) {
+        assertEquals(bins.get(bin.getKey()), bin.getValue(), "chunks of bin " + bin.getKey() + " of reference " + refId);
+      }
+      assertEquals(actual.linear.get(refId), expected.linear.get(refId), "linear index of reference " + refId);
+    }
+    assertEquals(actual.noCoordinateCount, expected.noCoordinateCount, "n_no_coor");
+  }
+
+  @Test
+  public void testTestBam() throws IOException {
+    Bams.Index index = Bams.readIndex(scan(TEST_BAM, "test"));
+    assertSameIndex(index, Bams.readIndex(new File(TEST_BAM.getPath() + ".bai")));
+    assertEquals(index.noCoordinateCount, 2);
+  }
+
+  /**
+   * Records running on into the next block, one of them over several blocks, as the carry over of the scan has to put them together.
+   */
+  @Test
+  public void testRecordsSpanningBlocks() throws IOException {
+    StringBuilder bases = new StringBuilder();
+    for (int i = 0; i < 300; i++) {
+      bases.append("ACGT".charAt(i * 5 % 4));
+    }
+    StringBuilder longBases = new StringBuilder();
+    for (int i = 0; i < 50000; i++) {
+      longBases.append("ACGT".charAt(i % 4));
+    }
+    List<byte[]> records = new ArrayList<byte[]>();
+    for (int i = 0; i < 4000; i++) {
+      int refId = i < 2500 ? 0 : 1;
+      int pos = 40 * i;
+      if (i == 1000) {
+        records.add(Bams.record("long", BamRecord.FLAG_PAIRED, refId, pos, "50000M", refId, pos, longBases.toString(), 30));
+      }
+      records.add(Bams.record("read" + i, BamRecord.FLAG_PAIRED, refId, pos, i % 50 == 0 ? "100M5000N200M" : "300M", refId, pos, bases.toString(),
+        30));
+    }
+    for (int i = 0; i < 10; i++) {
+      records.add(Bams.record("unplaced" + i, BamRecord.FLAG_UNMAPPED, -1, -1, "*", -1, -1, "*", 0));
+    }
+    File bam = new File(dir, "split.bam");
+    Bams.write(bam, Bams.header("1:1000000", "2:1000000"), records, true);
+
+    BamIndexBuilder builder;
+    BgzfInputStream in = BgzfInputStream.openSequential(bam);
+    try {
+      builder = new BamIndexBuilder(BamHeader.read(in).getReferenceCount());
+      BamRecord record = new BamRecord();
+      while (true) {
+        long start = in.getFilePointer();
+        if (!record.read(in)) {
+          break;
+        }
+        builder.add(record, start, in.getFilePointer());
+      }
+    } finally {
+      in.close();
+    }
+    File read = new File(dir, "read.bai");
+    builder.write(read);
+    assertSameIndex(Bams.readIndex(scan(bam, "split")), Bams.readIndex(read));
+  }
+}
@@ -0,0 +1,333 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamIndex;
+import com.github.seqware.bam.BamIndexBuilder;
+import com.github.seqware.bam.BamRecord;
+import com.github.seqware.bam.BamWriter;
+import com.github.seqware.bam.Bams;
+import com.github.seqware.bam.Bgzf;
+import com.github.seqware.bam.BgzfInputStream;
+import com.github.seqware.bam.BgzfOutputStream;
+import com.github.seqware.bam.ChunkList;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Joins shards and the no-coordinate sections of other BAMs block by block as BamMerger --concatenate --unplaced-from does, then reads every record
+ * of the result back through the index written from the indexes of the shards.
+ */
+public class BamMergerTest {
+
+  private static final BamHeader HEADER = Bams.header("1:1000000", "2:1000000", "3:1000000");
+
+  private File dir;
+  private final Random random = new Random(5);
+
+  @BeforeClass
+  public void setUp() throws IOException {
+    dir = Bams.createTempDir("merger");
+  }
+
+  @AfterClass
+  public void tearDown() {
+    Bams.delete(dir);
+  }
+
+  /**
+   * Reads of 100 random bases, which barely compress, at every step on the given references, then the given number of unplaced reads.
+   */
+  private List<byte[]> records(String name, int[] refIds, int step, int unplaced) throws IOException {
+    List<byte[]> records = new ArrayList<byte[]>();
+    char[] bases = new char[100];
+    for (int refId : refIds) {
+      for (int pos = 0; pos < 1000000 - 100; pos += step) {
+        for (int b = 0; b < bases.length; b++) {
+          bases[b] = "ACGT".charAt(random.nextInt(4));
+        }
+        records.add(Bams.record(name + refId + "_" + pos, BamRecord.FLAG_PAIRED, refId, pos, "100M", refId, pos + 300, new String(bases), 30));
+      }
+    }
+    for (int i = 0; i < unplaced; i++) {
+      records.add(Bams.record(name + "unplaced" + i, BamRecord.FLAG_PAIRED | BamRecord.FLAG_UNMAPPED | BamRecord.FLAG_MATE_UNMAPPED, -1, -1, "*", -1,
+        -1, "ACGTACGTAC", 20));
+    }
+    return records;
+  }
+
+  /**
+   * Writes a BAM and indexes it as it goes, as the slicer writes its shards.
+   */
+  private File writeIndexed(String name, List<byte[]> records) throws IOException {
+    return writeIndexed(name, HEADER, records);
+  }
+
+  private File writeIndexed(String name, BamHeader header, List<byte[]> records) throws IOException {
+    File bam = new File(dir, name + ".bam");
+    BgzfOutputStream out = new BgzfOutputStream(bam, 6);
+    BamWriter writer = new BamWriter(out, header);
+    BamIndexBuilder index = new BamIndexBuilder(header.getReferenceCount(), out);
+    BamRecord record = new BamRecord();
+    for (byte[] b : records) {
+      record.wrap(b, 0, b.length);
+      writer.write(record, index);
+    }
+    writer.close();
+    index.write(new File(bam.getPath() + ".bai"));
+    return bam;
+  }
+
+  private static BamIndex[] indexes(File[] files) throws IOException {
+    BamIndex[] indexes = new BamIndex[files.length];
+    for (int i = 0; i < files.length; i++) {
+      indexes[i] = BamIndex.read(new File(files[i].getPath() + ".bai"));
+    }
+    return indexes;
+  }
+
+  /**
+   * Joins the inputs and the unplaced reads of the others as BamMerger.main does with --concatenate.
+   */
+  private File concatenate(File[] files, File[] unplaced, String name) throws IOException {
+    File output = new File(dir, name + ".bam");
+    BamMerger merger = new BamMerger(files, new BamHeader[files.length], null, 2);
+    try {
+      BamIndex[] indexes = indexes(files);
+      int[] order = merger.concatenationOrder(indexes);
+      assertNotNull(order, "the inputs could not be joined block by block");
+      BgzfOutputStream stream = new BgzfOutputStream(output, 6);
+      BamWriter out = new BamWriter(stream, HEADER);
+      long[] shifts = merger.concatenate(order, stream);
+      long unplacedCount = 0;
+      for (File bam : unplaced) {
+        unplacedCount += BamMerger.appendUnplaced(bam, stream);
+      }
+      out.close();
+      BamIndex[] parts = new BamIndex[order.length];
+      for (int k = 0; k < order.length; k++) {
+        parts[k] = indexes[order[k]];
+      }
+      BamIndexBuilder.writeConcatenation(parts, shifts, unplacedCount, new File(output.getPath() + ".bai"));
+    } finally {
+      merger.close();
+    }
+    return output;
+  }
+
+  private static List<String> readChunks(File bam, ChunkList chunks, int refId, int start, int end) throws IOException {
+    List<String> found = new ArrayList<String>();
+    BgzfInputStream in = new BgzfInputStream(bam);
+    try {
+      BamRecord record = new BamRecord();
+      for (int c = 0; c < chunks.size(); c++) {
+        in.seek(chunks.getStart(c));
+        while (in.getFilePointer() < chunks.getEnd(c) && record.read(in)) {
+          if (record.getReferenceIndex() == refId && record.getPosition() < end && record.getAlignmentEnd() > start) {
+            found.add(record.getReadName() + "/" + record.getFlag());
+          }
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return found;
+  }
+
+  @Test
+  public void testConcatenation() throws IOException {
+    // the second shard holds the first reference and has to go first, the first shard holds the two after it
+    File[] shards = {writeIndexed("shard0", records("b", new int[]{1, 2}, 150, 0)), writeIndexed("shard1", records("a", new int[]{0}, 200, 0))};
+    // the unplaced reads of one file start in the middle of a block after its placed reads, the other file has no placed reads at all
+    File[] unmapped = {writeIndexed("unmapped0", records("u", new int[]{0}, 20000, 300)), writeIndexed("unmapped1", records("v", new int[0], 1, 40))};
+    File output = concatenate(shards, unmapped, "joined");
+
+    List<Bams.Read> expected = new ArrayList<Bams.Read>();
+    expected.addAll(Bams.read(shards[1]));
+    expected.addAll(Bams.read(shards[0]));
+    for (File bam : unmapped) {
+      for (Bams.Read read : Bams.read(bam)) {
+        if (read.refId < 0) {
+          expected.add(read);
+        }
+      }
+    }
+    List<Bams.Read> reads = Bams.read(output);
+    assertEquals(Bams.names(reads), Bams.names(expected));
+    byte[] tail = new byte[Bgzf.EOF_BLOCK.length];
+    RandomAccessFile file = new RandomAccessFile(output, "r");
+    try {
+      file.seek(file.length() - tail.length);
+      file.readFully(tail);
+    } finally {
+      file.close();
+    }
+    assertEquals(tail, Bgzf.EOF_BLOCK);
+
+    // every placed record is found through the index, in whole references and in windows of them
+    BamIndex index = BamIndex.read(new File(output.getPath() + ".bai"));
+    int[][] regions = {{0, 0, 1000000}, {1, 0, 1000000}, {2, 0, 1000000}, {0, 333333, 340000}, {1, 16383, 16385}, {2, 999000, 1000000}};
+    int placed = 0;
+    for (int[] region : regions) {
+      List<String> wanted = new ArrayList<String>();
+      for (Bams.Read read : reads) {
+        if (read.refId == region[0] && read.pos < region[2] && read.end > region[1]) {
+          wanted.add(read.toString());
+        }
+      }
+      ChunkList chunks = new ChunkList();
+      index.addChunks(region[0], region[1], region[2], chunks);
+      chunks.merge();
+      assertEquals(readChunks(output, chunks, region[0], region[1], region[2]), wanted, "region " + region[0] + ":" + region[1] + "-" + region[2]);
+      if (region[1] == 0 && region[2] == 1000000) {
+        placed += wanted.size();
+      }
+    }
+    assertEquals(placed, reads.size() - 340);
+
+    // and the unplaced reads from where the index says they start
+    assertEquals(index.getNoCoordinateCount(), 340);
+    List<String> unplaced = new ArrayList<String>();
+    BgzfInputStream in = new BgzfInputStream(output);
+    try {
+      in.seek(index.getUnplacedStart());
+      BamRecord record = new BamRecord();
+      while (record.read(in)) {
+        unplaced.add(record.getReadName() + "/" + record.getFlag());
+      }
+    } finally {
+      in.close();
+    }
+    assertEquals(unplaced, Bams.names(expected.subList(placed, expected.size())));
+  }
+
+  @Test
+  public void testInputsThatCannotBeJoined() throws IOException {
+    File first = writeIndexed("overlap0", records("c", new int[]{0, 1}, 5000, 0));
+    File second = writeIndexed("overlap1", records("d", new int[]{1, 2}, 5000, 0));
+    File third = writeIndexed("overlap2", records("e", new int[]{2}, 5000, 10));
+    File[][] inputs = {{first, second}, {third, first}};
+    for (File[] files : inputs) {
+      BamMerger merger = new BamMerger(files, new BamHeader[files.length], null, 2);
+      try {
+        assertNull(merger.concatenationOrder(indexes(files)));
+      } finally {
+        merger.close();
+      }
+    }
+
+    // an input without reads is left out
+    File empty = writeIndexed("empty", new ArrayList<byte[]>());
+    File[] files = {second, empty, writeIndexed("first", records("f", new int[]{0}, 5000, 0))};
+    BamMerger merger = new BamMerger(files, new BamHeader[files.length], null, 2);
+    try {
+      assertEquals(merger.concatenationOrder(indexes(files)), new int[]{2, 0});
+    } finally {
+      merger.close();
+    }
+  }
+
+  /**
+   * Slices an input in shards as the workflow's slice jobs do and joins their --half-unmapped-output with the unplaced reads of the input as its
+   * mergeUnmappedBAM job does: the shards of the real plan hold runs of contigs that do not overlap, so the merge takes the block path.
+   */
+  @Test
+  public void testShardsOfOneInput() throws IOException {
+    // contigs of falling size, which a plan handing each to the smallest shard so far would interleave
+    BamHeader header = Bams.header("1:1000000", "2:1000000", "3:1000000", "4:1000000", "5:1000000");
+    int[] reads = {4000, 3000, 2000, 1000, 1000};
+    List<byte[]> records = new ArrayList<byte[]>();
+    char[] bases = new char[100];
+    for (int refId = 0; refId < reads.length; refId++) {
+      for (int i = 0; i < reads[refId]; i++) {
+        for (int b = 0; b < bases.length; b++) {
+          bases[b] = "ACGT".charAt(random.nextInt(4));
+        }
+        int pos = i * (1000000 / reads[refId]);
+        int flag = BamRecord.FLAG_PAIRED | (i % 4 == 0 ? BamRecord.FLAG_MATE_UNMAPPED : i % 8 == 1 ? BamRecord.FLAG_UNMAPPED : 0);
+        records.add(Bams.record("r" + refId + "_" + i, flag, refId, pos, "100M", refId, pos, new String(bases), 30));
+      }
+    }
+    for (int i = 0; i < 50; i++) {
+      records.add(Bams.record("unplaced" + i, BamRecord.FLAG_PAIRED | BamRecord.FLAG_UNMAPPED | BamRecord.FLAG_MATE_UNMAPPED, -1, -1, "*", -1, -1,
+        "ACGTACGTAC", 20));
+    }
+    File input = writeIndexed("sharded", header, records);
+    File bed = new File(dir, "sharded.bed");
+    FileWriter writer = new FileWriter(bed);
+    writer.write("1\t0\t1000\n");
+    writer.close();
+
+    int shards = 3;
+    StringBuilder outputs = new StringBuilder();
+    for (int shard = 0; shard < shards; shard++) {
+      String part = new File(dir, "sharded." + shard).getPath();
+      BamSlicer.run(new Arguments(new String[]{"--input", input.getPath(), "--regions", bed.getPath(), "--slice-output", part + ".slice.bam",
+        "--half-unmapped-output", part + ".unmapped.bam", "--shard", Integer.toString(shard), "--shards", Integer.toString(shards)}));
+      outputs.append(shard == 0 ? "" : ",").append(part + ".unmapped.bam");
+    }
+
+    File output = new File(dir, "sharded.unmapped.bam");
+    final List<String> messages = new ArrayList<String>();
+    Handler handler = new Handler() {
+      @Override
+      public void publish(LogRecord record) {
+        messages.add(record.getMessage());
+      }
+
+      @Override
+      public void flush() {
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+    Logger logger = Logger.getLogger(BamMerger.class.getName());
+    logger.addHandler(handler);
+    try {
+      BamMerger.run(new Arguments(new String[]{"--concatenate", "--input", outputs.toString(), "--unplaced-from", input.getPath(), "--output",
+        output.getPath()}));
+    } finally {
+      logger.removeHandler(handler);
+    }
+    assertEquals(messages.size(), 1);
+    assertTrue(messages.get(0).contains("block by block"), messages.get(0));
+
+    List<String> expected = new ArrayList<String>();
+    for (Bams.Read read : Bams.read(input)) {
+      if (read.refId < 0 || (read.flag & (BamRecord.FLAG_UNMAPPED | BamRecord.FLAG_MATE_UNMAPPED)) != 0) {
+        expected.add(read.toString());
+      }
+    }
+    assertEquals(Bams.names(Bams.read(output)), expected);
+    BamIndex index = BamIndex.read(new File(output.getPath() + ".bai"));
+    assertEquals(index.getNoCoordinateCount(), 50);
+    for (int refId = 0; refId < reads.length; refId++) {
+      ChunkList chunks = new ChunkList();
+      index.addChunks(refId, 0, 1000000, chunks);
+      chunks.merge();
+      List<String> wanted = new ArrayList<String>();
+      for (Bams.Read read : Bams.read(output)) {
+        if (read.refId == refId) {
+          wanted.add(read.toString());
+        }
+      }
+      assertEquals(readChunks(output, chunks, refId, 0, 1000000), wanted, "reference " + refId);
+    }
+  }
+}
@@ -0,0 +1,399 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamIndex;
+import com.github.seqware.bam.BamIndexBuilder;
+import com.github.seqware.bam.BamRecord;
+import com.github.seqware.bam.BamWriter;
+import com.github.seqware.bam.Bams;
+import com.github.seqware.bam.BgzfInputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Compares each output of the slicer with what the samtools pipelines it replaces kept, worked out from the input read without the slicer's classes:
+ * "samtools view -L" keeps placed reads overlapping a region and passes unplaced ones through, "-f" keeps reads with all the flags set, and
+ * remove_both_ends_unmapped_reads.pl then drops the reads whose reference and mate reference are both unset.
+ */
+public class BamSlicerTest {
+
+  private static final File TEST_BAM = new File("workflow/scripts/t/test.bam");
+
+  private File dir;
+
+  @BeforeClass
+  public void setUp() throws IOException {
+    dir = Bams.createTempDir("slicer");
+  }
+
+  @AfterClass
+  public void tearDown() {
+    Bams.delete(dir);
+  }
+
+  /**
+   * The outputs of one slice: the region slice, -f 4, -f 8 and -f 12.
+   */
+  private List<List<Bams.Read>> slice(File input, File bed, String name, boolean pools) throws IOException {
+    ExecutorService pool = pools ? Executors.newFixedThreadPool(3) : null;
+    BgzfInputStream in = pools ? BgzfInputStream.openSequential(input, pool, 4) : BgzfInputStream.openSequential(input);
+    File[] outputs = new File[4];
+    try {
+      BamHeader header = BamHeader.read(in);
+      BamWriter[] writers = new BamWriter[outputs.length];
+      for (int i = 0; i < outputs.length; i++) {
+        outputs[i] = new File(dir, name + "." + i + ".bam");
+        writers[i] = new BamWriter(outputs[i], header, 1, pool, 4);
+      }
+      BamSlicer slicer = new BamSlicer(BedRegions.load(bed, header), writers[0], writers[1], writers[2], writers[3]);
+      slicer.slice(in, (BamIndexBuilder) null);
+      for (BamWriter writer : writers) {
+        writer.close();
+      }
+    } finally {
+      in.close();
+      if (pool != null) {
+        pool.shutdown();
+      }
+    }
+    List<List<Bams.Read>> reads = new ArrayList<List<Bams.Read>>();
+    for (File output : outputs) {
+      reads.add(Bams.read(output));
+    }
+    return reads;
+  }
+
+  private static boolean bothEndsUnplaced(Bams.Read read) {
+    return read.refId < 0 && read.mateRefId < 0;
+  }
+
+  /**
+   * samtools view -L with intervals given as refId, start, end, then remove_both_ends_unmapped_reads.pl.
+   */
+  private static List<String> expectedSlice(List<Bams.Read> input, int[][] intervals) {
+    List<String> expected = new ArrayList<String>();
+    for (Bams.Read read : input) {
+      boolean overlaps = read.refId < 0;
+      for (int[] interval : intervals) {
+        overlaps |= read.refId == interval[0] && read.pos < interval[2] && read.end > interval[1];
+      }
+      if (overlaps && !bothEndsUnplaced(read)) {
+        expected.add(read.toString());
+      }
+    }
+    return expected;
+  }
+
+  /**
+   * samtools view -f, then remove_both_ends_unmapped_reads.pl if asked for.
+   */
+  private static List<String> expectedFlags(List<Bams.Read> input, int flags, boolean removeBothEndsUnmapped) {
+    List<String> expected = new ArrayList<String>();
+    for (Bams.Read read : input) {
+      if ((read.flag & flags) == flags && !(removeBothEndsUnmapped && bothEndsUnplaced(read))) {
+        expected.add(read.toString());
+      }
+    }
+    return expected;
+  }
+
+  private static File writeBed(File bed, String... lines) throws IOException {
+    FileWriter out = new FileWriter(bed);
+    try {
+      for (String line : lines) {
+        out.write(line.replace(' ', '\t') + "\n");
+      }
+    } finally {
+      out.close();
+    }
+    return bed;
+  }
+
+  private static void assertOutputs(List<List<Bams.Read>> outputs, List<Bams.Read> input, int[][] intervals) {
+    assertEquals(Bams.names(outputs.get(0)), expectedSlice(input, intervals), "-L");
+    assertEquals(Bams.names(outputs.get(1)), expectedFlags(input, BamRecord.FLAG_UNMAPPED, true), "-f 4");
+    assertEquals(Bams.names(outputs.get(2)), expectedFlags(input, BamRecord.FLAG_MATE_UNMAPPED, true), "-f 8");
+    assertEquals(Bams.names(outputs.get(3)), expectedFlags(input, BamRecord.FLAG_UNMAPPED | BamRecord.FLAG_MATE_UNMAPPED, false), "-f 12");
+  }
+
+  @Test
+  public void testTestBam() throws IOException {
+    File bed = writeBed(new File(dir, "test.bed"), "1 228000 228110", "3 0 1000");
+    List<Bams.Read> input = Bams.read(TEST_BAM);
+    List<List<Bams.Read>> outputs = slice(TEST_BAM, bed, "test", false);
+    assertOutputs(outputs, input, new int[][]{{0, 228000, 228110}, {2, 0, 1000}});
+
+    // the second end of a pair, the read whose mate is unmapped and that mate, placed at the same position
+    assertEquals(outputs.get(0).size(), 3);
+    assertEquals(outputs.get(0).get(2).flag & BamRecord.FLAG_UNMAPPED, BamRecord.FLAG_UNMAPPED);
+    assertEquals(outputs.get(1).size(), 1);
+    assertEquals(outputs.get(2).size(), 1);
+    // the unplaced pair at the end only goes to -f 12
+    assertEquals(outputs.get(3).size(), 2);
+    assertEquals(outputs.get(3).get(0).refId, -1);
+  }
+
+  /**
+   * Pairs over two contigs, a tenth of them with an end on each, written as htslib does, records running on into the next block, with unmapped ends
+   * placed at their mates inside and outside the regions, and unplaced reads at the end.
+   */
+  private List<Bams.Read> writeGenerated(File bam) throws IOException {
+    Random random = new Random(11);
+    StringBuilder bases = new StringBuilder();
+    for (int i = 0; i < 250; i++) {
+      bases.append("ACGT".charAt(random.nextInt(4)));
+    }
+    String seq = bases.toString();
+    List<byte[]> records = new ArrayList<byte[]>();
+    int paired = BamRecord.FLAG_PAIRED;
+    for (int i = 0; i < 1500; i++) {
+      String name = "pair" + i;
+      int refId = random.nextInt(2);
+      int pos = random.nextInt(100000);
+      int matePos = pos + 100 + random.nextInt(400);
+      if (i % 10 == 0) {
+        records.add(Bams.record(name, paired | BamRecord.FLAG_READ1 | BamRecord.FLAG_MATE_UNMAPPED, refId, pos, "250M", refId, pos, seq, 30));
+        records.add(Bams.record(name, paired | BamRecord.FLAG_READ2 | BamRecord.FLAG_UNMAPPED, refId, pos, "*", refId, pos, seq, 30));
+      } else {
+        // some pairs have their ends on different contigs
+        int mateRefId = i % 10 == 5 ? 1 - refId : refId;
+        records.add(Bams.record(name, paired | BamRecord.FLAG_READ1, refId, pos, "250M", mateRefId, matePos, seq, 30));
+        records.add(Bams.record(name, paired | BamRecord.FLAG_READ2 | BamRecord.FLAG_REVERSE, mateRefId, matePos, "10S240M", refId, pos, seq, 30));
+      }
+    }
+    Collections.sort(records, new Comparator<byte[]>() {
+      @Override
+      public int compare(byte[] a, byte[] b) {
+        long x = (long) Bams.getInt(a, 0) << 32 | Bams.getInt(a, 4);
+        long y = (long) Bams.getInt(b, 0) << 32 | Bams.getInt(b, 4);
+        return x < y ? -1 : x > y ? 1 : 0;
+      }
+    });
+    int unplaced = BamRecord.FLAG_UNMAPPED | BamRecord.FLAG_MATE_UNMAPPED;
+    for (int i = 0; i < 20; i++) {
+      records.add(Bams.record("unplaced" + i, paired | unplaced | BamRecord.FLAG_READ1, -1, -1, "*", -1, -1, seq, 20));
+      records.add(Bams.record("unplaced" + i, paired | unplaced | BamRecord.FLAG_READ2, -1, -1, "*", -1, -1, seq, 20));
+    }
+    // an unplaced read whose mate is placed, which no filter drops
+    records.add(Bams.record("stray", paired | BamRecord.FLAG_UNMAPPED | BamRecord.FLAG_READ2, -1, -1, "*", 1, 500, seq, 20));
+    Bams.write(bam, Bams.header("1:1000000", "2:1000000"), records, true);
+    return Bams.read(bam);
+  }
+
+  @Test
+  public void testRecordsSpanningBlocks() throws IOException {
+    File bam = new File(dir, "generated.bam");
+    List<Bams.Read> input = writeGenerated(bam);
+    File bed = writeBed(new File(dir, "generated.bed"), "1 1000 20000", "1 50000 50100", "2 99000 200000", "3 0 10");
+    int[][] intervals = {{0, 1000, 20000}, {0, 50000, 50100}, {1, 99000, 200000}};
+    List<List<Bams.Read>> outputs = slice(bam, bed, "generated", false);
+    assertOutputs(outputs, input, intervals);
+    assertTrue(outputs.get(0).size() > 100);
+    assertTrue(outputs.get(1).size() > 100);
+    assertEquals(outputs.get(0).get(outputs.get(0).size() - 1).name, "stray");
+
+    // the same on pools, with the input inflated ahead and the outputs compressed out of order
+    List<List<Bams.Read>> pooled = slice(bam, bed, "pooled", true);
+    for (int i = 0; i < outputs.size(); i++) {
+      assertEquals(Bams.names(pooled.get(i)), Bams.names(outputs.get(i)));
+    }
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void testUnsortedInput() throws IOException {
+    File bam = new File(dir, "unsorted.bam");
+    List<byte[]> records = new ArrayList<byte[]>();
+    records.add(Bams.record("b", 0, 0, 2000, "10M", -1, -1, "*", 0));
+    records.add(Bams.record("a", 0, 0, 1000, "10M", -1, -1, "*", 0));
+    Bams.write(bam, Bams.header("1:1000000"), records, false);
+    slice(bam, writeBed(new File(dir, "unsorted.bed"), "1 0 5000"), "unsorted", false);
+  }
+
+  /**
+   * Runs BamSlicer as the workflow's slice jobs do, with every output, and reads them back in the order slice, orphans, mates, -f 4, -f 8, -f 12 and
+   * the reads with an unmapped end.
+   */
+  private List<List<Bams.Read>> run(File input, File bed, String name, String... extra) throws IOException {
+    String[] outputs = {"slice", "orphans", "mates", "unmapped", "mate-unmapped", "both-unmapped", "half-unmapped"};
+    List<String> args = new ArrayList<String>();
+    Collections.addAll(args, "--input", input.getPath(), "--regions", bed.getPath());
+    for (String output : outputs) {
+      Collections.addAll(args, "--" + output + "-output", new File(dir, name + "." + output + ".bam").getPath());
+    }
+    Collections.addAll(args, extra);
+    BamSlicer.run(new Arguments(args.toArray(new String[args.size()])));
+    List<List<Bams.Read>> reads = new ArrayList<List<Bams.Read>>();
+    for (String output : outputs) {
+      reads.add(Bams.read(new File(dir, name + "." + output + ".bam")));
+    }
+    return reads;
+  }
+
+  private static List<String> sorted(List<String> names) {
+    List<String> sorted = new ArrayList<String>(names);
+    Collections.sort(sorted);
+    return sorted;
+  }
+
+  /**
+   * Slices the generated input in shards as the workflow's slice jobs do with --shard and --shards: the shards hold runs of consecutive contigs in file
+   * order, so their outputs one after the other are the outputs of the unsharded run, and the reads of a pair split between two shards are each in the
+   * slice of their own shard rather than recovered again as the mate of the other.
+   */
+  @Test
+  public void testShards() throws IOException {
+    File bam = new File(dir, "sharded.bam");
+    List<Bams.Read> input = writeGenerated(bam);
+    File bed = writeBed(new File(dir, "sharded.bed"), "1 0 60000", "2 30000 90000");
+    File bai = new File(dir, "sharded.bam.bai");
+    List<List<Bams.Read>> whole = run(bam, bed, "whole", "--index-output", bai.getPath());
+    assertOutputs(Arrays.asList(whole.get(0), whole.get(3), whole.get(4), whole.get(5)), input, new int[][]{{0, 0, 60000}, {1, 30000, 90000}});
+    assertTrue(whole.get(2).size() > 10, whole.get(1).size() + " orphans, " + whole.get(2).size() + " mates");
+
+    BamIndex index = BamIndex.read(bai);
+    for (int shards = 2; shards <= 5; shards++) {
+      ShardPlan plan = ShardPlan.balance(index, 1000, shards);
+      int owners = 0;
+      for (int shard = 0; shard < shards; shard++) {
+        owners += plan.hasUnplaced(shard) ? 1 : 0;
+      }
+      assertEquals(owners, 1, shards + " shards");
+      // the plan of a job is the plan of every other job
+      ShardPlan again = ShardPlan.balance(index, 1000, shards);
+      for (int refId = 0; refId < index.getReferenceCount(); refId++) {
+        assertEquals(again.getShard(refId), plan.getShard(refId));
+        assertTrue(refId == 0 || plan.getShard(refId) >= plan.getShard(refId - 1));
+      }
+
+      List<List<String>> joined = new ArrayList<List<String>>();
+      for (int i = 0; i < whole.size(); i++) {
+        joined.add(new ArrayList<String>());
+      }
+      int orphans = 0;
+      for (int shard = 0; shard < shards; shard++) {
+        List<List<Bams.Read>> outputs = run(bam, bed, "shard" + shards + "_" + shard, "--shard", Integer.toString(shard), "--shards",
+          Integer.toString(shards), "--index", bai.getPath());
+        for (int i = 0; i < outputs.size(); i++) {
+          joined.get(i).addAll(Bams.names(outputs.get(i)));
+        }
+        orphans += outputs.get(1).size();
+      }
+      for (int i : new int[]{0, 3, 4, 5, 6}) {
+        assertEquals(joined.get(i), Bams.names(whole.get(i)), shards + " shards, output " + i);
+      }
+      // each end of a pair split between shards is an orphan of its own shard, but its mate is only in the slice of the other
+      assertTrue(orphans > whole.get(1).size(), shards + " shards");
+      assertEquals(sorted(joined.get(2)), sorted(Bams.names(whole.get(2))), shards + " shards, mates");
+    }
+  }
+
+  /**
+   * The ends of the region slice whose other end is not in it, as bamcollate2 classified them: primary ends of pairs only.
+   */
+  private static List<String> expectedOrphans(List<Bams.Read> slice) {
+    int ends = BamRecord.FLAG_READ1 | BamRecord.FLAG_READ2;
+    List<String> expected = new ArrayList<String>();
+    for (Bams.Read read : slice) {
+      if ((read.flag & BamRecord.FLAG_PAIRED) == 0 || (read.flag & (BamRecord.FLAG_SECONDARY | BamRecord.FLAG_SUPPLEMENTARY)) != 0) {
+        continue;
+      }
+      boolean paired = false;
+      for (Bams.Read other : slice) {
+        paired |= other.name.equals(read.name) && (other.flag & ends) != (read.flag & ends);
+      }
+      if (!paired) {
+        expected.add(read.toString());
+      }
+    }
+    return expected;
+  }
+
+  /**
+   * Recovers the mates in the slice job with --mates-output, which hands the orphans over in memory, and as the workflow did before, with
+   * --orphans-output followed by MateRecovery on the orphans written: both find the same mates, including those of pairs with an end on each contig.
+   */
+  @Test
+  public void testOrphansAndMates() throws IOException {
+    File bam = new File(dir, "orphaned.bam");
+    writeGenerated(bam);
+    File bed = writeBed(new File(dir, "orphaned.bed"), "1 0 60000", "2 30000 90000");
+    File bai = new File(dir, "orphaned.bam.bai");
+    String prefix = new File(dir, "orphaned").getPath();
+
+    BamSlicer.run(new Arguments(new String[]{"--input", bam.getPath(), "--regions", bed.getPath(), "--slice-output", prefix + ".slice.bam",
+      "--orphans-output", prefix + ".orphans.bam", "--index-output", bai.getPath()}));
+    MateRecovery.run(new Arguments(new String[]{"--input", bam.getPath(), "--orphans", prefix + ".orphans.bam", "--output", prefix + ".recovered.bam"}));
+    BamSlicer.run(new Arguments(new String[]{"--input", bam.getPath(), "--regions", bed.getPath(), "--slice-output", prefix + ".slice2.bam",
+      "--mates-output", prefix + ".mates.bam", "--index", bai.getPath()}));
+
+    List<Bams.Read> slice = Bams.read(new File(prefix + ".slice.bam"));
+    List<Bams.Read> orphans = Bams.read(new File(prefix + ".orphans.bam"));
+    assertEquals(Bams.names(orphans), expectedOrphans(slice));
+    List<Bams.Read> mates = Bams.read(new File(prefix + ".mates.bam"));
+    assertEquals(Bams.names(mates), Bams.names(Bams.read(new File(prefix + ".recovered.bam"))));
+    assertEquals(Bams.names(Bams.read(new File(prefix + ".slice2.bam"))), Bams.names(slice));
+
+    // every orphan whose mate is placed elsewhere gets it back, among them the ends of pairs split across the contigs; the mate of the stray read is
+    // not in the input
+    int split = 0;
+    List<String> names = new ArrayList<String>();
+    for (Bams.Read orphan : orphans) {
+      if (orphan.refId >= 0 && orphan.mateRefId >= 0 && !(orphan.mateRefId == orphan.refId && orphan.matePos == orphan.pos)) {
+        names.add(orphan.name);
+        split += orphan.mateRefId != orphan.refId ? 1 : 0;
+      }
+    }
+    assertTrue(split > 10, split + " orphans with the mate on the other contig");
+    List<String> found = new ArrayList<String>();
+    for (Bams.Read mate : mates) {
+      found.add(mate.name);
+    }
+    assertEquals(sorted(found), sorted(names));
+  }
+
+  /**
+   * Slices the generated input with --query, reading only the index chunks of the regions, with the chunks coalesced across the default gap and not at
+   * all, and alone or in shards: the region slice is the one the sequential pass writes.
+   */
+  @Test
+  public void testQuery() throws IOException {
+    File bam = new File(dir, "queried.bam");
+    writeGenerated(bam);
+    File bed = writeBed(new File(dir, "queried.bed"), "1 1000 20000", "1 50000 50100", "2 99000 200000", "3 0 10");
+    File bai = new File(dir, "queried.bam.bai");
+    String prefix = new File(dir, "queried").getPath();
+    BamSlicer.run(new Arguments(new String[]{"--input", bam.getPath(), "--regions", bed.getPath(), "--slice-output", prefix + ".slice.bam",
+      "--index-output", bai.getPath()}));
+    List<String> expected = Bams.names(Bams.read(new File(prefix + ".slice.bam")));
+
+    String[][] variants = {{}, {"--coalesce-gap", "0"}, {"--shards", "2"}, {"--shards", "2", "--coalesce-gap", "0"}};
+    for (String[] variant : variants) {
+      String name = Arrays.toString(variant);
+      int shards = variant.length > 0 && variant[0].equals("--shards") ? 2 : 1;
+      List<String> slice = new ArrayList<String>();
+      for (int shard = 0; shard < shards; shard++) {
+        List<String> args = new ArrayList<String>();
+        Collections.addAll(args, "--input", bam.getPath(), "--regions", bed.getPath(), "--slice-output", prefix + ".query.bam", "--query", "--index",
+          bai.getPath(), "--shard", Integer.toString(shard));
+        Collections.addAll(args, variant);
+        BamSlicer.run(new Arguments(args.toArray(new String[args.size()])));
+        slice.addAll(Bams.names(Bams.read(new File(prefix + ".query.bam"))));
+      }
+      assertEquals(slice, expected, name);
+    }
+  }
+}
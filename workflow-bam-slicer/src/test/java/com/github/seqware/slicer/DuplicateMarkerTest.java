@@ -0,0 +1,271 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamIndexBuilder;
+import com.github.seqware.bam.BamRecord;
+import com.github.seqware.bam.BamWriter;
+import com.github.seqware.bam.Bams;
+import com.github.seqware.bam.BgzfOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import static org.testng.Assert.assertEquals;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Marks small sets of reads whose duplicates follow from the rules of bammarkduplicates: the same library, the same unclipped 5' ends and orientations,
+ * the highest sum of base qualities of at least 15 kept, the first copy on a tie, and single ends that meet an end of a pair marked whatever the order.
+ */
+public class DuplicateMarkerTest {
+
+  private static final int FORWARD_1 = BamRecord.FLAG_PAIRED | BamRecord.FLAG_READ1 | BamRecord.FLAG_MATE_REVERSE;
+  private static final int REVERSE_2 = BamRecord.FLAG_PAIRED | BamRecord.FLAG_READ2 | BamRecord.FLAG_REVERSE;
+
+  private File dir;
+
+  @BeforeClass
+  public void setUp() throws IOException {
+    dir = Bams.createTempDir("duplicates");
+  }
+
+  @AfterClass
+  public void tearDown() {
+    Bams.delete(dir);
+  }
+
+  /**
+   * A record on the first reference with as many bases as its CIGAR reads, all of them of the same quality.
+   */
+  private static byte[] read(String name, int flag, int pos, String cigar, int matePos, int quality, String... tags) throws IOException {
+    int length = 0;
+    int n = 0;
+    for (char c : cigar.toCharArray()) {
+      if (Character.isDigit(c)) {
+        n = 10 * n + c - '0';
+      } else {
+        if ("MIS=X".indexOf(c) >= 0) {
+          length += n;
+        }
+        n = 0;
+      }
+    }
+    char[] bases = new char[length];
+    for (int i = 0; i < length; i++) {
+      bases[i] = "ACGT".charAt(i % 4);
+    }
+    return Bams.record(name, flag, 0, pos, cigar, matePos < 0 ? -1 : 0, matePos, new String(bases), quality, tags);
+  }
+
+  /**
+   * The forward first end and the reverse second end of a pair of 100 base reads.
+   */
+  private static void pair(List<byte[]> records, String name, int pos, int matePos, int quality) throws IOException {
+    records.add(read(name, FORWARD_1, pos, "100M", matePos, quality));
+    records.add(read(name, REVERSE_2, matePos, "100M", pos, quality));
+  }
+
+  /**
+   * Sorts records by position, keeping the order of those at the same position.
+   */
+  private static List<byte[]> sorted(List<byte[]> records) {
+    List<byte[]> sorted = new ArrayList<byte[]>(records);
+    Collections.sort(sorted, new Comparator<byte[]>() {
+      @Override
+      public int compare(byte[] a, byte[] b) {
+        long x = MateTable.position(Bams.getInt(a, 0), Bams.getInt(a, 4));
+        long y = MateTable.position(Bams.getInt(b, 0), Bams.getInt(b, 4));
+        return x < y ? -1 : x == y ? 0 : 1;
+      }
+    });
+    return sorted;
+  }
+
+  private static String describe(BamRecord record) {
+    int flag = record.getFlag();
+    return record.getReadName() + ((flag & BamRecord.FLAG_READ2) != 0 ? "/2" : (flag & BamRecord.FLAG_READ1) != 0 ? "/1" : "");
+  }
+
+  /**
+   * Examines the records, then marks them.
+   *
+   * @return the records marked as duplicates, as name/end
+   */
+  private static List<String> duplicates(DuplicateMarker marker, List<byte[]> records) {
+    BamRecord record = new BamRecord();
+    for (byte[] b : records) {
+      record.wrap(b, 0, b.length);
+      marker.examine(record);
+    }
+    List<String> duplicates = new ArrayList<String>();
+    for (byte[] b : records) {
+      record.wrap(b, 0, b.length);
+      boolean duplicate = marker.mark(record);
+      assertEquals((record.getFlag() & BamRecord.FLAG_DUPLICATE) != 0, duplicate, describe(record));
+      if (duplicate) {
+        duplicates.add(describe(record));
+      }
+    }
+    return duplicates;
+  }
+
+  private static List<byte[]> copies() throws IOException {
+    List<byte[]> records = new ArrayList<byte[]>();
+    pair(records, "a", 100, 300, 20);
+    pair(records, "b", 100, 300, 30);
+    pair(records, "c", 100, 300, 30);
+    // no base of quality 15 or more, so it scores nothing
+    pair(records, "d", 100, 300, 10);
+    return sorted(records);
+  }
+
+  @Test
+  public void testBestQualityCopyIsKept() throws IOException {
+    // not the first copy in coordinate order, and of the two best ones the first
+    assertEquals(duplicates(new DuplicateMarker(Bams.header("1:100000")), copies()), Arrays.asList("a/1", "c/1", "d/1", "a/2", "c/2", "d/2"));
+  }
+
+  @Test
+  public void testPairsSignedByTheirEnds() throws IOException {
+    List<byte[]> records = new ArrayList<byte[]>();
+    pair(records, "x", 100, 300, 30);
+    // the clipped bases move the 5' end back to that of x
+    records.add(read("y", FORWARD_1, 105, "5S95M", 300, 20));
+    records.add(read("y", REVERSE_2, 300, "100M", 105, 20));
+    // the mate starts where the one of x does but ends 50 bases earlier, which only its own record tells without an MC tag
+    records.add(read("z", FORWARD_1, 100, "100M", 300, 20));
+    records.add(read("z", REVERSE_2, 300, "50M", 100, 20));
+    // the clipping of the mate makes up for its shorter alignment
+    records.add(read("w", FORWARD_1, 100, "100M", 300, 20));
+    records.add(read("w", REVERSE_2, 300, "90M10S", 100, 20));
+    // both ends forward
+    records.add(read("v", BamRecord.FLAG_PAIRED | BamRecord.FLAG_READ1, 100, "100M", 300, 20));
+    records.add(read("v", BamRecord.FLAG_PAIRED | BamRecord.FLAG_READ2, 300, "100M", 100, 20));
+    // a pair whose other end is not in the input is not compared as a pair
+    records.add(read("u", FORWARD_1, 100, "100M", 300, 40));
+    assertEquals(duplicates(new DuplicateMarker(Bams.header("1:100000")), sorted(records)), Arrays.asList("w/1", "y/1", "y/2", "w/2"));
+  }
+
+  @Test
+  public void testSingleEnds() throws IOException {
+    List<byte[]> records = new ArrayList<byte[]>();
+    // a fragment before a pair at its end, and one whose mate is unmapped after the other end of the pair, both better than the pair
+    records.add(read("f", 0, 100, "100M", -1, 40));
+    pair(records, "p", 100, 300, 20);
+    records.add(read("m", BamRecord.FLAG_PAIRED | BamRecord.FLAG_READ1 | BamRecord.FLAG_MATE_UNMAPPED | BamRecord.FLAG_REVERSE, 300, "100M", 300, 40));
+    // fragments alone keep the best one
+    records.add(read("s", 0, 500, "100M", -1, 20));
+    records.add(read("t", 0, 500, "100M", -1, 30));
+    records.add(read("r", 0, 500, "100M", -1, 30));
+    records.add(read("q", BamRecord.FLAG_REVERSE, 500, "100M", -1, 20));
+    assertEquals(duplicates(new DuplicateMarker(Bams.header("1:100000")), sorted(records)), Arrays.asList("f", "m/1", "s", "r"));
+  }
+
+  @Test
+  public void testOtherRecordsAndLibraries() throws IOException {
+    BamHeader header = Bams.header("1:100000");
+    header = new BamHeader(header.getText() + "@RG\tID:rg2\tLB:lib2\tSM:sample\n@RG\tID:rg3\tLB:lib\tSM:sample\n", new String[]{"1"},
+      new int[]{100000});
+    List<byte[]> records = new ArrayList<byte[]>();
+    records.add(read("a", FORWARD_1, 100, "100M", 300, 30, "RG:Z:rg"));
+    records.add(read("a", REVERSE_2, 300, "100M", 100, 30, "RG:Z:rg"));
+    // another library
+    records.add(read("b", FORWARD_1, 100, "100M", 300, 20, "RG:Z:rg2"));
+    records.add(read("b", REVERSE_2, 300, "100M", 100, 20, "RG:Z:rg2"));
+    // another read group of the same library
+    records.add(read("c", FORWARD_1, 100, "100M", 300, 20, "RG:Z:rg3"));
+    records.add(read("c", REVERSE_2, 300, "100M", 100, 20, "RG:Z:rg3"));
+    // secondary and supplementary alignments of a duplicate, a record marked before that is not one, and an unmapped read
+    records.add(read("c", FORWARD_1 | BamRecord.FLAG_SECONDARY, 100, "100M", 300, 20, "RG:Z:rg3"));
+    records.add(read("c", REVERSE_2 | BamRecord.FLAG_SUPPLEMENTARY, 300, "100M", 100, 20, "RG:Z:rg3"));
+    records.add(read("e", BamRecord.FLAG_DUPLICATE, 700, "100M", -1, 20, "RG:Z:rg"));
+    records.add(read("g", BamRecord.FLAG_UNMAPPED, 700, "*", -1, 20, "RG:Z:rg"));
+    DuplicateMarker marker = new DuplicateMarker(header);
+    assertEquals(duplicates(marker, sorted(records)), Arrays.asList("c/1", "c/2"));
+
+    List<DuplicateMarker.Library> libraries = marker.getLibraries();
+    assertEquals(libraries.get(0).name, "lib");
+    assertEquals(libraries.get(0).pairedEnds, 4);
+    assertEquals(libraries.get(0).unpairedReads, 1);
+    assertEquals(libraries.get(0).unmappedReads, 1);
+    assertEquals(libraries.get(0).pairedEndDuplicates, 2);
+    assertEquals(libraries.get(1).name, "lib2");
+    assertEquals(libraries.get(1).pairedEnds, 2);
+    assertEquals(libraries.get(1).pairedEndDuplicates, 0);
+  }
+
+  @Test
+  public void testMetrics() throws IOException {
+    List<byte[]> records = new ArrayList<byte[]>(copies());
+    records.add(read("s", 0, 500, "100M", -1, 20));
+    records.add(read("t", 0, 500, "100M", -1, 30));
+    records.add(read("r", BamRecord.FLAG_REVERSE, 500, "100M", -1, 20));
+    records.add(read("g", BamRecord.FLAG_UNMAPPED, 700, "*", -1, 20));
+    DuplicateMarker marker = new DuplicateMarker(Bams.header("1:100000"));
+    duplicates(marker, records);
+    File metrics = new File(dir, "metrics.txt");
+    marker.writeMetrics(metrics);
+    BufferedReader in = new BufferedReader(new FileReader(metrics));
+    List<String> lines = new ArrayList<String>();
+    try {
+      for (String line; (line = in.readLine()) != null; ) {
+        lines.add(line);
+      }
+    } finally {
+      in.close();
+    }
+    assertEquals(lines.size(), 4);
+    assertEquals(lines.get(1), "## METRICS CLASS\tnet.sf.picard.sam.DuplicationMetrics");
+    // 1 of 3 fragments and 3 of 4 pairs, 7 of 11 reads, none of them with a read group
+    assertEquals(lines.get(3), "Unknown Library\t3\t4\t1\t1\t3\t0\t0.636364\t" + DuplicateMarker.estimateLibrarySize(4, 1));
+  }
+
+  /**
+   * The copies spread over two inputs, with the mark of an earlier run on the best one, merged as BamMerger.main does: the best copy comes after
+   * two of the others in the merged order, so the marks are only known once the first pass is done.
+   */
+  @Test
+  public void testMerge() throws IOException {
+    BamHeader header = Bams.header("1:100000");
+    List<byte[]> first = new ArrayList<byte[]>();
+    List<byte[]> second = new ArrayList<byte[]>();
+    for (byte[] record : copies()) {
+      String name = new String(record, 32, 1, "US-ASCII");
+      if ("b".equals(name)) {
+        record[14] |= BamRecord.FLAG_DUPLICATE;
+      }
+      ("b".equals(name) || "c".equals(name) ? second : first).add(record);
+    }
+    File[] files = {new File(dir, "first.bam"), new File(dir, "second.bam")};
+    Bams.write(files[0], header, first, true);
+    Bams.write(files[1], header, second, true);
+
+    File output = new File(dir, "merged.bam");
+    BamMerger merger = new BamMerger(files, new BamHeader[2], null, 2);
+    try {
+      BgzfOutputStream stream = new BgzfOutputStream(output, 6);
+      BamWriter out = new BamWriter(stream, header);
+      BamIndexBuilder index = new BamIndexBuilder(header.getReferenceCount(), stream);
+      assertEquals(merger.merge(new DuplicateMarker(header), out, index), 6);
+      out.close();
+    } finally {
+      merger.close();
+    }
+    List<String> duplicates = new ArrayList<String>();
+    List<Bams.Read> reads = Bams.read(output);
+    for (Bams.Read read : reads) {
+      if ((read.flag & BamRecord.FLAG_DUPLICATE) != 0) {
+        duplicates.add(read.name + ((read.flag & BamRecord.FLAG_READ2) != 0 ? "/2" : "/1"));
+      }
+    }
+    assertEquals(reads.size(), 8);
+    assertEquals(duplicates, Arrays.asList("a/1", "d/1", "c/1", "a/2", "d/2", "c/2"));
+  }
+}
@@ -0,0 +1,191 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamIndexBuilder;
+import com.github.seqware.bam.BamRecord;
+import com.github.seqware.bam.BamWriter;
+import com.github.seqware.bam.Bams;
+import com.github.seqware.bam.BgzfOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Recovers the mates of orphans from an indexed input and compares them with what gen_missing_mates_bed.pl, "samtools view -F 12 -L" and
+ * extract_missing_mates.pl kept: a read on the qname~RG~chr~pos an orphan points to, mapped with its mate, and without the orphan's own flag.
+ */
+public class MateRecoveryTest {
+
+  private static final BamHeader HEADER = Bams.header("1:1000000", "2:1000000");
+  private static final String RG = "RG:Z:rg";
+  private static final int PAIRED = BamRecord.FLAG_PAIRED;
+  private static final int READ1 = PAIRED | BamRecord.FLAG_READ1;
+  private static final int READ2 = PAIRED | BamRecord.FLAG_READ2 | BamRecord.FLAG_REVERSE;
+
+  private File dir;
+
+  @BeforeClass
+  public void setUp() throws IOException {
+    dir = Bams.createTempDir("mates");
+  }
+
+  @AfterClass
+  public void tearDown() {
+    Bams.delete(dir);
+  }
+
+  private static byte[] read(String name, int flag, int refId, int pos, int mateRefId, int matePos, String... tags) throws IOException {
+    return Bams.record(name, flag, refId, pos, "60M", mateRefId, matePos, "ACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGTACGT", 30,
+      tags);
+  }
+
+  /**
+   * Sorts records by coordinate, with the unplaced ones last.
+   */
+  private static void sort(List<byte[]> records) {
+    Collections.sort(records, new Comparator<byte[]>() {
+      @Override
+      public int compare(byte[] a, byte[] b) {
+        long x = MateTable.position(Bams.getInt(a, 0), Bams.getInt(a, 4)) ^ Long.MIN_VALUE;
+        long y = MateTable.position(Bams.getInt(b, 0), Bams.getInt(b, 4)) ^ Long.MIN_VALUE;
+        return x < y ? -1 : x > y ? 1 : 0;
+      }
+    });
+  }
+
+  private File writeIndexed(String name, List<byte[]> records) throws IOException {
+    File bam = new File(dir, name + ".bam");
+    BgzfOutputStream out = new BgzfOutputStream(bam, 6);
+    BamWriter writer = new BamWriter(out, HEADER);
+    BamIndexBuilder index = new BamIndexBuilder(HEADER.getReferenceCount(), out);
+    BamRecord record = new BamRecord();
+    for (byte[] b : records) {
+      record.wrap(b, 0, b.length);
+      writer.write(record, index);
+    }
+    writer.close();
+    index.write(new File(bam.getPath() + ".bai"));
+    return bam;
+  }
+
+  /**
+   * Loads the orphans and recovers their mates from the input as MateRecovery.main does.
+   *
+   * @return the number of records inspected
+   */
+  private long recover(File orphans, File input, File output) throws IOException {
+    MateRecovery recovery = new MateRecovery();
+    recovery.loadOrphans(orphans);
+    BamWriter out = new BamWriter(output, HEADER, 1, null, 4);
+    long inspected = recovery.recover(input, new File(input.getPath() + ".bai"), out, null, 1);
+    out.close();
+    return inspected;
+  }
+
+  @Test
+  public void testRecover() throws IOException {
+    List<byte[]> orphans = new ArrayList<byte[]>();
+    List<byte[]> input = new ArrayList<byte[]>();
+    // reads without orphans all over both contigs, so the index has many bins and windows to pick from
+    for (int refId = 0; refId < 2; refId++) {
+      for (int pos = 0; pos < 1000000 - 100; pos += 97) {
+        input.add(read("fill" + refId + "_" + pos, READ1, refId, pos, refId, pos + 300, RG));
+      }
+    }
+
+    // a plain mate further along the contig, with the other end's flag
+    orphans.add(read("plain", READ1, 0, 1000, 0, 300000, RG));
+    input.add(read("plain", READ2, 0, 300000, 0, 1000, RG));
+    // a read at the mate position with the orphan's own flag is not its mate
+    orphans.add(read("sameflag", READ1, 0, 5000, 0, 310000, RG));
+    input.add(read("sameflag", READ1, 0, 310000, 0, 5000, RG));
+    // both ends at the orphan's position were captured with it, so nothing is looked for
+    orphans.add(read("samepos", READ1, 0, 7000, 0, 7000, RG));
+    input.add(read("samepos", READ2, 0, 7000, 0, 7000, RG));
+    // candidates with flag & 12 set are dropped by the -F 12 of the second pass
+    orphans.add(read("mateunmapped", READ1, 0, 9000, 0, 400000, RG));
+    input.add(read("mateunmapped", READ2 | BamRecord.FLAG_MATE_UNMAPPED, 0, 400000, 0, 9000, RG));
+    orphans.add(read("unmapped", READ1, 0, 9500, 0, 410000, RG));
+    input.add(read("unmapped", READ2 | BamRecord.FLAG_UNMAPPED, 0, 410000, 0, 9500, RG));
+    // the read group is part of the key, and so is the position
+    orphans.add(read("otherrg", READ1, 0, 10000, 0, 420000, RG));
+    input.add(read("otherrg", READ2, 0, 420000, 0, 10000, "RG:Z:other"));
+    orphans.add(read("otherpos", READ1, 0, 10500, 0, 430000, RG));
+    input.add(read("otherpos", READ2, 0, 430001, 0, 10500, RG));
+    // mates on the other contig
+    orphans.add(read("othercontig", READ1, 0, 11000, 1, 250000, RG));
+    input.add(read("othercontig", READ2, 1, 250000, 0, 11000, RG));
+    orphans.add(read("backwards", READ2, 1, 600000, 0, 700000, RG));
+    input.add(read("backwards", READ1, 0, 700000, 1, 600000, RG));
+    // mates at the first position and either side of a 16 kb window of the linear index, found only through the chunks of pos..pos+1
+    orphans.add(read("first", READ1, 0, 12000, 1, 0, RG));
+    input.add(read("first", READ2, 1, 0, 0, 12000, RG));
+    orphans.add(read("windowend", READ1, 0, 13000, 1, 10 * 16384 - 1, RG));
+    input.add(read("windowend", READ2, 1, 10 * 16384 - 1, 0, 13000, RG));
+    orphans.add(read("windowstart", READ1, 0, 14000, 1, 10 * 16384, RG));
+    input.add(read("windowstart", READ2, 1, 10 * 16384, 0, 14000, RG));
+    // a mate spanning a bin boundary, which the index files in a larger bin
+    orphans.add(read("spanning", READ1, 0, 15000, 1, 20 * 16384 - 30, RG));
+    input.add(read("spanning", READ2, 1, 20 * 16384 - 30, 0, 15000, RG));
+    // an orphan whose mate is unplaced has nothing to look for
+    orphans.add(read("noplace", READ1 | BamRecord.FLAG_MATE_UNMAPPED, 0, 16000, -1, -1, RG));
+    input.add(Bams.record("noplace", READ2 | BamRecord.FLAG_UNMAPPED, -1, -1, "*", 0, 16000, "ACGT", 30, RG));
+
+    sort(orphans);
+    sort(input);
+    File orphansBam = new File(dir, "orphans.bam");
+    Bams.write(orphansBam, HEADER, orphans, false);
+    File inputBam = writeIndexed("input", input);
+    File output = new File(dir, "mates.bam");
+    long inspected = recover(orphansBam, inputBam, output);
+
+    List<String> expected = new ArrayList<String>();
+    for (String name : new String[]{"plain", "backwards", "first", "windowend", "windowstart", "othercontig", "spanning"}) {
+      for (Bams.Read read : Bams.read(inputBam)) {
+        if (read.name.equals(name)) {
+          expected.add(read.toString());
+        }
+      }
+    }
+    assertEquals(Bams.names(Bams.read(output)), expected);
+    // only the chunks around the mate positions were read
+    assertTrue(inspected < input.size() / 5, inspected + " of " + input.size());
+  }
+
+  @Test
+  public void testTable() {
+    Random random = new Random(3);
+    int count = 5000;
+    long[] names = new long[count];
+    long[] positions = new long[count];
+    MateTable table = new MateTable(10);
+    for (int i = 0; i < count; i++) {
+      names[i] = random.nextLong();
+      // many names share a position, as the mates of the reads of one fragment do
+      positions[i] = MateTable.position(random.nextInt(3), random.nextInt(50));
+      table.put(names[i], positions[i], i);
+    }
+    assertEquals(table.size(), count);
+    for (int i = 0; i < count; i += 2) {
+      table.remove(names[i], positions[i]);
+    }
+    assertEquals(table.size(), count / 2);
+    for (int i = 0; i < count; i++) {
+      assertEquals(table.get(names[i], positions[i]), i % 2 == 0 ? -1 : i);
+      assertEquals(table.get(names[i], positions[i] + 1), -1);
+    }
+    // a later orphan with the same key replaces the earlier one
+    table.put(names[1], positions[1], 7);
+    assertEquals(table.get(names[1], positions[1]), 7);
+    assertEquals(table.size(), count / 2);
+  }
+}
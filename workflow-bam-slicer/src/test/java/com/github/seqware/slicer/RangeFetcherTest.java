@@ -0,0 +1,259 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.BamHeader;
+import com.github.seqware.bam.BamIndex;
+import com.github.seqware.bam.BamIndexBuilder;
+import com.github.seqware.bam.BamRecord;
+import com.github.seqware.bam.BamWriter;
+import com.github.seqware.bam.Bams;
+import com.github.seqware.bam.BgzfInputStream;
+import com.github.seqware.bam.BgzfOutputStream;
+import com.github.seqware.bam.ChunkList;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Fetches from a {@link RangeServer} serving a BAM of more than a hundred blocks and compares the sparse local file with the remote one.
+ */
+public class RangeFetcherTest {
+
+  private File dir;
+  private File remote;
+  private byte[] remoteBytes;
+  private RangeServer handler;
+  private HttpServer server;
+  private URL url;
+
+  @BeforeClass
+  public void setUp() throws IOException {
+    dir = Bams.createTempDir("fetcher");
+    File root = new File(dir, "remote");
+    root.mkdir();
+    remote = new File(root, "sample.bam");
+
+    // random bases barely compress, so the reads spread over more than a hundred blocks
+    BamHeader header = Bams.header("1:10000000", "2:10000000");
+    Random random = new Random(17);
+    BgzfOutputStream out = new BgzfOutputStream(remote, 6);
+    BamWriter writer = new BamWriter(out, header);
+    BamIndexBuilder index = new BamIndexBuilder(header.getReferenceCount(), out);
+    BamRecord record = new BamRecord();
+    char[] bases = new char[150];
+    for (int i = 0; i < 30000; i++) {
+      for (int b = 0; b < bases.length; b++) {
+        bases[b] = "ACGT".charAt(random.nextInt(4));
+      }
+      int refId = i < 15000 ? 0 : 1;
+      byte[] b = Bams.record("read" + i, 0, refId, 600 * (i % 15000), "150M", -1, -1, new String(bases), 30);
+      record.wrap(b, 0, b.length);
+      writer.write(record, index);
+    }
+    writer.close();
+    index.write(new File(remote.getPath() + ".bai"));
+    remoteBytes = new byte[(int) remote.length()];
+    RandomAccessFile file = new RandomAccessFile(remote, "r");
+    try {
+      file.readFully(remoteBytes);
+    } finally {
+      file.close();
+    }
+
+    handler = new RangeServer(root);
+    server = RangeServer.start(handler, 0);
+    url = new URL("http://localhost:" + server.getAddress().getPort() + "/sample.bam");
+  }
+
+  @AfterClass
+  public void tearDown() {
+    server.stop(0);
+    Bams.delete(dir);
+  }
+
+  @BeforeMethod
+  public void resetServer() {
+    handler.truncateNext(0);
+    handler.setIgnoreRange(false);
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    byte[] b = new byte[(int) file.length()];
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      in.readFully(b);
+    } finally {
+      in.close();
+    }
+    return b;
+  }
+
+  /**
+   * Fetches the index, the header and the chunks of the regions as RangeFetcher --regions does.
+   *
+   * @return the byte ranges fetched after the header
+   */
+  private long[] fetchRegions(RangeFetcher fetcher, File output, File bed) throws IOException {
+    File bai = new File(output.getPath() + ".bai");
+    fetcher.fetchFile(new URL(url + ".bai"), bai);
+    RandomAccessFile file = new RandomAccessFile(output, "rw");
+    try {
+      FileChannel channel = file.getChannel();
+      long length = fetcher.fetchHeader(channel);
+      file.setLength(length);
+      BamHeader header;
+      BgzfInputStream in = new BgzfInputStream(output);
+      try {
+        header = BamHeader.read(in);
+      } finally {
+        in.close();
+      }
+      ChunkList chunks = BamSlicer.planQuery(BedRegions.load(bed, header), BamIndex.read(bai), null, 0, 0);
+      long[] ranges = RangeFetcher.byteRanges(chunks, length);
+      fetcher.fetchRanges(ranges, channel, 3);
+      return ranges;
+    } finally {
+      file.close();
+    }
+  }
+
+  @Test
+  public void testRegions() throws IOException {
+    File bed = new File(dir, "regions.bed");
+    FileWriter writer = new FileWriter(bed);
+    writer.write("1\t1000000\t1200000\n1\t7000000\t7000500\n2\t3000000\t3100000\n");
+    writer.close();
+    File output = new File(dir, "regions.bam");
+    long[] ranges = fetchRegions(new RangeFetcher(url, 0), output, bed);
+
+    // the fetched ranges hold the remote bytes, the rest after the header stays a hole of zeros
+    byte[] local = readFile(output);
+    assertEquals(local.length, remoteBytes.length);
+    assertEquals(readFile(new File(output.getPath() + ".bai")), readFile(new File(remote.getPath() + ".bai")));
+    long fetched = 0;
+    int r = 0;
+    int headerEnd = 0;
+    while (local[headerEnd] == remoteBytes[headerEnd]) {
+      headerEnd++;
+    }
+    for (int i = 0; i < local.length; i++) {
+      while (r < ranges.length && i >= ranges[r + 1]) {
+        r += 2;
+      }
+      boolean inRange = r < ranges.length && i >= ranges[r];
+      if (inRange) {
+        fetched++;
+      }
+      assertEquals(local[i], inRange || i < headerEnd ? remoteBytes[i] : 0, "byte " + i);
+    }
+    assertTrue(fetched > 0 && fetched < remoteBytes.length / 2, fetched + " of " + remoteBytes.length + " bytes fetched");
+
+    // and a query of the local file reads the reads of the regions
+    BamIndex index = BamIndex.read(new File(output.getPath() + ".bai"));
+    int[][] regions = {{0, 1000000, 1200000}, {0, 7000000, 7000500}, {1, 3000000, 3100000}};
+    List<String> expected = new ArrayList<String>();
+    List<String> found = new ArrayList<String>();
+    for (int[] region : regions) {
+      for (Bams.Read read : Bams.read(remote)) {
+        if (read.refId == region[0] && read.pos < region[2] && read.end > region[1]) {
+          expected.add(read.toString());
+        }
+      }
+      ChunkList chunks = new ChunkList();
+      index.addChunks(region[0], region[1], region[2], chunks);
+      chunks.merge();
+      BgzfInputStream in = new BgzfInputStream(output);
+      try {
+        BamRecord record = new BamRecord();
+        for (int c = 0; c < chunks.size(); c++) {
+          in.seek(chunks.getStart(c));
+          while (in.getFilePointer() < chunks.getEnd(c) && record.read(in)) {
+            if (record.getReferenceIndex() == region[0] && record.getPosition() < region[2] && record.getAlignmentEnd() > region[1]) {
+              found.add(record.getReadName() + "/" + record.getFlag());
+            }
+          }
+        }
+      } finally {
+        in.close();
+      }
+    }
+    assertEquals(found, expected);
+    assertTrue(expected.size() > 300);
+  }
+
+  @Test
+  public void testPartialRangeIsRetried() throws IOException {
+    File output = new File(dir, "retried.bam");
+    RandomAccessFile file = new RandomAccessFile(output, "rw");
+    int requests = handler.getRequests();
+    try {
+      handler.truncateNext(1);
+      new RangeFetcher(url, 2, 10).fetchRange(100000, 900000, file.getChannel());
+    } finally {
+      file.close();
+    }
+    assertEquals(handler.getRequests() - requests, 2);
+    byte[] local = readFile(output);
+    assertEquals(local.length, 900000);
+    for (int i = 0; i < local.length; i++) {
+      assertEquals(local[i], i < 100000 ? 0 : remoteBytes[i], "byte " + i);
+    }
+  }
+
+  @Test
+  public void testRetriesRunOut() throws IOException {
+    RandomAccessFile file = new RandomAccessFile(new File(dir, "failed.bam"), "rw");
+    int requests = handler.getRequests();
+    try {
+      handler.truncateNext(3);
+      new RangeFetcher(url, 2, 10).fetchRange(0, 500000, file.getChannel());
+      fail("A range cut short three times was fetched with two retries");
+    } catch (IOException e) {
+      assertEquals(handler.getRequests() - requests, 3);
+    } finally {
+      file.close();
+    }
+  }
+
+  @Test
+  public void testServerIgnoringRange() throws IOException {
+    handler.setIgnoreRange(true);
+    File output = new File(dir, "ignored.bam");
+    RandomAccessFile file = new RandomAccessFile(output, "rw");
+    int requests = handler.getRequests();
+    try {
+      // the whole file in answer to a range must not end up at the range's offset, and asking again does not help
+      new RangeFetcher(url, 3, 10).fetchRange(200000, 300000, file.getChannel());
+      fail("The whole file was taken for a range");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("ignored"), e.getMessage());
+    } finally {
+      file.close();
+    }
+    assertEquals(handler.getRequests() - requests, 1);
+    assertEquals(output.length(), 0);
+
+    FileChannel channel = new RandomAccessFile(output, "rw").getChannel();
+    try {
+      new RangeFetcher(url, 3, 10).fetchHeader(channel);
+      fail("The whole file was taken for the head");
+    } catch (IOException e) {
+      assertTrue(e.getMessage().contains("ignored"), e.getMessage());
+    } finally {
+      channel.close();
+    }
+  }
+}
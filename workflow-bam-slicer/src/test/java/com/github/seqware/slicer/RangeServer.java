@@ -0,0 +1,138 @@
+package com.github.seqware.slicer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A small HTTP server that serves the files of a directory with support for single range requests, standing in for the repository in the tests of
+ * {@link RangeFetcher} and when trying it out locally. It logs every request and the number of bytes it sent in total.
+ *
+ * For the tests it can also misbehave: cut responses off halfway, or ignore the Range header and send whole files as servers without range support do.
+ */
+public class RangeServer implements HttpHandler {
+
+  private static final Logger logger = Logger.getLogger(RangeServer.class.getName());
+
+  private static final String USAGE = "java " + RangeServer.class.getName() + " --root <directory> [--port <port>]";
+
+  private final File root;
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicInteger requests = new AtomicInteger();
+  // how many of the next responses are cut off halfway
+  private final AtomicInteger truncate = new AtomicInteger();
+  private volatile boolean ignoreRange = false;
+
+  public RangeServer(File root) {
+    this.root = root;
+  }
+
+  /**
+   * Serves the directory on a port, 0 for any free one, from a pool of threads.
+   */
+  public static HttpServer start(RangeServer handler, int port) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.createContext("/", handler);
+    server.setExecutor(Executors.newFixedThreadPool(8));
+    server.start();
+    return server;
+  }
+
+  /**
+   * Cuts off the next responses halfway, after sending their headers.
+   */
+  public void truncateNext(int count) {
+    truncate.set(count);
+  }
+
+  public void setIgnoreRange(boolean ignoreRange) {
+    this.ignoreRange = ignoreRange;
+  }
+
+  public int getRequests() {
+    return requests.get();
+  }
+
+  public long getSent() {
+    return sent.get();
+  }
+
+  @Override
+  public void handle(HttpExchange exchange) throws IOException {
+    requests.incrementAndGet();
+    try {
+      String path = exchange.getRequestURI().getPath();
+      File file = new File(root, path);
+      if (path.contains("..") || !file.isFile()) {
+        exchange.sendResponseHeaders(404, -1);
+        return;
+      }
+      long length = file.length();
+      long from = 0;
+      long to = length;
+      int status = 200;
+      // only the "bytes=from-to" form the fetcher sends
+      String range = exchange.getRequestHeaders().getFirst("Range");
+      if (range != null && range.startsWith("bytes=") && range.indexOf(',') < 0 && !ignoreRange) {
+        String[] bounds = range.substring(6).split("-", -1);
+        from = Long.parseLong(bounds[0].trim());
+        to = bounds[1].trim().length() == 0 ? length : Math.min(length, Long.parseLong(bounds[1].trim()) + 1);
+        if (from >= to) {
+          exchange.getResponseHeaders().set("Content-Range", "bytes */" + length);
+          exchange.sendResponseHeaders(416, -1);
+          return;
+        }
+        exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + (to - 1) + "/" + length);
+        status = 206;
+      }
+      exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+      exchange.sendResponseHeaders(status, to - from);
+      OutputStream out = exchange.getResponseBody();
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      try {
+        in.seek(from);
+        byte[] buffer = new byte[1 << 16];
+        long remaining = truncate.getAndDecrement() > 0 ? (to - from) / 2 : to - from;
+        while (remaining > 0) {
+          int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+          if (n < 0) {
+            break;
+          }
+          out.write(buffer, 0, n);
+          remaining -= n;
+        }
+      } finally {
+        in.close();
+        out.close();
+      }
+      logger.log(Level.INFO, "{0} {1} bytes {2}-{3}, {4} bytes sent in total", new Object[]{status, path, from, to, sent.addAndGet(to - from)});
+    } finally {
+      exchange.close();
+    }
+  }
+
+  public static void main(String[] args) {
+    try {
+      Arguments arguments = new Arguments(args);
+      File root = new File(arguments.require("root"));
+      HttpServer server = start(new RangeServer(root), arguments.getInt("port", 8080));
+      logger.log(Level.INFO, "Serving {0} on port {1}", new Object[]{root, server.getAddress().getPort()});
+    } catch (IllegalArgumentException e) {
+      logger.log(Level.SEVERE, e.getMessage() + "\n" + USAGE);
+      System.exit(2);
+    } catch (Exception e) {
+      logger.log(Level.SEVERE, "Serving failed", e);
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,138 @@
+package com.github.seqware.slicer;
+
+import com.github.seqware.bam.Bams;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Plans the jobs of the workflow as WorkflowClient does: with the fixed settings of the ini file, with inputs of known size between the caps of the
+ * workflow, and with the sizes read from the analysis metadata of a GNOS repository.
+ */
+public class ResourcePlanTest {
+
+  private static final long GB = ResourcePlan.GB;
+
+  private File dir;
+
+  @BeforeClass
+  public void setUp() throws IOException {
+    dir = Bams.createTempDir("plan");
+  }
+
+  @AfterClass
+  public void tearDown() {
+    Bams.delete(dir);
+  }
+
+  private static void assertResources(ResourcePlan.Resources resources, int memoryM, int readThreads, int writeThreads) {
+    assertEquals(resources.getMemoryM(), memoryM, "memory");
+    assertEquals(resources.getReadThreads(), readThreads, "read threads");
+    assertEquals(resources.getWriteThreads(), writeThreads, "write threads");
+  }
+
+  /**
+   * The settings the workflow gave its jobs before they were planned: 4000 MB for the slice, mate and index jobs, mergeJobMemG for the merges, the
+   * decompression and compression threads of the ini file for the slices and numOfThreads for the merges.
+   */
+  @Test
+  public void testFixed() {
+    ResourcePlan plan = ResourcePlan.fixed(2, 3, 8, 8 * 1000);
+    assertResources(plan.index(0, "buildBamIndex0"), 4000, 1, 1);
+    assertResources(plan.slice(0, 0, "slice0", true), 4000, 2, 3);
+    assertResources(plan.mateRecovery(0, 0, "secondSlice0"), 4000, 2, 3);
+    assertResources(plan.sliceWithMates(0, 0, "slice0", true), 4000, 2, 3);
+    assertResources(plan.merge("mergeBAM"), 8000, 2, 8);
+    assertResources(plan.mergeUnmapped("mergeUnmappedBAM"), 8000, 2, 8);
+    assertEquals(plan.slice(0, 0, "slice0", true).getSeconds(), -1);
+
+    // an input of unknown size among known ones gets the same
+    List<ResourcePlan.Input> inputs = Arrays.asList(ResourcePlan.Input.ofSize("a.bam", 100 * GB), ResourcePlan.Input.unknown("b.bam"));
+    plan = new ResourcePlan(inputs, 2, 60000, 16, 2, 3, 8, 8000);
+    assertResources(plan.slice(1, 0, "slice1", true), 4000, 2, 3);
+    assertResources(plan.merge("mergeBAM"), 8000, 2, 8);
+    assertTrue(plan.slice(0, 0, "slice0", true).getMemoryM() != 4000);
+  }
+
+  @Test
+  public void testCaps() {
+    List<ResourcePlan.Input> inputs = new ArrayList<ResourcePlan.Input>();
+    inputs.add(new ResourcePlan.Input("huge.bam", 2000 * GB, new long[]{1500 * GB, 500 * GB}, 0.5, 1L << 40));
+    inputs.add(ResourcePlan.Input.ofSize("tiny.bam", 10 << 20));
+    ResourcePlan plan = new ResourcePlan(inputs, 2, 6000, 4, 1, 1, 1, 4000);
+
+    // the largest shard of the huge input wants more of everything than the workflow allows
+    ResourcePlan.Resources slice = plan.slice(0, 0, "slice0", true);
+    assertResources(slice, 6000, 4, 4);
+    assertEquals(slice.getThreads(), 4);
+    assertResources(plan.merge("mergeBAM"), 6000, 4, 4);
+    // the tiny input gets one thread and the least memory a job gets
+    assertResources(plan.slice(1, 1, "slice1", false), ResourcePlan.MIN_JOB_M, 1, 1);
+    assertResources(plan.index(1, "buildBamIndex1"), ResourcePlan.MIN_JOB_M, 1, 1);
+
+    // without caps the shard follows the bytes it reads and writes, in steps of MEMORY_STEP_M
+    plan = new ResourcePlan(inputs, 2, Integer.MAX_VALUE, Integer.MAX_VALUE, 1, 1, 1, 4000);
+    slice = plan.slice(0, 0, "slice0", true);
+    long written = (long) (1500 * GB * (ResourcePlan.SLICE_FRACTION + 0.5));
+    int readThreads = (int) (1500 * GB / ResourcePlan.READ_BYTES_PER_THREAD);
+    int writeThreads = (int) ((written + ResourcePlan.WRITE_BYTES_PER_THREAD - 1) / ResourcePlan.WRITE_BYTES_PER_THREAD);
+    long memoryM = ResourcePlan.JVM_BASE_M + ResourcePlan.THREAD_M * (readThreads + writeThreads) + ResourcePlan.TABLE_M_PER_GB * 1500;
+    assertResources(slice, (int) ((memoryM + ResourcePlan.MEMORY_STEP_M - 1) / ResourcePlan.MEMORY_STEP_M * ResourcePlan.MEMORY_STEP_M), readThreads,
+      writeThreads);
+    assertEquals(slice.getDiskBytes(), written);
+  }
+
+  private String writeMetadata(String name, String xml) throws IOException {
+    File file = new File(dir, name);
+    FileWriter out = new FileWriter(file);
+    try {
+      out.write(xml);
+    } finally {
+      out.close();
+    }
+    return file.toURI().toURL().toString();
+  }
+
+  @Test
+  public void testGnosMetadata() throws IOException {
+    String url = writeMetadata("analysis.xml", "<ResultSet>\n  <Result id=\"1\">\n    <files>\n"
+      + "      <file>\n        <filename>PCAWG.header.bam</filename>\n        <filesize>1024</filesize>\n      </file>\n"
+      + "      <file>\n        <filename>\n          PCAWG.sample.bam\n        </filename>\n        <filesize>123456789012</filesize>\n"
+      + "        <checksum type=\"md5\">d41d8cd98f00b204e9800998ecf8427e</checksum>\n      </file>\n"
+      + "    </files>\n  </Result>\n</ResultSet>\n");
+    ResourcePlan.Input input = ResourcePlan.Input.fromGnosMetadata(url, "PCAWG.sample.bam");
+    assertEquals(input.name, "PCAWG.sample.bam");
+    assertEquals(input.bytes, 123456789012L);
+    assertEquals(ResourcePlan.Input.fromGnosMetadata(url, "PCAWG.header.bam").bytes, 1024);
+
+    // a file the analysis does not list and metadata that cannot be read leave the size unknown
+    assertEquals(ResourcePlan.Input.fromGnosMetadata(url, "other.bam").bytes, -1);
+    assertEquals(ResourcePlan.Input.fromGnosMetadata(new File(dir, "missing.xml").toURI().toURL().toString(), "PCAWG.sample.bam").bytes, -1);
+  }
+
+  @Test
+  public void testMeasure() throws IOException {
+    File bam = new File(dir, "measured.bam");
+    Bams.write(bam, Bams.header("1:1000"), new ArrayList<byte[]>(), false);
+    assertEquals(ResourcePlan.Input.measure(new File(dir, "absent.bam"), 2).bytes, -1);
+    ResourcePlan.Input input = ResourcePlan.Input.measure(bam, 2);
+    assertEquals(input.bytes, bam.length());
+    assertEquals(input.unmappedFraction, -1.0);
+
+    // an index that cannot be read leaves the size only
+    FileWriter out = new FileWriter(new File(dir, "measured.bam.bai"));
+    out.write("not an index");
+    out.close();
+    input = ResourcePlan.Input.measure(bam, 2);
+    assertEquals(input.bytes, bam.length());
+    assertEquals(input.shardBytes, null);
+  }
+}
@@ -63,6 +63,7 @@ $output_dir = $output_dir."/$uuid/";
 my $bam_check = `cat $md5_file`;
 my $bai_check = `cat $bam.bai.md5`;
 chomp $bam_check;
+chomp $bai_check;
 if ($force_copy) {
   # rsync to destination
   print ("rsync -rauv `pwd`/$bam $output_dir/$bam_check.bam\n");
@@ -0,0 +1,63 @@
+use strict;
+use Digest::MD5;
+use File::Basename;
+use File::Spec;
+use File::Temp qw(tempdir);
+use Test::More tests => 8;
+
+# PURPOSE:
+# reads md5 sidecars with the lines of gnos_upload_data.pl that turn them into the
+# checksums and file names of the submission: the bare digests without a line break
+# that SidecarOutputStream writes, and digests ending in a line break.
+#
+#   prove workflow-bam-slicer/workflow/scripts/t
+
+my $scripts = dirname(dirname(File::Spec->rel2abs($0)));
+my $tmp = tempdir(CLEANUP => 1);
+
+open(my $in, "<", "$scripts/gnos_upload_data.pl") or die "Cannot read gnos_upload_data.pl: $!\n";
+my $source = join("", <$in>);
+close $in;
+my ($lines) = $source =~ /^# md5sum\n(.*?^chomp \$bai_check;\n)/ms or die "No checksum lines in gnos_upload_data.pl\n";
+
+# the checksums gnos_upload_data.pl reads for a BAM and its sidecars
+sub checksums {
+  my ($md5_file, $bam) = @_;
+  my @checks = eval "$lines (\$bam_check, \$bai_check);";
+  die $@ if $@;
+  return @checks;
+}
+
+sub write_file {
+  my ($file, $content) = @_;
+  open(my $out, ">", $file) or die "Cannot write $file: $!\n";
+  print $out $content;
+  close $out;
+}
+
+sub md5 {
+  my ($file) = @_;
+  open(my $fh, "<", $file) or die "Cannot read $file: $!\n";
+  binmode $fh;
+  my $md5 = Digest::MD5->new->addfile($fh)->hexdigest;
+  close $fh;
+  return $md5;
+}
+
+foreach my $ending ("", "\n") {
+  my $dir = "$tmp/" . ($ending eq "" ? "bare" : "line");
+  mkdir $dir or die "Cannot create $dir: $!\n";
+  my $bam = "$dir/merged.bam";
+  write_file($bam, "BAM\1 $dir");
+  write_file("$bam.bai", "BAI\1 $dir");
+  write_file("$bam.md5", md5($bam) . $ending);
+  write_file("$bam.bai.md5", md5("$bam.bai") . $ending);
+
+  my ($bam_check, $bai_check) = checksums("$bam.md5", $bam);
+  my $name = $ending eq "" ? "without a line break" : "with a line break";
+  is($bam_check, md5($bam), "BAM checksum $name");
+  is($bai_check, md5("$bam.bai"), "BAI checksum $name");
+  # the checksum names the files of the submission and fills the checksum attributes of the analysis XML
+  like("$bam_check.bam", qr/^[0-9a-f]{32}\.bam$/, "BAM file name $name");
+  like("checksum=\"$bai_check\"", qr/^checksum="[0-9a-f]{32}"$/, "BAI checksum attribute $name");
+}
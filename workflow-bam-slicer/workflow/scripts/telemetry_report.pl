@@ -0,0 +1,110 @@
+use strict;
+use Getopt::Long;
+use JSON::PP;
+
+# PURPOSE:
+# reads the per job records written by job_telemetry.pl and summarises the
+# run: the critical path through the jobs' dependencies with the time each
+# job on it took, and for every job how much of the CPU threads and memory
+# it asked the scheduler for it used, with the bytes it read and wrote.  The
+# summary is printed as a table and written as JSON.
+
+my $input = "telemetry";
+my $output = "telemetry_report.json";
+
+GetOptions (
+  "input=s" => \$input,
+  "output=s" => \$output,
+);
+
+my %jobs;
+opendir(my $dir, $input) or die "Cannot read $input: $!\n";
+foreach my $file (sort readdir($dir)) {
+  next unless $file =~ /\.json$/;
+  open(my $in, "<", "$input/$file") or die "Cannot read $input/$file: $!\n";
+  local $/;
+  my $record = decode_json(<$in>);
+  close $in;
+  $jobs{$record->{job}} = $record;
+}
+closedir($dir);
+die "No job records in $input\n" unless %jobs;
+
+# the longest chain of dependencies ending at each job, by the jobs' own durations
+my %finish;
+my %previous;
+sub finish {
+  my ($name) = @_;
+  return $finish{$name} if exists $finish{$name};
+  my $job = $jobs{$name};
+  my $before = 0;
+  foreach my $parent (@{$job->{parents}}) {
+    next unless exists $jobs{$parent};
+    my $f = finish($parent);
+    if ($f > $before) {
+      $before = $f;
+      $previous{$name} = $parent;
+    }
+  }
+  return $finish{$name} = $before + $job->{seconds};
+}
+my $last;
+foreach my $name (sort keys %jobs) {
+  $last = $name if !defined($last) || finish($name) > finish($last);
+}
+my @path;
+for (my $name = $last; defined($name); $name = $previous{$name}) {
+  unshift @path, $name;
+}
+
+my ($first_start, $last_end, $cpu, $thread_seconds, $job_seconds) = (undef, 0, 0, 0, 0);
+my @summary;
+foreach my $name (sort { $jobs{$a}{start} <=> $jobs{$b}{start} } keys %jobs) {
+  my $job = $jobs{$name};
+  $first_start = $job->{start} if !defined($first_start) || $job->{start} < $first_start;
+  $last_end = $job->{end} if $job->{end} > $last_end;
+  $cpu += $job->{cpu_seconds};
+  $job_seconds += $job->{seconds};
+  my $threads = $job->{threads} > 0 ? $job->{threads} : 1;
+  $thread_seconds += $threads * $job->{seconds};
+  push @summary, {
+    job => $name,
+    host => $job->{host},
+    seconds => $job->{seconds},
+    cpu_seconds => $job->{cpu_seconds},
+    cpu_utilization => $job->{seconds} > 0 ? sprintf("%.3f", $job->{cpu_seconds} / ($threads * $job->{seconds})) + 0 : 0,
+    peak_rss_bytes => $job->{peak_rss_bytes},
+    memory_utilization => $job->{memory_m} > 0 ? sprintf("%.3f", $job->{peak_rss_bytes} / ($job->{memory_m} * 1024 * 1024)) + 0 : undef,
+    read_bytes => $job->{read_bytes},
+    write_bytes => $job->{write_bytes},
+    rchar => $job->{rchar},
+    wchar => $job->{wchar},
+    critical => (grep { $_ eq $name } @path) ? JSON::PP::true : JSON::PP::false,
+  };
+}
+
+my %report = (
+  jobs => \@summary,
+  critical_path => [map { { job => $_, seconds => $jobs{$_}{seconds} } } @path],
+  critical_path_seconds => sprintf("%.3f", finish($last)) + 0,
+  wall_seconds => sprintf("%.3f", $last_end - $first_start) + 0,
+  job_seconds => sprintf("%.3f", $job_seconds) + 0,
+  cpu_seconds => sprintf("%.2f", $cpu) + 0,
+  cpu_utilization => $thread_seconds > 0 ? sprintf("%.3f", $cpu / $thread_seconds) + 0 : 0,
+);
+open(my $out, ">", $output) or die "Cannot write $output: $!\n";
+print $out JSON::PP->new->canonical->pretty->encode(\%report);
+close $out;
+
+sub mb {
+  my ($bytes) = @_;
+  return sprintf("%.0f", $bytes / 1024 / 1024);
+}
+printf("%-32s %10s %10s %6s %10s %6s %10s %10s\n", "job", "seconds", "cpu s", "cpu %", "peak MB", "mem %", "read MB", "write MB");
+foreach my $job (@summary) {
+  printf("%-32s %10.1f %10.1f %6.0f %10s %6s %10s %10s\n", ($job->{critical} ? "* " : "  ") . $job->{job}, $job->{seconds}, $job->{cpu_seconds},
+    100 * $job->{cpu_utilization}, mb($job->{peak_rss_bytes}),
+    defined($job->{memory_utilization}) ? sprintf("%.0f", 100 * $job->{memory_utilization}) : "-", mb($job->{read_bytes}), mb($job->{write_bytes}));
+}
+printf("\ncritical path (*): %.1f s of %.1f s wall time, %s\n", $report{critical_path_seconds}, $report{wall_seconds}, join(" -> ", @path));
+printf("CPU: %.1f s used of %.1f s of the threads asked for (%.0f%%)\n", $cpu, $thread_seconds, 100 * $report{cpu_utilization});
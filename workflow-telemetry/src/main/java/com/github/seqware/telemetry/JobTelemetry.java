@@ -0,0 +1,95 @@
+package com.github.seqware.telemetry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import net.sourceforge.seqware.pipeline.workflowV2.model.AbstractJob;
+import net.sourceforge.seqware.pipeline.workflowV2.model.Job;
+import net.sourceforge.seqware.pipeline.workflowV2.model.Workflow;
+
+/**
+ * Wraps every job of the built workflow in scripts/job_telemetry.pl, which samples the CPU time, resident memory and I/O bytes of the job's processes
+ * from /proc and writes them to a JSON record per job in the telemetry directory, and adds a final job that summarises the records with
+ * scripts/telemetry_report.pl into the run's critical path and how much of the threads and memory each job asked for it used.
+ *
+ * The job's command runs in a subshell of its own, so its exit code is kept; the sampler is signalled when it ends and the job waits for the record to
+ * be written. The report job runs after every other job, so it is left out of runs that fail.
+ *
+ * Call {@link #instrument()} last in buildWorkflow, once every job and its parents are in place.
+ */
+public class JobTelemetry {
+
+  public static final String DIRECTORY = "telemetry";
+  public static final String REPORT = "telemetry_report.json";
+
+  private final Workflow workflow;
+  private final String scripts;
+  private final int intervalSeconds;
+  // the jobs' names as they are safe in a file name and on the command line, and unique
+  private final Map<Job, String> names = new IdentityHashMap<Job, String>();
+
+  /**
+   * @param scripts the directory holding job_telemetry.pl and telemetry_report.pl
+   */
+  public JobTelemetry(Workflow workflow, String scripts, int intervalSeconds) {
+    this.workflow = workflow;
+    this.scripts = scripts;
+    this.intervalSeconds = intervalSeconds;
+  }
+
+  /**
+   * Wraps the jobs of the workflow and adds the report job after them.
+   *
+   * @return the report job
+   */
+  public Job instrument() {
+    List<AbstractJob> jobs = new ArrayList<AbstractJob>(workflow.getJobs());
+    Map<Job, Boolean> hasChildren = new IdentityHashMap<Job, Boolean>();
+    Map<String, Integer> seen = new HashMap<String, Integer>();
+    for (AbstractJob job : jobs) {
+      for (Job parent : job.getParents()) {
+        hasChildren.put(parent, Boolean.TRUE);
+      }
+      // jobs of the same name get their own record as name#2 and so on
+      String name = job.getAlgo().replaceAll("[^A-Za-z0-9._#-]", "_");
+      Integer count = seen.get(name);
+      seen.put(name, count == null ? 1 : count + 1);
+      names.put(job, count == null ? name : name + "#" + (count + 1));
+    }
+    for (AbstractJob job : jobs) {
+      wrap(job);
+    }
+    Job report = workflow.createBashJob("telemetryReport");
+    report.getCommand().addArgument("perl " + scripts + "/telemetry_report.pl")
+        .addArgument("--input " + DIRECTORY)
+        .addArgument("--output " + REPORT);
+    report.setMaxMemory("1000");
+    for (AbstractJob job : jobs) {
+      if (!hasChildren.containsKey(job)) {
+        report.addParent(job);
+      }
+    }
+    return report;
+  }
+
+  private void wrap(Job job) {
+    StringBuilder command = new StringBuilder();
+    for (String argument : job.getCommand().getArguments()) {
+      command.append(command.length() == 0 ? "" : " ").append(argument);
+    }
+    StringBuilder parents = new StringBuilder();
+    for (Job parent : job.getParents()) {
+      parents.append(parents.length() == 0 ? "" : ",").append(names.get(parent));
+    }
+    String name = names.get(job);
+    List<String> arguments = job.getCommand().getArguments();
+    arguments.clear();
+    arguments.add("mkdir -p " + DIRECTORY + " ; perl " + scripts + "/job_telemetry.pl --job " + name
+        + (parents.length() == 0 ? "" : " --parents " + parents)
+        + " --output " + DIRECTORY + "/" + name + ".json --pid $$ --interval " + intervalSeconds
+        + (job.getMaxMemory() == null ? "" : " --memory-m " + job.getMaxMemory()) + " --threads " + job.getThreads()
+        + " & TELEMETRY_PID=$! ; ( " + command + " ) ; rc=$? ; kill -USR1 $TELEMETRY_PID 2>/dev/null ; wait $TELEMETRY_PID ; exit $rc");
+  }
+}